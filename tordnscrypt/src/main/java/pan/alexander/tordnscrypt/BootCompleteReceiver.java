@@ -115,9 +115,9 @@ public class BootCompleteReceiver extends BroadcastReceiver {
             boolean autoStartITPD = shPref.getBoolean("swAutostartITPD", false);
 
             if (action.equalsIgnoreCase(MY_PACKAGE_REPLACED)) {
-                autoStartDNSCrypt = new PrefManager(context).getBoolPref("DNSCrypt Running");
-                autoStartTor = new PrefManager(context).getBoolPref("Tor Running");
-                autoStartITPD = new PrefManager(context).getBoolPref("I2PD Running");
+                autoStartDNSCrypt = ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running");
+                autoStartTor = ModulesStatus.getInstance().getPersistedBool(context, "Tor Running");
+                autoStartITPD = ModulesStatus.getInstance().getPersistedBool(context, "I2PD Running");
             }
 
             if (autoStartITPD) {
@@ -250,9 +250,9 @@ public class BootCompleteReceiver extends BroadcastReceiver {
     }
 
     private void saveModulesStateRunning(boolean saveDNSCryptRunning, boolean saveTorRunning, boolean saveITPDRunning) {
-        new PrefManager(context).setBoolPref("DNSCrypt Running", saveDNSCryptRunning);
-        new PrefManager(context).setBoolPref("Tor Running", saveTorRunning);
-        new PrefManager(context).setBoolPref("I2PD Running", saveITPDRunning);
+        ModulesStatus.getInstance().persist(context, "DNSCrypt Running", saveDNSCryptRunning);
+        ModulesStatus.getInstance().persist(context, "Tor Running", saveTorRunning);
+        ModulesStatus.getInstance().persist(context, "I2PD Running", saveITPDRunning);
     }
 
     private void runDNSCrypt() {
@@ -280,15 +280,15 @@ public class BootCompleteReceiver extends BroadcastReceiver {
     }
 
     private boolean isDnsCryptSavedStateRunning() {
-        return new PrefManager(context).getBoolPref("DNSCrypt Running");
+        return ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running");
     }
 
     private boolean isTorSavedStateRunning() {
-        return new PrefManager(context).getBoolPref("Tor Running");
+        return ModulesStatus.getInstance().getPersistedBool(context, "Tor Running");
     }
 
     private boolean isITPDSavedStateRunning() {
-        return new PrefManager(context).getBoolPref("I2PD Running");
+        return ModulesStatus.getInstance().getPersistedBool(context, "I2PD Running");
     }
 
     private void startRefreshTorUnlockIPs(Context context) {
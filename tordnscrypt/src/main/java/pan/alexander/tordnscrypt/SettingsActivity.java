@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.Objects;
 
 import pan.alexander.tordnscrypt.dialogs.progressDialogs.PleaseWaitProgressDialog;
+import pan.alexander.tordnscrypt.settings.ConnectionsFragment;
 import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.settings.PreferencesCommonFragment;
 import pan.alexander.tordnscrypt.settings.dnscrypt_servers.PreferencesDNSCryptServers;
@@ -190,6 +191,9 @@ public class SettingsActivity extends LangAppCompatActivity
         } else if (Objects.equals(intent.getAction(), "tor_bridges")) {
             fSupportTrans.replace(android.R.id.content, new PreferencesTorBridges(), "PreferencesTorBridges");
             fSupportTrans.commit();
+        } else if (Objects.equals(intent.getAction(), "vpn_connections")) {
+            fSupportTrans.replace(android.R.id.content, new ConnectionsFragment());
+            fSupportTrans.commit();
         }
 
     }
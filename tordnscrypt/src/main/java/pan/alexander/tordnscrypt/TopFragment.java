@@ -58,6 +58,7 @@ import pan.alexander.tordnscrypt.modules.ModulesStarterHelper;
 import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.Registration;
 import pan.alexander.tordnscrypt.utils.RootExecService;
+import pan.alexander.tordnscrypt.utils.RootShell;
 import pan.alexander.tordnscrypt.utils.Verifier;
 import pan.alexander.tordnscrypt.installer.Installer;
 import pan.alexander.tordnscrypt.modules.ModulesRunner;
@@ -96,6 +97,7 @@ public class TopFragment extends Fragment {
     private static String suVersion = "";
     private static List<String> suResult = null;
     private static List<String> bbResult = null;
+    private static final long ROOT_CHECK_TIMEOUT = 30000;
 
     private OperationMode mode = UNDEFINED;
     private boolean runModulesWithRoot = false;
@@ -220,8 +222,14 @@ public class TopFragment extends Fragment {
         @SuppressWarnings("deprecation")
         protected Void doInBackground(Void... params) {
 
+            //The check opens the shared root shell, later root commands reuse it
+            List<String> idResult = null;
             try {
-                suAvailable = Shell.SU.available();
+                RootShell.Result result = RootShell.getInstance().run(RootShell.PRIORITY_CHECKS, ROOT_CHECK_TIMEOUT, "id");
+                if (result.isExecuted()) {
+                    idResult = result.getStdout();
+                    suAvailable = idResult.toString().contains("uid=0");
+                }
             } catch (Exception e) {
                 Log.e(LOG_TAG, "Top Fragment doInBackground suAvailable Exception " + e.getMessage() + " " + e.getCause());
             }
@@ -229,8 +237,9 @@ public class TopFragment extends Fragment {
             if (suAvailable && suVersion.isEmpty()) {
                 try {
                     suVersion = Shell.SU.version(false);
-                    suResult = Shell.SU.run("id");
-                    bbResult = Shell.SU.run("busybox | head -1");
+                    suResult = idResult;
+                    RootShell.Result result = RootShell.getInstance().run(RootShell.PRIORITY_CHECKS, ROOT_CHECK_TIMEOUT, "busybox | head -1");
+                    bbResult = result.isExecuted() ? result.getStdout() : null;
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "Top Fragment doInBackground suParam Exception " + e.getMessage() + " " + e.getCause());
                 }
@@ -511,8 +520,8 @@ public class TopFragment extends Fragment {
                 && !appVersion.startsWith("l") && !appVersion.endsWith("p") && !appVersion.startsWith("f");
         if (autoUpdate) {
             boolean throughTorUpdate = spref.getBoolean("pref_fast through_tor_update", false);
-            boolean torRunning = new PrefManager(getActivity()).getBoolPref("Tor Running");
-            boolean torReady = new PrefManager(getActivity()).getBoolPref("Tor Ready");
+            boolean torRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running");
+            boolean torReady = ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Ready");
             if (!throughTorUpdate || (torRunning && torReady)) {
                 long updateTimeCurrent = System.currentTimeMillis();
                 String updateTimeLastStr = new PrefManager(getActivity()).getStrPref("updateTimeLast");
@@ -623,9 +632,9 @@ public class TopFragment extends Fragment {
             return false;
         }
 
-        boolean dnsCryptRunning = new PrefManager(getActivity()).getBoolPref("DNSCrypt Running");
-        boolean torRunning = new PrefManager(getActivity()).getBoolPref("Tor Running");
-        boolean itpdRunning = new PrefManager(getActivity()).getBoolPref("I2PD Running");
+        boolean dnsCryptRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "DNSCrypt Running");
+        boolean torRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running");
+        boolean itpdRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "I2PD Running");
 
         return dnsCryptRunning || torRunning || itpdRunning;
     }
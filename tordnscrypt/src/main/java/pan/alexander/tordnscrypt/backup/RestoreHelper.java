@@ -149,9 +149,9 @@ class RestoreHelper extends Installer {
         PathVars pathVars = PathVars.getInstance(activity);
         pathVars.saveAppUID(activity);
 
-        new PrefManager(activity).setBoolPref("DNSCrypt Running", false);
-        new PrefManager(activity).setBoolPref("Tor Running", false);
-        new PrefManager(activity).setBoolPref("I2PD Running", false);
+        ModulesStatus.getInstance().persist(activity, "DNSCrypt Running", false);
+        ModulesStatus.getInstance().persist(activity, "Tor Running", false);
+        ModulesStatus.getInstance().persist(activity, "I2PD Running", false);
     }
 
     private void extractBackup() throws Exception {
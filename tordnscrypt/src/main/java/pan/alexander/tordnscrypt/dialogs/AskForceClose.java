@@ -33,7 +33,6 @@ import pan.alexander.tordnscrypt.modules.ModulesKiller;
 import pan.alexander.tordnscrypt.modules.ModulesService;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.settings.PathVars;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
@@ -128,8 +127,9 @@ public class AskForceClose extends ExtendedDialogFragment {
     }
 
     private void saveModulesAreStopped(Context context) {
-        new PrefManager(context).setBoolPref("DNSCrypt Running", false);
-        new PrefManager(context).setBoolPref("Tor Running", false);
-        new PrefManager(context).setBoolPref("I2PD Running", false);
+        modulesStatus.persist(context, "DNSCrypt Running", false);
+        modulesStatus.persist(context, "Tor Running", false);
+        modulesStatus.persist(context, "I2PD Running", false);
+        modulesStatus.flushPersisted();
     }
 }
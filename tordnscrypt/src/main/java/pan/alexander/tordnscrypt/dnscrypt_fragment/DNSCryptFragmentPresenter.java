@@ -19,6 +19,7 @@ package pan.alexander.tordnscrypt.dnscrypt_fragment;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
+import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -31,8 +32,9 @@ import android.widget.Toast;
 import androidx.fragment.app.DialogFragment;
 import androidx.fragment.app.FragmentManager;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -61,7 +63,7 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPING;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.VPN_MODE;
 
-public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallbacks {
+public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallbacks, ModulesStatus.OnModulesStateChangedListener {
     private boolean bound;
 
     private int displayLogPeriod = -1;
@@ -73,7 +75,11 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
     private ModuleState fixedModuleState;
     private ServiceConnection serviceConnection;
     private ServiceVPN serviceVPN;
-    private ArrayList<ResourceRecord> savedResourceRecords;
+    // Records already received from the VPN service, rendered once and kept up to its ring capacity
+    private ArrayDeque<String> dnsResponses;
+    private ServiceVPN dnsResponsesSource;
+    private long dnsResponsesSequence;
+    private volatile String displayedLines;
 
     public DNSCryptFragmentPresenter(DNSCryptFragmentView view) {
         this.view = view;
@@ -88,8 +94,9 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
         String appDataDir = pathVars.getAppDataDir();
 
         modulesStatus = ModulesStatus.getInstance();
+        modulesStatus.addOnModulesStateChangedListener(this);
 
-        savedResourceRecords = new ArrayList<>();
+        dnsResponses = new ArrayDeque<>();
 
         logFile = new OwnFileReader(context, appDataDir + "/logs/DnsCrypt.log");
 
@@ -120,6 +127,9 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
     }
 
     public void onStop(Context context) {
+        if (modulesStatus != null) {
+            modulesStatus.removeOnModulesStateChangedListener(this);
+        }
         stopDisplayLog();
         unbindVPNService(context);
         view = null;
@@ -136,12 +146,12 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
 
     @Override
     public boolean isSavedDNSStatusRunning(Context context) {
-        return new PrefManager(context).getBoolPref("DNSCrypt Running");
+        return ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running");
     }
 
     @Override
     public void saveDNSStatusRunning(Context context, boolean running) {
-        new PrefManager(context).setBoolPref("DNSCrypt Running", running);
+        ModulesStatus.getInstance().persist(context, "DNSCrypt Running", running);
     }
 
     @Override
@@ -202,8 +212,6 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
                         previousLastLines = lastLines;
                     }
 
-                    refreshDNSCryptState(view.getFragmentActivity());
-
                 });
 
             }
@@ -378,8 +386,9 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
         }
 
         if (modulesStatus.getMode() != VPN_MODE) {
-            if (!savedResourceRecords.isEmpty() && view != null && view.getFragmentActivity() != null) {
-                savedResourceRecords.clear();
+            if (!dnsResponses.isEmpty() && view != null && view.getFragmentActivity() != null) {
+                dnsResponses.clear();
+                displayedLines = null;
                 view.getFragmentActivity().runOnUiThread(() -> {
                     if (view != null && view.getFragmentActivity() != null  && logFile != null) {
                         view.setDNSCryptLogViewText(Html.fromHtml(logFile.readLastLines()));
@@ -397,76 +406,109 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
 
         if (modulesStatus.getDnsCryptState() == RESTARTING) {
             clearResourceRecords();
-            savedResourceRecords.clear();
+            dnsResponses.clear();
+            displayedLines = null;
             return false;
         }
 
-        ArrayList<ResourceRecord> resourceRecords = new ArrayList<>(getResourceRecords());
+        boolean updated = updateDnsResponses();
 
-        if (resourceRecords.equals(savedResourceRecords) || resourceRecords.isEmpty()) {
+        if (dnsResponses.isEmpty() || !updated && savedLines != null && savedLines.equals(displayedLines)) {
             return false;
         }
 
-        savedResourceRecords = resourceRecords;
+        displayedLines = savedLines;
 
-        ResourceRecord rr;
         StringBuilder lines = new StringBuilder();
 
         lines.append(savedLines);
 
-        lines.append("<br />");
+        for (String response : dnsResponses) {
+            lines.append("<br />").append(response);
+        }
 
-        for (int i = 0; i < savedResourceRecords.size(); i++) {
-            rr = savedResourceRecords.get(i);
+        if (view != null && view.getFragmentActivity() != null) {
+            view.getFragmentActivity().runOnUiThread(() -> {
+                if (view != null && view.getFragmentActivity() != null) {
+                    view.setDNSCryptLogViewText(Html.fromHtml(lines.toString()));
+                } else {
+                    displayedLines = null;
+                }
+            });
+        }
 
-            if (appVersion.startsWith("g") && rr.HInfo.contains("block_ipv6")) {
+        return true;
+    }
+
+    // Renders only the records resolved since the last call, false when there are none
+    private boolean updateDnsResponses() {
+        ServiceVPN serviceVPN = this.serviceVPN;
+        if (serviceVPN == null) {
+            return false;
+        }
+
+        if (serviceVPN != dnsResponsesSource) {
+            dnsResponsesSource = serviceVPN;
+            dnsResponsesSequence = 0;
+            dnsResponses.clear();
+        }
+
+        List<ResourceRecord> resourceRecords = new ArrayList<>();
+        dnsResponsesSequence = serviceVPN.getResourceRecords(dnsResponsesSequence, resourceRecords);
+
+        if (resourceRecords.isEmpty()) {
+            return false;
+        }
+
+        for (ResourceRecord rr : resourceRecords) {
+            if (appVersion.startsWith("g") && rr.getHInfo().contains("block_ipv6")) {
                 continue;
             }
 
-            if (rr.Resource.equals("0.0.0.0") || rr.Resource.equals("127.0.0.1") || rr.HInfo.contains("dnscrypt") || rr.Rcode != 0) {
-                if (!rr.AName.isEmpty()) {
-                    lines.append("<font color=#f08080>").append(rr.AName);
+            StringBuilder line = new StringBuilder();
+
+            if (rr.getResource().equals("0.0.0.0") || rr.getResource().equals("127.0.0.1") || rr.getHInfo().contains("dnscrypt") || rr.Rcode != 0) {
+                if (!rr.getAName().isEmpty()) {
+                    line.append("<font color=#f08080>").append(rr.getAName());
 
-                    if (rr.HInfo.contains("block_ipv6")) {
-                        lines.append(" ipv6");
+                    if (rr.getHInfo().contains("block_ipv6")) {
+                        line.append(" ipv6");
                     }
 
-                    lines.append("</font>");
+                    line.append("</font>");
                 } else {
-                    lines.append("<font color=#f08080>").append(rr.QName).append("</font>");
+                    line.append("<font color=#f08080>").append(rr.getQName()).append("</font>");
                 }
             } else {
-                lines.append("<font color=#0f7f7f>").append(rr.AName).append("</font>");
+                line.append("<font color=#0f7f7f>").append(rr.getAName()).append("</font>");
             }
 
-            if (i < savedResourceRecords.size() - 1) {
-                lines.append("<br />");
-            }
+            dnsResponses.addLast(line.toString());
         }
 
-        if (view != null && view.getFragmentActivity() != null) {
-            view.getFragmentActivity().runOnUiThread(() -> {
-                if (view != null && view.getFragmentActivity() != null) {
-                    view.setDNSCryptLogViewText(Html.fromHtml(lines.toString()));
-                } else {
-                    savedResourceRecords.clear();
-                }
-            });
+        int capacity = serviceVPN.getResourceRecordsCapacity();
+        while (dnsResponses.size() > capacity) {
+            dnsResponses.removeFirst();
         }
 
         return true;
     }
 
-    private LinkedList<ResourceRecord> getResourceRecords() {
+    private void clearResourceRecords() {
         if (serviceVPN != null) {
-            return serviceVPN.getResourceRecords();
+            serviceVPN.clearResourceRecords();
         }
-        return new LinkedList<>();
     }
 
-    private void clearResourceRecords() {
-        if (serviceVPN != null) {
-            serviceVPN.clearResourceRecords();
+    @Override
+    public void onModulesStateChanged(ModulesStatus.Snapshot snapshot) {
+        if (view == null || snapshot.getDnsCryptState() == fixedModuleState) {
+            return;
+        }
+
+        Activity activity = view.getFragmentActivity();
+        if (activity != null) {
+            activity.runOnUiThread(() -> refreshDNSCryptState(activity));
         }
     }
 
@@ -607,8 +649,8 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
         //cleanLogFileNoRootMethod(context);
 
 
-        if (new PrefManager(context).getBoolPref("Tor Running")
-                && !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        if (ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -621,8 +663,8 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
             runDNSCrypt(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(context).getBoolPref("Tor Running")
-                && !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -635,12 +677,12 @@ public class DNSCryptFragmentPresenter implements DNSCryptFragmentPresenterCallb
             runDNSCrypt(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(context).getBoolPref("Tor Running")
-                && new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
             setDnsCryptStopping();
             stopDNSCrypt(context);
-        } else if (new PrefManager(context).getBoolPref("Tor Running")
-                && new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             setDnsCryptStopping();
             stopDNSCrypt(context);
@@ -22,8 +22,10 @@ package pan.alexander.tordnscrypt.help;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import androidx.fragment.app.DialogFragment;
+import androidx.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -40,6 +42,7 @@ import pan.alexander.tordnscrypt.utils.RootCommands;
 import pan.alexander.tordnscrypt.utils.RootExecService;
 import pan.alexander.tordnscrypt.utils.zipUtil.ZipFileManager;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
+import pan.alexander.tordnscrypt.vpn.service.PacketCapture;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
 
@@ -100,6 +103,11 @@ public class HelpActivityReceiver extends BroadcastReceiver {
 
     private void saveLogsMethodOne(Context context) {
         try {
+            //Packets may contain private data, they are added only when the user asked for it
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            if (prefs.getBoolean("pcap_in_logs", false)) {
+                PacketCapture.export(context, new File(appDataDir + "/logs_dir/capture.pcap"));
+            }
             ZipFileManager zipFileManager = new ZipFileManager(appDataDir + "/logs/InvizibleLogs.txt");
             zipFileManager.createZip(appDataDir + "/logs_dir");
             FileOperations.deleteDirSynchronous(context,appDataDir + "/logs_dir");
@@ -382,9 +382,9 @@ public class Installer implements TopFragment.OnActivityChangeListener {
     protected void stopAllRunningModulesWithRootCommand() {
         Log.i(LOG_TAG, "Installer: stopAllRunningModulesWithRootCommand");
 
-        new PrefManager(activity).setBoolPref("DNSCrypt Running", false);
-        new PrefManager(activity).setBoolPref("Tor Running", false);
-        new PrefManager(activity).setBoolPref("I2PD Running", false);
+        ModulesStatus.getInstance().persist(activity, "DNSCrypt Running", false);
+        ModulesStatus.getInstance().persist(activity, "Tor Running", false);
+        ModulesStatus.getInstance().persist(activity, "I2PD Running", false);
 
         String busyboxNative = "";
         if (new PrefManager(activity).getBoolPref("bbOK") && pathVars.getBusyboxPath().equals("busybox ")) {
@@ -518,14 +518,14 @@ public class Installer implements TopFragment.OnActivityChangeListener {
     }
 
     private boolean isDnsCryptSavedStateRunning() {
-        return new PrefManager(activity).getBoolPref("DNSCrypt Running");
+        return ModulesStatus.getInstance().getPersistedBool(activity, "DNSCrypt Running");
     }
 
     private boolean isTorSavedStateRunning() {
-        return new PrefManager(activity).getBoolPref("Tor Running");
+        return ModulesStatus.getInstance().getPersistedBool(activity, "Tor Running");
     }
 
     private boolean isITPDSavedStateRunning() {
-        return new PrefManager(activity).getBoolPref("I2PD Running");
+        return ModulesStatus.getInstance().getPersistedBool(activity, "I2PD Running");
     }
 }
@@ -19,6 +19,7 @@ package pan.alexander.tordnscrypt.itpd_fragment;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
@@ -60,7 +61,7 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPING;
 
-public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
+public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks, ModulesStatus.OnModulesStateChangedListener {
 
     private boolean runI2PDWithRoot = false;
     private int displayLogPeriod = -1;
@@ -86,6 +87,7 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
         appDataDir = pathVars.getAppDataDir();
 
         modulesStatus = ModulesStatus.getInstance();
+        modulesStatus.addOnModulesStateChangedListener(this);
 
         SharedPreferences shPref = PreferenceManager.getDefaultSharedPreferences(context);
         runI2PDWithRoot = shPref.getBoolean("swUseModulesRoot", false);
@@ -117,6 +119,9 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
     }
 
     public void onStop() {
+        if (modulesStatus != null) {
+            modulesStatus.removeOnModulesStateChangedListener(this);
+        }
         stopDisplayLog();
         view = null;
     }
@@ -229,7 +234,7 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
     @Override
     public boolean isSavedITPDStatusRunning(Context context) {
         if (context != null) {
-            return new PrefManager(context).getBoolPref("I2PD Running");
+            return ModulesStatus.getInstance().getPersistedBool(context, "I2PD Running");
         }
         return false;
     }
@@ -237,7 +242,19 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
     @Override
     public void saveITPDStatusRunning(Context context, boolean running) {
         if (context != null) {
-            new PrefManager(context).setBoolPref("I2PD Running", running);
+            ModulesStatus.getInstance().persist(context, "I2PD Running", running);
+        }
+    }
+
+    @Override
+    public void onModulesStateChanged(ModulesStatus.Snapshot snapshot) {
+        if (view == null || snapshot.getItpdState() == fixedModuleState) {
+            return;
+        }
+
+        Activity activity = view.getFragmentActivity();
+        if (activity != null) {
+            activity.runOnUiThread(() -> refreshITPDState(activity));
         }
     }
 
@@ -367,8 +384,6 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
                     } else {
                         view.setITPDLogViewText(Html.fromHtml(htmlData));
                     }
-
-                    refreshITPDState(view.getFragmentActivity());
                 });
             }
         }, 1000, period);
@@ -447,9 +462,9 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
 
         //cleanLogFileNoRootMethod();
 
-        if (!new PrefManager(Objects.requireNonNull(context)).getBoolPref("I2PD Running")
-                && new PrefManager(Objects.requireNonNull(context)).getBoolPref("Tor Running")
-                && !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        if (!ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "I2PD Running")
+                && ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "Tor Running")
+                && !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -464,9 +479,9 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
             runITPD(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(Objects.requireNonNull(context)).getBoolPref("I2PD Running") &&
-                !new PrefManager(context).getBoolPref("Tor Running")
-                && !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "I2PD Running") &&
+                !ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -481,9 +496,9 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
             runITPD(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(Objects.requireNonNull(context)).getBoolPref("I2PD Running") &&
-                !new PrefManager(context).getBoolPref("Tor Running")
-                && new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "I2PD Running") &&
+                !ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -498,9 +513,9 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
             runITPD(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(Objects.requireNonNull(context)).getBoolPref("I2PD Running") &&
-                new PrefManager(context).getBoolPref("Tor Running")
-                && new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "I2PD Running") &&
+                ModulesStatus.getInstance().getPersistedBool(context, "Tor Running")
+                && ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -515,7 +530,7 @@ public class ITPDFragmentPresenter implements ITPDFragmentPresenterCallbacks {
             runITPD(context);
 
             displayLog(1000);
-        } else if (new PrefManager(Objects.requireNonNull(context)).getBoolPref("I2PD Running")) {
+        } else if (ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "I2PD Running")) {
 
             setITPDStopping();
 
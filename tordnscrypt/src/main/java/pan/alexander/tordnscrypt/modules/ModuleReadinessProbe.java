@@ -0,0 +1,90 @@
+package pan.alexander.tordnscrypt.modules;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+//A module is ready when its listener accepts connections:
+//DNSCrypt listen_port, Tor SOCKSPort and the I2P HTTP proxy
+final class ModuleReadinessProbe {
+    //Time in ms given to a module to open its listener
+    static final long READY_TIMEOUT = 30000;
+
+    private static final int CONNECT_TIMEOUT = 200;
+    private static final long PROBE_INTERVAL = 100;
+
+    private ModuleReadinessProbe() {
+    }
+
+    //Returns time to ready in ms, or -1 if the port was not accepting connections until the timeout
+    //or the module thread exited. Thread is null for modules started with root.
+    static long awaitReady(String module, String port, Thread moduleThread) {
+        int portNumber;
+        try {
+            portNumber = Integer.parseInt(port.trim());
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, module + " readiness is unknown, wrong port " + port);
+            return -1;
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + READY_TIMEOUT;
+
+        while (System.currentTimeMillis() < deadline) {
+            if (isAccepting(portNumber)) {
+                long timeToReady = System.currentTimeMillis() - start;
+                Log.i(LOG_TAG, module + " is ready in " + timeToReady + " ms");
+                return timeToReady;
+            }
+
+            if (moduleThread != null && !ModuleThread.isRunning(moduleThread)) {
+                Log.w(LOG_TAG, module + " exited before it was ready");
+                return -1;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(PROBE_INTERVAL);
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, module + " readiness probe interrupted");
+                return -1;
+            }
+        }
+
+        Log.w(LOG_TAG, module + " is not accepting connections on port " + port
+                + " after " + READY_TIMEOUT + " ms");
+        return -1;
+    }
+
+    private static boolean isAccepting(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), CONNECT_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package pan.alexander.tordnscrypt.modules;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+//Thread of a module started without root, its exit is reported to the subscribers of ModulesStatus
+class ModuleThread extends Thread {
+    private volatile boolean finished;
+
+    ModuleThread(Runnable starter, String name) {
+        super(starter, name);
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            finished = true;
+            ModulesStatus.getInstance().notifyModulesStateChanged();
+        }
+    }
+
+    //Thread.isAlive() is still true while the exit is reported
+    static boolean isRunning(Thread thread) {
+        if (thread == null || !thread.isAlive()) {
+            return false;
+        }
+
+        return !(thread instanceof ModuleThread) || !((ModuleThread) thread).finished;
+    }
+}
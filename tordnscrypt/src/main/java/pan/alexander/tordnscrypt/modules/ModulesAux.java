@@ -57,9 +57,9 @@ public class ModulesAux {
     }
 
     public static void stopModulesIfRunning(Context context) {
-        boolean dnsCryptRunning = new PrefManager(context).getBoolPref("DNSCrypt Running");
-        boolean torRunning = new PrefManager(context).getBoolPref("Tor Running");
-        boolean itpdRunning = new PrefManager(context).getBoolPref("I2PD Running");
+        boolean dnsCryptRunning = ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running");
+        boolean torRunning = ModulesStatus.getInstance().getPersistedBool(context, "Tor Running");
+        boolean itpdRunning = ModulesStatus.getInstance().getPersistedBool(context, "I2PD Running");
 
         if (dnsCryptRunning) {
             ModulesKiller.stopDNSCrypt(context);
@@ -297,9 +297,10 @@ public class ModulesBroadcastReceiver extends BroadcastReceiver {
     }
 
     private void powerOFFDetected() {
-        new PrefManager(context).setBoolPref("DNSCrypt Running", false);
-        new PrefManager(context).setBoolPref("Tor Running", false);
-        new PrefManager(context).setBoolPref("I2PD Running", false);
+        modulesStatus.persist(context, "DNSCrypt Running", false);
+        modulesStatus.persist(context, "Tor Running", false);
+        modulesStatus.persist(context, "I2PD Running", false);
+        modulesStatus.flushPersisted();
 
         ModulesAux.stopModulesIfRunning(context);
     }
@@ -34,9 +34,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import eu.chainfire.libsuperuser.Shell;
 import pan.alexander.tordnscrypt.settings.PathVars;
-import pan.alexander.tordnscrypt.utils.Arr;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.RootCommands;
+import pan.alexander.tordnscrypt.utils.RootShell;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
 import static pan.alexander.tordnscrypt.modules.ModulesService.DNSCRYPT_KEYWORD;
@@ -53,6 +52,13 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPING;
 
 public class ModulesKiller {
+    //Time in ms given to a module to exit after SIGTERM and after SIGKILL
+    private static final long STOP_TIMEOUT = 3000;
+    private static final long KILL_TIMEOUT = 2000;
+    private static final long EXIT_POLL_INTERVAL = 50;
+    private static final long ROOT_POLL_INTERVAL = 200;
+    private static final long SHELL_BATCH_TIMEOUT = 10000;
+
     private final Service service;
     private String appDataDir;
     private String busyboxPath;
@@ -62,7 +68,10 @@ public class ModulesKiller {
 
     private final ModulesStatus modulesStatus;
 
-    private final ReentrantLock reentrantLock;
+    //Modules are stopped in parallel, each one by a single killer at a time
+    private final ReentrantLock dnsCryptLock = new ReentrantLock();
+    private final ReentrantLock torLock = new ReentrantLock();
+    private final ReentrantLock itpdLock = new ReentrantLock();
 
     private static Thread dnsCryptThread;
     private static Thread torThread;
@@ -76,7 +85,6 @@ public class ModulesKiller {
         torPath = pathVars.getTorPath();
         itpdPath = pathVars.getITPDPath();
         modulesStatus = ModulesStatus.getInstance();
-        reentrantLock = new ReentrantLock();
     }
 
     public static void stopDNSCrypt(Context context) {
@@ -116,14 +124,6 @@ public class ModulesKiller {
         service.sendBroadcast(intent);
     }
 
-    private void makeDelay(int sec) {
-        try {
-            TimeUnit.SECONDS.sleep(sec);
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Modules killer makeDelay interrupted! " + e.getMessage() + " " + e.getCause());
-        }
-    }
-
     void setDnsCryptThread(Thread dnsCryptThread) {
         ModulesKiller.dnsCryptThread = dnsCryptThread;
     }
@@ -155,35 +155,17 @@ public class ModulesKiller {
                 modulesStatus.setDnsCryptState(STOPPING);
             }
 
-            reentrantLock.lock();
+            dnsCryptLock.lock();
 
             String dnsCryptPid = readPidFile(appDataDir + "/dnscrypt-proxy.pid");
 
-            boolean moduleStartedWithRoot = new PrefManager(service).getBoolPref("DNSCryptStartedWithRoot");
-            boolean rootIsAvailable = modulesStatus.isRootAvailable();
-
-            boolean result = doThreeAttemptsToStopModule(dnscryptPath, dnsCryptPid, dnsCryptThread, moduleStartedWithRoot);
-
-            if (!result) {
-
-                if (rootIsAvailable) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop DNSCrypt. Stop with root method!");
-                    result = killModule(dnscryptPath, dnsCryptPid, dnsCryptThread, true, "SIGKILL", 10);
-                }
-
-                if (!moduleStartedWithRoot && !result) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop DNSCrypt. Stop with interrupt thread!");
-
-                    makeDelay(5);
-
-                    result = stopModuleWithInterruptThread(dnsCryptThread);
-                }
-            }
+            boolean moduleStartedWithRoot = modulesStatus.getPersistedBool(service, "DNSCryptStartedWithRoot");
+            boolean result = stopModule("DNSCrypt", dnscryptPath, dnsCryptPid, dnsCryptThread, moduleStartedWithRoot);
 
             if (moduleStartedWithRoot) {
                 if (!result) {
                     if (modulesStatus.getDnsCryptState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("DNSCrypt Running", true);
+                        modulesStatus.persist(service, "DNSCrypt Running", true);
                         sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, dnscryptPath);
                     }
 
@@ -193,7 +175,7 @@ public class ModulesKiller {
 
                 } else {
                     if (modulesStatus.getDnsCryptState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("DNSCrypt Running", false);
+                        modulesStatus.persist(service, "DNSCrypt Running", false);
                         modulesStatus.setDnsCryptState(STOPPED);
                         sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, "");
                     }
@@ -202,7 +184,7 @@ public class ModulesKiller {
                 if (dnsCryptThread != null && dnsCryptThread.isAlive()) {
 
                     if (modulesStatus.getDnsCryptState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("DNSCrypt Running", true);
+                        modulesStatus.persist(service, "DNSCrypt Running", true);
                         sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, dnscryptPath);
                     }
 
@@ -212,14 +194,14 @@ public class ModulesKiller {
                 } else {
 
                     if (modulesStatus.getDnsCryptState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("DNSCrypt Running", false);
+                        modulesStatus.persist(service, "DNSCrypt Running", false);
                         modulesStatus.setDnsCryptState(STOPPED);
                         sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, "");
                     }
                 }
             }
 
-            reentrantLock.unlock();
+            dnsCryptLock.unlock();
 
         };
     }
@@ -232,37 +214,18 @@ public class ModulesKiller {
                 modulesStatus.setTorState(STOPPING);
             }
 
-            reentrantLock.lock();
+            torLock.lock();
 
             String torPid = readPidFile(appDataDir + "/tor.pid");
 
-            boolean moduleStartedWithRoot = new PrefManager(service).getBoolPref("TorStartedWithRoot");
-            boolean rootIsAvailable = modulesStatus.isRootAvailable();
-
-            boolean result = doThreeAttemptsToStopModule(torPath, torPid, torThread, moduleStartedWithRoot);
-
-            if (!result) {
-
-                if (rootIsAvailable) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop Tor. Stop with root method!");
-                    result = killModule(torPath, torPid, torThread, true, "SIGKILL", 10);
-                }
-
-                if (!moduleStartedWithRoot && !result) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop Tor. Stop with interrupt thread!");
-
-                    makeDelay(5);
-
-                    result = stopModuleWithInterruptThread(torThread);
-                }
-
-            }
+            boolean moduleStartedWithRoot = modulesStatus.getPersistedBool(service, "TorStartedWithRoot");
+            boolean result = stopModule("Tor", torPath, torPid, torThread, moduleStartedWithRoot);
 
             if (moduleStartedWithRoot) {
                 if (!result) {
                     if (modulesStatus.getTorState() != RESTARTING) {
                         sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, torPath);
-                        new PrefManager(service).setBoolPref("Tor Running", true);
+                        modulesStatus.persist(service, "Tor Running", true);
                     }
 
                     modulesStatus.setTorState(RUNNING);
@@ -271,7 +234,7 @@ public class ModulesKiller {
 
                 } else {
                     if (modulesStatus.getTorState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("Tor Running", false);
+                        modulesStatus.persist(service, "Tor Running", false);
                         modulesStatus.setTorState(STOPPED);
                         sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, "");
                     }
@@ -280,7 +243,7 @@ public class ModulesKiller {
                 if (torThread != null && torThread.isAlive()) {
 
                     if (modulesStatus.getTorState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("Tor Running", true);
+                        modulesStatus.persist(service, "Tor Running", true);
                         sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, torPath);
                     }
 
@@ -290,14 +253,14 @@ public class ModulesKiller {
                 } else {
 
                     if (modulesStatus.getTorState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("Tor Running", false);
+                        modulesStatus.persist(service, "Tor Running", false);
                         modulesStatus.setTorState(STOPPED);
                         sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, "");
                     }
                 }
             }
 
-            reentrantLock.unlock();
+            torLock.unlock();
         };
     }
 
@@ -308,35 +271,17 @@ public class ModulesKiller {
                 modulesStatus.setItpdState(STOPPING);
             }
 
-            reentrantLock.lock();
+            itpdLock.lock();
 
             String itpdPid = readPidFile(appDataDir + "/i2pd.pid");
 
-            boolean moduleStartedWithRoot = new PrefManager(service).getBoolPref("ITPDStartedWithRoot");
-            boolean rootIsAvailable = modulesStatus.isRootAvailable();
-
-            boolean result = doThreeAttemptsToStopModule(itpdPath, itpdPid, itpdThread, moduleStartedWithRoot);
-
-            if (!result) {
-
-                if (rootIsAvailable ) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop I2P. Stop with root method!");
-                    result = killModule(itpdPath, itpdPid, itpdThread, true, "SIGKILL", 10);
-                }
-
-                if (!moduleStartedWithRoot && !result) {
-                    Log.w(LOG_TAG, "ModulesKiller cannot stop I2P. Stop with interrupt thread!");
-
-                    makeDelay(5);
-
-                    result = stopModuleWithInterruptThread(itpdThread);
-                }
-            }
+            boolean moduleStartedWithRoot = modulesStatus.getPersistedBool(service, "ITPDStartedWithRoot");
+            boolean result = stopModule("I2P", itpdPath, itpdPid, itpdThread, moduleStartedWithRoot);
 
             if (moduleStartedWithRoot) {
                 if (!result) {
                     if (modulesStatus.getItpdState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("I2PD Running", true);
+                        modulesStatus.persist(service, "I2PD Running", true);
                         sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, itpdPath);
                     }
 
@@ -346,7 +291,7 @@ public class ModulesKiller {
 
                 } else {
                     if (modulesStatus.getItpdState() != RESTARTING) {
-                        new PrefManager(service).setBoolPref("I2PD Running", false);
+                        modulesStatus.persist(service, "I2PD Running", false);
                         modulesStatus.setItpdState(STOPPED);
                         sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, "");
                     }
@@ -357,7 +302,7 @@ public class ModulesKiller {
             if (itpdThread != null && itpdThread.isAlive()) {
 
                 if (modulesStatus.getItpdState() != RESTARTING) {
-                    new PrefManager(service).setBoolPref("I2PD Running", true);
+                    modulesStatus.persist(service, "I2PD Running", true);
                     sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, itpdPath);
                 }
 
@@ -367,19 +312,45 @@ public class ModulesKiller {
             } else {
 
                 if (modulesStatus.getItpdState() != RESTARTING) {
-                    new PrefManager(service).setBoolPref("I2PD Running", false);
+                    modulesStatus.persist(service, "I2PD Running", false);
                     modulesStatus.setItpdState(STOPPED);
                     sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, "");
                 }
             }
 
-            reentrantLock.unlock();
+            itpdLock.unlock();
         };
     }
 
-    private boolean killModule(String module, String pid, Thread thread, boolean killWithRoot, String signal, int delaySec) {
-        boolean result = false;
+    //SIGTERM, then SIGKILL when the module does not exit in time
+    private boolean stopModule(String name, String modulePath, String pid, Thread thread, boolean moduleStartedWithRoot) {
+        long start = System.currentTimeMillis();
 
+        boolean result = signalAndWait(modulePath, pid, thread, moduleStartedWithRoot, "", STOP_TIMEOUT);
+
+        if (!result) {
+            Log.w(LOG_TAG, "ModulesKiller " + name + " did not exit in " + STOP_TIMEOUT + " ms. Stop with SIGKILL!");
+            result = signalAndWait(modulePath, pid, thread, moduleStartedWithRoot, "SIGKILL", KILL_TIMEOUT);
+        }
+
+        if (!result && !moduleStartedWithRoot && modulesStatus.isRootAvailable()) {
+            Log.w(LOG_TAG, "ModulesKiller cannot stop " + name + ". Stop with root method!");
+            result = signalAndWait(modulePath, pid, thread, true, "SIGKILL", KILL_TIMEOUT);
+        }
+
+        if (!result && !moduleStartedWithRoot) {
+            Log.w(LOG_TAG, "ModulesKiller cannot stop " + name + ". Stop with interrupt thread!");
+            result = stopModuleWithInterruptThread(thread);
+        }
+
+        Log.i(LOG_TAG, "ModulesKiller " + name + (result ? " stopped in " : " not stopped in ")
+                + (System.currentTimeMillis() - start) + " ms");
+
+        return result;
+    }
+
+    private boolean signalAndWait(String modulePath, String pid, Thread thread, boolean killWithRoot, String signal, long timeout) {
+        String module = modulePath;
         if (module.contains("/")) {
             module = module.substring(module.lastIndexOf("/"));
         }
@@ -388,82 +359,129 @@ public class ModulesKiller {
 
         if ((thread == null || !thread.isAlive()) && modulesStatus.isRootAvailable()
                 || killWithRoot) {
+            return killWithSUAndWait(module, pid, preparedCommands, timeout);
+        }
 
-            String sleep = busyboxPath + "sleep " + delaySec;
-            String checkString = busyboxPath + "pgrep -l " + module;
-
-            String[] commands = Arr.ADD2(preparedCommands, new String[]{sleep, checkString});
+        boolean result = false;
+        if (!pid.isEmpty()) {
+            killWithPid(signal, pid);
+            result = waitForExit(pid, thread, timeout);
 
-            List<String> shellResult = killWithSU(module, commands);
+            //The pid file can be stale, so the module is killed by name as well
+            if (!result) {
+                Log.w(LOG_TAG, "Kill " + module + " with pid " + pid + " failed. Kill by name!");
+                preparedCommands = prepareKillCommands(module, "", signal, false);
+            }
+        }
 
+        if (!result) {
+            List<String> shellResult = killWithSH(module, preparedCommands);
             if (shellResult != null) {
-                result = !shellResult.toString().toLowerCase().contains(module.toLowerCase().trim());
+                Log.i(LOG_TAG, "Kill " + module + " without root\n" + shellResult.toString());
             }
 
-            if (shellResult != null) {
-                Log.i(LOG_TAG, "Kill " + module + " with root: result " + result + "\n" + shellResult.toString());
-            } else {
-                Log.i(LOG_TAG, "Kill " + module + " with root: result false");
+            result = waitForExit(pid, thread, timeout);
+        }
+
+        Log.i(LOG_TAG, "Kill " + module + " without root: result " + result);
+
+        return result;
+    }
+
+    //The app can be denied to see /proc of root processes, so the exit is checked with root.
+    //The signal and every check are short batches of their own, so the shared root shell
+    //stays free for the other modules and iptables while the module exits.
+    private boolean killWithSUAndWait(String module, String pid, String[] preparedCommands, long timeout) {
+        String isRunning = pid.isEmpty() ? busyboxPath + "pgrep " + module + " >/dev/null"
+                : "[ -d /proc/" + pid + " ]";
+        String runningString = isRunning + " && echo running";
+        String checkString = busyboxPath + "pgrep -l " + module;
+
+        if (killWithSU(module, preparedCommands, SHELL_BATCH_TIMEOUT) == null) {
+            Log.i(LOG_TAG, "Kill " + module + " with root: result false");
+            return false;
+        }
+
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(ROOT_POLL_INTERVAL);
+                List<String> runningResult = killWithSU(module, new String[]{runningString}, SHELL_BATCH_TIMEOUT);
+                if (runningResult != null && !runningResult.contains("running")) {
+                    break;
+                }
             }
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "ModulesKiller killWithSUAndWait interrupted! " + e.getMessage());
+        }
+
+        List<String> shellResult = killWithSU(module, new String[]{checkString}, SHELL_BATCH_TIMEOUT);
+
+        boolean result = false;
+        if (shellResult != null) {
+            result = !shellResult.toString().toLowerCase().contains(module.toLowerCase().trim());
+            Log.i(LOG_TAG, "Kill " + module + " with root: result " + result + "\n" + shellResult.toString());
         } else {
+            Log.i(LOG_TAG, "Kill " + module + " with root: result false");
+        }
 
-            if (!pid.isEmpty()) {
-                killWithPid(signal, pid, delaySec);
-            }
+        return result;
+    }
 
+    //Modules started without root are children of the module thread and visible in /proc
+    private boolean waitForExit(String pid, Thread thread, long timeout) {
+        try {
             if (thread != null) {
-                result = !thread.isAlive();
+                thread.join(timeout);
+                return !thread.isAlive();
             }
 
-            List<String> shellResult = null;
-            if (!result) {
-                shellResult = killWithSH(module, preparedCommands, delaySec);
-
-                if (thread != null) {
-                    result = !thread.isAlive();
-                }
+            if (pid.isEmpty()) {
+                return false;
             }
 
-            if (shellResult != null) {
-                Log.i(LOG_TAG, "Kill " + module + " without root: result " + result + "\n" + shellResult.toString());
-            } else {
-                Log.i(LOG_TAG, "Kill " + module + " without root: result " + result);
+            File process = new File("/proc/" + pid);
+            long deadline = System.currentTimeMillis() + timeout;
+            while (process.exists() && System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(EXIT_POLL_INTERVAL);
             }
+            return !process.exists();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "ModulesKiller waitForExit interrupted! " + e.getMessage());
+            return false;
         }
-
-        return result;
     }
 
-    private void killWithPid(String signal, String pid, int delay) {
+    private void killWithPid(String signal, String pid) {
         try {
             if (signal.isEmpty()) {
                 android.os.Process.sendSignal(Integer.parseInt(pid), 15);
             } else {
                 android.os.Process.killProcess(Integer.parseInt(pid));
             }
-            makeDelay(delay);
         } catch (Exception e) {
             Log.e(LOG_TAG, "ModulesKiller killWithPid exception " + e.getMessage() + " " + e.getCause());
         }
     }
 
     @SuppressWarnings("deprecation")
-    private List<String> killWithSH(String module, String[] commands, int delay) {
+    private List<String> killWithSH(String module, String[] commands) {
         List<String> shellResult = null;
         try {
             shellResult = Shell.SH.run(commands);
-            makeDelay(delay);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Kill " + module + " without root exception " + e.getMessage() + " " + e.getCause());
         }
         return shellResult;
     }
 
-    @SuppressWarnings("deprecation")
-    private List<String> killWithSU(String module, String[] commands) {
+    private List<String> killWithSU(String module, String[] commands, long timeout) {
         List<String> shellResult = null;
         try {
-            shellResult = Shell.SU.run(commands);
+            RootShell.Result result = RootShell.getInstance().run(RootShell.PRIORITY_MODULES, timeout, commands);
+            if (result.isExecuted()) {
+                shellResult = result.getStdout();
+            }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Kill " + module + " with root exception " + e.getMessage() + " " + e.getCause());
         }
@@ -514,21 +532,6 @@ public class ModulesKiller {
         return result;
     }
 
-    private boolean doThreeAttemptsToStopModule(String modulePath, String pid, Thread thread, boolean moduleStartedWithRoot) {
-        boolean result = false;
-        int attempts = 0;
-        while (attempts < 3 && !result) {
-            if (attempts < 2) {
-                result = killModule(modulePath, pid, thread, moduleStartedWithRoot, "", attempts + 1);
-            } else {
-                result = killModule(modulePath, pid, thread, moduleStartedWithRoot, "SIGKILL", attempts + 1);
-            }
-
-            attempts++;
-        }
-        return result;
-    }
-
     private boolean stopModuleWithInterruptThread(Thread thread) {
         boolean result = false;
         int attempts = 0;
@@ -537,7 +540,7 @@ public class ModulesKiller {
             while (attempts < 3 && !result) {
                 if (thread != null && thread.isAlive()) {
                     thread.interrupt();
-                    makeDelay(3);
+                    thread.join(KILL_TIMEOUT);
                 }
 
                 if (thread != null) {
@@ -599,7 +602,7 @@ public class ModulesKiller {
                     busyboxPath + "killall -s SIGTERM libi2pd.so"
             };
 
-            new Thread(() -> Shell.SU.run(commands)).start();
+            new Thread(() -> RootShell.getInstance().run(RootShell.PRIORITY_IPTABLES, 30000, commands)).start();
         }
     }
 }
@@ -32,6 +32,7 @@ import java.util.List;
 
 import eu.chainfire.libsuperuser.Shell;
 import pan.alexander.tordnscrypt.settings.PathVars;
+import pan.alexander.tordnscrypt.utils.RootShell;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
@@ -116,10 +117,9 @@ public class ModulesRestarter {
         }
     }
 
-    @SuppressWarnings("deprecation")
     private void killWithSU(String module, String[] commands) {
         try {
-            Shell.SU.run(commands);
+            RootShell.getInstance().run(RootShell.PRIORITY_MODULES, 30000, commands);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Restart " + module + " with root exception " + e.getMessage() + " " + e.getCause());
         }
@@ -39,7 +39,6 @@ import java.io.PrintWriter;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
 import java.util.Objects;
-import java.util.Timer;
 import java.util.concurrent.TimeUnit;
 
 import pan.alexander.tordnscrypt.R;
@@ -88,8 +87,7 @@ public class ModulesService extends Service {
 
     private PathVars pathVars;
     private NotificationManager notificationManager;
-    private Timer checkModulesThreadsTimer;
-    private ModulesStateLoop checkModulesStateTask;
+    private ModulesSupervisor modulesSupervisor;
     private ModulesKiller modulesKiller;
 
     public ModulesService() {
@@ -105,7 +103,7 @@ public class ModulesService extends Service {
 
         modulesKiller = new ModulesKiller(this, pathVars);
 
-        startModulesThreadsTimer();
+        startModulesSupervisor();
 
         startPowerWakelock();
     }
@@ -180,18 +178,19 @@ public class ModulesService extends Service {
             modulesStatus.setDnsCryptState(STARTING);
         }
 
-        if (!modulesStatus.isUseModulesWithRoot()) {
-            Thread previousDnsCryptThread = modulesKiller.getDnsCryptThread();
-
-            if (previousDnsCryptThread != null && previousDnsCryptThread.isAlive()) {
-                changeDNSCryptStatus(previousDnsCryptThread);
-                return;
-            }
-        }
-
         new Thread(() -> {
 
             try {
+                // Status of a running module is probed here, it can take a while
+                if (!modulesStatus.isUseModulesWithRoot()) {
+                    Thread runningDnsCryptThread = modulesKiller.getDnsCryptThread();
+
+                    if (runningDnsCryptThread != null && runningDnsCryptThread.isAlive()) {
+                        changeDNSCryptStatus(runningDnsCryptThread);
+                        return;
+                    }
+                }
+
                 Thread previousDnsCryptThread = checkPreviouslyRunningDNSCryptModule();
 
                 if (previousDnsCryptThread != null && previousDnsCryptThread.isAlive()) {
@@ -208,8 +207,7 @@ public class ModulesService extends Service {
                         ModulesService.this.getResources().getString(R.string.tvDNSDefaultLog) + " " + DNSCryptVersion);
 
                 ModulesStarterHelper modulesStarterHelper = new ModulesStarterHelper(ModulesService.this, mHandler, pathVars);
-                Thread dnsCryptThread = new Thread(modulesStarterHelper.getDNSCryptStarterRunnable());
-                dnsCryptThread.setName("DNSCryptThread");
+                Thread dnsCryptThread = new ModuleThread(modulesStarterHelper.getDNSCryptStarterRunnable(), "DNSCryptThread");
                 dnsCryptThread.setDaemon(false);
                 try {
                     dnsCryptThread.setPriority(Thread.NORM_PRIORITY);
@@ -249,21 +247,22 @@ public class ModulesService extends Service {
 
     private void changeDNSCryptStatus(final Thread dnsCryptThread) {
 
-        makeDelay(2);
-
         if (modulesStatus == null) {
             return;
         }
 
-        if (modulesStatus.isUseModulesWithRoot() || dnsCryptThread.isAlive()) {
+        ModuleReadinessProbe.awaitReady("DNSCrypt", pathVars.getDNSCryptPort(),
+                modulesStatus.isUseModulesWithRoot() ? null : dnsCryptThread);
+
+        if (modulesStatus.isUseModulesWithRoot() || ModuleThread.isRunning(dnsCryptThread)) {
             modulesStatus.setDnsCryptState(RUNNING);
 
             if (modulesKiller != null && !modulesStatus.isUseModulesWithRoot()) {
                 modulesKiller.setDnsCryptThread(dnsCryptThread);
             }
 
-            if (checkModulesStateTask != null && !modulesStatus.isUseModulesWithRoot()) {
-                checkModulesStateTask.setDnsCryptThread(dnsCryptThread);
+            if (!modulesStatus.isUseModulesWithRoot()) {
+                ModulesSupervisor.setDnsCryptThread(dnsCryptThread);
             }
         } else {
             modulesStatus.setDnsCryptState(STOPPED);
@@ -282,8 +281,6 @@ public class ModulesService extends Service {
                     killerThread.join();
                 }
 
-                makeDelay(5);
-
                 if (modulesStatus.getDnsCryptState() == RUNNING) {
                     return true;
                 }
@@ -303,17 +300,18 @@ public class ModulesService extends Service {
             modulesStatus.setTorState(STARTING);
         }
 
-        if (!modulesStatus.isUseModulesWithRoot()) {
-            Thread previousTorThread = modulesKiller.getTorThread();
-
-            if (previousTorThread != null && previousTorThread.isAlive()) {
-                changeTorStatus(previousTorThread);
-                return;
-            }
-        }
-
         new Thread(() -> {
             try {
+                // Status of a running module is probed here, it can take a while
+                if (!modulesStatus.isUseModulesWithRoot()) {
+                    Thread runningTorThread = modulesKiller.getTorThread();
+
+                    if (runningTorThread != null && runningTorThread.isAlive()) {
+                        changeTorStatus(runningTorThread);
+                        return;
+                    }
+                }
+
                 Thread previousTorThread = checkPreviouslyRunningTorModule();
 
                 if (previousTorThread != null && previousTorThread.isAlive()) {
@@ -330,8 +328,7 @@ public class ModulesService extends Service {
                         ModulesService.this.getResources().getString(R.string.tvTorDefaultLog) + " " + TorVersion);
 
                 ModulesStarterHelper modulesStarterHelper = new ModulesStarterHelper(ModulesService.this, mHandler, pathVars);
-                Thread torThread = new Thread(modulesStarterHelper.getTorStarterRunnable());
-                torThread.setName("TorThread");
+                Thread torThread = new ModuleThread(modulesStarterHelper.getTorStarterRunnable(), "TorThread");
                 torThread.setDaemon(false);
                 try {
                     torThread.setPriority(Thread.NORM_PRIORITY);
@@ -371,21 +368,22 @@ public class ModulesService extends Service {
 
     private void changeTorStatus(final Thread torThread) {
 
-        makeDelay(2);
-
         if (modulesStatus == null) {
             return;
         }
 
-        if (modulesStatus.isUseModulesWithRoot() || torThread.isAlive()) {
+        ModuleReadinessProbe.awaitReady("Tor", pathVars.getTorSOCKSPort(),
+                modulesStatus.isUseModulesWithRoot() ? null : torThread);
+
+        if (modulesStatus.isUseModulesWithRoot() || ModuleThread.isRunning(torThread)) {
             modulesStatus.setTorState(RUNNING);
 
             if (modulesKiller != null && !modulesStatus.isUseModulesWithRoot()) {
                 modulesKiller.setTorThread(torThread);
             }
 
-            if (checkModulesStateTask != null && !modulesStatus.isUseModulesWithRoot()) {
-                checkModulesStateTask.setTorThread(torThread);
+            if (!modulesStatus.isUseModulesWithRoot()) {
+                ModulesSupervisor.setTorThread(torThread);
             }
         } else {
             modulesStatus.setTorState(STOPPED);
@@ -409,8 +407,6 @@ public class ModulesService extends Service {
                     killerThread.join();
                 }
 
-                makeDelay(5);
-
                 if (modulesStatus.getTorState() == RUNNING) {
                     return true;
                 }
@@ -430,17 +426,18 @@ public class ModulesService extends Service {
             modulesStatus.setItpdState(STARTING);
         }
 
-        if (!modulesStatus.isUseModulesWithRoot()) {
-            Thread previousITPDThread = modulesKiller.getItpdThread();
-
-            if (previousITPDThread != null && previousITPDThread.isAlive()) {
-                changeITPDStatus(previousITPDThread);
-                return;
-            }
-        }
-
         new Thread(() -> {
             try {
+                // Status of a running module is probed here, it can take a while
+                if (!modulesStatus.isUseModulesWithRoot()) {
+                    Thread runningITPDThread = modulesKiller.getItpdThread();
+
+                    if (runningITPDThread != null && runningITPDThread.isAlive()) {
+                        changeITPDStatus(runningITPDThread);
+                        return;
+                    }
+                }
+
                 Thread previousITPDThread = checkPreviouslyRunningITPDModule();
 
                 if (previousITPDThread != null && previousITPDThread.isAlive()) {
@@ -456,8 +453,7 @@ public class ModulesService extends Service {
                 cleanLogFileNoRootMethod(pathVars.getAppDataDir() + "/logs/i2pd.log", "");
 
                 ModulesStarterHelper modulesStarterHelper = new ModulesStarterHelper(ModulesService.this, mHandler, pathVars);
-                Thread itpdThread = new Thread(modulesStarterHelper.getITPDStarterRunnable());
-                itpdThread.setName("ITPDThread");
+                Thread itpdThread = new ModuleThread(modulesStarterHelper.getITPDStarterRunnable(), "ITPDThread");
                 itpdThread.setDaemon(false);
                 try {
                     itpdThread.setPriority(Thread.NORM_PRIORITY);
@@ -496,21 +492,22 @@ public class ModulesService extends Service {
 
     private void changeITPDStatus(final Thread itpdThread) {
 
-        makeDelay(3);
-
         if (modulesStatus == null) {
             return;
         }
 
-        if (modulesStatus.isUseModulesWithRoot() || itpdThread.isAlive()) {
+        ModuleReadinessProbe.awaitReady("I2P", pathVars.getITPDHttpProxyPort(),
+                modulesStatus.isUseModulesWithRoot() ? null : itpdThread);
+
+        if (modulesStatus.isUseModulesWithRoot() || ModuleThread.isRunning(itpdThread)) {
             modulesStatus.setItpdState(RUNNING);
 
             if (modulesKiller != null && !modulesStatus.isUseModulesWithRoot()) {
                 modulesKiller.setItpdThread(itpdThread);
             }
 
-            if (checkModulesStateTask != null && !modulesStatus.isUseModulesWithRoot()) {
-                checkModulesStateTask.setItpdThread(itpdThread);
+            if (!modulesStatus.isUseModulesWithRoot()) {
+                ModulesSupervisor.setItpdThread(itpdThread);
             }
         } else {
             modulesStatus.setItpdState(STOPPED);
@@ -535,8 +532,6 @@ public class ModulesService extends Service {
                     killerThread.join();
                 }
 
-                makeDelay(5);
-
                 if (modulesStatus.getItpdState() == RUNNING) {
                     return true;
                 }
@@ -580,8 +575,6 @@ public class ModulesService extends Service {
                     killerThread.join();
                 }
 
-                makeDelay(5);
-
                 if (modulesStatus.getDnsCryptState() != RUNNING) {
                     startDNSCrypt();
                 }
@@ -634,8 +627,6 @@ public class ModulesService extends Service {
                     killerThread.join();
                 }
 
-                makeDelay(5);
-
                 if (modulesStatus.getItpdState() != RUNNING) {
                     startITPD();
                 }
@@ -653,17 +644,15 @@ public class ModulesService extends Service {
         stopSelf(startId);
     }
 
-    private void startModulesThreadsTimer() {
-        checkModulesThreadsTimer = new Timer();
-        checkModulesStateTask = new ModulesStateLoop(this);
-        checkModulesThreadsTimer.schedule(checkModulesStateTask, 1, 1000);
+    private void startModulesSupervisor() {
+        modulesSupervisor = new ModulesSupervisor(this, pathVars);
+        modulesSupervisor.start();
     }
 
-    private void stopModulesThreadsTimer() {
-        if (checkModulesThreadsTimer != null) {
-            checkModulesThreadsTimer.purge();
-            checkModulesThreadsTimer.cancel();
-            checkModulesThreadsTimer = null;
+    private void stopModulesSupervisor() {
+        if (modulesSupervisor != null) {
+            modulesSupervisor.stop();
+            modulesSupervisor = null;
         }
     }
 
@@ -703,12 +692,14 @@ public class ModulesService extends Service {
     public void onDestroy() {
         stopPowerWakelock();
 
-        stopModulesThreadsTimer();
+        stopModulesSupervisor();
 
         stopVPNServiceIfRunning();
 
         unregisterModulesBroadcastReceiver();
 
+        modulesStatus.flushPersisted();
+
         super.onDestroy();
     }
 
@@ -31,8 +31,8 @@ import com.jrummyapps.android.shell.Shell;
 import java.util.List;
 
 import pan.alexander.tordnscrypt.settings.PathVars;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.RootCommands;
+import pan.alexander.tordnscrypt.utils.RootShell;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
 import static pan.alexander.tordnscrypt.TopFragment.appVersion;
@@ -53,6 +53,7 @@ public class ModulesStarterHelper {
 
     public final static String ASK_FORCE_CLOSE = "pan.alexander.tordnscrypt.AskForceClose";
     public final static String MODULE_NAME = "pan.alexander.tordnscrypt.ModuleName";
+    private final static long START_TIMEOUT = 30000;
 
     private final ModulesService service;
     private final Handler handler;
@@ -61,6 +62,9 @@ public class ModulesStarterHelper {
     private String dnscryptPath;
     private String torPath;
     private String itpdPath;
+    private String dnscryptPort;
+    private String torSocksPort;
+    private String itpdHttpProxyPort;
 
     private ModulesStatus modulesStatus;
 
@@ -72,6 +76,9 @@ public class ModulesStarterHelper {
         dnscryptPath = pathVars.getDNSCryptPath();
         torPath = pathVars.getTorPath();
         itpdPath = pathVars.getITPDPath();
+        dnscryptPort = pathVars.getDNSCryptPort();
+        torSocksPort = pathVars.getTorSOCKSPort();
+        itpdHttpProxyPort = pathVars.getITPDHttpProxyPort();
         this.modulesStatus = ModulesStatus.getInstance();
     }
 
@@ -88,14 +95,12 @@ public class ModulesStarterHelper {
                         + " -config " + appDataDir
                         + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml -pidfile "+ appDataDir
                         + "/dnscrypt-proxy.pid >/dev/null 2>&1 &";
-                String waitString = busyboxPath + "sleep 3";
-                String checkIfModuleRunning = busyboxPath + "pgrep -l /libdnscrypt-proxy.so";
 
-                shellResult = Shell.SU.run(dnsCmdString, waitString, checkIfModuleRunning);
+                shellResult = runWithRoot(dnsCmdString);
 
-                new PrefManager(service).setBoolPref("DNSCryptStartedWithRoot", true);
+                modulesStatus.persist(service, "DNSCryptStartedWithRoot", true);
 
-                if (shellResult.getStdout().contains(dnscryptPath)) {
+                if (isStartedWithRoot("DNSCrypt", dnscryptPort, "/libdnscrypt-proxy.so", dnscryptPath)) {
                     sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, dnscryptPath);
                 } else {
                     sendResultIntent(DNSCryptRunFragmentMark, DNSCRYPT_KEYWORD, "");
@@ -104,7 +109,7 @@ public class ModulesStarterHelper {
             } else {
                 dnsCmdString = dnscryptPath + " -config " + appDataDir
                         + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml -pidfile " + appDataDir + "/dnscrypt-proxy.pid";
-                new PrefManager(service).setBoolPref("DNSCryptStartedWithRoot", false);
+                modulesStatus.persist(service, "DNSCryptStartedWithRoot", false);
 
                 shellResult = Shell.SH.run(dnsCmdString);
             }
@@ -159,14 +164,12 @@ public class ModulesStarterHelper {
 
                 torCmdString = torPath + " -f "
                         + appDataDir + "/app_data/tor/tor.conf -pidfile " + appDataDir + "/tor.pid";
-                String waitString = busyboxPath + "sleep 3";
-                String checkIfModuleRunning = busyboxPath + "pgrep -l /libtor.so";
 
-                shellResult = Shell.SU.run(torCmdString, waitString, checkIfModuleRunning);
+                shellResult = runWithRoot(torCmdString);
 
-                new PrefManager(service).setBoolPref("TorStartedWithRoot", true);
+                modulesStatus.persist(service, "TorStartedWithRoot", true);
 
-                if (shellResult.getStdout().contains(torPath)) {
+                if (isStartedWithRoot("Tor", torSocksPort, "/libtor.so", torPath)) {
                     sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, torPath);
                 } else {
                     sendResultIntent(TorRunFragmentMark, TOR_KEYWORD, "");
@@ -176,7 +179,7 @@ public class ModulesStarterHelper {
                 correctTorConfRunAsDaemon(service, appDataDir, false);
                 torCmdString = torPath + " -f "
                         + appDataDir + "/app_data/tor/tor.conf -pidfile " + appDataDir + "/tor.pid";
-                new PrefManager(service).setBoolPref("TorStartedWithRoot", false);
+                modulesStatus.persist(service, "TorStartedWithRoot", false);
 
                 shellResult = Shell.SH.run(torCmdString);
             }
@@ -232,21 +235,19 @@ public class ModulesStarterHelper {
             if (modulesStatus.isUseModulesWithRoot()) {
                 correctITPDConfRunAsDaemon(service, appDataDir, true);
 
-                Shell.SU.run(busyboxPath + "mkdir -p " + appDataDir + "/i2pd_data",
+                runWithRoot(busyboxPath + "mkdir -p " + appDataDir + "/i2pd_data",
                         "cd " + appDataDir + "/app_data/i2pd",
                         busyboxPath + "cp -R certificates " + appDataDir + "/i2pd_data");
 
                 itpdCmdString = itpdPath + " --conf " + appDataDir
                         + "/app_data/i2pd/i2pd.conf --datadir " + appDataDir
-                        + "/i2pd_data --pidfile " + appDataDir + "/i2pd.pid &";
-                String waitString = busyboxPath + "sleep 3";
-                String checkIfModuleRunning = busyboxPath + "pgrep -l /libi2pd.so";
+                        + "/i2pd_data --pidfile " + appDataDir + "/i2pd.pid >/dev/null 2>&1 &";
 
-                shellResult = Shell.SU.run(itpdCmdString, waitString, checkIfModuleRunning);
+                shellResult = runWithRoot(itpdCmdString);
 
-                new PrefManager(service).setBoolPref("ITPDStartedWithRoot", true);
+                modulesStatus.persist(service, "ITPDStartedWithRoot", true);
 
-                if (shellResult.getStdout().contains(itpdPath)) {
+                if (isStartedWithRoot("I2P", itpdHttpProxyPort, "/libi2pd.so", itpdPath)) {
                     sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, itpdPath);
                 } else {
                     sendResultIntent(I2PDRunFragmentMark, ITPD_KEYWORD, "");
@@ -257,7 +258,7 @@ public class ModulesStarterHelper {
                 itpdCmdString = itpdPath + " --conf " + appDataDir
                         + "/app_data/i2pd/i2pd.conf --datadir " + appDataDir
                         + "/i2pd_data --pidfile " + appDataDir + "/i2pd.pid";
-                new PrefManager(service).setBoolPref("ITPDStartedWithRoot", false);
+                modulesStatus.persist(service, "ITPDStartedWithRoot", false);
 
                 shellResult = Shell.SH.run(itpdCmdString);
             }
@@ -333,6 +334,22 @@ public class ModulesStarterHelper {
         }
     }
 
+    //The module accepting connections is started, otherwise look for its process
+    private boolean isStartedWithRoot(String module, String port, String binary, String modulePath) {
+        if (ModuleReadinessProbe.awaitReady(module, port, null) >= 0) {
+            return true;
+        }
+
+        CommandResult checkResult = runWithRoot(busyboxPath + "pgrep -l " + binary);
+        return checkResult.getStdout().contains(modulePath);
+    }
+
+    //Modules are started in the shared root shell, the module daemonizes or runs in background
+    private CommandResult runWithRoot(String... commands) {
+        RootShell.Result result = RootShell.getInstance().run(RootShell.PRIORITY_MODULES, START_TIMEOUT, commands);
+        return new CommandResult(result.getStdout(), result.getStderr(), result.getExitCode());
+    }
+
     private void sendResultIntent(int moduleMark, String moduleKeyWord, String binaryPath) {
         RootCommands comResult = new RootCommands(new String[]{moduleKeyWord, binaryPath});
         Intent intent = new Intent(COMMAND_RESULT);
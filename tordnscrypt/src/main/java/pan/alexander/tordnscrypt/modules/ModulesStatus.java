@@ -19,6 +19,17 @@ package pan.alexander.tordnscrypt.modules;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.enums.OperationMode;
 
@@ -26,9 +37,47 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 
 public final class ModulesStatus {
 
-    private ModuleState dnsCryptState = STOPPED;
-    private ModuleState torState = STOPPED;
-    private ModuleState itpdState = STOPPED;
+    //Delay in ms to gather the persisted flags into one SharedPreferences write
+    private static final long PERSIST_DELAY = 300;
+
+    public interface OnModulesStateChangedListener {
+        void onModulesStateChanged(Snapshot snapshot);
+    }
+
+    //Module states at one moment, replaced as a whole on every change
+    public static final class Snapshot {
+        private final ModuleState dnsCryptState;
+        private final ModuleState torState;
+        private final ModuleState itpdState;
+
+        private Snapshot(ModuleState dnsCryptState, ModuleState torState, ModuleState itpdState) {
+            this.dnsCryptState = dnsCryptState;
+            this.torState = torState;
+            this.itpdState = itpdState;
+        }
+
+        public ModuleState getDnsCryptState() {
+            return dnsCryptState;
+        }
+
+        public ModuleState getTorState() {
+            return torState;
+        }
+
+        public ModuleState getItpdState() {
+            return itpdState;
+        }
+    }
+
+    private final AtomicReference<Snapshot> snapshot =
+            new AtomicReference<>(new Snapshot(STOPPED, STOPPED, STOPPED));
+
+    private final List<OnModulesStateChangedListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Object> pendingPrefs = new HashMap<>();
+    private final Handler persistHandler = new Handler(Looper.getMainLooper());
+    private final Runnable persistTask = this::flushPersisted;
+    private volatile PrefManager prefManager;
 
     private volatile boolean rootAvailable = false;
     private volatile boolean useModulesWithRoot;
@@ -53,32 +102,144 @@ public final class ModulesStatus {
         return modulesStatus;
     }
 
+    public void addOnModulesStateChangedListener(OnModulesStateChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnModulesStateChangedListener(OnModulesStateChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    //Listeners are called on the thread that made the change
+    void notifyModulesStateChanged() {
+        Snapshot current = snapshot.get();
+        for (OnModulesStateChangedListener listener : listeners) {
+            listener.onModulesStateChanged(current);
+        }
+    }
+
     public void setUseModulesWithRoot(final boolean useModulesWithRoot) {
-        this.useModulesWithRoot = useModulesWithRoot;
+        if (this.useModulesWithRoot != useModulesWithRoot) {
+            this.useModulesWithRoot = useModulesWithRoot;
+            notifyModulesStateChanged();
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public ModuleState getDnsCryptState() {
+        return snapshot.get().dnsCryptState;
     }
 
-    public synchronized ModuleState getDnsCryptState() {
-        return dnsCryptState;
+    public ModuleState getTorState() {
+        return snapshot.get().torState;
     }
 
-    public synchronized ModuleState getTorState() {
-        return torState;
+    public ModuleState getItpdState() {
+        return snapshot.get().itpdState;
     }
 
-    public synchronized ModuleState getItpdState() {
-        return itpdState;
+    public void setDnsCryptState(ModuleState dnsCryptState) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            if (current.dnsCryptState == dnsCryptState) {
+                return;
+            }
+        } while (!snapshot.compareAndSet(current,
+                new Snapshot(dnsCryptState, current.torState, current.itpdState)));
+        notifyModulesStateChanged();
+    }
+
+    public void setTorState(ModuleState torState) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            if (current.torState == torState) {
+                return;
+            }
+        } while (!snapshot.compareAndSet(current,
+                new Snapshot(current.dnsCryptState, torState, current.itpdState)));
+        notifyModulesStateChanged();
     }
 
-    public synchronized void setDnsCryptState(ModuleState dnsCryptState) {
-        this.dnsCryptState = dnsCryptState;
+    public void setItpdState(ModuleState itpdState) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            if (current.itpdState == itpdState) {
+                return;
+            }
+        } while (!snapshot.compareAndSet(current,
+                new Snapshot(current.dnsCryptState, current.torState, itpdState)));
+        notifyModulesStateChanged();
     }
 
-    public synchronized void setTorState(ModuleState torState) {
-        this.torState = torState;
+    //Module flags kept across app restarts, like "Tor Running" or "savedTorState".
+    //Values are visible at once and written to PrefManager together after PERSIST_DELAY.
+    public void persist(Context context, String key, boolean value) {
+        persistValue(context, key, value);
     }
 
-    public synchronized void setItpdState(ModuleState itpdState) {
-        this.itpdState = itpdState;
+    public void persist(Context context, String key, String value) {
+        persistValue(context, key, value);
+    }
+
+    public boolean getPersistedBool(Context context, String key) {
+        synchronized (pendingPrefs) {
+            Object value = pendingPrefs.get(key);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+        }
+        return getPrefManager(context).getBoolPref(key);
+    }
+
+    public String getPersistedStr(Context context, String key) {
+        synchronized (pendingPrefs) {
+            Object value = pendingPrefs.get(key);
+            if (value instanceof String) {
+                return (String) value;
+            }
+        }
+        return getPrefManager(context).getStrPref(key);
+    }
+
+    private void persistValue(Context context, String key, Object value) {
+        getPrefManager(context);
+
+        synchronized (pendingPrefs) {
+            boolean scheduled = !pendingPrefs.isEmpty();
+            pendingPrefs.put(key, value);
+            if (!scheduled) {
+                persistHandler.postDelayed(persistTask, PERSIST_DELAY);
+            }
+        }
+    }
+
+    //Writes pending flags now, for when the process can end before the delay
+    public void flushPersisted() {
+        synchronized (pendingPrefs) {
+            persistHandler.removeCallbacks(persistTask);
+
+            PrefManager manager = prefManager;
+            if (pendingPrefs.isEmpty() || manager == null) {
+                return;
+            }
+
+            //apply() updates the values in memory at once, so readers never see old ones
+            manager.setPrefs(pendingPrefs);
+            pendingPrefs.clear();
+        }
+    }
+
+    private PrefManager getPrefManager(Context context) {
+        if (prefManager == null) {
+            prefManager = new PrefManager(context.getApplicationContext());
+        }
+        return prefManager;
     }
 
     public boolean isUseModulesWithRoot() {
@@ -99,6 +260,9 @@ public final class ModulesStatus {
 
     public void setIptablesRulesUpdateRequested(final boolean requestIptablesUpdate) {
         this.requestIptablesUpdate = requestIptablesUpdate;
+        if (requestIptablesUpdate) {
+            notifyModulesStateChanged();
+        }
     }
 
     public boolean isContextUIDUpdateRequested() {
@@ -107,6 +271,9 @@ public final class ModulesStatus {
 
     public void setContextUIDUpdateRequested(boolean requestContextUIDUpdate) {
         this.requestContextUIDUpdate = requestContextUIDUpdate;
+        if (requestContextUIDUpdate) {
+            notifyModulesStateChanged();
+        }
     }
 
     public boolean isFixTTL() {
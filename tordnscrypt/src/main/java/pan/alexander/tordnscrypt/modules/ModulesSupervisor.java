@@ -0,0 +1,508 @@
+package pan.alexander.tordnscrypt.modules;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import pan.alexander.tordnscrypt.iptables.IptablesRules;
+import pan.alexander.tordnscrypt.iptables.ModulesIptablesRules;
+import pan.alexander.tordnscrypt.settings.PathVars;
+import pan.alexander.tordnscrypt.utils.enums.ModuleState;
+import pan.alexander.tordnscrypt.utils.enums.OperationMode;
+import pan.alexander.tordnscrypt.utils.enums.VPNReloadLevel;
+import pan.alexander.tordnscrypt.vpn.service.ServiceVPNHelper;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+import static pan.alexander.tordnscrypt.utils.enums.ModuleState.FAULT;
+import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
+import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
+import static pan.alexander.tordnscrypt.utils.enums.OperationMode.PROXY_MODE;
+import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
+import static pan.alexander.tordnscrypt.utils.enums.OperationMode.VPN_MODE;
+
+//Keeps iptables, VPN and the service in line with the modules state.
+//Runs only when ModulesStatus reports a change, a module thread exits
+//or a module started with root is due for the process check.
+public class ModulesSupervisor implements ModulesStatus.OnModulesStateChangedListener {
+    //Delay in ms before service can stop
+    private static final long STOP_DELAY = 10000;
+
+    //Process check of modules started with root, doubled while nothing changes
+    private static final long PROCESS_CHECK_MIN_DELAY = 1000;
+    private static final long PROCESS_CHECK_MAX_DELAY = 5 * 60 * 1000;
+
+    private final ModulesStatus modulesStatus;
+    private final ModulesService modulesService;
+    private final IptablesRules iptablesRules;
+
+    private final ContextUIDUpdater contextUIDUpdater;
+
+    private final HandlerThread handlerThread;
+    private final Handler handler;
+
+    private static volatile Thread dnsCryptThread;
+    private static volatile Thread torThread;
+    private static volatile Thread itpdThread;
+
+    private final ModuleProcess dnsCryptProcess;
+    private final ModuleProcess torProcess;
+    private final ModuleProcess itpdProcess;
+
+    private ModuleState savedDNSCryptState;
+    private ModuleState savedTorState;
+    private ModuleState savedItpdState;
+
+    private ModuleState checkedDNSCryptState;
+    private ModuleState checkedTorState;
+    private ModuleState checkedItpdState;
+
+    private boolean stopScheduled;
+    private boolean processCheckScheduled;
+    private long processCheckDelay = PROCESS_CHECK_MIN_DELAY;
+
+    private final Runnable checkTask = this::check;
+    private final Runnable stopTask = this::stopService;
+    private final Runnable processCheckTask = this::checkProcesses;
+
+    ModulesSupervisor(ModulesService modulesService, PathVars pathVars) {
+        this.modulesService = modulesService;
+
+        modulesStatus = ModulesStatus.getInstance();
+
+        iptablesRules = new ModulesIptablesRules(modulesService);
+
+        contextUIDUpdater = new ContextUIDUpdater(modulesService);
+
+        String appDataDir = pathVars.getAppDataDir();
+        dnsCryptProcess = new ModuleProcess("DNSCrypt", appDataDir + "/dnscrypt-proxy.pid");
+        torProcess = new ModuleProcess("Tor", appDataDir + "/tor.pid");
+        itpdProcess = new ModuleProcess("I2P", appDataDir + "/i2pd.pid");
+
+        handlerThread = new HandlerThread("ModulesSupervisor", Process.THREAD_PRIORITY_BACKGROUND);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+
+        restoreModulesSavedState();
+    }
+
+    void start() {
+        modulesStatus.addOnModulesStateChangedListener(this);
+        requestCheck();
+    }
+
+    void stop() {
+        modulesStatus.removeOnModulesStateChangedListener(this);
+        handler.removeCallbacksAndMessages(null);
+        handlerThread.quit();
+    }
+
+    @Override
+    public void onModulesStateChanged(ModulesStatus.Snapshot snapshot) {
+        requestCheck();
+    }
+
+    private void requestCheck() {
+        //Changes coming in a burst are handled by one check
+        handler.removeCallbacks(checkTask);
+        handler.post(checkTask);
+    }
+
+    private void check() {
+
+        ModuleState dnsCryptState = modulesStatus.getDnsCryptState();
+        ModuleState torState = modulesStatus.getTorState();
+        ModuleState itpdState = modulesStatus.getItpdState();
+
+        OperationMode operationMode = modulesStatus.getMode();
+
+        boolean rootIsAvailable = modulesStatus.isRootAvailable();
+        boolean useModulesWithRoot = modulesStatus.isUseModulesWithRoot();
+        boolean contextUIDUpdateRequested = modulesStatus.isContextUIDUpdateRequested();
+
+
+        if (!useModulesWithRoot) {
+            updateModulesState(dnsCryptState, torState, itpdState);
+        }
+
+        boolean idle = updateIptablesRules(dnsCryptState, torState, itpdState, operationMode, rootIsAvailable, useModulesWithRoot);
+
+        if (rootIsAvailable && contextUIDUpdateRequested) {
+            updateContextUID(dnsCryptState, torState, itpdState);
+        }
+
+        if (idle) {
+            scheduleStop();
+        } else {
+            cancelStop();
+        }
+
+        updateProcessCheck(dnsCryptState, torState, itpdState, useModulesWithRoot);
+    }
+
+    private void updateModulesState(ModuleState dnsCryptState, ModuleState torState, ModuleState itpdState) {
+        if (ModuleThread.isRunning(dnsCryptThread)) {
+            if (dnsCryptState == STOPPED) {
+                modulesStatus.setDnsCryptState(ModuleState.RUNNING);
+            }
+        } else {
+            if (dnsCryptState == RUNNING) {
+                modulesStatus.setDnsCryptState(STOPPED);
+            }
+        }
+
+        if (ModuleThread.isRunning(torThread)) {
+            if (torState == STOPPED) {
+                modulesStatus.setTorState(ModuleState.RUNNING);
+            }
+        } else {
+            if (torState == RUNNING) {
+                modulesStatus.setTorState(STOPPED);
+            }
+        }
+
+        if (ModuleThread.isRunning(itpdThread)) {
+            if (itpdState == STOPPED) {
+                modulesStatus.setItpdState(ModuleState.RUNNING);
+            }
+        } else {
+            if (itpdState == RUNNING) {
+                modulesStatus.setItpdState(STOPPED);
+            }
+        }
+    }
+
+    //Returns true when nothing keeps the service running
+    private boolean updateIptablesRules(ModuleState dnsCryptState, ModuleState torState,
+                                        ModuleState itpdState, OperationMode operationMode,
+                                        boolean rootIsAvailable, boolean useModulesWithRoot) {
+
+        if (dnsCryptState != savedDNSCryptState
+                || torState != savedTorState
+                || itpdState != savedItpdState
+                || modulesStatus.isIptablesRulesUpdateRequested()) {
+
+            Log.i(LOG_TAG, "DNSCrypt is " + dnsCryptState +
+                    " Tor is " + torState + " I2P is " + itpdState);
+
+            if (dnsCryptState != STOPPED && dnsCryptState != RUNNING) {
+                return false;
+            } else if (torState != STOPPED && torState != RUNNING) {
+                return false;
+            } else if (itpdState != STOPPED && itpdState != RUNNING) {
+                return false;
+            }
+
+            saveModulesState(dnsCryptState, torState, itpdState);
+
+            if (modulesStatus.isIptablesRulesUpdateRequested()) {
+                modulesStatus.setIptablesRulesUpdateRequested(false);
+
+                if (!rootIsAvailable) {
+                    Log.w(LOG_TAG, "Iptables rules isn't updated, no root!");
+                }
+            }
+
+            if (iptablesRules != null && rootIsAvailable && operationMode == ROOT_MODE) {
+                String[] commands = iptablesRules.configureIptables(dnsCryptState, torState, itpdState);
+                iptablesRules.sendToRootExecService(commands);
+
+                Log.i(LOG_TAG, "Iptables rules updated");
+            } else if (operationMode == VPN_MODE) {
+
+                if (dnsCryptState == STOPPED && torState == STOPPED) {
+                    ServiceVPNHelper.stop("All modules stopped", modulesService);
+                } else {
+                    ServiceVPNHelper.reload("Modules state changed", VPNReloadLevel.FORWARDS, modulesService);
+                }
+            }
+
+            if (modulesStatus.isFixTTL() && !modulesStatus.isUseModulesWithRoot() && (operationMode == ROOT_MODE)) {
+                if ((dnsCryptState == STOPPED && torState == STOPPED) || useModulesWithRoot) {
+                    ServiceVPNHelper.stop("All modules stopped", modulesService);
+                } else {
+                    ServiceVPNHelper.reload("TTL is fixed", modulesService);
+                }
+            } else if (operationMode == ROOT_MODE || operationMode == PROXY_MODE){
+                ServiceVPNHelper.stop("TTL stop fixing", modulesService);
+            }
+
+            //Count the stop delay from now on if the modules are stopped
+            requestCheck();
+
+            return false;
+
+        } else if (useModulesWithRoot && operationMode == ROOT_MODE) {
+
+            if (dnsCryptState != STOPPED && dnsCryptState != RUNNING && dnsCryptState != FAULT) {
+                return false;
+            } else if (torState != STOPPED && torState != RUNNING && torState != FAULT) {
+                return false;
+            } else if (itpdState != STOPPED && itpdState != RUNNING && itpdState != FAULT) {
+                return false;
+            } else {
+                return !modulesStatus.isContextUIDUpdateRequested();
+            }
+
+        } else {
+            return (dnsCryptState == STOPPED || dnsCryptState == FAULT)
+                    && (torState == STOPPED || torState == FAULT)
+                    && (itpdState == STOPPED || itpdState == FAULT);
+        }
+
+    }
+
+    private void updateContextUID(ModuleState dnsCryptState, ModuleState torState, ModuleState itpdState) {
+
+        if (!modulesStatus.isRootAvailable()) {
+            modulesStatus.setContextUIDUpdateRequested(false);
+            Log.w(LOG_TAG, "Modules Selinux context and UID not updated. Root is Not Available");
+            return;
+        }
+
+        if (dnsCryptState != STOPPED) {
+            return;
+        } else if (torState != STOPPED) {
+            return;
+        } else if (itpdState != STOPPED) {
+            return;
+        }
+
+        modulesStatus.setContextUIDUpdateRequested(false);
+
+        contextUIDUpdater.updateModulesContextAndUID();
+
+        Log.i(LOG_TAG, "Modules Selinux context and UID updated for "
+                + (modulesStatus.isUseModulesWithRoot() ? "Root" : "No Root"));
+    }
+
+    private void scheduleStop() {
+        if (!stopScheduled) {
+            handler.postDelayed(stopTask, STOP_DELAY);
+            stopScheduled = true;
+        }
+    }
+
+    private void cancelStop() {
+        if (stopScheduled) {
+            handler.removeCallbacks(stopTask);
+            stopScheduled = false;
+        }
+    }
+
+    private void stopService() {
+        stopScheduled = false;
+
+        Log.i(LOG_TAG, "ModulesSupervisor modules are idle. Stop service.");
+        modulesStatus.setContextUIDUpdateRequested(false);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            modulesService.stopForeground(true);
+        }
+
+        modulesService.stopSelf();
+    }
+
+    //Modules started with root are not children of the app, their exit is found by the pid,
+    //checked at growing intervals while they keep running
+    private void updateProcessCheck(ModuleState dnsCryptState, ModuleState torState,
+                                    ModuleState itpdState, boolean useModulesWithRoot) {
+
+        if (dnsCryptState != checkedDNSCryptState
+                || torState != checkedTorState
+                || itpdState != checkedItpdState) {
+            checkedDNSCryptState = dnsCryptState;
+            checkedTorState = torState;
+            checkedItpdState = itpdState;
+
+            if (dnsCryptState != RUNNING) {
+                dnsCryptProcess.reset();
+            }
+            if (torState != RUNNING) {
+                torProcess.reset();
+            }
+            if (itpdState != RUNNING) {
+                itpdProcess.reset();
+            }
+
+            processCheckDelay = PROCESS_CHECK_MIN_DELAY;
+            handler.removeCallbacks(processCheckTask);
+            processCheckScheduled = false;
+        }
+
+        boolean watch = useModulesWithRoot
+                && (dnsCryptState == RUNNING || torState == RUNNING || itpdState == RUNNING);
+
+        if (watch && !processCheckScheduled) {
+            handler.postDelayed(processCheckTask, processCheckDelay);
+            processCheckScheduled = true;
+        } else if (!watch && processCheckScheduled) {
+            handler.removeCallbacks(processCheckTask);
+            processCheckScheduled = false;
+        }
+    }
+
+    private void checkProcesses() {
+        processCheckScheduled = false;
+
+        if (!modulesStatus.isUseModulesWithRoot()) {
+            return;
+        }
+
+        if (modulesStatus.getDnsCryptState() == RUNNING && !dnsCryptProcess.isAlive()) {
+            modulesStatus.setDnsCryptState(STOPPED);
+        }
+
+        if (modulesStatus.getTorState() == RUNNING && !torProcess.isAlive()) {
+            modulesStatus.setTorState(STOPPED);
+        }
+
+        if (modulesStatus.getItpdState() == RUNNING && !itpdProcess.isAlive()) {
+            modulesStatus.setItpdState(STOPPED);
+        }
+
+        processCheckDelay = Math.min(processCheckDelay * 2, PROCESS_CHECK_MAX_DELAY);
+
+        updateProcessCheck(modulesStatus.getDnsCryptState(), modulesStatus.getTorState(),
+                modulesStatus.getItpdState(), modulesStatus.isUseModulesWithRoot());
+    }
+
+    private void saveModulesState(ModuleState dnsCryptState, ModuleState torState, ModuleState itpdState) {
+        if (dnsCryptState != savedDNSCryptState) {
+            savedDNSCryptState = dnsCryptState;
+            modulesStatus.persist(modulesService, "savedDNSCryptState", dnsCryptState.toString());
+        }
+
+        if (torState != savedTorState) {
+            savedTorState = torState;
+            modulesStatus.persist(modulesService, "savedTorState", torState.toString());
+        }
+
+        if (itpdState != savedItpdState) {
+            savedItpdState = itpdState;
+            modulesStatus.persist(modulesService, "savedITPDState", itpdState.toString());
+        }
+    }
+
+    private void restoreModulesSavedState() {
+        String savedDNSCryptStateStr = modulesStatus.getPersistedStr(modulesService, "savedDNSCryptState");
+        if (!savedDNSCryptStateStr.isEmpty()) {
+            savedDNSCryptState = ModuleState.valueOf(savedDNSCryptStateStr);
+        }
+
+        String savedTorStateStr = modulesStatus.getPersistedStr(modulesService, "savedTorState");
+        if (!savedTorStateStr.isEmpty()) {
+            savedTorState = ModuleState.valueOf(savedTorStateStr);
+        }
+
+        String savedITPDStateStr = modulesStatus.getPersistedStr(modulesService, "savedITPDState");
+        if (!savedITPDStateStr.isEmpty()) {
+            savedItpdState = ModuleState.valueOf(savedITPDStateStr);
+        }
+    }
+
+    static void setDnsCryptThread(Thread dnsCryptThread) {
+        ModulesSupervisor.dnsCryptThread = dnsCryptThread;
+        ModulesStatus.getInstance().notifyModulesStateChanged();
+    }
+
+    static void setTorThread(Thread torThread) {
+        ModulesSupervisor.torThread = torThread;
+        ModulesStatus.getInstance().notifyModulesStateChanged();
+    }
+
+    static void setItpdThread(Thread itpdThread) {
+        ModulesSupervisor.itpdThread = itpdThread;
+        ModulesStatus.getInstance().notifyModulesStateChanged();
+    }
+
+    //Module process known by the pid file it writes
+    private static class ModuleProcess {
+        private final String name;
+        private final File pidFile;
+        private String pid = "";
+        private boolean seenAlive;
+
+        ModuleProcess(String name, String pidFile) {
+            this.name = name;
+            this.pidFile = new File(pidFile);
+        }
+
+        void reset() {
+            pid = "";
+            seenAlive = false;
+        }
+
+        //The app can be denied to see /proc of other users,
+        //so a process is dead only if it was seen alive before
+        boolean isAlive() {
+            String currentPid = readPid();
+
+            if (currentPid.isEmpty()) {
+                //The module removes its pid file on exit
+                if (seenAlive && !pidFile.exists()) {
+                    Log.w(LOG_TAG, "ModulesSupervisor " + name + " exited, pid file removed");
+                    return false;
+                }
+                return true;
+            }
+
+            if (!currentPid.equals(pid)) {
+                pid = currentPid;
+                seenAlive = false;
+            }
+
+            if (new File("/proc/" + pid).exists()) {
+                seenAlive = true;
+                return true;
+            } else if (seenAlive) {
+                Log.w(LOG_TAG, "ModulesSupervisor " + name + " exited, pid " + pid);
+                return false;
+            }
+
+            return true;
+        }
+
+        private String readPid() {
+            if (!pidFile.isFile()) {
+                return "";
+            }
+
+            try (BufferedReader reader = new BufferedReader(new FileReader(pidFile))) {
+                String line = reader.readLine();
+                if (line != null && line.trim().matches("\\d+")) {
+                    return line.trim();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "ModulesSupervisor " + name + " pid file " + e.getMessage());
+            }
+
+            return "";
+        }
+    }
+}
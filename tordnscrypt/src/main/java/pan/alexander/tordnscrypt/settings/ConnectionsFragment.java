@@ -0,0 +1,257 @@
+package pan.alexander.tordnscrypt.settings;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.fragment.app.Fragment;
+import androidx.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import pan.alexander.tordnscrypt.R;
+import pan.alexander.tordnscrypt.vpn.Connection;
+import pan.alexander.tordnscrypt.vpn.Usage;
+import pan.alexander.tordnscrypt.vpn.service.ServiceVPN;
+import pan.alexander.tordnscrypt.vpn.service.UsageStats;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+// Sessions of the VPN tunnel, taken from the engine at the interval of the settings,
+// under the traffic of the apps counted by UsageStats
+public class ConnectionsFragment extends Fragment {
+
+    private static final int USAGE_APPS = 10;
+    private static final int USAGE_HOURS = 24;
+
+    private static final String[] TCP_STATES = {"", "ESTABLISHED", "SYN_SENT", "SYN_RECV",
+            "FIN_WAIT1", "FIN_WAIT2", "TIME_WAIT", "CLOSE", "CLOSE_WAIT", "LAST_ACK", "LISTEN", "CLOSING"};
+    private static final String[] UDP_STATES = {"ACTIVE", "FINISHING", "CLOSED", "BLOCKED"};
+
+    private TextView tvConnections;
+    private Timer timer;
+    private ServiceConnection serviceConnection;
+    private volatile ServiceVPN.VPNBinder binder;
+    private final SparseArray<String> appNames = new SparseArray<>();
+
+    public ConnectionsFragment() {
+        // Required empty public constructor
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_connections, container, false);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        activity.setTitle(R.string.pref_common_connections);
+        tvConnections = activity.findViewById(R.id.tvConnections);
+
+        bindToVPNService(activity);
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+        long interval = 2;
+        try {
+            interval = Long.parseLong(prefs.getString("pref_common_connections_refresh", "2"));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "ConnectionsFragment refresh interval " + e.getMessage());
+        }
+
+        timer = new Timer();
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refreshConnections();
+            }
+        }, 0, Math.max(1, interval) * 1000);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+
+        unbindVPNService(getActivity());
+    }
+
+    private void refreshConnections() {
+        ServiceVPN.VPNBinder vpnBinder = binder;
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        final String text;
+        if (vpnBinder == null) {
+            text = activity.getString(R.string.connections_not_running);
+        } else {
+            List<Connection> connections = new ArrayList<>(vpnBinder.getConnections());
+            Collections.sort(connections, (c1, c2) -> c1.Uid != c2.Uid
+                    ? Integer.compare(c1.Uid, c2.Uid) : Integer.compare(c1.Protocol, c2.Protocol));
+
+            StringBuilder builder = new StringBuilder();
+            appendUsage(activity, builder);
+            builder.append(System.lineSeparator()).append(System.lineSeparator());
+            builder.append(activity.getString(R.string.connections_sessions, connections.size()));
+            builder.append(System.lineSeparator());
+            for (Connection connection : connections) {
+                builder.append(System.lineSeparator()).append(describe(activity, connection));
+            }
+            text = builder.toString();
+        }
+
+        activity.runOnUiThread(() -> {
+            if (tvConnections != null) {
+                tvConnections.setText(text);
+            }
+        });
+    }
+
+    private void appendUsage(Context context, StringBuilder builder) {
+        UsageStats usageStats = UsageStats.getInstance(context);
+
+        long[] total = new long[4];
+        for (long[] hour : usageStats.getHistory(-1, USAGE_HOURS)) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] += hour[i];
+            }
+        }
+        builder.append(context.getString(R.string.connections_usage_day,
+                Formatter.formatShortFileSize(context, total[UsageStats.SENT]),
+                Formatter.formatShortFileSize(context, total[UsageStats.RECEIVED]),
+                Formatter.formatShortFileSize(context, total[UsageStats.TOR_SENT]),
+                Formatter.formatShortFileSize(context, total[UsageStats.TOR_RECEIVED])));
+
+        List<UsageStats.App> apps = usageStats.getApps();
+        for (UsageStats.App app : apps.subList(0, Math.min(apps.size(), USAGE_APPS))) {
+            builder.append(System.lineSeparator()).append(context.getString(R.string.connections_usage_app,
+                    getAppName(context, app.Uid),
+                    Formatter.formatShortFileSize(context, app.Sent),
+                    Formatter.formatShortFileSize(context, app.Received),
+                    Formatter.formatShortFileSize(context, app.TorSent + app.TorReceived),
+                    Formatter.formatShortFileSize(context, app.SentRate + app.ReceivedRate)));
+
+            List<Usage> destinations = usageStats.getDestinations(app.Uid);
+            if (!destinations.isEmpty()) {
+                Usage top = destinations.get(0);
+                builder.append(System.lineSeparator()).append("  ").append(top.DAddr).append(":")
+                        .append(top.DPort);
+                if (top.Proxied) {
+                    builder.append(" ").append(context.getString(R.string.connections_upstream_tor));
+                }
+            }
+        }
+    }
+
+    private String describe(Context context, Connection connection) {
+        String protocol;
+        String state;
+        if (connection.Protocol == 6) {
+            protocol = "TCP";
+            state = connection.State < TCP_STATES.length ? TCP_STATES[connection.State] : "";
+        } else if (connection.Protocol == 17) {
+            protocol = "UDP";
+            state = connection.State < UDP_STATES.length ? UDP_STATES[connection.State] : "";
+        } else {
+            protocol = "ICMP";
+            state = connection.State == 0 ? "ACTIVE" : "STOPPED";
+        }
+
+        String upstream = "";
+        if (connection.Upstream == Connection.UPSTREAM_SOCKS5) {
+            upstream = " " + context.getString(R.string.connections_upstream_tor);
+        } else if (connection.Upstream == Connection.UPSTREAM_FORWARDED) {
+            upstream = " " + context.getString(R.string.connections_upstream_forwarded);
+        }
+
+        return getAppName(context, connection.Uid) + " " + protocol + " " + state + upstream
+                + System.lineSeparator() + "  " + context.getString(R.string.connections_session,
+                connection.DAddr, connection.DPort, connection.Sent, connection.Received, connection.Idle);
+    }
+
+    private String getAppName(Context context, int uid) {
+        String name = appNames.get(uid);
+        if (name == null) {
+            PackageManager pm = context.getPackageManager();
+            name = pm.getNameForUid(uid);
+            if (name == null) {
+                name = String.valueOf(uid);
+            }
+            appNames.put(uid, name);
+        }
+        return name;
+    }
+
+    private void bindToVPNService(Context context) {
+        serviceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                binder = (ServiceVPN.VPNBinder) service;
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                binder = null;
+            }
+        };
+
+        Intent intent = new Intent(context, ServiceVPN.class);
+        context.bindService(intent, serviceConnection, 0);
+    }
+
+    private void unbindVPNService(Context context) {
+        if (serviceConnection != null && context != null) {
+            context.unbindService(serviceConnection);
+            serviceConnection = null;
+            binder = null;
+        }
+    }
+}
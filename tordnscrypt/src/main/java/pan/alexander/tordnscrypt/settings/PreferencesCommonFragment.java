@@ -24,6 +24,8 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.provider.Settings;
 import androidx.annotation.NonNull;
@@ -38,7 +40,9 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -53,8 +57,11 @@ import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.Verifier;
 import pan.alexander.tordnscrypt.utils.enums.FileOperationsVariants;
+import pan.alexander.tordnscrypt.utils.enums.VPNReloadLevel;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 import pan.alexander.tordnscrypt.utils.file_operations.OnTextFileOperationsCompleteListener;
+import pan.alexander.tordnscrypt.vpn.service.PacketCapture;
+import pan.alexander.tordnscrypt.vpn.service.ServiceVPNHelper;
 
 import static pan.alexander.tordnscrypt.TopFragment.TOP_BROADCAST;
 import static pan.alexander.tordnscrypt.TopFragment.appVersion;
@@ -108,6 +115,8 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
             }
         }
 
+        registerVPNPreferences();
+
         if (ModulesStatus.getInstance().getMode() == ROOT_MODE) {
             registerPreferences();
         } else {
@@ -196,7 +205,7 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
             case "pref_common_tor_tethering":
                 allowTorTether = Boolean.valueOf(newValue.toString());
                 readTorConf();
-                if (new PrefManager(getActivity()).getBoolPref("Tor Running")) {
+                if (ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running")) {
                     ModulesRestarter.restartTor(getActivity());
                     ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
                     ModulesAux.requestModulesStatusUpdate(getActivity());
@@ -206,7 +215,7 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
                 allowITPDtether = Boolean.valueOf(newValue.toString());
                 readITPDConf();
                 readITPDTunnelsConf();
-                if (new PrefManager(getActivity()).getBoolPref("I2PD Running")) {
+                if (ModulesStatus.getInstance().getPersistedBool(getActivity(), "I2PD Running")) {
                     ModulesRestarter.restartITPD(getActivity());
                     ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
                     ModulesAux.requestModulesStatusUpdate(getActivity());
@@ -222,14 +231,14 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
                     }
                 }
 
-                if (new PrefManager(getActivity()).getBoolPref("Tor Running")) {
+                if (ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running")) {
                     ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
                     ModulesAux.requestModulesStatusUpdate(getActivity());
                 }
                 break;
             case "pref_common_block_http":
-                if (new PrefManager(getActivity()).getBoolPref("DNSCrypt Running")
-                        || new PrefManager(getActivity()).getBoolPref("Tor Running")) {
+                if (ModulesStatus.getInstance().getPersistedBool(getActivity(), "DNSCrypt Running")
+                        || ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running")) {
                     ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
                     ModulesAux.requestModulesStatusUpdate(getActivity());
                 }
@@ -250,6 +259,35 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
                 Log.i(LOG_TAG, "PreferencesCommonFragment switch to "
                         + (Boolean.valueOf(newValue.toString())? "Root" : "No Root"));
                 break;
+            case "workers":
+                ServiceVPNHelper.reload("Workers changed", getActivity());
+                break;
+            case "dns_cache_ttl_min":
+            case "dns_cache_ttl_max":
+                if (!newValue.toString().matches("\\d{1,6}")) {
+                    return false;
+                }
+                ServiceVPNHelper.reload("DNS cache TTL changed", VPNReloadLevel.RULES, getActivity());
+                break;
+            case "dns_blocklist":
+                ServiceVPNHelper.reload("Domain blocklist changed", VPNReloadLevel.RULES, getActivity());
+                break;
+            case "pcap_size":
+            case "pcap_snaplen":
+                if (!newValue.toString().matches("\\d{1,5}")) {
+                    return false;
+                }
+                ServiceVPNHelper.reload("Capture changed", VPNReloadLevel.RULES, getActivity());
+                break;
+            case "pcap_uids":
+                if (!newValue.toString().matches("[\\d\\s,]*")) {
+                    return false;
+                }
+                ServiceVPNHelper.reload("Capture changed", VPNReloadLevel.RULES, getActivity());
+                break;
+            case "pcap":
+                ServiceVPNHelper.reload("Capture changed", VPNReloadLevel.RULES, getActivity());
+                break;
             case "pref_common_fix_ttl":
                 modulesStatus = ModulesStatus.getInstance();
                 boolean fixed = Boolean.valueOf(newValue.toString());
@@ -482,6 +520,44 @@ public class PreferencesCommonFragment extends PreferenceFragmentCompat
         }
     }
 
+    private void registerVPNPreferences() {
+        String[] keys = {"workers", "dns_cache_ttl_min", "dns_cache_ttl_max", "dns_blocklist",
+                "pcap", "pcap_size", "pcap_snaplen", "pcap_uids"};
+        for (String key : keys) {
+            Preference preference = findPreference(key);
+            if (preference != null) {
+                preference.setOnPreferenceChangeListener(this);
+            }
+        }
+
+        Preference pcapExport = findPreference("pcap_export");
+        if (pcapExport != null) {
+            pcapExport.setOnPreferenceClickListener(preference -> {
+                exportCapture();
+                return true;
+            });
+        }
+    }
+
+    //The app external files dir needs no storage permission
+    private void exportCapture() {
+        if (getActivity() == null) {
+            return;
+        }
+
+        final Context context = getActivity().getApplicationContext();
+        new Thread(() -> {
+            File dir = context.getExternalFilesDir(null);
+            File target = dir == null ? null : new File(dir, "InvizibleCapture.pcap");
+            boolean exported = target != null && PacketCapture.export(context, target);
+
+            String message = exported ? context.getString(R.string.pref_common_pcap_exported, target.getPath())
+                    : context.getString(R.string.pref_common_pcap_not_exported);
+            new Handler(Looper.getMainLooper()).post(() ->
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+
     private void removePreferences() {
         PreferenceScreen preferenceScreen = findPreference("pref_common");
 
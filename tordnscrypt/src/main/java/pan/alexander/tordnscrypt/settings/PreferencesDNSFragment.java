@@ -35,7 +35,7 @@ import java.util.Objects;
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.SettingsActivity;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
-import pan.alexander.tordnscrypt.utils.PrefManager;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
 import static pan.alexander.tordnscrypt.TopFragment.appVersion;
@@ -145,7 +145,7 @@ public class PreferencesDNSFragment extends PreferenceFragmentCompat implements
 
         FileOperations.writeToTextFile(getActivity(), appDataDir + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml", dnscrypt_proxy_toml, SettingsActivity.dnscrypt_proxy_toml_tag);
 
-        boolean dnsCryptRunning = new PrefManager(getActivity()).getBoolPref("DNSCrypt Running");
+        boolean dnsCryptRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "DNSCrypt Running");
 
         if (dnsCryptRunning) {
             ModulesRestarter.restartDNSCrypt(getActivity());
@@ -289,7 +289,7 @@ public class PreferencesFastFragment extends PreferenceFragmentCompat implements
                     if (jobScheduler != null) {
                         jobScheduler.schedule(getIPsJobBuilder.build());
                     }
-                } else if (!new PrefManager(getActivity()).getBoolPref("Tor Running")) {
+                } else if (!ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running")) {
                     JobScheduler jobScheduler = (JobScheduler) getActivity().getSystemService(Context.JOB_SCHEDULER_SERVICE);
                     if (jobScheduler != null) {
                         jobScheduler.cancel(mJobId);
@@ -336,8 +336,8 @@ public class PreferencesFastFragment extends PreferenceFragmentCompat implements
 
                 return true;
             case "pref_fast_block_http":
-                if (new PrefManager(getActivity()).getBoolPref("DNSCrypt Running")
-                        || new PrefManager(getActivity()).getBoolPref("Tor Running")) {
+                if (ModulesStatus.getInstance().getPersistedBool(getActivity(), "DNSCrypt Running")
+                        || ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running")) {
                     ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
                     ModulesAux.requestModulesStatusUpdate(getActivity());
                 }
@@ -37,7 +37,6 @@ import java.util.Objects;
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.SettingsActivity;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
 
@@ -190,7 +189,7 @@ public class PreferencesITPDFragment extends PreferenceFragmentCompat implements
 
         FileOperations.writeToTextFile(getActivity(), appDataDir + "/app_data/i2pd/i2pd.conf", itpd_conf, SettingsActivity.itpd_conf_tag);
 
-        boolean itpdRunning = new PrefManager(getActivity()).getBoolPref("I2PD Running");
+        boolean itpdRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "I2PD Running");
 
         if (itpdRunning) {
             ModulesRestarter.restartITPD(getActivity());
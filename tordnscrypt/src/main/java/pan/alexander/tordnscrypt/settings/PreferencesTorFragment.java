@@ -39,7 +39,6 @@ import pan.alexander.tordnscrypt.SettingsActivity;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 
 import static pan.alexander.tordnscrypt.TopFragment.appVersion;
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
@@ -189,7 +188,7 @@ public class PreferencesTorFragment extends PreferenceFragmentCompat implements
 
         FileOperations.writeToTextFile(getActivity(),appDataDir+"/app_data/tor/tor.conf",tor_conf,SettingsActivity.tor_conf_tag);
 
-        boolean torRunning = new PrefManager(getActivity()).getBoolPref("Tor Running");
+        boolean torRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running");
 
         if (torRunning) {
             ModulesRestarter.restartTor(getActivity());
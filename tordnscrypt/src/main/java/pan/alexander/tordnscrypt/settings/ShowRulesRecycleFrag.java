@@ -49,9 +49,9 @@ import java.util.Objects;
 
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.SettingsActivity;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
-import pan.alexander.tordnscrypt.utils.PrefManager;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
 
@@ -213,8 +213,8 @@ public class ShowRulesRecycleFrag extends Fragment {
             FileOperations.writeToTextFile(getActivity(), file_path, others_list, SettingsActivity.rules_tag);
         }
 
-        boolean dnsCryptRunning = new PrefManager(getActivity()).getBoolPref("DNSCrypt Running");
-        boolean itpdRunning = new PrefManager(getActivity()).getBoolPref("I2PD Running");
+        boolean dnsCryptRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "DNSCrypt Running");
+        boolean itpdRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "I2PD Running");
 
         if (itpdRunning && file_path.contains("subscriptions")) {
            ModulesRestarter.restartITPD(getActivity());
@@ -48,6 +48,7 @@ import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.SettingsActivity;
 import pan.alexander.tordnscrypt.dialogs.NotificationHelper;
 import pan.alexander.tordnscrypt.modules.ModulesRestarter;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.utils.GetNewBridges;
 import pan.alexander.tordnscrypt.utils.PrefManager;
@@ -310,7 +311,7 @@ public class PreferencesTorBridges extends Fragment implements View.OnClickListe
         FileOperations.writeToTextFile(getActivity(), appDataDir + "/app_data/tor/tor.conf", tor_conf, "ignored");
 
         ///////////////////////Tor restart/////////////////////////////////////////////
-        boolean torRunning = new PrefManager(getActivity()).getBoolPref("Tor Running");
+        boolean torRunning = ModulesStatus.getInstance().getPersistedBool(getActivity(), "Tor Running");
 
         if (torRunning) {
             ModulesRestarter.restartTor(getActivity());
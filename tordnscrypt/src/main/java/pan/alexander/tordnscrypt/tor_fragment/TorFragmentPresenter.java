@@ -19,6 +19,7 @@ package pan.alexander.tordnscrypt.tor_fragment;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
+import android.app.Activity;
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
@@ -66,7 +67,7 @@ import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STARTING;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPING;
 
-public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
+public class TorFragmentPresenter implements TorFragmentPresenterCallbacks, ModulesStatus.OnModulesStateChangedListener {
 
     public TorFragmentView view;
 
@@ -93,6 +94,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
         String appDataDir = pathVars.getAppDataDir();
 
         modulesStatus = ModulesStatus.getInstance();
+        modulesStatus.addOnModulesStateChangedListener(this);
 
         SharedPreferences shPref = PreferenceManager.getDefaultSharedPreferences(context);
         String refreshPeriod = shPref.getString("pref_fast_site_refresh_interval", "12");
@@ -124,6 +126,9 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
     }
 
     public void onStop() {
+        if (modulesStatus != null) {
+            modulesStatus.removeOnModulesStateChangedListener(this);
+        }
         stopDisplayLog();
         view = null;
     }
@@ -183,7 +188,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
         view.setTorLogViewText();
 
         if (context != null) {
-            new PrefManager(Objects.requireNonNull(context)).setBoolPref("Tor Ready", false);
+            ModulesStatus.getInstance().persist(Objects.requireNonNull(context), "Tor Ready", false);
         }
     }
 
@@ -200,7 +205,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
     @Override
     public boolean isSavedTorStatusRunning(Context context) {
         if (context != null) {
-            return new PrefManager(context).getBoolPref("Tor Running");
+            return ModulesStatus.getInstance().getPersistedBool(context, "Tor Running");
         }
         return false;
     }
@@ -208,7 +213,19 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
     @Override
     public void saveTorStatusRunning(Context context, boolean running) {
         if (context != null) {
-            new PrefManager(context).setBoolPref("Tor Running", running);
+            ModulesStatus.getInstance().persist(context, "Tor Running", running);
+        }
+    }
+
+    @Override
+    public void onModulesStateChanged(ModulesStatus.Snapshot snapshot) {
+        if (view == null || snapshot.getTorState() == fixedModuleState) {
+            return;
+        }
+
+        Activity activity = view.getFragmentActivity();
+        if (activity != null) {
+            activity.runOnUiThread(() -> refreshTorState(activity));
         }
     }
 
@@ -325,7 +342,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
 
                     if (!previousLastLines.contentEquals(lastLines)) {
 
-                        if (!new PrefManager(view.getFragmentActivity()).getBoolPref("Tor Ready")) {
+                        if (!ModulesStatus.getInstance().getPersistedBool(view.getFragmentActivity(), "Tor Ready")) {
                             torStartedSuccessfully(view.getFragmentActivity(), lastLines);
                         }
 
@@ -334,8 +351,6 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
                         previousLastLines = lastLines;
                     }
 
-                    refreshTorState(view.getFragmentActivity());
-
                 });
             }
         }, 1000, period);
@@ -361,7 +376,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
 
         int lastPersIndex = lastLines.lastIndexOf("%");
 
-        if (lastPersIndex < 16 || new PrefManager(context).getBoolPref("Tor Ready")) {
+        if (lastPersIndex < 16 || ModulesStatus.getInstance().getPersistedBool(context, "Tor Ready")) {
             return;
         }
 
@@ -401,7 +416,7 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
 
             view.setTorProgressBarProgress(0);
 
-            new PrefManager(Objects.requireNonNull(context)).setBoolPref("Tor Ready", true);
+            ModulesStatus.getInstance().persist(Objects.requireNonNull(context), "Tor Ready", true);
 
             /////////////////Check Updates///////////////////////////////////////////////
             if (view != null && view.getFragmentActivity() != null && view.getFragmentActivity() instanceof MainActivity) {
@@ -571,8 +586,8 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
         });
         thread.start();
 
-        if (!new PrefManager(Objects.requireNonNull(context)).getBoolPref("Tor Running") &&
-                new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        if (!ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "Tor Running") &&
+                ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -588,8 +603,8 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
             runTor(context);
 
             displayLog(1000);
-        } else if (!new PrefManager(context).getBoolPref("Tor Running") &&
-                !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (!ModulesStatus.getInstance().getPersistedBool(context, "Tor Running") &&
+                !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             if (modulesStatus.isContextUIDUpdateRequested()) {
                 Toast.makeText(context, R.string.please_wait, Toast.LENGTH_SHORT).show();
@@ -604,15 +619,15 @@ public class TorFragmentPresenter implements TorFragmentPresenterCallbacks {
             runTor(context);
 
             displayLog(1000);
-        } else if (new PrefManager(Objects.requireNonNull(context)).getBoolPref("Tor Running") &&
-                new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "Tor Running") &&
+                ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             stopRefreshTorUnlockIPs(context);
 
             setTorStopping();
             stopTor(context);
-        } else if (new PrefManager(Objects.requireNonNull(context)).getBoolPref("Tor Running") &&
-                !new PrefManager(context).getBoolPref("DNSCrypt Running")) {
+        } else if (ModulesStatus.getInstance().getPersistedBool(Objects.requireNonNull(context), "Tor Running") &&
+                !ModulesStatus.getInstance().getPersistedBool(context, "DNSCrypt Running")) {
 
             stopRefreshTorUnlockIPs(context);
 
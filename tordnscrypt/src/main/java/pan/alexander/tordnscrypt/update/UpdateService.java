@@ -52,6 +52,7 @@ import javax.net.ssl.HttpsURLConnection;
 import pan.alexander.tordnscrypt.MainActivity;
 import pan.alexander.tordnscrypt.R;
 import pan.alexander.tordnscrypt.modules.ModulesKiller;
+import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 
@@ -400,22 +401,22 @@ public class UpdateService extends Service {
     private void stopRunningModules(String fileName) {
       if (fileName.contains("InviZible")) {
 
-            boolean dnsCryptRunning = new PrefManager(this).getBoolPref("DNSCrypt Running");
-            boolean torRunning = new PrefManager(this).getBoolPref("Tor Running");
-            boolean itpdRunning = new PrefManager(this).getBoolPref("I2PD Running");
+            boolean dnsCryptRunning = ModulesStatus.getInstance().getPersistedBool(this, "DNSCrypt Running");
+            boolean torRunning = ModulesStatus.getInstance().getPersistedBool(this, "Tor Running");
+            boolean itpdRunning = ModulesStatus.getInstance().getPersistedBool(this, "I2PD Running");
 
             if (dnsCryptRunning) {
-                new PrefManager(this).setBoolPref("DNSCrypt Running", false);
+                ModulesStatus.getInstance().persist(this, "DNSCrypt Running", false);
                 ModulesKiller.stopDNSCrypt(this);
             }
 
             if (torRunning) {
-                new PrefManager(this).setBoolPref("Tor Running", false);
+                ModulesStatus.getInstance().persist(this, "Tor Running", false);
                 ModulesKiller.stopTor(this);
             }
 
             if (itpdRunning) {
-                new PrefManager(this).setBoolPref("I2PD Running", false);
+                ModulesStatus.getInstance().persist(this, "I2PD Running", false);
                 ModulesKiller.stopITPD(this);
             }
         }
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static android.content.Context.MODE_PRIVATE;
@@ -68,6 +69,19 @@ public class PrefManager {
         return sPref.getStringSet(stringID,stringSetDef);
     }
 
+    //Boolean and String values in one apply()
+    public void setPrefs(Map<String, Object> values) {
+        SharedPreferences.Editor edit = sPref.edit();
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            if (value.getValue() instanceof Boolean) {
+                edit.putBoolean(value.getKey(), (Boolean) value.getValue());
+            } else if (value.getValue() instanceof String) {
+                edit.putString(value.getKey(), (String) value.getValue());
+            }
+        }
+        edit.apply();
+    }
+
     public static String getPrefName() {
         return PREF_NAME;
     }
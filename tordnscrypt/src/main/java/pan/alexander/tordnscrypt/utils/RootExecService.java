@@ -43,7 +43,6 @@ import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import eu.chainfire.libsuperuser.Shell;
 import pan.alexander.tordnscrypt.MainActivity;
 import pan.alexander.tordnscrypt.R;
 
@@ -64,6 +63,7 @@ public class RootExecService extends Service {
     public static final String RUN_COMMAND = "pan.alexander.tordnscrypt.action.RUN_COMMAND";
     public static final String COMMAND_RESULT = "pan.alexander.tordnscrypt.action.COMMANDS_RESULT";
     public static final String LOG_TAG = "pan.alexander.TPDCLogs";
+    private static final long COMMANDS_TIMEOUT = 60000;
 
     private static boolean saveRootLogs = false;
     private static String autoStartDelay = "0";
@@ -144,9 +144,9 @@ public class RootExecService extends Service {
     }
 
 
-    @SuppressWarnings("deprecation")
-    private List<String> runCommands(String[] runCommands) {
-        List<String> result = Shell.SU.run(runCommands);
+    private List<String> runCommands(String[] runCommands, int mark) {
+        RootShell.Result rootResult = RootShell.getInstance().run(getPriority(mark), COMMANDS_TIMEOUT, runCommands);
+        List<String> result = rootResult.isExecuted() ? rootResult.getStdout() : null;
 
         if (saveRootLogs) {
             String appDataDir = getApplicationContext().getApplicationInfo().dataDir;
@@ -187,6 +187,14 @@ public class RootExecService extends Service {
 
     }
 
+    //Iptables rules are sent with the null mark and the modules marks
+    private int getPriority(int mark) {
+        if (mark == HelpActivityMark || mark == FileOperationsMark || mark == InstallerMark) {
+            return RootShell.PRIORITY_COMMON;
+        }
+        return RootShell.PRIORITY_IPTABLES;
+    }
+
     private void sendResult(List<String> commandsResult, int mark) {
 
         if (commandsResult == null || mark == NullMark) {
@@ -227,7 +235,7 @@ public class RootExecService extends Service {
                     }
                 }
             }
-            sendResult(runCommands(rootCommands.getCommands()), mark);
+            sendResult(runCommands(rootCommands.getCommands(), mark), mark);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 notificationManager.cancel(DEFAULT_NOTIFICATION_ID);
@@ -0,0 +1,227 @@
+package pan.alexander.tordnscrypt.utils;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.chainfire.libsuperuser.Shell;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+//One su shell for the whole app, su is spawned again only when the shell dies or hangs
+public class RootShell {
+    //Lower value runs first
+    public static final int PRIORITY_IPTABLES = 0;
+    public static final int PRIORITY_MODULES = 1;
+    public static final int PRIORITY_COMMON = 2;
+    public static final int PRIORITY_CHECKS = 3;
+
+    //Exit code of a command that did not complete in time
+    public static final int TIMEOUT_EXIT = Shell.OnCommandResultListener2.WATCHDOG_EXIT;
+
+    //Longest time a batch below the iptables priority holds the shell,
+    //a running batch is not interrupted, so iptables rules wait at most that long
+    private static final long LOWER_PRIORITY_HOLD = 30000;
+
+    private static volatile RootShell holder;
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private Shell.Interactive shell;
+
+    private RootShell() {
+        Thread worker = new Thread(this::loop, "RootShell");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static RootShell getInstance() {
+        if (holder == null) {
+            synchronized (RootShell.class) {
+                if (holder == null) {
+                    holder = new RootShell();
+                }
+            }
+        }
+        return holder;
+    }
+
+    //Blocks until the commands are done, so never call it on the main thread.
+    //The commands run as one batch in a subshell, the exit code is the one of the last command.
+    public Result run(int priority, long timeoutMs, String... commands) {
+        if (commands.length == 0) {
+            return new Result(0, Collections.emptyList(), Collections.emptyList());
+        }
+
+        if (priority > PRIORITY_IPTABLES && timeoutMs > LOWER_PRIORITY_HOLD) {
+            timeoutMs = LOWER_PRIORITY_HOLD;
+        }
+
+        Task task = new Task(priority, sequence.getAndIncrement(), timeoutMs, commands);
+        queue.add(task);
+
+        try {
+            task.done.await();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "RootShell run interrupted " + e.getMessage());
+            Thread.currentThread().interrupt();
+            return new Result(TIMEOUT_EXIT, Collections.emptyList(), Collections.emptyList());
+        }
+
+        return task.result;
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                execute(queue.take());
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "RootShell loop interrupted " + e.getMessage());
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "RootShell loop exception " + e.getMessage() + " " + e.getCause());
+            }
+        }
+    }
+
+    private void execute(Task task) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        Shell.Interactive shell = getShell();
+
+        //A subshell keeps cd, variables and background jobs of one caller away from the others
+        String[] commands = new String[task.commands.length + 2];
+        commands[0] = "(";
+        System.arraycopy(task.commands, 0, commands, 1, task.commands.length);
+        commands[commands.length - 1] = ")";
+
+        shell.addCommand(commands, 0, (Shell.OnCommandResultListener2) (commandCode, exitCode, stdout, stderr) ->
+                task.finish(new Result(exitCode, stdout, stderr)));
+
+        if (!task.done.await(task.timeout, TimeUnit.MILLISECONDS)) {
+            Log.w(LOG_TAG, "RootShell command timed out after " + task.timeout + " ms " + task.commands[0]);
+            task.finish(new Result(TIMEOUT_EXIT, Collections.emptyList(), Collections.emptyList()));
+            killShell();
+        } else if (task.result.exitCode < 0) {
+            Log.w(LOG_TAG, "RootShell shell failed with exit code " + task.result.exitCode);
+            killShell();
+        }
+
+        Log.i(LOG_TAG, "RootShell priority " + task.priority + " done in "
+                + (System.currentTimeMillis() - start) + " ms, exit code " + task.result.exitCode);
+    }
+
+    private Shell.Interactive getShell() {
+        if (shell == null || !shell.isRunning()) {
+            shell = new Shell.Builder()
+                    .useSU()
+                    .setAutoHandler(false)
+                    .setWantSTDERR(true)
+                    .setMinimalLogging(true)
+                    .open();
+            Log.i(LOG_TAG, "RootShell su shell started");
+        }
+        return shell;
+    }
+
+    private void killShell() {
+        if (shell != null) {
+            try {
+                shell.kill();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "RootShell kill exception " + e.getMessage());
+            }
+            shell = null;
+        }
+    }
+
+    //Result of a whole batch, stdout and stderr of all commands and the exit code of the last one,
+    //so isSuccessful() says nothing about the earlier commands of a batch
+    public static class Result {
+        private final int exitCode;
+        private final List<String> stdout;
+        private final List<String> stderr;
+
+        Result(int exitCode, List<String> stdout, List<String> stderr) {
+            this.exitCode = exitCode;
+            this.stdout = new ArrayList<>(stdout);
+            this.stderr = new ArrayList<>(stderr);
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public List<String> getStdout() {
+            return stdout;
+        }
+
+        public List<String> getStderr() {
+            return stderr;
+        }
+
+        //The shell ran the commands, whatever their exit code is
+        public boolean isExecuted() {
+            return exitCode >= 0;
+        }
+
+        public boolean isSuccessful() {
+            return exitCode == 0;
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        private final int priority;
+        private final long order;
+        private final long timeout;
+        private final String[] commands;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Result result;
+
+        Task(int priority, long order, long timeout, String[] commands) {
+            this.priority = priority;
+            this.order = order;
+            this.timeout = timeout;
+            this.commands = commands;
+        }
+
+        //The first result wins, a killed shell still reports afterwards
+        synchronized void finish(Result result) {
+            if (done.getCount() > 0) {
+                this.result = result;
+                done.countDown();
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -24,11 +24,15 @@ import android.os.Build;
 import androidx.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -41,6 +45,7 @@ import pan.alexander.tordnscrypt.utils.file_operations.FileOperations;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+import static pan.alexander.tordnscrypt.utils.enums.OperationMode.VPN_MODE;
 
 public class TorRefreshIPsWork {
     private Context context;
@@ -75,6 +80,16 @@ public class TorRefreshIPsWork {
         boolean rootIsAvailable = new PrefManager(context.getApplicationContext()).getBoolPref("rootIsAvailable");
         if (!rootIsAvailable) return;
 
+        //VPN mode learns the clearnet hosts addresses from DNS answers, see hostset.c
+        String operationMode = new PrefManager(context.getApplicationContext()).getStrPref("OPERATION_MODE");
+        if (VPN_MODE.toString().equals(operationMode)) {
+            Log.i(LOG_TAG, "TorRefreshIPsWork skipped in VPN mode");
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && getIPsJobService != null) {
+                getIPsJobService.finishJob();
+            }
+            return;
+        }
+
         SharedPreferences shPref = PreferenceManager.getDefaultSharedPreferences(context);
         torTethering = shPref.getBoolean("pref_common_tor_tethering", false);
         routeAllThroughTorDevice = shPref.getBoolean("pref_fast_all_through_tor", true);
@@ -115,6 +130,8 @@ public class TorRefreshIPsWork {
         Runnable performWorkRunnable = () -> {
             Log.i(LOG_TAG, "TorRefreshIPsWork performBackgroundWork");
 
+            boolean changed = false;
+
             if (!unlockHostsDevice.isEmpty() || !unlockIPsDevice.isEmpty()) {
 
                 List<String> unlockIPsReadyDevice = universalGetIPs(unlockHostsDevice, unlockIPsDevice);
@@ -133,28 +150,33 @@ public class TorRefreshIPsWork {
 
 
                 if (!routeAllThroughTorDevice) {
-                    FileOperations.writeToTextFile(context, appDataDir + "/app_data/tor/unlock", unlockIPsReadyDevice, "ignored");
+                    changed = writeIfChanged(appDataDir + "/app_data/tor/unlock", unlockIPsReadyDevice);
                 } else {
-                    FileOperations.writeToTextFile(context, appDataDir + "/app_data/tor/clearnet", unlockIPsReadyDevice, "ignored");
+                    changed = writeIfChanged(appDataDir + "/app_data/tor/clearnet", unlockIPsReadyDevice);
                 }
 
                 if (torTethering) {
                     if (!routeAllThroughTorTether) {
-                        FileOperations.writeToTextFile(context, appDataDir + "/app_data/tor/unlock_tether", unlockIPsReadyTether, "ignored");
+                        changed |= writeIfChanged(appDataDir + "/app_data/tor/unlock_tether", unlockIPsReadyTether);
                     } else {
-                        FileOperations.writeToTextFile(context, appDataDir + "/app_data/tor/clearnet_tether", unlockIPsReadyTether, "ignored");
+                        changed |= writeIfChanged(appDataDir + "/app_data/tor/clearnet_tether", unlockIPsReadyTether);
                     }
                 }
             }
 
-            try {
-                TimeUnit.SECONDS.sleep(5);
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, "TorRefreshIPsWork interrupt exception " + e.getMessage() + " " + e.getCause());
-            }
+            //Iptables rules are rebuilt only when the resolved addresses differ
+            if (changed) {
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "TorRefreshIPsWork interrupt exception " + e.getMessage() + " " + e.getCause());
+                }
 
-            ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
-            ModulesAux.requestModulesStatusUpdate(context);
+                ModulesStatus.getInstance().setIptablesRulesUpdateRequested(true);
+                ModulesAux.requestModulesStatusUpdate(context);
+            } else {
+                Log.i(LOG_TAG, "TorRefreshIPsWork IPs are not changed");
+            }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && getIPsJobService != null) {
                 getIPsJobService.finishJob();
@@ -165,6 +187,25 @@ public class TorRefreshIPsWork {
     }
 
 
+    private boolean writeIfChanged(String path, List<String> lines) {
+        List<String> previous = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                previous.add(line);
+            }
+        } catch (IOException e) {
+            previous = null;
+        }
+
+        if (previous != null && new HashSet<>(previous).equals(new HashSet<>(lines))) {
+            return false;
+        }
+
+        FileOperations.writeToTextFile(context, path, lines, "ignored");
+        return true;
+    }
+
     private List<String> universalGetIPs(ArrayList<String> hosts, ArrayList<String> IPs) {
 
 
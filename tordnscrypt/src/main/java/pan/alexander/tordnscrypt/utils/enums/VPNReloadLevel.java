@@ -1,4 +1,4 @@
-package pan.alexander.tordnscrypt.vpn;
+package pan.alexander.tordnscrypt.utils.enums;
 /*
     This file is part of InviZible Pro.
 
@@ -18,27 +18,9 @@ package pan.alexander.tordnscrypt.vpn;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
-import androidx.annotation.NonNull;
-
-public class Packet {
-    public long time;
-    public int version;
-    public int protocol;
-    public String flags;
-    public String saddr;
-    public int sport;
-    public String daddr;
-    public int dport;
-    public String data;
-    public int uid;
-    public boolean allowed;
-
-    public Packet() {
-    }
-
-    @NonNull
-    @Override
-    public String toString() {
-        return "uid=" + uid + " v" + version + " p" + protocol + " " + daddr + "/" + dport;
-    }
+// What a reload has to bring up to date, different requests merged are reloaded as ROUTES
+public enum VPNReloadLevel {
+    FORWARDS, // forwarded ports and addresses, the rules of the apps are kept
+    RULES, // apps allowed and their rules, routes are kept
+    ROUTES // tun addresses, routes, DNS servers and routed apps
 }
@@ -0,0 +1,188 @@
+package pan.alexander.tordnscrypt.vpn;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pan.alexander.tordnscrypt.utils.PrefManager;
+
+import static android.content.Context.MODE_PRIVATE;
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+// Installed packages are scanned once, then kept up to date from the package broadcasts
+// ServiceVPN receives. Rules are rebuilt from the index only when it or the apps settings change.
+public final class AppIndex implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static volatile AppIndex appIndex;
+
+    private final Map<String, Integer> uids = new LinkedHashMap<>();
+    private boolean built = false;
+    private boolean listening = false;
+    private List<Rule> rules = null;
+
+    private AppIndex() {
+    }
+
+    public static AppIndex getInstance() {
+        if (appIndex == null) {
+            synchronized (AppIndex.class) {
+                if (appIndex == null) {
+                    appIndex = new AppIndex();
+                }
+            }
+        }
+        return appIndex;
+    }
+
+    synchronized List<Rule> getRules(Context context) {
+        if (!listening) {
+            Context appContext = context.getApplicationContext();
+            PreferenceManager.getDefaultSharedPreferences(appContext)
+                    .registerOnSharedPreferenceChangeListener(this);
+            appContext.getSharedPreferences(PrefManager.getPrefName(), MODE_PRIVATE)
+                    .registerOnSharedPreferenceChangeListener(this);
+            listening = true;
+        }
+
+        if (!built) {
+            build(context);
+        }
+
+        if (rules == null) {
+            rules = Collections.unmodifiableList(buildRules(context));
+        }
+
+        return rules;
+    }
+
+    public synchronized void packageAdded(String packageName, int uid) {
+        if (!built || packageName == null || uid < 0) {
+            return;
+        }
+
+        Integer previous = uids.put(packageName, uid);
+        if (previous == null || previous != uid) {
+            rules = null;
+        }
+
+        Log.i(LOG_TAG, "App index added " + packageName + " uid=" + uid);
+    }
+
+    public synchronized void packageRemoved(String packageName) {
+        if (!built || packageName == null) {
+            return;
+        }
+
+        if (uids.remove(packageName) != null) {
+            rules = null;
+        }
+
+        Log.i(LOG_TAG, "App index removed " + packageName);
+    }
+
+    // Package broadcasts are not received, scan again on next use
+    public synchronized void invalidate() {
+        uids.clear();
+        built = false;
+        rules = null;
+    }
+
+    @Override
+    public synchronized void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if ("pref_fast_all_through_tor".equals(key)
+                || "unlockApps".equals(key)
+                || "clearnetApps".equals(key)) {
+            rules = null;
+        }
+    }
+
+    private void build(Context context) {
+        uids.clear();
+
+        PackageManager pm = context.getPackageManager();
+        for (PackageInfo info : pm.getInstalledPackages(0)) {
+            if (info.applicationInfo != null) {
+                uids.put(info.packageName, info.applicationInfo.uid);
+            }
+        }
+
+        int userId = Process.myUid() / 100000;
+
+        uids.put("root", 0);
+        uids.put("android.media", 1013 + userId * 100000);
+        uids.put("android.multicast", 1020 + userId * 100000);
+        uids.put("android.gps", 1021 + userId * 100000);
+        uids.put("android.dns", 1051 + userId * 100000);
+        uids.put("nobody", 9999);
+
+        built = true;
+        rules = null;
+
+        Log.i(LOG_TAG, "App index built packages=" + uids.size());
+    }
+
+    private List<Rule> buildRules(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean routeAllThroughIniZible = prefs.getBoolean("pref_fast_all_through_tor", true);
+
+        String unlockAppsStr;
+        if (!routeAllThroughIniZible) {
+            unlockAppsStr = "unlockApps";
+        } else {
+            unlockAppsStr = "clearnetApps";
+        }
+
+        Set<String> setUnlockApps = new PrefManager(context).getSetStrPref(unlockAppsStr);
+
+        List<Rule> listRules = new ArrayList<>(uids.size());
+        for (Map.Entry<String, Integer> entry : uids.entrySet()) {
+            int uid = entry.getValue();
+
+            // Skip self
+            if (uid == Process.myUid()) {
+                continue;
+            }
+
+            boolean apply;
+            if (routeAllThroughIniZible) {
+                apply = !setUnlockApps.contains(String.valueOf(uid));
+            } else {
+                apply = setUnlockApps.contains(String.valueOf(uid));
+            }
+
+            listRules.add(new Rule(uid, entry.getKey(), apply));
+        }
+
+        return listRules;
+    }
+}
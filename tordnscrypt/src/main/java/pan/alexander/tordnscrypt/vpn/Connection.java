@@ -0,0 +1,47 @@
+package pan.alexander.tordnscrypt.vpn;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+// Session of the tunnel engine, see SNAPSHOT_* in invizible.h
+public class Connection {
+    public static final int UPSTREAM_DIRECT = 0;
+    public static final int UPSTREAM_SOCKS5 = 1;
+    public static final int UPSTREAM_FORWARDED = 2;
+
+    public int Protocol;
+    public int Version;
+    public int State; // TCP_*, UDP_* or ICMP stopped
+    public int Upstream;
+    public int Uid;
+    public int SPort;
+    public int DPort;
+    public int Idle; // seconds
+    public String DAddr;
+    public long Sent;
+    public long Received;
+
+    @Override
+    public String toString() {
+        return "v" + Version + " p" + Protocol +
+                " " + DAddr + "/" + DPort +
+                " uid " + Uid + " state " + State +
+                (Upstream == UPSTREAM_SOCKS5 ? " tor" : Upstream == UPSTREAM_FORWARDED ? " forwarded" : "") +
+                " idle " + Idle + " out " + Sent + " in " + Received;
+    }
+}
@@ -63,7 +63,7 @@ public class IPUtil {
         return listResult;
     }
 
-    private static long prefix2mask(int bits) {
+    public static long prefix2mask(int bits) {
         return (0xFFFFFFFF00000000L >> bits) & 0xFFFFFFFFL;
     }
 
@@ -75,6 +75,50 @@ public class IPUtil {
         return result;
     }
 
+    // Parses dotted IPv4 without allocation, returns -1 for anything else
+    public static long parseIPv4(String addr) {
+        if (addr == null)
+            return -1;
+
+        long result = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < addr.length(); i++) {
+            char c = addr.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255)
+                    return -1;
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                result = result << 8 | octet;
+                octet = -1;
+                dots++;
+            } else
+                return -1;
+        }
+
+        if (dots != 3 || octet < 0)
+            return -1;
+
+        return result << 8 | octet;
+    }
+
+    // Formats a raw 4 or 16 byte address, returns an empty string for anything else
+    public static String getHostAddress(byte[] addr) {
+        if (addr == null || addr.length == 0)
+            return "";
+
+        if (addr.length == 4)
+            return (addr[0] & 0xFF) + "." + (addr[1] & 0xFF) + "." + (addr[2] & 0xFF) + "." + (addr[3] & 0xFF);
+
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException ex) {
+            Log.e(LOG_TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return "";
+        }
+    }
+
     private static InetAddress long2inet(long addr) {
         try {
             byte[] b = new byte[4];
@@ -21,23 +21,104 @@ package pan.alexander.tordnscrypt.vpn;
 import androidx.annotation.NonNull;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Objects;
 
+//Names are kept as received from native code and decoded on first access
 public class ResourceRecord implements Serializable {
-    public long Time;
-    public String QName;
-    public String AName;
-    public String CName;
-    public String HInfo;
-    public String Resource;
-    public int Rcode;
+    public final long Time;
+    public final int Rcode;
+
+    private final byte[] names;
+    private final int qnameEnd;
+    private final int anameEnd;
+    private final int cnameEnd;
+    private final byte[] resource;
+
+    private transient String qName;
+    private transient String aName;
+    private transient String cName;
+    private transient String hInfo;
+    private transient String resourceAddress;
 
     private static DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
-    public ResourceRecord() {
+    public ResourceRecord(long time, int rcode, byte[] resource,
+                          ByteBuffer buffer, int offset,
+                          int qnameLength, int anameLength, int cnameLength, int hinfoLength) {
+        this.Time = time;
+        this.Rcode = rcode;
+        this.resource = resource;
+        this.names = new byte[qnameLength + anameLength + cnameLength + hinfoLength];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = buffer.get(offset + i);
+        }
+        this.qnameEnd = qnameLength;
+        this.anameEnd = qnameEnd + anameLength;
+        this.cnameEnd = anameEnd + cnameLength;
+    }
+
+    //Compares with a record waiting in the buffer without creating it
+    public boolean isSame(long time, int rcode, ByteBuffer buffer, int offset,
+                          int qnameLength, int anameLength, int cnameLength, int hinfoLength) {
+        if (Time != time || Rcode != rcode
+                || qnameEnd != qnameLength
+                || anameEnd != qnameEnd + anameLength
+                || cnameEnd != anameEnd + cnameLength
+                || names.length != cnameEnd + hinfoLength) {
+            return false;
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != buffer.get(offset + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public String getQName() {
+        if (qName == null) {
+            qName = decode(0, qnameEnd);
+        }
+        return qName;
+    }
+
+    public String getAName() {
+        if (aName == null) {
+            aName = decode(qnameEnd, anameEnd);
+        }
+        return aName;
+    }
+
+    public String getCName() {
+        if (cName == null) {
+            cName = decode(anameEnd, cnameEnd);
+        }
+        return cName;
+    }
+
+    public String getHInfo() {
+        if (hInfo == null) {
+            hInfo = decode(cnameEnd, names.length);
+        }
+        return hInfo;
+    }
+
+    public String getResource() {
+        if (resourceAddress == null) {
+            resourceAddress = IPUtil.getHostAddress(resource);
+        }
+        return resourceAddress;
+    }
+
+    private String decode(int start, int end) {
+        return new String(names, start, end - start, StandardCharsets.UTF_8);
     }
 
     private String trimToNotASCIISymbols(String line) {
@@ -95,23 +176,23 @@ public class ResourceRecord implements Serializable {
     public String toString() {
         String result = "";
 
-        if (!CName.isEmpty()) {
+        if (!getCName().isEmpty()) {
             result = formatter.format(new Date(Time).getTime()) +
-                    " QName " + QName +
-                    " AName " + AName +
-                    " CName " + CName +
+                    " QName " + getQName() +
+                    " AName " + getAName() +
+                    " CName " + getCName() +
                     " " + rCodeToString(Rcode);
-        } else if (!Resource.isEmpty()){
+        } else if (!getResource().isEmpty()){
             result = formatter.format(new Date(Time).getTime()) +
-                    " QName " + QName +
-                    " AName " + AName +
-                    " Resource " + Resource +
+                    " QName " + getQName() +
+                    " AName " + getAName() +
+                    " Resource " + getResource() +
                     " " + rCodeToString(Rcode);
-        } else if (!HInfo.isEmpty()){
+        } else if (!getHInfo().isEmpty()){
             result = formatter.format(new Date(Time).getTime()) +
-                    " QName " + QName +
-                    " AName " + AName +
-                    " HINFO " + trimToNotASCIISymbols(HInfo)+
+                    " QName " + getQName() +
+                    " AName " + getAName() +
+                    " HINFO " + trimToNotASCIISymbols(getHInfo())+
                     " " + rCodeToString(Rcode);
         }
 
@@ -125,14 +206,14 @@ public class ResourceRecord implements Serializable {
         ResourceRecord that = (ResourceRecord) o;
         return Time == that.Time &&
                 Rcode == that.Rcode &&
-                QName.equals(that.QName) &&
-                AName.equals(that.AName) &&
-                CName.equals(that.CName) &&
-                HInfo.equals(that.HInfo);
+                qnameEnd == that.qnameEnd &&
+                anameEnd == that.anameEnd &&
+                cnameEnd == that.cnameEnd &&
+                Arrays.equals(names, that.names);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(Time, QName, AName, CName, HInfo, Rcode);
+        return 31 * (31 * Long.valueOf(Time).hashCode() + Rcode) + Arrays.hashCode(names);
     }
 }
@@ -0,0 +1,99 @@
+package pan.alexander.tordnscrypt.vpn;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Fixed capacity ring of resolved DNS records. Every record gets the next sequence number,
+// readers keep the sequence they stopped at and receive only the records added since.
+// Writers never block, the oldest records are overwritten when the ring is full.
+public final class ResourceRecordRing {
+
+    private static final class Slot {
+        final long sequence;
+        final ResourceRecord record;
+
+        Slot(long sequence, ResourceRecord record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long cleared = 0;
+
+    public ResourceRecordRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // Last record added, null when it is not available
+    public ResourceRecord getLast() {
+        long last = next.get() - 1;
+        if (last < cleared) {
+            return null;
+        }
+
+        Slot slot = slots.get((int) (last & mask));
+        return slot != null && slot.sequence == last ? slot.record : null;
+    }
+
+    public void add(ResourceRecord record) {
+        long sequence = next.getAndIncrement();
+        slots.set((int) (sequence & mask), new Slot(sequence, record));
+    }
+
+    // Appends records added since the sequence to the list, returns the sequence to read from next time
+    public long getSince(long since, List<ResourceRecord> records) {
+        long end = next.get();
+        long sequence = Math.max(Math.max(since, cleared), end - slots.length());
+
+        for (; sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence & mask));
+
+            if (slot == null || slot.sequence < sequence) {
+                // Claimed by a writer that has not stored it yet, read it next time
+                break;
+            } else if (slot.sequence == sequence) {
+                records.add(slot.record);
+            }
+        }
+
+        return sequence;
+    }
+
+    // Sequence of the next record, readers may start here to skip records already added
+    public long getSequence() {
+        return next.get();
+    }
+
+    public void clear() {
+        cleared = next.get();
+    }
+}
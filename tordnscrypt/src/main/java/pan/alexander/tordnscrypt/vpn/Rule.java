@@ -19,24 +19,12 @@ package pan.alexander.tordnscrypt.vpn;
 */
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.Build;
-import android.os.Process;
-import android.preference.PreferenceManager;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-
-import pan.alexander.tordnscrypt.utils.PrefManager;
-
-import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
 
 public class Rule {
     public int uid;
@@ -44,11 +32,6 @@ public class Rule {
 
     public boolean apply = true;
 
-    private static List<PackageInfo> getPackages(Context context) {
-        PackageManager pm = context.getPackageManager();
-        return new ArrayList<>(pm.getInstalledPackages(0));
-    }
-
     private static String getLabel(PackageInfo info, Context context) {
         PackageManager pm = context.getPackageManager();
         return info.applicationInfo.loadLabel(pm).toString();
@@ -66,112 +49,14 @@ public class Rule {
         return Util.isEnabled(info, context);
     }
 
-    private Rule(PackageInfo info) {
-        this.uid = info.applicationInfo.uid;
-        this.packageName = info.packageName;
+    Rule(int uid, String packageName, boolean apply) {
+        this.uid = uid;
+        this.packageName = packageName;
+        this.apply = apply;
     }
 
+    // Rules are shared and must not be modified
     public static List<Rule> getRules(Context context) {
-        synchronized (context.getApplicationContext()) {
-
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            boolean routeAllThroughIniZible = prefs.getBoolean("pref_fast_all_through_tor", true);
-
-            String unlockAppsStr;
-            if (!routeAllThroughIniZible) {
-                unlockAppsStr = "unlockApps";
-            } else {
-                unlockAppsStr = "clearnetApps";
-            }
-
-            Set<String> setUnlockApps = new PrefManager(context).getSetStrPref(unlockAppsStr);
-
-            // Build rule list
-            List<Rule> listRules = new ArrayList<>();
-            List<PackageInfo> listPI = getPackages(context);
-
-            int userId = Process.myUid() / 100000;
-
-            // Add root
-            PackageInfo root = new PackageInfo();
-            root.packageName = "root";
-            root.versionCode = Build.VERSION.SDK_INT;
-            root.versionName = Build.VERSION.RELEASE;
-            root.applicationInfo = new ApplicationInfo();
-            root.applicationInfo.uid = 0;
-            root.applicationInfo.icon = 0;
-            listPI.add(root);
-
-            // Add mediaserver
-            PackageInfo media = new PackageInfo();
-            media.packageName = "android.media";
-            media.versionCode = Build.VERSION.SDK_INT;
-            media.versionName = Build.VERSION.RELEASE;
-            media.applicationInfo = new ApplicationInfo();
-            media.applicationInfo.uid = 1013 + userId * 100000;
-            media.applicationInfo.icon = 0;
-            listPI.add(media);
-
-            // MulticastDNSResponder
-            PackageInfo mdr = new PackageInfo();
-            mdr.packageName = "android.multicast";
-            mdr.versionCode = Build.VERSION.SDK_INT;
-            mdr.versionName = Build.VERSION.RELEASE;
-            mdr.applicationInfo = new ApplicationInfo();
-            mdr.applicationInfo.uid = 1020 + userId * 100000;
-            mdr.applicationInfo.icon = 0;
-            listPI.add(mdr);
-
-            // Add GPS daemon
-            PackageInfo gps = new PackageInfo();
-            gps.packageName = "android.gps";
-            gps.versionCode = Build.VERSION.SDK_INT;
-            gps.versionName = Build.VERSION.RELEASE;
-            gps.applicationInfo = new ApplicationInfo();
-            gps.applicationInfo.uid = 1021 + userId * 100000;
-            gps.applicationInfo.icon = 0;
-            listPI.add(gps);
-
-            // Add DNS daemon
-            PackageInfo dns = new PackageInfo();
-            dns.packageName = "android.dns";
-            dns.versionCode = Build.VERSION.SDK_INT;
-            dns.versionName = Build.VERSION.RELEASE;
-            dns.applicationInfo = new ApplicationInfo();
-            dns.applicationInfo.uid = 1051 + userId * 100000;
-            dns.applicationInfo.icon = 0;
-            listPI.add(dns);
-
-            // Add nobody
-            PackageInfo nobody = new PackageInfo();
-            nobody.packageName = "nobody";
-            nobody.versionCode = Build.VERSION.SDK_INT;
-            nobody.versionName = Build.VERSION.RELEASE;
-            nobody.applicationInfo = new ApplicationInfo();
-            nobody.applicationInfo.uid = 9999;
-            nobody.applicationInfo.icon = 0;
-            listPI.add(nobody);
-
-            for (PackageInfo info : listPI)
-                try {
-                    // Skip self
-                    if (info.applicationInfo.uid == Process.myUid())
-                        continue;
-
-                    Rule rule = new Rule(info);
-
-                    if (routeAllThroughIniZible) {
-                        rule.apply = !setUnlockApps.contains(String.valueOf(info.applicationInfo.uid));
-                    } else {
-                        rule.apply = setUnlockApps.contains(String.valueOf(info.applicationInfo.uid));
-                    }
-
-                    listRules.add(rule);
-                } catch (Throwable ex) {
-                    Log.e(LOG_TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                }
-
-            return listRules;
-        }
+        return AppIndex.getInstance().getRules(context);
     }
 }
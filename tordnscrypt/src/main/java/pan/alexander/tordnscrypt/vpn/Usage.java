@@ -31,6 +31,8 @@ public class Usage {
     public int Uid;
     public long Sent;
     public long Received;
+    public long Sessions;
+    public boolean Proxied; // through Tor
 
     private static DateFormat formatter = SimpleDateFormat.getDateTimeInstance();
 
@@ -40,6 +42,7 @@ public class Usage {
                 " v" + Version + " p" + Protocol +
                 " " + DAddr + "/" + DPort +
                 " uid " + Uid +
-                " out " + Sent + " in " + Received;
+                " out " + Sent + " in " + Received +
+                " sessions " + Sessions + (Proxied ? " tor" : "");
     }
 }
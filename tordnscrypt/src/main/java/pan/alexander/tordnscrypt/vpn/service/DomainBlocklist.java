@@ -0,0 +1,317 @@
+package pan.alexander.tordnscrypt.vpn.service;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+//Compiles the dnscrypt-proxy blacklist and whitelist into the hash set mapped by domains.c.
+//Plain, "=exact" and "*.subdomain" rules are compiled, other patterns and time restricted
+//rules are left to dnscrypt-proxy, which still applies the whole lists.
+final class DomainBlocklist {
+
+    // Layout shared with domains.c, little endian
+    private static final int MAGIC = 0x42445A49;
+    private static final int VERSION = 1;
+    private static final int HEADER = 24;
+
+    private static final int BLOCK_EXACT = 1;
+    private static final int BLOCK_SUBDOMAINS = 2;
+    private static final int ALLOW_EXACT = 4;
+    private static final int ALLOW_SUBDOMAINS = 8;
+    private static final long FLAGS = 0xF;
+
+    private static final Pattern SECTION = Pattern.compile("^\\s*\\[\\s*([^\\]\\s]+)\\s*]");
+    private static final Pattern LIST_FILE =
+            Pattern.compile("^\\s*(blacklist_file|whitelist_file)\\s*=\\s*['\"]([^'\"]+)['\"]");
+
+    private final File config;
+    private final File output;
+
+    private File blacklist = null;
+    private File whitelist = null;
+
+    private long[] entries = new long[1024];
+    private int count = 0;
+    private int skipped = 0;
+
+    DomainBlocklist(String appDataDir, File output) {
+        this.config = new File(appDataDir + "/app_data/dnscrypt-proxy/dnscrypt-proxy.toml");
+        this.output = output;
+    }
+
+    // Returns the stamp of the compiled lists, 0 when dnscrypt-proxy uses no blacklist
+    long prepare() {
+        try {
+            readConfig();
+            if (blacklist == null || !blacklist.isFile()) {
+                return 0;
+            }
+
+            long stamp = getStamp();
+            if (stamp == readStamp()) {
+                return stamp;
+            }
+
+            long start = System.currentTimeMillis();
+
+            addRules(blacklist, false);
+            if (whitelist != null && whitelist.isFile()) {
+                addRules(whitelist, true);
+            }
+            write(stamp);
+
+            Log.i(LOG_TAG, "VPN Domain blocklist compiled names=" + count + " skipped=" + skipped
+                    + " time=" + (System.currentTimeMillis() - start) + "ms");
+
+            return stamp;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "VPN Domain blocklist " + e.getMessage());
+            return 0;
+        } finally {
+            entries = null;
+        }
+    }
+
+    File getOutput() {
+        return output;
+    }
+
+    private void readConfig() throws IOException {
+        if (!config.isFile()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(config))) {
+            String section = "";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher sectionMatcher = SECTION.matcher(line);
+                if (sectionMatcher.find()) {
+                    section = sectionMatcher.group(1);
+                    continue;
+                }
+
+                Matcher matcher = LIST_FILE.matcher(line);
+                if (!matcher.find()) {
+                    continue;
+                }
+
+                //[ip_blacklist] has a blacklist_file of its own
+                String key = matcher.group(1);
+                if (!key.equals(section + "_file")) {
+                    continue;
+                }
+
+                File file = new File(matcher.group(2));
+                if (!file.isAbsolute()) {
+                    file = new File(config.getParentFile(), matcher.group(2));
+                }
+
+                if (matcher.group(1).equals("blacklist_file")) {
+                    blacklist = file;
+                } else {
+                    whitelist = file;
+                }
+            }
+        }
+    }
+
+    // Changes with the lists and with the layout
+    private long getStamp() {
+        long stamp = hash(VERSION + " " + blacklist.getAbsolutePath()
+                + " " + blacklist.length() + " " + blacklist.lastModified());
+        if (whitelist != null && whitelist.isFile()) {
+            stamp ^= hash(whitelist.getAbsolutePath()
+                    + " " + whitelist.length() + " " + whitelist.lastModified()) >>> 4;
+        }
+        return stamp == 0 ? 1 : stamp;
+    }
+
+    private long readStamp() {
+        if (!output.isFile()) {
+            return 0;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            byte[] header = new byte[HEADER];
+            file.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return 0;
+            }
+            return buffer.getLong(16);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void addRules(File file, boolean allow) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                // Rules restricted to a time range
+                if (line.indexOf(' ') >= 0 || line.indexOf('\t') >= 0) {
+                    skipped++;
+                    continue;
+                }
+
+                String name = line.toLowerCase(Locale.ROOT);
+                int flags;
+                if (name.startsWith("=")) {
+                    name = name.substring(1);
+                    flags = BLOCK_EXACT;
+                } else if (name.startsWith("*.")) {
+                    name = name.substring(2);
+                    flags = BLOCK_SUBDOMAINS;
+                } else {
+                    flags = BLOCK_EXACT | BLOCK_SUBDOMAINS;
+                }
+
+                while (name.startsWith(".")) {
+                    name = name.substring(1);
+                }
+                while (name.endsWith(".")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+
+                if (!isPlainName(name)) {
+                    skipped++;
+                    continue;
+                }
+
+                add(hash(name) | (allow ? flags << 2 : flags));
+            }
+        }
+    }
+
+    private static boolean isPlainName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long entry) {
+        if (count == entries.length) {
+            entries = Arrays.copyOf(entries, count * 2);
+        }
+        entries[count++] = entry;
+    }
+
+    // FNV-1a over the lower case name, the low bits hold the rule flags
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash &= ~FLAGS;
+        return hash == 0 ? FLAGS + 1 : hash;
+    }
+
+    private void write(long stamp) throws IOException {
+        // Duplicates are merged into one slot with the flags of all
+        Arrays.sort(entries, 0, count);
+        int merged = 0;
+        for (int i = 0; i < count; i++) {
+            if (merged > 0 && (entries[merged - 1] & ~FLAGS) == (entries[i] & ~FLAGS)) {
+                entries[merged - 1] |= entries[i] & FLAGS;
+            } else {
+                entries[merged++] = entries[i];
+            }
+        }
+        count = merged;
+
+        // Load factor below 0.7
+        int slots = 16;
+        while (slots < count + count / 2 + 1) {
+            slots <<= 1;
+        }
+        int mask = slots - 1;
+
+        long[] table = new long[slots];
+        for (int i = 0; i < count; i++) {
+            int index = (int) (entries[i] >>> 32) & mask;
+            while (table[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            table[index] = entries[i];
+        }
+        entries = null;
+
+        File temp = new File(output.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(count).putLong(stamp);
+            for (long slot : table) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                buffer.putLong(slot);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            stream.getFD().sync();
+        }
+
+        // The engine keeps the mapping of the replaced file
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pan.alexander.tordnscrypt.vpn.service;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+// Exports the capture ring the tunnel engine writes, see pcap.c, as a pcap file
+public final class PacketCapture {
+    static final String RING_FILE = "capture.ring";
+
+    // See pcap.c
+    private static final int RING_MAGIC = 0x43505A49;
+    private static final int RING_VERSION = 1;
+    private static final int RING_HEADER = 64;
+    private static final int SLOT_HEADER = 32;
+
+    // https://wiki.wireshark.org/Development/LibpcapFileFormat
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+
+    private PacketCapture() {
+    }
+
+    static File getRingFile(Context context) {
+        return new File(context.getFilesDir(), RING_FILE);
+    }
+
+    // Writes the captured packets oldest first, false when there is no capture
+    public static boolean export(Context context, File target) {
+        File ring = getRingFile(context);
+        if (!ring.isFile()) {
+            return false;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(ring, "r");
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            map.order(ByteOrder.nativeOrder());
+
+            if (map.capacity() < RING_HEADER || map.getInt(0) != RING_MAGIC || map.getInt(4) != RING_VERSION) {
+                Log.w(LOG_TAG, "Capture unknown ring format");
+                return false;
+            }
+            int slotSize = map.getInt(8);
+            int slots = map.getInt(12);
+            int snaplen = map.getInt(16);
+            int linktype = map.getInt(20);
+            if (slotSize < SLOT_HEADER || (long) RING_HEADER + (long) slots * slotSize > map.capacity()) {
+                Log.w(LOG_TAG, "Capture ring truncated");
+                return false;
+            }
+
+            // Slots are filled round robin, order them by their sequence
+            List<long[]> order = new ArrayList<>();
+            for (int i = 0; i < slots; i++) {
+                long seq = map.getLong(RING_HEADER + i * slotSize);
+                if (seq != 0) {
+                    order.add(new long[]{seq, i});
+                }
+            }
+            Collections.sort(order, (s1, s2) -> Long.compare(s1[0], s2[0]));
+
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(PCAP_MAGIC);
+            header.putShort((short) 2);
+            header.putShort((short) 4);
+            header.putInt(0); // GMT
+            header.putInt(0); // accuracy
+            header.putInt(snaplen);
+            header.putInt(linktype);
+            out.write(header.array());
+
+            ByteBuffer record = ByteBuffer.allocate(16 + snaplen).order(ByteOrder.LITTLE_ENDIAN);
+            int exported = 0;
+            for (long[] entry : order) {
+                int offset = RING_HEADER + (int) entry[1] * slotSize;
+                record.clear();
+                record.putInt(map.getInt(offset + 8));
+                record.putInt(map.getInt(offset + 12));
+                int length = Math.min(map.getInt(offset + 16), snaplen);
+                record.putInt(length);
+                record.putInt(map.getInt(offset + 20));
+                for (int i = 0; i < length; i++) {
+                    record.put(map.get(offset + SLOT_HEADER + i));
+                }
+
+                // Overwritten meanwhile
+                if (map.getLong(offset) != entry[0]) {
+                    continue;
+                }
+
+                out.write(record.array(), 0, record.position());
+                exported++;
+            }
+
+            Log.i(LOG_TAG, "Capture exported " + exported + " packets to " + target);
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Capture export Exception " + e.getMessage());
+            return false;
+        }
+    }
+}
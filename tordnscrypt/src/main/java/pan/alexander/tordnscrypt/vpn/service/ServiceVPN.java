@@ -18,7 +18,6 @@ package pan.alexander.tordnscrypt.vpn.service;
     Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
 */
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -47,17 +46,21 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import java.io.File;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import pan.alexander.tordnscrypt.MainActivity;
 import pan.alexander.tordnscrypt.R;
@@ -67,13 +70,15 @@ import pan.alexander.tordnscrypt.settings.PathVars;
 import pan.alexander.tordnscrypt.utils.PrefManager;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.enums.VPNCommand;
+import pan.alexander.tordnscrypt.utils.enums.VPNReloadLevel;
 import pan.alexander.tordnscrypt.vpn.Allowed;
+import pan.alexander.tordnscrypt.vpn.AppIndex;
+import pan.alexander.tordnscrypt.vpn.Connection;
 import pan.alexander.tordnscrypt.vpn.Forward;
 import pan.alexander.tordnscrypt.vpn.IPUtil;
-import pan.alexander.tordnscrypt.vpn.Packet;
 import pan.alexander.tordnscrypt.vpn.ResourceRecord;
+import pan.alexander.tordnscrypt.vpn.ResourceRecordRing;
 import pan.alexander.tordnscrypt.vpn.Rule;
-import pan.alexander.tordnscrypt.vpn.Usage;
 import pan.alexander.tordnscrypt.vpn.Util;
 
 import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
@@ -93,12 +98,13 @@ public class ServiceVPN extends VpnService {
 
     static final String EXTRA_COMMAND = "Command";
     static final String EXTRA_REASON = "Reason";
+    static final String EXTRA_RELOAD_LEVEL = "Reload level";
 
     private static NotificationManager notificationManager;
     private static final Object jni_lock = new Object();
     private static long jni_context = 0;
 
-    boolean last_connected = false;
+    volatile boolean last_connected = false;
 
     ParcelFileDescriptor vpn = null;
 
@@ -110,12 +116,12 @@ public class ServiceVPN extends VpnService {
     private static int ownUID = Process.myUid();
 
     private Object networkCallback = null;
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
     private volatile Looper commandLooper;
     private volatile ServiceVPNHandler commandHandler;
 
     private Thread tunnelThread = null;
+    private String engineConfig = null;
 
     private ModulesStatus modulesStatus;
 
@@ -125,27 +131,65 @@ public class ServiceVPN extends VpnService {
     private boolean blockHttp = false;
     private boolean routeAllThroughInviZible = true;
 
-    @SuppressLint("UseSparseArrays")
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    @SuppressLint("UseSparseArrays")
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    @SuppressLint("UseSparseArrays")
-    private Map<Integer, Forward> mapForwardPort = new HashMap<>();
-    private Map<String, Forward> mapForwardAddress = new HashMap<>();
+    private volatile VPNRules rules = VPNRules.EMPTY;
+    private final UidCache uidCache = new UidCache();
+    private UsageStats usageStats;
 
     private VPNBinder binder = new VPNBinder();
-    private LinkedList<ResourceRecord> resourceRecords = new LinkedList<>();
+    private static final int DNS_RECORDS_CAPACITY = 256;
+    private static final int DNS_CACHE_TTL_MIN = 10; // seconds
+    private static final int DNS_CACHE_TTL_MAX = 3600; // seconds
+    private static final String DOMAINS_FILE = "domains.bin";
+    private static final long USAGE_INTERVAL = 30 * 1000L; // milliseconds
+    private static final int SNAPSHOT_RECORD = 48; // bytes, see jni_get_sessions
+    private static final int SNAPSHOT_SESSIONS = 1024; // initial buffer capacity
+    private static final long SNAPSHOT_TIMEOUT = 3000; // milliseconds
+    private long domainsStamp = 0; // used on the blocklist thread only
+    private final ExecutorService blocklistExecutor = Executors.newSingleThreadExecutor();
+    private String clearnetHosts = null;
+    private String captureConfig = null;
+    private ByteBuffer snapshotBuffer = null; // used on the command thread only
+    private volatile ResourceRecordRing resourceRecords = new ResourceRecordRing(DNS_RECORDS_CAPACITY);
+
+    // Layout of the buffer shared with native code, see SHARED_* in invizible.h
+    private static final int SHARED_SADDR = 0;
+    private static final int SHARED_DADDR = 16;
+    private static final int SHARED_NAMES = 32;
+
+    // Native callbacks pass addresses and names here instead of allocating objects,
+    // each tunnel engine thread attaches its own buffer
+    private final ThreadLocal<ByteBuffer> sharedBuffer = new ThreadLocal<>();
 
     private native long jni_init(int sdk);
 
     private native void jni_start(long context, int loglevel);
 
-    private native void jni_run(long context, int tun, boolean fwd53, int rcode);
+    private native void jni_run(long context, int tun, boolean fwd53, int rcode, int workers);
 
     private native void jni_stop(long context);
 
     private native void jni_clear(long context);
 
+    private native void jni_invalidate_verdicts(long context);
+
+    private native void jni_reload(long context, int loglevel);
+
+    private native long[] jni_get_worker_stats(long context);
+
+    private native void jni_dns_cache(long context, int ttlMin, int ttlMax);
+
+    private native long[] jni_get_dns_stats(long context);
+
+    private native long[] jni_get_usage(long context);
+
+    private native int jni_get_sessions(long context, ByteBuffer buffer);
+
+    private native int jni_domains(String path);
+
+    private native void jni_hosts(String[] names, String[] networks);
+
+    private native int jni_pcap(String path, int size, int snaplen, int[] uids);
+
     private native int jni_get_mtu();
 
     private native void jni_socks5(String addr, int port, String username, String password);
@@ -389,26 +433,16 @@ public class ServiceVPN extends VpnService {
     void startNative(final ParcelFileDescriptor vpn, List<Rule> listAllowed, List<Rule> listRule) {
         SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
 
-        // Prepare rules
-        prepareUidAllowed(listAllowed, listRule);
-        prepareForwarding();
+        rules = buildRules(listAllowed, listRule);
+        invalidateVerdicts();
 
         int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
         final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+        final int workers = getWorkers();
 
-        int torSOCKSPort = 9050;
-
-        try {
-            torSOCKSPort = Integer.parseInt(pathVars.getTorSOCKSPort());
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "VPN SOCKS Parse Exception " + e.getMessage() + " " + e.getCause());
-        }
-
-        boolean fixTTL = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
-                && !modulesStatus.isUseModulesWithRoot();
-
-        if (modulesStatus.getTorState() == RUNNING && !fixTTL) {
-            jni_socks5("127.0.0.1", torSOCKSPort, "", "");
+        int socks5Port = getSocks5Port(rules);
+        if (socks5Port > 0) {
+            jni_socks5("127.0.0.1", socks5Port, "", "");
         } else {
             jni_socks5("", 0, "", "");
         }
@@ -416,20 +450,101 @@ public class ServiceVPN extends VpnService {
         if (tunnelThread == null) {
             Log.i(LOG_TAG, "VPN Starting tunnel thread context=" + jni_context);
             jni_start(jni_context, prio);
+            setDNSCache();
+            setDomainBlocklist();
+            setClearnetHosts(rules);
+            setCapture();
+
+            final boolean fwd53 = rules.isPortForwarded(53);
+            engineConfig = getEngineConfig(socks5Port, fwd53, rcode, workers);
 
             tunnelThread = new Thread(() -> {
                 Log.i(LOG_TAG, "VPN Running tunnel context=" + jni_context);
-                jni_run(jni_context, vpn.getFd(), mapForwardPort.containsKey(53), rcode);
+                jni_run(jni_context, vpn.getFd(), fwd53, rcode, workers);
                 Log.i(LOG_TAG, "VPN Tunnel exited");
                 tunnelThread = null;
             });
 
             tunnelThread.start();
+            commandHandler.postDelayed(usageSnapshot, USAGE_INTERVAL);
 
             Log.i(LOG_TAG, "VPN Started tunnel thread");
         }
     }
 
+    // Swaps the rules of the running engine, false when the engine has to be restarted instead
+    boolean reloadNative(List<Rule> listAllowed, List<Rule> listRule) {
+        if (tunnelThread == null || engineConfig == null) {
+            return false;
+        }
+
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+
+        VPNRules rules = buildRules(listAllowed, listRule);
+
+        // Sessions through a changed SOCKS5 endpoint or DNS forwarding are not kept
+        int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+        String config = getEngineConfig(getSocks5Port(rules), rules.isPortForwarded(53),
+                rcode, getWorkers());
+        if (!config.equals(engineConfig)) {
+            Log.i(LOG_TAG, "VPN Engine config changed from " + engineConfig + " to " + config);
+            return false;
+        }
+
+        int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
+
+        setDomainBlocklist();
+        setClearnetHosts(rules);
+        setCapture();
+
+        // Published at once, the engine checks surviving sessions against the new snapshot
+        this.rules = rules;
+        synchronized (jni_lock) {
+            if (jni_context == 0) {
+                return false;
+            }
+            setDNSCache();
+            jni_reload(jni_context, prio);
+        }
+
+        Log.i(LOG_TAG, "VPN Reloaded rules context=" + jni_context);
+        return true;
+    }
+
+    private VPNRules buildRules(List<Rule> listAllowed, List<Rule> listRule) {
+        boolean fixTTL = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
+                && !modulesStatus.isUseModulesWithRoot();
+
+        VPNRules.Builder rulesBuilder = new VPNRules.Builder()
+                .setFlags(canFilter, filterUDP, blockHttp, routeAllThroughInviZible,
+                        modulesStatus.getTorState() == RUNNING, fixTTL);
+        prepareUidAllowed(rulesBuilder, listAllowed, listRule);
+        prepareForwarding(rulesBuilder);
+        return rulesBuilder.build();
+    }
+
+    // Tor SOCKS port when TCP goes through Tor, 0 otherwise
+    private int getSocks5Port(VPNRules rules) {
+        if (!rules.torIsRunning || rules.fixTTL) {
+            return 0;
+        }
+
+        int torSOCKSPort = 9050;
+
+        try {
+            torSOCKSPort = Integer.parseInt(pathVars.getTorSOCKSPort());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "VPN SOCKS Parse Exception " + e.getMessage() + " " + e.getCause());
+        }
+
+        return torSOCKSPort;
+    }
+
+    // Settings the engine reads only when the tunnel thread starts
+    private String getEngineConfig(int socks5Port, boolean fwd53, int rcode, int workers) {
+        return "socks5=" + socks5Port + " fwd53=" + fwd53 + " rcode=" + rcode + " workers=" + workers;
+    }
+
     void stopNative() {
         Log.i(LOG_TAG, "VPN Stop native");
 
@@ -449,6 +564,16 @@ public class ServiceVPN extends VpnService {
                 thread = tunnelThread;
             }
             tunnelThread = null;
+            engineConfig = null;
+
+            commandHandler.removeCallbacks(usageSnapshot);
+            takeUsage();
+            usageStats.save();
+
+            logWorkerStats();
+            logDNSStats();
+            Log.i(LOG_TAG, "VPN Uid cache " + uidCache.getStats());
+            uidCache.clear();
 
             jni_clear(jni_context);
 
@@ -456,34 +581,239 @@ public class ServiceVPN extends VpnService {
         }
     }
 
-    void unPrepare() {
-        lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapForwardPort.clear();
-        mapForwardAddress.clear();
-        lock.writeLock().unlock();
+    // More than one worker runs the sharded engine, packets are dispatched by flow
+    private int getWorkers() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+        int workers = 1;
+        try {
+            workers = Integer.parseInt(prefs.getString("workers", "1"));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "VPN Workers Parse Exception " + e.getMessage());
+        }
+        return Math.max(1, Math.min(workers, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private void logWorkerStats() {
+        long[] stats = jni_get_worker_stats(jni_context);
+        if (stats == null) {
+            return;
+        }
+        for (int i = 0; i + 2 < stats.length; i += 3) {
+            Log.i(LOG_TAG, "VPN Worker " + i / 3 + " packets=" + stats[i]
+                    + " dropped=" + stats[i + 1] + " sessions=" + stats[i + 2]);
+        }
+    }
+
+    // Usage is counted by the engine and taken at intervals while the tunnel runs
+    private final Runnable usageSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            if (tunnelThread != null) {
+                takeUsage();
+                commandHandler.postDelayed(this, USAGE_INTERVAL);
+            }
+        }
+    };
+
+    private void takeUsage() {
+        long[] usage;
+        synchronized (jni_lock) {
+            if (jni_context == 0) {
+                return;
+            }
+            usage = jni_get_usage(jni_context);
+        }
+        if (usage != null) {
+            usageStats.add(usage, System.currentTimeMillis());
+        }
+    }
+
+    // Answers of the in-tunnel DNS cache are kept between the floor and the ceiling TTL,
+    // a zero ceiling disables the cache
+    private void setDNSCache() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+        int ttlMin = DNS_CACHE_TTL_MIN;
+        int ttlMax = DNS_CACHE_TTL_MAX;
+        try {
+            ttlMin = Integer.parseInt(prefs.getString("dns_cache_ttl_min", String.valueOf(DNS_CACHE_TTL_MIN)));
+            ttlMax = Integer.parseInt(prefs.getString("dns_cache_ttl_max", String.valueOf(DNS_CACHE_TTL_MAX)));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "VPN DNS cache Parse Exception " + e.getMessage());
+        }
+        ttlMax = Math.max(0, ttlMax);
+        ttlMin = Math.max(0, Math.min(ttlMin, ttlMax));
+        jni_dns_cache(jni_context, ttlMin, ttlMax);
+    }
+
+    private void logDNSStats() {
+        long[] stats = jni_get_dns_stats(jni_context);
+        if (stats != null && stats.length == 4) {
+            Log.i(LOG_TAG, "VPN DNS cache hits=" + stats[0]
+                    + " misses=" + stats[1] + " coalesced=" + stats[2] + " blocked=" + stats[3]);
+        }
+    }
+
+    // Queries for names of the dnscrypt-proxy blacklist are answered in the tunnel with rcode,
+    // the lists are compiled again only when they change.
+    // Compiling a large list takes a while, so the tunnel starts without it and picks it up later.
+    private void setDomainBlocklist() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+
+        final boolean enabled = prefs.getBoolean("dns_blocklist", true)
+                && modulesStatus.getDnsCryptState() == RUNNING;
+        final DomainBlocklist blocklist = new DomainBlocklist(pathVars.getAppDataDir(),
+                new File(getFilesDir(), DOMAINS_FILE));
+
+        try {
+            blocklistExecutor.execute(() -> {
+                long stamp = enabled ? blocklist.prepare() : 0;
+
+                if (stamp == domainsStamp) {
+                    return;
+                }
+
+                int names = jni_domains(stamp == 0 ? null : blocklist.getOutput().getAbsolutePath());
+                domainsStamp = names < 0 ? 0 : stamp;
+
+                Log.i(LOG_TAG, "VPN Domain blocklist names=" + names);
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "VPN Domain blocklist " + e.getMessage());
+        }
+    }
+
+    // Connections to clearnet hosts bypass Tor when all apps are routed through it.
+    // Their addresses come from the DNS answers the engine sees, not from periodic lookups.
+    private void setClearnetHosts(VPNRules rules) {
+        List<String> names = new ArrayList<>();
+        List<String> networks = new ArrayList<>();
+
+        if (rules.routeAllThroughInviZible && getSocks5Port(rules) > 0) {
+            PrefManager prefManager = new PrefManager(this);
+            for (String host : prefManager.getSetStrPref("clearnetHosts")) {
+                String name = getHostName(host);
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            for (String ip : prefManager.getSetStrPref("clearnetIPs")) {
+                if (!ip.startsWith("#") && !ip.trim().isEmpty()) {
+                    networks.add(ip.trim());
+                }
+            }
+            Collections.sort(names);
+            Collections.sort(networks);
+        }
+
+        // Learned addresses are kept while the lists stay the same
+        String hosts = names + " " + networks;
+        if (hosts.equals(clearnetHosts)) {
+            return;
+        }
+        clearnetHosts = hosts;
+
+        jni_hosts(names.toArray(new String[0]), networks.toArray(new String[0]));
+        Log.i(LOG_TAG, "VPN Clearnet hosts=" + names.size() + " networks=" + networks.size());
+    }
+
+    // Packets of the tunnel are captured for debugging while the "pcap" setting is on,
+    // optionally only of the uids in "pcap_uids". The capture continues over engine restarts.
+    private void setCapture() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+
+        String config = null;
+        int size = 16;
+        int snaplen = 1500;
+        List<Integer> uids = new ArrayList<>();
+        if (prefs.getBoolean("pcap", false)) {
+            try {
+                size = Integer.parseInt(prefs.getString("pcap_size", "16"));
+                snaplen = Integer.parseInt(prefs.getString("pcap_snaplen", "1500"));
+                for (String uid : prefs.getString("pcap_uids", "").split(",")) {
+                    if (!uid.trim().isEmpty()) {
+                        uids.add(Integer.parseInt(uid.trim()));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                Log.e(LOG_TAG, "VPN Capture Parse Exception " + e.getMessage());
+            }
+            size = Math.max(1, Math.min(size, 256));
+            config = "size=" + size + " snaplen=" + snaplen + " uids=" + uids;
+        }
+
+        if (config == null ? captureConfig == null : config.equals(captureConfig)) {
+            return;
+        }
+        captureConfig = config;
+
+        if (config == null) {
+            jni_pcap(null, 0, 0, null);
+            Log.i(LOG_TAG, "VPN Capture stopped");
+            return;
+        }
+
+        int[] uidArray = new int[uids.size()];
+        for (int i = 0; i < uidArray.length; i++) {
+            uidArray[i] = uids.get(i);
+        }
+        if (jni_pcap(PacketCapture.getRingFile(this).getAbsolutePath(),
+                size * 1024 * 1024, snaplen, uidArray) != 0) {
+            captureConfig = null;
+        }
+        Log.i(LOG_TAG, "VPN Capture " + config);
     }
 
-    private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
-        lock.writeLock().lock();
+    // Host of the "https://example.com" entries, null for disabled ones
+    private static String getHostName(String host) {
+        if (host == null || host.startsWith("#")) {
+            return null;
+        }
+
+        String name = host.trim();
+        int scheme = name.indexOf("://");
+        if (scheme >= 0) {
+            name = name.substring(scheme + 3);
+        }
+        int end = name.indexOf('/');
+        if (end >= 0) {
+            name = name.substring(0, end);
+        }
+        end = name.indexOf(':');
+        if (end >= 0) {
+            name = name.substring(0, end);
+        }
 
-        mapUidAllowed.clear();
-        for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
+        name = name.toLowerCase(Locale.ROOT);
+        return name.isEmpty() ? null : name;
+    }
 
-        mapUidKnown.clear();
-        for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
+    void unPrepare() {
+        rules = VPNRules.EMPTY;
+        invalidateVerdicts();
+    }
 
-        lock.writeLock().unlock();
+    // Native code caches isAddressAllowed results until the rules are prepared again
+    private void invalidateVerdicts() {
+        synchronized (jni_lock) {
+            if (jni_context != 0) {
+                jni_invalidate_verdicts(jni_context);
+            }
+        }
     }
 
-    private void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForwardPort.clear();
-        mapForwardAddress.clear();
+    private void prepareUidAllowed(VPNRules.Builder rulesBuilder, List<Rule> listAllowed, List<Rule> listRule) {
+        int[] uidAllowed = new int[listAllowed.size()];
+        for (int i = 0; i < uidAllowed.length; i++)
+            uidAllowed[i] = listAllowed.get(i).uid;
+        rulesBuilder.setUidAllowed(uidAllowed);
 
+        int[] uidKnown = new int[listRule.size()];
+        for (int i = 0; i < uidKnown.length; i++)
+            uidKnown[i] = listRule.get(i).uid;
+        rulesBuilder.setUidKnown(uidKnown);
+    }
+
+    private void prepareForwarding(VPNRules.Builder rulesBuilder) {
         ModuleState dnsCryptState = modulesStatus.getDnsCryptState();
         ModuleState torState = modulesStatus.getTorState();
         ModuleState itpdState = modulesStatus.getItpdState();
@@ -500,40 +830,38 @@ public class ServiceVPN extends VpnService {
         }
 
         if (dnsCryptState == RUNNING) {
-            addForwardPortRule(17, 53, "127.0.0.1", dnsCryptPort, Process.myUid());
-            addForwardPortRule(6, 53, "127.0.0.1", dnsCryptPort, Process.myUid());
+            addForwardPortRule(rulesBuilder, 17, 53, "127.0.0.1", dnsCryptPort, Process.myUid());
+            addForwardPortRule(rulesBuilder, 6, 53, "127.0.0.1", dnsCryptPort, Process.myUid());
 
             if (itpdState == RUNNING) {
-                addForwardAddressRule(17, "10.191.0.1", "127.0.0.1", itpdHttpPort, Process.myUid());
-                addForwardAddressRule(6, "10.191.0.1", "127.0.0.1", itpdHttpPort, Process.myUid());
+                addForwardAddressRule(rulesBuilder, 17, "10.191.0.1", "127.0.0.1", itpdHttpPort, Process.myUid());
+                addForwardAddressRule(rulesBuilder, 6, "10.191.0.1", "127.0.0.1", itpdHttpPort, Process.myUid());
             }
         } else if (torState == RUNNING) {
-            addForwardPortRule(17, 53, "127.0.0.1", torDNSPort, Process.myUid());
-            addForwardPortRule(6, 53, "127.0.0.1", torDNSPort, Process.myUid());
+            addForwardPortRule(rulesBuilder, 17, 53, "127.0.0.1", torDNSPort, Process.myUid());
+            addForwardPortRule(rulesBuilder, 6, 53, "127.0.0.1", torDNSPort, Process.myUid());
         }
-
-        lock.writeLock().unlock();
     }
 
-    private void addForwardPortRule(int protocol, int dport, String raddr, int rport, int ruid) {
+    private void addForwardPortRule(VPNRules.Builder rulesBuilder, int protocol, int dport, String raddr, int rport, int ruid) {
         Forward fwd = new Forward();
         fwd.protocol = protocol;
         fwd.dport = dport;
         fwd.raddr = raddr;
         fwd.rport = rport;
         fwd.ruid = ruid;
-        mapForwardPort.put(fwd.dport, fwd);
+        rulesBuilder.addForwardPort(fwd);
         Log.i(LOG_TAG, "VPN Forward " + fwd);
     }
 
-    private void addForwardAddressRule(int protocol, String daddr, String raddr, int rport, int ruid) {
+    private void addForwardAddressRule(VPNRules.Builder rulesBuilder, int protocol, String daddr, String raddr, int rport, int ruid) {
         Forward fwd = new Forward();
         fwd.protocol = protocol;
         fwd.daddr = daddr;
         fwd.raddr = raddr;
         fwd.rport = rport;
         fwd.ruid = ruid;
-        mapForwardAddress.put(fwd.daddr, fwd);
+        rulesBuilder.addForwardAddress(fwd);
         Log.i(LOG_TAG, "VPN Forward " + fwd);
     }
 
@@ -551,35 +879,37 @@ public class ServiceVPN extends VpnService {
         Log.e(LOG_TAG, "VPN Native error " + error + ": " + message);
     }
 
-    // Called from native code
-    private void logPacket(Packet packet) {
-        //Log.i(LOG_TAG, "VPN Log packet " + packet.toString());
+    // Called from native code on each tunnel engine thread before any other callback
+    public void attachSharedBuffer(ByteBuffer buffer) {
+        sharedBuffer.set(buffer.order(ByteOrder.BIG_ENDIAN));
     }
 
-    // Called from native code
-    public void dnsResolved(ResourceRecord rr) {
-        if (!resourceRecords.isEmpty() && !rr.equals(resourceRecords.get(resourceRecords.size() - 1))) {
+    // Called from native code, data is at SHARED_NAMES
+    private void logPacket(int version, int protocol, int sport, int dport,
+                           int uid, boolean allowed, int dataLength) {
+        //Log.i(LOG_TAG, "VPN Log packet " + describePacket(version, protocol, dport, uid));
+    }
 
-            if (resourceRecords.size() > 200) {
-                resourceRecords.removeFirst();
-            }
+    // Called from native code, names are packed at SHARED_NAMES, resource address is at SHARED_SADDR
+    public void dnsResolved(long time, int rcode, int version,
+                            int qnameLength, int anameLength, int cnameLength, int hinfoLength) {
+        ByteBuffer shared = sharedBuffer.get();
 
-            resourceRecords.add(rr);
-        } else if (resourceRecords.isEmpty()) {
-            resourceRecords.add(rr);
+        ResourceRecord last = resourceRecords.getLast();
+        if (last != null && last.isSame(time, rcode, shared, SHARED_NAMES,
+                qnameLength, anameLength, cnameLength, hinfoLength)) {
+            return;
         }
-        //Log.i(LOG_TAG, "VPN DNS resolved " + rr.toString());
-    }
 
-    // Called from native code
-    public boolean isDomainBlocked(String name) {
-        //Log.i(LOG_TAG, " Ask domain is blocked " + name);
-        return false;
+        ResourceRecord rr = new ResourceRecord(time, rcode, getSharedAddress(SHARED_SADDR, version),
+                shared, SHARED_NAMES, qnameLength, anameLength, cnameLength, hinfoLength);
+        resourceRecords.add(rr);
+        //Log.i(LOG_TAG, "VPN DNS resolved " + rr.toString());
     }
 
-    // Called from native code
+    // Called from native code, addresses are at SHARED_SADDR and SHARED_DADDR
     @TargetApi(Build.VERSION_CODES.Q)
-    public int getUidQ(int version, int protocol, String saddr, int sport, String daddr, int dport) {
+    public int getUidQ(int version, int protocol, int sport, int dport) {
         if (protocol != 6 /* TCP */ && protocol != 17 /* UDP */)
             return Process.INVALID_UID;
 
@@ -587,12 +917,32 @@ public class ServiceVPN extends VpnService {
         if (cm == null)
             return Process.INVALID_UID;
 
-        InetSocketAddress local = new InetSocketAddress(saddr, sport);
-        InetSocketAddress remote = new InetSocketAddress(daddr, dport);
+        // Retransmitted SYNs and repeated flows are answered without a Binder call
+        UidCache.Key key = new UidCache.Key(protocol,
+                getSharedAddress(SHARED_SADDR, version), sport,
+                getSharedAddress(SHARED_DADDR, version), dport);
+        Integer cached = uidCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        InetSocketAddress local;
+        InetSocketAddress remote;
+        try {
+            local = new InetSocketAddress(InetAddress.getByAddress(key.getSourceAddress()), sport);
+            remote = new InetSocketAddress(InetAddress.getByAddress(key.getDestinationAddress()), dport);
+        } catch (UnknownHostException e) {
+            Log.e(LOG_TAG, "VPN Get uid " + e.getMessage());
+            return Process.INVALID_UID;
+        }
 
-        Log.i(LOG_TAG, "VPN Get uid local=" + local + " remote=" + remote);
         int uid = cm.getConnectionOwnerUid(protocol, local, remote);
-        Log.i(LOG_TAG, "VPN Get uid=" + uid);
+        //Log.i(LOG_TAG, "VPN Get uid local=" + local + " remote=" + remote + " uid=" + uid);
+
+        if (uid != Process.INVALID_UID) {
+            uidCache.put(key, uid);
+        }
+
         return uid;
     }
 
@@ -608,97 +958,97 @@ public class ServiceVPN extends VpnService {
                 protocol == 17 /* UDP */);
     }
 
-    // Called from native code
-    public Allowed isAddressAllowed(Packet packet) {
+    // Called from native code, addresses are at SHARED_SADDR and SHARED_DADDR
+    public Allowed isAddressAllowed(int version, int protocol, int sport, int dport, int uid) {
 
-        boolean torIsRunning = modulesStatus.getTorState() == RUNNING;
+        // Single volatile read, the snapshot is never modified after publishing
+        VPNRules rules = this.rules;
 
-        boolean fixTTL = modulesStatus.isFixTTL() && (modulesStatus.getMode() == ROOT_MODE)
-                && !modulesStatus.isUseModulesWithRoot() && packet.saddr.matches("^192\\.168\\.(42|43)\\.\\d+");
+        long saddr = getSharedIPv4(SHARED_SADDR, version);
+        long daddr = getSharedIPv4(SHARED_DADDR, version);
 
-        lock.readLock().lock();
+        boolean fixTTL = rules.fixTTL && VPNRules.isTethering(saddr);
 
-        packet.allowed = false;
+        boolean allowed = false;
         // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
-        if (!canFilter  || fixTTL) {
-            packet.allowed = true;
-        } else if (packet.uid == ownUID) {
+        if (!rules.canFilter  || fixTTL) {
+            allowed = true;
+        } else if (uid == ownUID) {
             // Allow self
-            packet.allowed = true;
-            Log.w(LOG_TAG, "Allowing self " + packet);
-        } else if (blockHttp && packet.dport == 80 && !packet.daddr.matches("^10\\..+")) {
-            Log.w(LOG_TAG, "Block http " + packet);
-        } else if (packet.protocol == 17 /* UDP */ && !filterUDP) {
+            allowed = true;
+            //Log.i(LOG_TAG, "Allowing self " + describePacket(version, protocol, dport, uid));
+        } else if (rules.blockHttp && dport == 80 && !VPNRules.isPrivate10(daddr)) {
+            Log.w(LOG_TAG, "Block http " + describePacket(version, protocol, dport, uid));
+        } else if (protocol == 17 /* UDP */ && !rules.filterUDP) {
             // Allow unfiltered UDP
-            packet.allowed = true;
-            //Log.i(LOG_TAG, "Allowing UDP " + packet);
-        } else if (packet.uid < 2000 &&
-                !last_connected && isSupported(packet.protocol)) {
+            allowed = true;
+            //Log.i(LOG_TAG, "Allowing UDP " + describePacket(version, protocol, dport, uid));
+        } else if (uid < 2000 &&
+                !last_connected && isSupported(protocol)) {
             // Allow system applications in disconnected state
-            packet.allowed = true;
-            Log.w(LOG_TAG, "Allowing disconnected system " + packet);
-        } else if (packet.uid <= 2000 &&
-                !routeAllThroughInviZible &&
-                !mapUidKnown.containsKey(packet.uid)
-                && isSupported(packet.protocol)) {
+            allowed = true;
+            Log.w(LOG_TAG, "Allowing disconnected system " + describePacket(version, protocol, dport, uid));
+        } else if (uid <= 2000 &&
+                !rules.routeAllThroughInviZible &&
+                !rules.isUidKnown(uid)
+                && isSupported(protocol)) {
             // Allow unknown system traffic
-            packet.allowed = true;
-            Log.w(LOG_TAG, "Allowing unknown system " + packet);
-        } else if (routeAllThroughInviZible && torIsRunning
-                && packet.protocol != 6 && packet.dport != 53) {
-            Log.w(LOG_TAG, "Disallowing non tcp traffic when Tor is running " + packet);
+            allowed = true;
+            Log.w(LOG_TAG, "Allowing unknown system " + describePacket(version, protocol, dport, uid));
+        } else if (rules.routeAllThroughInviZible && rules.torIsRunning
+                && protocol != 6 && dport != 53) {
+            //Log.i(LOG_TAG, "Disallowing non tcp traffic when Tor is running " + describePacket(version, protocol, dport, uid));
+        } else if (rules.isUidAllowed(uid)) {
+            allowed = true;
+            //Log.i(LOG_TAG, "Packet " + describePacket(version, protocol, dport, uid) + " is allowed");
         } else {
+            Log.w(LOG_TAG, "No rules for " + describePacket(version, protocol, dport, uid));
+        }
 
-            if (mapUidAllowed != null && mapUidAllowed.containsKey(packet.uid)) {
-                Boolean allow = mapUidAllowed.get(packet.uid);
-                if (allow != null) {
-                    packet.allowed = allow;
-                    //Log.i(LOG_TAG, "Packet " + packet.toString() + " is allowed " + allow);
-                }
-            } else {
-                Log.w(LOG_TAG, "No rules for " + packet);
-            }
+        if (!allowed) {
+            return null;
         }
 
-        Allowed allowed = null;
-        if (packet.allowed) {
-            if (packet.daddr.equals("127.0.0.1") || packet.uid == ownUID) {
-                allowed = new Allowed();
-            } else if (mapForwardPort.containsKey(packet.dport)) {
-                Forward fwd = mapForwardPort.get(packet.dport);
-                if (fwd != null) {
-                    if (fwd.ruid == packet.uid) {
-                        allowed = new Allowed();
-                    } else {
-                        allowed = new Allowed(fwd.raddr, fwd.rport);
-                        packet.data = "> " + fwd.raddr + "/" + fwd.rport;
-                    }
-                }
-            } else if (mapForwardAddress.containsKey(packet.daddr)) {
-                Forward fwd = mapForwardAddress.get(packet.daddr);
-                if (fwd != null) {
-                    if (fwd.ruid == packet.uid) {
-                        allowed = new Allowed();
-                    } else {
-                        allowed = new Allowed(fwd.raddr, fwd.rport);
-                        packet.data = "> " + fwd.raddr + "/" + fwd.rport;
-                    }
-                }
-            } else {
-                allowed = new Allowed();
-            }
+        if (VPNRules.isLocalhost(daddr) || uid == ownUID) {
+            return VPNRules.ALLOWED;
+        }
+
+        VPNRules.Redirect redirect = rules.getForwardPort(dport);
+        if (redirect == null) {
+            redirect = rules.getForwardAddress(daddr);
         }
 
-        lock.readLock().unlock();
+        if (redirect == null || redirect.ruid == uid) {
+            return VPNRules.ALLOWED;
+        }
 
-        return allowed;
+        return redirect.allowed;
     }
 
-    // Called from native code
-    public void accountUsage(Usage usage) {
-        //Log.i(LOG_TAG, usage.toString());
+    // Returns the IPv4 address as unsigned value, -1 for IPv6
+    private long getSharedIPv4(int offset, int version) {
+        if (version != 4) {
+            return -1;
+        }
+        return sharedBuffer.get().getInt(offset) & 0xFFFFFFFFL;
     }
 
+    private byte[] getSharedAddress(int offset, int version) {
+        ByteBuffer shared = sharedBuffer.get();
+        byte[] addr = new byte[version == 4 ? 4 : version == 6 ? 16 : 0];
+        for (int i = 0; i < addr.length; i++) {
+            addr[i] = shared.get(offset + i);
+        }
+        return addr;
+    }
+
+    // Decodes the destination only when something is going to be logged
+    private String describePacket(int version, int protocol, int dport, int uid) {
+        return "uid=" + uid + " v" + version + " p" + protocol + " "
+                + IPUtil.getHostAddress(getSharedAddress(SHARED_DADDR, version)) + "/" + dport;
+    }
+
+
     private BroadcastReceiver idleStateReceiver = new BroadcastReceiver() {
         @Override
         @TargetApi(Build.VERSION_CODES.M)
@@ -712,7 +1062,7 @@ public class ServiceVPN extends VpnService {
 
             // Reload rules when coming from idle mode
             if (pm != null && !pm.isDeviceIdleMode())
-                reload("VPN idle state changed", ServiceVPN.this);
+                reload("VPN idle state changed", VPNReloadLevel.RULES, ServiceVPN.this);
         }
     };
 
@@ -736,9 +1086,17 @@ public class ServiceVPN extends VpnService {
             Log.i(LOG_TAG, "VPN Received " + intent);
 
             try {
+                String packageName = intent.getData() == null ? null : intent.getData().getSchemeSpecificPart();
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+
                 if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
+                    AppIndex.getInstance().packageAdded(packageName, uid);
                     reload("Package added", context);
                 } else if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+                    // Updates are followed by ACTION_PACKAGE_ADDED
+                    if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                        AppIndex.getInstance().packageRemoved(packageName);
+                    }
                     reload("Package deleted", context);
                 }
             } catch (Throwable ex) {
@@ -755,6 +1113,9 @@ public class ServiceVPN extends VpnService {
 
         canFilter = Util.canFilter(this);
 
+        resourceRecords = new ResourceRecordRing(getDNSRecordsCapacity());
+        usageStats = UsageStats.getInstance(this);
+
         if (jni_context != 0) {
             Log.w(LOG_TAG, "Create with context=" + jni_context);
             jni_stop(jni_context);
@@ -948,6 +1309,7 @@ public class ServiceVPN extends VpnService {
 
             Log.i(LOG_TAG, "VPN Destroy");
             commandLooper.quit();
+            blocklistExecutor.shutdownNow();
 
             for (VPNCommand command : VPNCommand.values())
                 commandHandler.removeMessages(command.ordinal());
@@ -960,6 +1322,7 @@ public class ServiceVPN extends VpnService {
             if (registeredPackageChanged) {
                 unregisterReceiver(packageChangedReceiver);
                 registeredPackageChanged = false;
+                AppIndex.getInstance().invalidate();
             }
 
             if (networkCallback != null) {
@@ -1010,15 +1373,96 @@ public class ServiceVPN extends VpnService {
         public ServiceVPN getService() {
             return ServiceVPN.this;
         }
+
+        // Blocks up to SNAPSHOT_TIMEOUT, not to be called on the main thread
+        public List<Connection> getConnections() {
+            return ServiceVPN.this.getConnections();
+        }
+    }
+
+    // Sessions are taken on the command thread, so the engine cannot be stopped meanwhile
+    List<Connection> getConnections() {
+        FutureTask<List<Connection>> task = new FutureTask<>(this::takeConnections);
+        if (!commandHandler.post(task)) {
+            return Collections.emptyList();
+        }
+        try {
+            return task.get(SNAPSHOT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "VPN Get connections " + e.getMessage());
+            task.cancel(false);
+            return Collections.emptyList();
+        }
+    }
+
+    private List<Connection> takeConnections() {
+        List<Connection> connections = new ArrayList<>();
+        if (tunnelThread == null || jni_context == 0) {
+            return connections;
+        }
+
+        if (snapshotBuffer == null) {
+            snapshotBuffer = ByteBuffer.allocateDirect(SNAPSHOT_SESSIONS * SNAPSHOT_RECORD)
+                    .order(ByteOrder.nativeOrder());
+        }
+
+        int total = jni_get_sessions(jni_context, snapshotBuffer);
+        int count = Math.min(total, snapshotBuffer.capacity() / SNAPSHOT_RECORD);
+        for (int i = 0; i < count; i++) {
+            int offset = i * SNAPSHOT_RECORD;
+            Connection connection = new Connection();
+            connection.Protocol = snapshotBuffer.get(offset) & 0xFF;
+            connection.Version = snapshotBuffer.get(offset + 1) & 0xFF;
+            connection.State = snapshotBuffer.get(offset + 2) & 0xFF;
+            connection.Upstream = snapshotBuffer.get(offset + 3) & 0xFF;
+            connection.Uid = snapshotBuffer.getInt(offset + 4);
+            connection.SPort = snapshotBuffer.getShort(offset + 8) & 0xFFFF;
+            connection.DPort = snapshotBuffer.getShort(offset + 10) & 0xFFFF;
+            connection.Idle = snapshotBuffer.getInt(offset + 12);
+            byte[] daddr = new byte[connection.Version == 4 ? 4 : 16];
+            for (int b = 0; b < daddr.length; b++) {
+                daddr[b] = snapshotBuffer.get(offset + 16 + b);
+            }
+            try {
+                connection.DAddr = InetAddress.getByAddress(daddr).getHostAddress();
+            } catch (UnknownHostException e) {
+                connection.DAddr = "";
+            }
+            connection.Sent = snapshotBuffer.getLong(offset + 32);
+            connection.Received = snapshotBuffer.getLong(offset + 40);
+            connections.add(connection);
+        }
+
+        // Fit all sessions next time
+        if (total > count) {
+            snapshotBuffer = ByteBuffer.allocateDirect(Integer.highestOneBit(total) * 2 * SNAPSHOT_RECORD)
+                    .order(ByteOrder.nativeOrder());
+        }
+
+        return connections;
     }
 
-    public LinkedList<ResourceRecord> getResourceRecords() {
-        return resourceRecords;
+    // Adds records resolved since the sequence to the list, returns the sequence to pass next time
+    public long getResourceRecords(long since, List<ResourceRecord> records) {
+        return resourceRecords.getSince(since, records);
+    }
+
+    public int getResourceRecordsCapacity() {
+        return resourceRecords.getCapacity();
     }
 
     public void clearResourceRecords() {
-        if (resourceRecords != null && !resourceRecords.isEmpty()) {
-            resourceRecords.clear();
+        resourceRecords.clear();
+    }
+
+    private int getDNSRecordsCapacity() {
+        SharedPreferences prefs = androidx.preference.PreferenceManager.getDefaultSharedPreferences(this);
+        int capacity = DNS_RECORDS_CAPACITY;
+        try {
+            capacity = Integer.parseInt(prefs.getString("dns_records", String.valueOf(DNS_RECORDS_CAPACITY)));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "VPN DNS records Parse Exception " + e.getMessage());
         }
+        return Math.max(16, Math.min(capacity, 16384));
     }
 }
@@ -29,6 +29,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -44,6 +45,7 @@ import pan.alexander.tordnscrypt.modules.ModulesAux;
 import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.enums.VPNCommand;
+import pan.alexander.tordnscrypt.utils.enums.VPNReloadLevel;
 import pan.alexander.tordnscrypt.vpn.Rule;
 import pan.alexander.tordnscrypt.vpn.Util;
 
@@ -52,13 +54,23 @@ import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.STOPPED;
 import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_COMMAND;
 import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_REASON;
+import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_RELOAD_LEVEL;
 
 
 class ServiceVPNHandler extends Handler {
+    // Reload requests arriving within the delay are merged into one reload
+    private static final long RELOAD_DELAY = 500; // milliseconds
+    private static final long RELOAD_MIN_INTERVAL = 2000; // milliseconds
+
     private static ServiceVPNHandler serviceVPNHandler;
     private final ServiceVPN serviceVPN;
     private ServiceVPN.Builder last_builder = null;
+    private List<Rule> last_rules = null;
 
+    private VPNReloadLevel pendingReload = null;
+    private long lastReloadTime = 0;
+    private long reloadsRequested = 0;
+    private long reloadsExecuted = 0;
 
 
     private ServiceVPNHandler(Looper looper, ServiceVPN serviceVPN) {
@@ -72,6 +84,14 @@ class ServiceVPNHandler extends Handler {
 
     void queue(Intent intent) {
         VPNCommand cmd = (VPNCommand) intent.getSerializableExtra(EXTRA_COMMAND);
+
+        if (cmd == VPNCommand.RELOAD) {
+            queueReload(intent);
+            return;
+        } else if (cmd == VPNCommand.STOP) {
+            cancelReload();
+        }
+
         Message msg = serviceVPNHandler.obtainMessage();
         msg.obj = intent;
         if (cmd != null) {
@@ -80,6 +100,55 @@ class ServiceVPNHandler extends Handler {
         }
     }
 
+    // Only one reload is pending at a time, it keeps the strongest level requested meanwhile
+    private synchronized void queueReload(Intent intent) {
+        VPNReloadLevel level = (VPNReloadLevel) intent.getSerializableExtra(EXTRA_RELOAD_LEVEL);
+        if (level == null) {
+            level = VPNReloadLevel.ROUTES;
+        }
+
+        reloadsRequested++;
+
+        if (pendingReload != null) {
+            // Different changes are checked as a full reload
+            if (level != pendingReload) {
+                pendingReload = VPNReloadLevel.ROUTES;
+            }
+            Log.i(LOG_TAG, "VPN Handler Reload merged reason=" + intent.getStringExtra(EXTRA_REASON)
+                    + " level=" + pendingReload);
+            return;
+        }
+
+        pendingReload = level;
+
+        long delay = Math.max(RELOAD_DELAY,
+                lastReloadTime + RELOAD_MIN_INTERVAL - SystemClock.elapsedRealtime());
+
+        Message msg = serviceVPNHandler.obtainMessage();
+        msg.obj = intent;
+        msg.what = VPNCommand.RELOAD.ordinal();
+        serviceVPNHandler.sendMessageDelayed(msg, delay);
+    }
+
+    private synchronized void cancelReload() {
+        if (pendingReload != null) {
+            serviceVPNHandler.removeMessages(VPNCommand.RELOAD.ordinal());
+            pendingReload = null;
+        }
+    }
+
+    private synchronized VPNReloadLevel takeReload() {
+        VPNReloadLevel level = (pendingReload == null ? VPNReloadLevel.ROUTES : pendingReload);
+        pendingReload = null;
+        lastReloadTime = SystemClock.elapsedRealtime();
+        reloadsExecuted++;
+
+        Log.i(LOG_TAG, "VPN Handler Reload level=" + level
+                + " requested=" + reloadsRequested + " executed=" + reloadsExecuted);
+
+        return level;
+    }
+
     @Override
     public void handleMessage(@NonNull Message msg) {
         try {
@@ -107,7 +176,7 @@ class ServiceVPNHandler extends Handler {
                         break;
 
                     case RELOAD:
-                        reload();
+                        reload(takeReload());
                         break;
 
                     case STOP:
@@ -153,6 +222,7 @@ class ServiceVPNHandler extends Handler {
         if (serviceVPN.vpn == null) {
 
             List<Rule> listRule = Rule.getRules(serviceVPN);
+            last_rules = listRule;
             List<Rule> listAllowed = getAllowedRules(listRule);
 
             last_builder = serviceVPN.getBuilder(listAllowed, listRule);
@@ -166,10 +236,21 @@ class ServiceVPNHandler extends Handler {
         }
     }
 
-    private void reload() {
-        List<Rule> listRule = Rule.getRules(serviceVPN);
+    private void reload(VPNReloadLevel level) {
+        // Forwards follow the modules states, the rules of the apps are not read again
+        List<Rule> listRule = (level == VPNReloadLevel.FORWARDS && last_rules != null)
+                ? last_rules : Rule.getRules(serviceVPN);
+        last_rules = listRule;
         List<Rule> listAllowed = getAllowedRules(listRule);
 
+        // Routes are not affected, skip comparing the builder
+        if (level == VPNReloadLevel.RULES && serviceVPN.vpn != null && last_builder != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1
+                && serviceVPN.reloadNative(listAllowed, listRule)) {
+            Log.i(LOG_TAG, "VPN Handler Hot reload level=" + level);
+            return;
+        }
+
         ServiceVPN.Builder builder = serviceVPN.getBuilder(listAllowed, listRule);
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
@@ -189,6 +270,12 @@ class ServiceVPNHandler extends Handler {
 
         } else {
             if (serviceVPN.vpn != null && builder.equals(last_builder)) {
+                // Same tun and routes, swap the rules of the running engine if possible
+                if (serviceVPN.reloadNative(listAllowed, listRule)) {
+                    Log.i(LOG_TAG, "VPN Handler Hot reload");
+                    return;
+                }
+
                 Log.i(LOG_TAG, "VPN Handler Native restart");
                 serviceVPN.stopNative();
 
@@ -32,12 +32,14 @@ import pan.alexander.tordnscrypt.modules.ModulesStatus;
 import pan.alexander.tordnscrypt.utils.enums.ModuleState;
 import pan.alexander.tordnscrypt.utils.enums.OperationMode;
 import pan.alexander.tordnscrypt.utils.enums.VPNCommand;
+import pan.alexander.tordnscrypt.utils.enums.VPNReloadLevel;
 
 import static pan.alexander.tordnscrypt.utils.enums.ModuleState.RUNNING;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.ROOT_MODE;
 import static pan.alexander.tordnscrypt.utils.enums.OperationMode.VPN_MODE;
 import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_COMMAND;
 import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_REASON;
+import static pan.alexander.tordnscrypt.vpn.service.ServiceVPN.EXTRA_RELOAD_LEVEL;
 
 public class ServiceVPNHelper {
 
@@ -51,6 +53,10 @@ public class ServiceVPNHelper {
     }
 
     public static void reload(String reason, Context context) {
+        reload(reason, VPNReloadLevel.ROUTES, context);
+    }
+
+    public static void reload(String reason, VPNReloadLevel level, Context context) {
         ModulesStatus modulesStatus = ModulesStatus.getInstance();
         OperationMode operationMode = modulesStatus.getMode();
         ModuleState dnsCryptState = modulesStatus.getDnsCryptState();
@@ -67,6 +73,7 @@ public class ServiceVPNHelper {
             Intent intent = new Intent(context, ServiceVPN.class);
             intent.putExtra(EXTRA_COMMAND, VPNCommand.RELOAD);
             intent.putExtra(EXTRA_REASON, reason);
+            intent.putExtra(EXTRA_RELOAD_LEVEL, level);
             sendIntent(context, intent);
         }
     }
@@ -0,0 +1,136 @@
+package pan.alexander.tordnscrypt.vpn.service;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Least recently used connection owners found by getConnectionOwnerUid, entries expire like the native uid cache
+final class UidCache {
+
+    private static final int MAX_ENTRIES = 512;
+    private static final long MAX_AGE = 30000; // milliseconds, UID_MAX_AGE in invizible.h
+
+    private final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<Key, Entry>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long hits = 0;
+    private long misses = 0;
+
+    static final class Key {
+        private final int protocol;
+        private final int sport;
+        private final int dport;
+        private final byte[] saddr;
+        private final byte[] daddr;
+        private final int hash;
+
+        Key(int protocol, byte[] saddr, int sport, byte[] daddr, int dport) {
+            this.protocol = protocol;
+            this.saddr = saddr;
+            this.sport = sport;
+            this.daddr = daddr;
+            this.dport = dport;
+
+            int h = protocol;
+            h = 31 * h + sport;
+            h = 31 * h + dport;
+            h = 31 * h + Arrays.hashCode(saddr);
+            h = 31 * h + Arrays.hashCode(daddr);
+            this.hash = h;
+        }
+
+        byte[] getSourceAddress() {
+            return saddr;
+        }
+
+        byte[] getDestinationAddress() {
+            return daddr;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return protocol == key.protocol
+                    && sport == key.sport
+                    && dport == key.dport
+                    && Arrays.equals(saddr, key.saddr)
+                    && Arrays.equals(daddr, key.daddr);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final int uid;
+        final long time;
+
+        Entry(int uid, long time) {
+            this.uid = uid;
+            this.time = time;
+        }
+    }
+
+    // Returns null when the connection is not cached or the entry is too old
+    synchronized Integer get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (SystemClock.elapsedRealtime() - entry.time > MAX_AGE) {
+            entries.remove(key);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.uid;
+    }
+
+    synchronized void put(Key key, int uid) {
+        entries.put(key, new Entry(uid, SystemClock.elapsedRealtime()));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized String getStats() {
+        return "size=" + entries.size() + " hits=" + hits + " misses=" + misses;
+    }
+}
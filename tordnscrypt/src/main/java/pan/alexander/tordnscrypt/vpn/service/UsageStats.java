@@ -0,0 +1,348 @@
+package pan.alexander.tordnscrypt.vpn.service;
+
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import pan.alexander.tordnscrypt.vpn.Usage;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+// Traffic per app and destination, taken from the tunnel engine at intervals by ServiceVPN.
+// Totals and rates are kept since the app start, hourly buckets for HISTORY_HOURS in USAGE_FILE.
+public final class UsageStats {
+    private static final String USAGE_FILE = "usage.bin";
+    private static final int FILE_MAGIC = 0x495A5553; // IZUS
+    private static final int FILE_VERSION = 1;
+    private static final int HISTORY_HOURS = 7 * 24;
+    private static final long HOUR = 3600 * 1000L; // milliseconds
+    private static final long SAVE_INTERVAL = 10 * 60 * 1000L; // milliseconds
+    private static final int DESTINATIONS_MAX = 512;
+
+    // See jni_get_usage in invizible.c
+    private static final int USAGE_LONGS = 7;
+
+    // Bucket values
+    public static final int SENT = 0;
+    public static final int RECEIVED = 1;
+    public static final int TOR_SENT = 2;
+    public static final int TOR_RECEIVED = 3;
+    private static final int BUCKET_LONGS = 4;
+
+    public static class App {
+        public int Uid;
+        public long Sent;
+        public long Received;
+        public long TorSent;
+        public long TorReceived;
+        public long Sessions;
+        public long SentRate; // bytes per second during the last interval
+        public long ReceivedRate;
+
+        private long lastTime;
+        private long lastSent;
+        private long lastReceived;
+
+        @Override
+        public String toString() {
+            return "uid " + Uid + " out " + Sent + " in " + Received +
+                    " tor out " + TorSent + " tor in " + TorReceived +
+                    " sessions " + Sessions + " rate out " + SentRate + " in " + ReceivedRate;
+        }
+    }
+
+    private static volatile UsageStats usageStats;
+
+    private final File file;
+    private final Map<Integer, App> apps = new LinkedHashMap<>();
+    private final Map<String, Usage> destinations =
+            new LinkedHashMap<String, Usage>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Usage> eldest) {
+                    return size() > DESTINATIONS_MAX;
+                }
+            };
+    // Hour since the epoch in the high, uid in the low half
+    private final TreeMap<Long, long[]> buckets = new TreeMap<>();
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private long saved = 0;
+
+    private UsageStats(Context context) {
+        file = new File(context.getApplicationContext().getFilesDir(), USAGE_FILE);
+    }
+
+    public static UsageStats getInstance(Context context) {
+        if (usageStats == null) {
+            synchronized (UsageStats.class) {
+                if (usageStats == null) {
+                    usageStats = new UsageStats(context);
+                }
+            }
+        }
+        return usageStats;
+    }
+
+    // Adds the usage returned by jni_get_usage
+    synchronized void add(long[] usage, long time) {
+        if (!loaded) {
+            load();
+        }
+
+        long hour = time / HOUR;
+        for (int i = 0; i + USAGE_LONGS <= usage.length; i += USAGE_LONGS) {
+            int uid = (int) usage[i];
+            long meta = usage[i + 1];
+            int version = (int) (meta & 0xFF);
+            int protocol = (int) ((meta >> 8) & 0xFF);
+            boolean proxied = ((meta >> 16) & 0xFF) != 0;
+            int dport = (int) ((meta >> 32) & 0xFFFF);
+            long sent = usage[i + 4];
+            long received = usage[i + 5];
+            long sessions = usage[i + 6];
+
+            App app = apps.get(uid);
+            if (app == null) {
+                app = new App();
+                app.Uid = uid;
+                app.lastTime = time;
+                apps.put(uid, app);
+            }
+            app.Sent += sent;
+            app.Received += received;
+            app.Sessions += sessions;
+            if (proxied) {
+                app.TorSent += sent;
+                app.TorReceived += received;
+            }
+
+            long[] bucket = buckets.get((hour << 32) | (uid & 0xFFFFFFFFL));
+            if (bucket == null) {
+                bucket = new long[BUCKET_LONGS];
+                buckets.put((hour << 32) | (uid & 0xFFFFFFFFL), bucket);
+            }
+            bucket[SENT] += sent;
+            bucket[RECEIVED] += received;
+            if (proxied) {
+                bucket[TOR_SENT] += sent;
+                bucket[TOR_RECEIVED] += received;
+            }
+
+            // Version 0 is usage of destinations not fitting the native table
+            if (version != 0) {
+                String daddr = getAddress(version, usage[i + 2], usage[i + 3]);
+                String key = uid + "/" + version + "/" + protocol + "/" + daddr + "/" + dport + "/" + proxied;
+                Usage destination = destinations.get(key);
+                if (destination == null) {
+                    destination = new Usage();
+                    destination.Uid = uid;
+                    destination.Version = version;
+                    destination.Protocol = protocol;
+                    destination.DAddr = daddr;
+                    destination.DPort = dport;
+                    destination.Proxied = proxied;
+                    destinations.put(key, destination);
+                }
+                destination.Time = time;
+                destination.Sent += sent;
+                destination.Received += received;
+                destination.Sessions += sessions;
+            }
+        }
+
+        for (App app : apps.values()) {
+            long elapsed = time - app.lastTime;
+            if (elapsed > 0) {
+                app.SentRate = (app.Sent - app.lastSent) * 1000 / elapsed;
+                app.ReceivedRate = (app.Received - app.lastReceived) * 1000 / elapsed;
+            }
+            app.lastTime = time;
+            app.lastSent = app.Sent;
+            app.lastReceived = app.Received;
+        }
+
+        buckets.headMap((hour - HISTORY_HOURS) << 32).clear();
+
+        if (usage.length > 0) {
+            dirty = true;
+        }
+        if (dirty && time - saved > SAVE_INTERVAL) {
+            save(time);
+        }
+    }
+
+    // Apps by traffic, most first
+    public synchronized List<App> getApps() {
+        List<App> result = new ArrayList<>();
+        for (App app : apps.values()) {
+            App copy = new App();
+            copy.Uid = app.Uid;
+            copy.Sent = app.Sent;
+            copy.Received = app.Received;
+            copy.TorSent = app.TorSent;
+            copy.TorReceived = app.TorReceived;
+            copy.Sessions = app.Sessions;
+            copy.SentRate = app.SentRate;
+            copy.ReceivedRate = app.ReceivedRate;
+            result.add(copy);
+        }
+        Collections.sort(result, (a1, a2) -> Long.compare(a2.Sent + a2.Received, a1.Sent + a1.Received));
+        return result;
+    }
+
+    // Recent destinations of the app by traffic, most first
+    public synchronized List<Usage> getDestinations(int uid) {
+        List<Usage> result = new ArrayList<>();
+        for (Usage destination : destinations.values()) {
+            if (destination.Uid == uid) {
+                Usage copy = new Usage();
+                copy.Time = destination.Time;
+                copy.Version = destination.Version;
+                copy.Protocol = destination.Protocol;
+                copy.DAddr = destination.DAddr;
+                copy.DPort = destination.DPort;
+                copy.Uid = destination.Uid;
+                copy.Sent = destination.Sent;
+                copy.Received = destination.Received;
+                copy.Sessions = destination.Sessions;
+                copy.Proxied = destination.Proxied;
+                result.add(copy);
+            }
+        }
+        Collections.sort(result, (u1, u2) -> Long.compare(u2.Sent + u2.Received, u1.Sent + u1.Received));
+        return result;
+    }
+
+    // Hourly SENT, RECEIVED, TOR_SENT and TOR_RECEIVED of the app, or of all apps for uid -1,
+    // the last element is the current hour
+    public synchronized long[][] getHistory(int uid, int hours) {
+        if (!loaded) {
+            load();
+        }
+
+        hours = Math.max(1, Math.min(hours, HISTORY_HOURS));
+        long[][] result = new long[hours][BUCKET_LONGS];
+        long last = System.currentTimeMillis() / HOUR;
+        long first = last - hours + 1;
+        for (Map.Entry<Long, long[]> entry : buckets.tailMap(first << 32).entrySet()) {
+            long hour = entry.getKey() >>> 32;
+            int bucketUid = (int) (entry.getKey() & 0xFFFFFFFFL);
+            if (hour > last || (uid != -1 && bucketUid != uid)) {
+                continue;
+            }
+            long[] bucket = entry.getValue();
+            for (int i = 0; i < BUCKET_LONGS; i++) {
+                result[(int) (hour - first)][i] += bucket[i];
+            }
+        }
+        return result;
+    }
+
+    synchronized void save() {
+        if (dirty) {
+            save(System.currentTimeMillis());
+        }
+    }
+
+    private void save(long time) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(buckets.size());
+            for (Map.Entry<Long, long[]> entry : buckets.entrySet()) {
+                out.writeLong(entry.getKey());
+                for (long value : entry.getValue()) {
+                    out.writeLong(value);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Usage save Exception " + e.getMessage());
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            Log.e(LOG_TAG, "Usage save failed to rename " + tmp);
+            return;
+        }
+
+        dirty = false;
+        saved = time;
+    }
+
+    private void load() {
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(LOG_TAG, "Usage unknown file format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long[] bucket = new long[BUCKET_LONGS];
+                for (int b = 0; b < BUCKET_LONGS; b++) {
+                    bucket[b] = in.readLong();
+                }
+                buckets.put(key, bucket);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Usage load Exception " + e.getMessage());
+            buckets.clear();
+        }
+    }
+
+    private static String getAddress(int version, long high, long low) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(high).putLong(low);
+        byte[] addr = new byte[version == 4 ? 4 : 16];
+        System.arraycopy(buffer.array(), 0, addr, 0, addr.length);
+        try {
+            return InetAddress.getByAddress(addr).getHostAddress();
+        } catch (UnknownHostException e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package pan.alexander.tordnscrypt.vpn.service;
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+import pan.alexander.tordnscrypt.vpn.Allowed;
+import pan.alexander.tordnscrypt.vpn.Forward;
+import pan.alexander.tordnscrypt.vpn.IPUtil;
+
+import static pan.alexander.tordnscrypt.utils.RootExecService.LOG_TAG;
+
+//Immutable rules compiled by prepareUidAllowed/prepareForwarding and read by native callbacks without locking
+final class VPNRules {
+
+    static final VPNRules EMPTY = new Builder().build();
+
+    // Shared verdict for allowed packets that are not redirected
+    static final Allowed ALLOWED = new Allowed();
+
+    private static final long LOCALHOST = IPUtil.parseIPv4("127.0.0.1");
+
+    // USB tethering 192.168.42.x, Wi-Fi tethering 192.168.43.x
+    private static final long TETHERING_NETWORK = IPUtil.parseIPv4("192.168.42.0");
+    private static final long TETHERING_MASK = IPUtil.prefix2mask(23);
+
+    private static final long PRIVATE_10_NETWORK = IPUtil.parseIPv4("10.0.0.0");
+    private static final long PRIVATE_10_MASK = IPUtil.prefix2mask(8);
+
+    final boolean canFilter;
+    final boolean filterUDP;
+    final boolean blockHttp;
+    final boolean routeAllThroughInviZible;
+    final boolean torIsRunning;
+    final boolean fixTTL;
+
+    private final int[] uidAllowed;
+    private final int[] uidKnown;
+    private final SparseArray<Redirect> forwardPort;
+    private final SparseArray<Redirect> forwardAddress;
+
+    private VPNRules(Builder builder) {
+        canFilter = builder.canFilter;
+        filterUDP = builder.filterUDP;
+        blockHttp = builder.blockHttp;
+        routeAllThroughInviZible = builder.routeAllThroughInviZible;
+        torIsRunning = builder.torIsRunning;
+        fixTTL = builder.fixTTL;
+        uidAllowed = builder.uidAllowed;
+        uidKnown = builder.uidKnown;
+        forwardPort = builder.forwardPort;
+        forwardAddress = builder.forwardAddress;
+    }
+
+    boolean isUidAllowed(int uid) {
+        return Arrays.binarySearch(uidAllowed, uid) >= 0;
+    }
+
+    boolean isUidKnown(int uid) {
+        return Arrays.binarySearch(uidKnown, uid) >= 0;
+    }
+
+    boolean isPortForwarded(int dport) {
+        return forwardPort.get(dport) != null;
+    }
+
+    Redirect getForwardPort(int dport) {
+        return forwardPort.get(dport);
+    }
+
+    Redirect getForwardAddress(long daddr) {
+        if (daddr < 0) {
+            return null;
+        }
+        return forwardAddress.get((int) daddr);
+    }
+
+    static boolean isLocalhost(long addr) {
+        return addr == LOCALHOST;
+    }
+
+    static boolean isTethering(long addr) {
+        return addr >= 0 && (addr & TETHERING_MASK) == TETHERING_NETWORK;
+    }
+
+    static boolean isPrivate10(long addr) {
+        return addr >= 0 && (addr & PRIVATE_10_MASK) == PRIVATE_10_NETWORK;
+    }
+
+    // Forward rule with its precomputed verdict
+    static final class Redirect {
+        final int ruid;
+        final Allowed allowed;
+
+        private Redirect(Forward fwd) {
+            this.ruid = fwd.ruid;
+            this.allowed = new Allowed(fwd.raddr, fwd.rport);
+        }
+    }
+
+    static final class Builder {
+        private boolean canFilter = true;
+        private boolean filterUDP = true;
+        private boolean blockHttp = false;
+        private boolean routeAllThroughInviZible = true;
+        private boolean torIsRunning = false;
+        private boolean fixTTL = false;
+
+        private int[] uidAllowed = new int[0];
+        private int[] uidKnown = new int[0];
+        private final SparseArray<Redirect> forwardPort = new SparseArray<>();
+        private final SparseArray<Redirect> forwardAddress = new SparseArray<>();
+
+        Builder setFlags(boolean canFilter, boolean filterUDP, boolean blockHttp,
+                         boolean routeAllThroughInviZible, boolean torIsRunning, boolean fixTTL) {
+            this.canFilter = canFilter;
+            this.filterUDP = filterUDP;
+            this.blockHttp = blockHttp;
+            this.routeAllThroughInviZible = routeAllThroughInviZible;
+            this.torIsRunning = torIsRunning;
+            this.fixTTL = fixTTL;
+            return this;
+        }
+
+        Builder setUidAllowed(int[] uids) {
+            uidAllowed = sorted(uids);
+            return this;
+        }
+
+        Builder setUidKnown(int[] uids) {
+            uidKnown = sorted(uids);
+            return this;
+        }
+
+        Builder addForwardPort(Forward fwd) {
+            forwardPort.put(fwd.dport, new Redirect(fwd));
+            return this;
+        }
+
+        Builder addForwardAddress(Forward fwd) {
+            long daddr = IPUtil.parseIPv4(fwd.daddr);
+            if (daddr < 0) {
+                Log.e(LOG_TAG, "VPN Forward address is not IPv4 " + fwd);
+            } else {
+                forwardAddress.put((int) daddr, new Redirect(fwd));
+            }
+            return this;
+        }
+
+        VPNRules build() {
+            return new VPNRules(this);
+        }
+
+        private static int[] sorted(int[] uids) {
+            int[] result = Arrays.copyOf(uids, uids.length);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
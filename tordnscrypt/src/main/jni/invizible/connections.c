@@ -0,0 +1,194 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+#include <sys/time.h>
+
+// Session lists are only walked by the engine thread owning them,
+// jni_get_sessions posts a request to each context and waits for all of them to answer.
+// Records are SNAPSHOT_RECORD bytes in native byte order, addresses in network notation:
+// protocol, version, state, upstream, uid, source port, destination port, idle seconds,
+// destination address, sent, received.
+
+// One request at a time
+static pthread_mutex_t snapshot_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static void put_session(uint8_t *record, const struct ng_session *s, time_t now) {
+    memset(record, 0, SNAPSHOT_RECORD);
+    record[0] = s->protocol;
+
+    jint uid;
+    uint16_t sport;
+    uint16_t dport;
+    int32_t idle;
+    uint64_t sent = 0;
+    uint64_t received = 0;
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        record[1] = (uint8_t) s->icmp.version;
+        record[2] = s->icmp.stop;
+        record[3] = SNAPSHOT_DIRECT;
+        uid = s->icmp.uid;
+        sport = ntohs(s->icmp.id);
+        dport = sport;
+        idle = (int32_t) (now - s->icmp.time);
+        memcpy(record + 16, &s->icmp.daddr, s->icmp.version == 4 ? 4 : 16);
+    } else if (s->protocol == IPPROTO_UDP) {
+        record[1] = (uint8_t) s->udp.version;
+        record[2] = s->udp.state;
+        record[3] = (uint8_t) (s->udp.redirected ? SNAPSHOT_FORWARDED : SNAPSHOT_DIRECT);
+        uid = s->udp.uid;
+        sport = ntohs(s->udp.source);
+        dport = ntohs(s->udp.dest);
+        idle = (int32_t) (now - s->udp.time);
+        sent = s->udp.usage_sent + s->udp.sent;
+        received = s->udp.usage_received + s->udp.received;
+        memcpy(record + 16, &s->udp.daddr, s->udp.version == 4 ? 4 : 16);
+    } else {
+        record[1] = (uint8_t) s->tcp.version;
+        record[2] = s->tcp.state;
+        record[3] = (uint8_t) (s->tcp.redirected ? SNAPSHOT_FORWARDED :
+                               s->tcp.proxied ? SNAPSHOT_SOCKS5 : SNAPSHOT_DIRECT);
+        uid = s->tcp.uid;
+        sport = ntohs(s->tcp.source);
+        dport = ntohs(s->tcp.dest);
+        idle = (int32_t) (now - s->tcp.time);
+        sent = s->tcp.usage_sent + s->tcp.sent;
+        received = s->tcp.usage_received + s->tcp.received;
+        memcpy(record + 16, &s->tcp.daddr, s->tcp.version == 4 ? 4 : 16);
+    }
+
+    memcpy(record + 4, &uid, 4);
+    memcpy(record + 8, &sport, 2);
+    memcpy(record + 10, &dport, 2);
+    memcpy(record + 12, &idle, 4);
+    memcpy(record + 32, &sent, 8);
+    memcpy(record + 40, &received, 8);
+}
+
+// Called by the engine thread of the context
+void answer_snapshot(struct context *ctx) {
+    struct snapshot_request *request = __sync_lock_test_and_set(&ctx->snapshot, NULL);
+    if (request == NULL)
+        return;
+
+    if (pthread_mutex_lock(&request->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    time_t now = time(NULL);
+    for (int l = 0; l < SESSION_LISTS; l++)
+        for (struct ng_session *s = ctx->ng_session[l]; s != NULL; s = s->next) {
+            if (request->count < request->capacity)
+                put_session(request->buffer + request->count++ * SNAPSHOT_RECORD, s, now);
+            request->total++;
+        }
+
+    request->pending--;
+    pthread_cond_broadcast(&request->cond);
+
+    if (pthread_mutex_unlock(&request->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+static void post_snapshot(struct context *ctx, struct snapshot_request *request) {
+    __sync_synchronize();
+    ctx->snapshot = request;
+    if (write(ctx->pipefds[1], "s", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+// Fills buffer with the sessions of the running engine, returns the number of sessions
+int take_snapshot(struct context *ctx, uint8_t *buffer, int capacity) {
+    if (pthread_mutex_lock(&snapshot_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct snapshot_request request;
+    memset(&request, 0, sizeof(struct snapshot_request));
+    pthread_mutex_init(&request.lock, NULL);
+    pthread_cond_init(&request.cond, NULL);
+    request.buffer = buffer;
+    request.capacity = capacity;
+
+    struct context *posted[1 + WORKER_MAX];
+    int count = 0;
+
+    // Workers are replaced under the lock only
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    // The sharded engine keeps its sessions in the workers, run_workers answers no snapshots
+    if (ctx->worker_count == 0)
+        posted[count++] = ctx;
+    for (int i = 0; i < ctx->worker_count; i++)
+        posted[count++] = ctx->workers[i].ctx;
+    request.pending = count;
+    for (int i = 0; i < count; i++)
+        post_snapshot(posted[i], &request);
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    struct timeval now;
+    gettimeofday(&now, NULL);
+    struct timespec deadline;
+    deadline.tv_sec = now.tv_sec + SNAPSHOT_TIMEOUT;
+    deadline.tv_nsec = now.tv_usec * 1000L;
+
+    if (pthread_mutex_lock(&request.lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    int timeout = 0;
+    while (request.pending > 0 && !timeout)
+        timeout = (pthread_cond_timedwait(&request.cond, &request.lock, &deadline) == ETIMEDOUT);
+    if (pthread_mutex_unlock(&request.lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (timeout) {
+        // Withdraw requests not taken yet, the taken ones are answered shortly
+        if (pthread_mutex_lock(&ctx->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        int withdrawn = 0;
+        for (int i = 0; i < count; i++)
+            if (__sync_bool_compare_and_swap(&posted[i]->snapshot, &request, NULL))
+                withdrawn++;
+        if (pthread_mutex_unlock(&ctx->lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+        log_android(ANDROID_LOG_WARN, "Snapshot timeout contexts %d withdrawn %d",
+                    count, withdrawn);
+
+        if (pthread_mutex_lock(&request.lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+        request.pending -= withdrawn;
+        while (request.pending > 0)
+            pthread_cond_wait(&request.cond, &request.lock);
+        if (pthread_mutex_unlock(&request.lock))
+            log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+    }
+
+    pthread_cond_destroy(&request.cond);
+    pthread_mutex_destroy(&request.lock);
+
+    if (pthread_mutex_unlock(&snapshot_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return request.total;
+}
+
+#pragma clang diagnostic pop
@@ -127,8 +127,7 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
         }
 
         if (acount == 0 || rcode != 0) {
-            dns_resolved(args, qname, name, (const char *) &"", (const char *) &"",
-                         (const char *) &"", rcode);
+            dns_resolved(args, qname, name, "", "", 0, NULL, rcode);
             return;
         }
 
@@ -138,7 +137,7 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
             if (off > 0 && off + 10 <= *datalen) {
                 uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
                 uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
-                //uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+                uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
                 uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
                 off += 10;
 
@@ -159,16 +158,17 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                                 return;
                         }
 
-                        dns_resolved(args, qname, name, (const char *) &"", (const char *) &"",
-                                     rd, rcode);
+                        dns_resolved(args, qname, name, "", "",
+                                     qtype == DNS_QTYPE_A ? 4 : 6, data + off, rcode);
+                        snoop_host_address(qname, qtype == DNS_QTYPE_A ? 4 : 6, data + off, ttl);
+                        remember_dns_name(qname, qtype == DNS_QTYPE_A ? 4 : 6, data + off, ttl);
                         log_android(ANDROID_LOG_DEBUG,
                                     "DNS answer %d qname %s qtype %d rcode %d data %s",
                                     a, name, qtype, rcode, rd);
 
                     } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_CNAME) {
                         get_qname(data, *datalen, (uint16_t) off, cname);
-                        dns_resolved(args, qname, name, cname, (const char *) &"",
-                                     (const char *) &"", rcode);
+                        dns_resolved(args, qname, name, cname, "", 0, NULL, rcode);
                         log_android(ANDROID_LOG_DEBUG,
                                     "DNS answer %d qname %s cname %s qclass %d qtype %d rcode %d length %d",
                                     a, name, cname, qclass, qtype, rcode, rdlength);
@@ -177,8 +177,8 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                         hinfo = (char *) ng_malloc(rdlength, "hinfo");
                         if (rdlength > 1) {
                             hinfo = memcpy(hinfo, data + off + 1, (size_t) (rdlength - 1));
-                            dns_resolved(args, qname, name, (const char *) &"", hinfo,
-                                         (const char *) &"", rcode);
+                            hinfo[rdlength - 1] = 0;
+                            dns_resolved(args, qname, name, "", hinfo, 0, NULL, rcode);
                             log_android(ANDROID_LOG_DEBUG,
                                         "DNS answer %d qname %s hinfo %s",
                                         a, name, hinfo);
@@ -219,44 +219,19 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
             dns->add_count = 0;
             *datalen = aoff;
 
-            int version;
-            char source[INET6_ADDRSTRLEN + 1];
-            char dest[INET6_ADDRSTRLEN + 1];
-            uint16_t sport;
-            uint16_t dport;
-
-            if (s->protocol == IPPROTO_UDP) {
-                version = s->udp.version;
-                sport = ntohs(s->udp.source);
-                dport = ntohs(s->udp.dest);
-                if (s->udp.version == 4) {
-                    inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-                }
-            } else {
-                version = s->tcp.version;
-                sport = ntohs(s->tcp.source);
-                dport = ntohs(s->tcp.dest);
-                if (s->tcp.version == 4) {
-                    inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-                }
-            }
-
             // Log qname
             char name[DNS_QNAME_MAX + 40 + 1];
             sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, dns->rcode);
-            jobject objPacket = create_packet(
-                    args, version, s->protocol, "",
-                    source, sport, dest, dport,
-                    name, 0, 0);
-            log_packet(args, objPacket);
+            if (s->protocol == IPPROTO_UDP)
+                log_packet(args, s->udp.version, s->protocol,
+                           &s->udp.saddr, ntohs(s->udp.source),
+                           &s->udp.daddr, ntohs(s->udp.dest),
+                           name, 0, 0);
+            else
+                log_packet(args, s->tcp.version, s->protocol,
+                           &s->tcp.saddr, ntohs(s->tcp.source),
+                           &s->tcp.daddr, ntohs(s->tcp.dest),
+                           name, 0, 0);
         }
     } else if (acount > 0)
         log_android(ANDROID_LOG_WARN,
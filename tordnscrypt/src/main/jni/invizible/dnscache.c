@@ -0,0 +1,344 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Direct mapped cache of A/AAAA answers keyed on qname and qtype.
+// A missed query marks its entry pending, identical queries arriving before the answer
+// wait for it instead of opening upstream sessions of their own.
+// Only answers to pending queries are stored, with TTLs clamped to the configured bounds.
+
+#define DNS_CACHE_EMPTY 0
+#define DNS_CACHE_PENDING 1
+#define DNS_CACHE_ANSWERED 2
+
+#define DNS_FLAG_RD 1
+#define DNS_FLAG_CD 2
+#define DNS_FLAG_EDNS 4
+
+static uint32_t dns_cache_hash(const char *qname, uint16_t qtype) {
+    uint32_t hash = fnv1a32(FNV1A32_BASIS, qname, strlen(qname));
+    return fnv1a32(hash, &qtype, sizeof(qtype));
+}
+
+static int32_t skip_name(const uint8_t *data, size_t datalen, int32_t off) {
+    while (off >= 0 && off < datalen) {
+        uint8_t len = *(data + off);
+        if (len == 0)
+            return off + 1;
+        if ((len & 0xC0) == 0xC0)
+            return (off + 2 <= datalen ? off + 2 : -1);
+        if (len & 0xC0)
+            return -1;
+        off += 1 + len;
+    }
+    return -1;
+}
+
+// Single standard A/AAAA question, returns the offset after it or -1
+static int32_t get_dns_key(const uint8_t *data, size_t datalen, int qr,
+                           char *qname, uint16_t *qtype, uint8_t *flags) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return -1;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (dns->qr != qr || dns->opcode != 0 || ntohs(dns->q_count) != 1)
+        return -1;
+
+    int32_t off = skip_name(data, datalen, sizeof(struct dns_header));
+    if (off < 0 || off + 4 > datalen ||
+        get_qname(data, datalen, sizeof(struct dns_header), qname) < 0)
+        return -1;
+
+    *qtype = ntohs(*((uint16_t *) (data + off)));
+    uint16_t qclass = ntohs(*((uint16_t *) (data + off + 2)));
+    if (qclass != DNS_QCLASS_IN || (*qtype != DNS_QTYPE_A && *qtype != DNS_QTYPE_AAAA))
+        return -1;
+
+    for (char *p = qname; *p; p++)
+        *p = (char) tolower(*p);
+
+    *flags = (uint8_t) ((dns->rd ? DNS_FLAG_RD : 0) |
+                        (dns->cd ? DNS_FLAG_CD : 0) |
+                        (dns->add_count ? DNS_FLAG_EDNS : 0));
+
+    return off + 4;
+}
+
+// Clamps the TTLs of all records to the bounds and reduces them by age,
+// returns the lowest TTL of the answers or -1 when the message is malformed
+static int64_t update_ttls(uint8_t *data, size_t datalen,
+                           uint32_t floor, uint32_t ceiling, uint32_t age) {
+    const struct dns_header *dns = (const struct dns_header *) data;
+
+    int32_t off = sizeof(struct dns_header);
+    for (int q = 0; q < ntohs(dns->q_count); q++) {
+        off = skip_name(data, datalen, off);
+        if (off < 0 || off + 4 > datalen)
+            return -1;
+        off += 4;
+    }
+
+    int acount = ntohs(dns->ans_count);
+    int rcount = acount + ntohs(dns->auth_count) + ntohs(dns->add_count);
+    int64_t lowest = -1;
+    for (int r = 0; r < rcount; r++) {
+        off = skip_name(data, datalen, off);
+        if (off < 0 || off + 10 > datalen)
+            return -1;
+
+        uint16_t type = ntohs(*((uint16_t *) (data + off)));
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+
+        // The TTL field of OPT holds the extended flags
+        if (type != DNS_QTYPE_OPT) {
+            uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+            if (ttl < floor)
+                ttl = floor;
+            if (ttl > ceiling)
+                ttl = ceiling;
+            ttl = (ttl > age ? ttl - age : 0);
+            *((uint32_t *) (data + off + 4)) = htonl(ttl);
+
+            if (r < acount && (lowest < 0 || ttl < lowest))
+                lowest = ttl;
+        }
+
+        off += 10 + rdlength;
+        if (off > datalen)
+            return -1;
+    }
+
+    return lowest;
+}
+
+void get_query_session(const uint8_t *pkt, const struct udphdr *udphdr,
+                       struct udp_session *u) {
+    const uint8_t version = (*pkt) >> 4;
+    const struct iphdr *ip4 = (struct iphdr *) pkt;
+    const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+
+    memset(u, 0, sizeof(struct udp_session));
+    u->version = version;
+    if (version == 4) {
+        u->saddr.ip4 = (__be32) ip4->saddr;
+        u->daddr.ip4 = (__be32) ip4->daddr;
+    } else {
+        memcpy(&u->saddr.ip6, &ip6->ip6_src, 16);
+        memcpy(&u->daddr.ip6, &ip6->ip6_dst, 16);
+    }
+    u->source = udphdr->source;
+    u->dest = udphdr->dest;
+}
+
+// Hits are reported like upstream answers, waiters share the report of the answer they waited for
+static void reply_cached(const struct arguments *args, const struct dns_cache_entry *entry,
+                         const struct udp_session *u, uint16_t id, uint32_t age, int report) {
+    uint8_t *buffer = get_packet_buffer(args->ctx);
+    memcpy(buffer, entry->response, entry->length);
+    ((struct dns_header *) buffer)->id = id;
+
+    if (age == 0 || update_ttls(buffer, entry->length, 0, UINT32_MAX, age) >= 0) {
+        size_t datalen = entry->length;
+        if (report) {
+            struct ng_session s;
+            memset(&s, 0, sizeof(struct ng_session));
+            s.protocol = IPPROTO_UDP;
+            s.socket = -1;
+            memcpy(&s.udp, u, sizeof(struct udp_session));
+            parse_dns_response(args, &s, buffer, &datalen);
+        }
+        write_udp(args, u, buffer, datalen);
+    }
+
+    put_packet_buffer(args->ctx, buffer);
+}
+
+static void reset_entry(struct dns_cache_entry *entry) {
+    if (entry->response != NULL)
+        ng_free(entry->response, __FILE__, __LINE__);
+    if (entry->waiters != NULL)
+        ng_free(entry->waiters, __FILE__, __LINE__);
+    entry->response = NULL;
+    entry->length = 0;
+    entry->waiters = NULL;
+    entry->waiter_count = 0;
+    entry->state = DNS_CACHE_EMPTY;
+}
+
+// Returns 1 when the query was answered from the cache or is waiting for one in flight
+int dns_cache_query(const struct arguments *args,
+                    const uint8_t *pkt, const struct udphdr *udphdr,
+                    const uint8_t *data, size_t datalen) {
+    struct context *ctx = args->ctx;
+    if (ctx->dns_ttl_max <= 0)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint8_t flags;
+    if (get_dns_key(data, datalen, 0, qname, &qtype, &flags) < 0)
+        return 0;
+
+    if (ctx->dns_cache == NULL) {
+        ctx->dns_cache = ng_calloc(DNS_CACHE_SIZE, sizeof(struct dns_cache_entry), "dns cache");
+        if (ctx->dns_cache == NULL)
+            return 0;
+    }
+
+    // Answers were cached under another blocklist or clearnet host list
+    uint32_t generation = get_domains_generation();
+    if (ctx->dns_domains_generation != generation) {
+        flush_dns_cache(ctx);
+        ctx->dns_domains_generation = generation;
+    }
+
+    struct dns_cache_entry *entry =
+            &ctx->dns_cache[dns_cache_hash(qname, qtype) & (DNS_CACHE_SIZE - 1)];
+    int same = (entry->state != DNS_CACHE_EMPTY &&
+                entry->qtype == qtype && entry->flags == flags &&
+                strcmp(entry->qname, qname) == 0);
+    time_t now = time(NULL);
+    uint16_t id = ((const struct dns_header *) data)->id;
+
+    if (same && entry->state == DNS_CACHE_ANSWERED && now < entry->expires) {
+        ctx->dns_hits++;
+        log_android(ANDROID_LOG_DEBUG, "DNS cached qname %s qtype %d", qname, qtype);
+
+        struct udp_session u;
+        get_query_session(pkt, udphdr, &u);
+        reply_cached(args, entry, &u, id, (uint32_t) (now - entry->time), 1);
+        return 1;
+    }
+
+    if (same && entry->state == DNS_CACHE_PENDING && now - entry->time < DNS_PENDING_TIMEOUT) {
+        if (entry->waiters == NULL)
+            entry->waiters = ng_malloc(DNS_WAITERS_MAX * sizeof(struct dns_waiter), "dns waiters");
+        if (entry->waiters == NULL || entry->waiter_count >= DNS_WAITERS_MAX)
+            return 0;
+
+        ctx->dns_coalesced++;
+        log_android(ANDROID_LOG_DEBUG, "DNS waiting qname %s qtype %d", qname, qtype);
+
+        struct dns_waiter *waiter = &entry->waiters[entry->waiter_count++];
+        get_query_session(pkt, udphdr, &waiter->udp);
+        waiter->id = id;
+        return 1;
+    }
+
+    // Miss, this query goes upstream and the answer will be stored
+    ctx->dns_misses++;
+
+    // Queries waiting for another name of the slot were told they are handled,
+    // so that one keeps the slot and this query goes upstream uncached
+    if (!same && entry->state == DNS_CACHE_PENDING && entry->waiter_count > 0 &&
+        now - entry->time < DNS_PENDING_TIMEOUT)
+        return 0;
+
+    reset_entry(entry);
+    strcpy(entry->qname, qname);
+    entry->qtype = qtype;
+    entry->flags = flags;
+    entry->time = now;
+    entry->state = DNS_CACHE_PENDING;
+
+    return 0;
+}
+
+// Stores an upstream answer to a pending query and replies to the queries waiting for it
+void dns_cache_response(const struct arguments *args, const uint8_t *data, size_t datalen) {
+    struct context *ctx = args->ctx;
+    if (ctx->dns_cache == NULL)
+        return;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint8_t flags;
+    if (get_dns_key(data, datalen, 1, qname, &qtype, &flags) < 0)
+        return;
+
+    struct dns_cache_entry *entry =
+            &ctx->dns_cache[dns_cache_hash(qname, qtype) & (DNS_CACHE_SIZE - 1)];
+    if (entry->state != DNS_CACHE_PENDING || entry->qtype != qtype ||
+        entry->flags != flags || strcmp(entry->qname, qname) != 0)
+        return;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    int cacheable = (dns->tc == 0 && dns->rcode == 0 && dns->ans_count != 0 &&
+                     datalen <= DNS_CACHE_MSG_MAX);
+
+    uint8_t *response = ng_malloc(datalen, "dns response");
+    if (response == NULL) {
+        reset_entry(entry);
+        return;
+    }
+    memcpy(response, data, datalen);
+
+    time_t now = time(NULL);
+    int64_t ttl = update_ttls(response, datalen,
+                              (uint32_t) ctx->dns_ttl_min, (uint32_t) ctx->dns_ttl_max, 0);
+
+    // Waiters get the answer even when it will not be kept
+    struct dns_waiter *waiters = entry->waiters;
+    int waiter_count = entry->waiter_count;
+    entry->waiters = NULL;
+    entry->waiter_count = 0;
+
+    entry->response = response;
+    entry->length = (uint16_t) datalen;
+    entry->time = now;
+    entry->expires = now + (ttl < 0 ? 0 : ttl);
+    entry->state = DNS_CACHE_ANSWERED;
+
+    for (int i = 0; i < waiter_count; i++)
+        reply_cached(args, entry, &waiters[i].udp, waiters[i].id, 0, 0);
+    if (waiters != NULL)
+        ng_free(waiters, __FILE__, __LINE__);
+
+    log_android(ANDROID_LOG_DEBUG, "DNS cache qname %s qtype %d ttl %d waiters %d",
+                qname, qtype, (int) ttl, waiter_count);
+
+    if (!cacheable || ttl <= 0)
+        reset_entry(entry);
+}
+
+void flush_dns_cache(struct context *ctx) {
+    if (ctx->dns_cache != NULL)
+        for (int i = 0; i < DNS_CACHE_SIZE; i++)
+            reset_entry(&ctx->dns_cache[i]);
+}
+
+void clear_dns_cache(struct context *ctx) {
+    if (ctx->dns_cache != NULL) {
+        log_android(ANDROID_LOG_WARN, "DNS cache hits %u misses %u coalesced %u blocked %u",
+                    ctx->dns_hits, ctx->dns_misses, ctx->dns_coalesced, ctx->dns_blocked);
+        flush_dns_cache(ctx);
+        ng_free(ctx->dns_cache, __FILE__, __LINE__);
+    }
+    ctx->dns_cache = NULL;
+    ctx->dns_hits = 0;
+    ctx->dns_misses = 0;
+    ctx->dns_coalesced = 0;
+    ctx->dns_blocked = 0;
+}
+
+#pragma clang diagnostic pop
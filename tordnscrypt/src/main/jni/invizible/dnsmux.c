@@ -0,0 +1,273 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Queries redirected to the local DNS forwarder (dnscrypt-proxy or Tor DNSPort) are sent
+// over a few long lived connected UDP sockets instead of a session and socket each.
+// Transaction ids are replaced by the index of the waiting query plus random bits,
+// answers are matched on them and written back to the originating flow.
+
+extern int own_uid;
+
+#define DNS_MUX_MASK (DNS_MUX_QUERIES - 1)
+
+static int open_dns_upstream(const struct arguments *args, struct dns_upstream *u,
+                             const struct allowed *redirect, int epoll_fd) {
+    int version = (strstr(redirect->raddr, ":") == NULL ? 4 : 6);
+
+    int sock = socket(version == 4 ? PF_INET : PF_INET6, SOCK_DGRAM | SOCK_CLOEXEC, IPPROTO_UDP);
+    if (sock < 0) {
+        log_android(ANDROID_LOG_ERROR, "DNS mux socket error %d: %s", errno, strerror(errno));
+        return -1;
+    }
+
+    int flags = fcntl(sock, F_GETFL, 0);
+    if (flags < 0 || fcntl(sock, F_SETFL, flags | O_NONBLOCK) < 0)
+        log_android(ANDROID_LOG_ERROR, "DNS mux fcntl O_NONBLOCK error %d: %s",
+                    errno, strerror(errno));
+
+    int err;
+    if (version == 4) {
+        struct sockaddr_in addr4;
+        memset(&addr4, 0, sizeof(struct sockaddr_in));
+        addr4.sin_family = AF_INET;
+        inet_pton(AF_INET, redirect->raddr, &addr4.sin_addr);
+        addr4.sin_port = htons(redirect->rport);
+        err = connect(sock, (const struct sockaddr *) &addr4, sizeof(struct sockaddr_in));
+    } else {
+        struct sockaddr_in6 addr6;
+        memset(&addr6, 0, sizeof(struct sockaddr_in6));
+        addr6.sin6_family = AF_INET6;
+        inet_pton(AF_INET6, redirect->raddr, &addr6.sin6_addr);
+        addr6.sin6_port = htons(redirect->rport);
+        err = connect(sock, (const struct sockaddr *) &addr6, sizeof(struct sockaddr_in6));
+    }
+    if (err) {
+        log_android(ANDROID_LOG_ERROR, "DNS mux connect %s/%u error %d: %s",
+                    redirect->raddr, redirect->rport, errno, strerror(errno));
+        close(sock);
+        return -1;
+    }
+
+    memset(&u->ev, 0, sizeof(struct epoll_event));
+    u->ev.events = EPOLLIN | EPOLLERR;
+    u->ev.data.ptr = u;
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, sock, &u->ev)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add dns mux error %d: %s", errno, strerror(errno));
+        close(sock);
+        return -1;
+    }
+
+    u->socket = sock;
+    u->open = 1;
+    log_android(ANDROID_LOG_WARN, "DNS mux socket %d to %s/%u",
+                sock, redirect->raddr, redirect->rport);
+    return 0;
+}
+
+// Counted sockets are uncounted once, however often they are closed
+static void close_dns_upstream(struct context *ctx, struct dns_upstream *u) {
+    if (u->open) {
+        if (close(u->socket))
+            log_android(ANDROID_LOG_ERROR, "DNS mux close %d error %d: %s",
+                        u->socket, errno, strerror(errno));
+        ctx->dns_upstream_count--;
+    }
+    u->open = 0;
+    u->socket = -1;
+}
+
+// Returns 1 when the query was sent over a shared upstream socket
+int dns_mux_query(const struct arguments *args,
+                  const uint8_t *pkt, const struct udphdr *udphdr,
+                  const uint8_t *data, size_t datalen,
+                  jint uid, const struct allowed *redirect, int epoll_fd) {
+    struct context *ctx = args->ctx;
+
+    // Sockets of the own uid may need protecting, they keep their own sessions
+    if (redirect == NULL || uid == own_uid || datalen < sizeof(struct dns_header))
+        return 0;
+
+    // The pool serves one forwarder, it is reopened when the forwarder changes
+    if (ctx->dns_upstream_count > 0 &&
+        (strcmp(ctx->dns_redirect.raddr, redirect->raddr) != 0 ||
+         ctx->dns_redirect.rport != redirect->rport))
+        clear_dns_mux(ctx);
+
+    if (ctx->dns_mux == NULL) {
+        ctx->dns_mux = ng_calloc(DNS_MUX_QUERIES, sizeof(struct dns_mux_query), "dns mux");
+        if (ctx->dns_mux == NULL)
+            return 0;
+    }
+
+    // Find a free query slot, slots of unanswered queries are reused after the timeout
+    time_t now = time(NULL);
+    struct dns_mux_query *q = NULL;
+    for (int i = 0; i < DNS_MUX_QUERIES && q == NULL; i++) {
+        struct dns_mux_query *c = &ctx->dns_mux[(ctx->dns_mux_next + i) & DNS_MUX_MASK];
+        if (!c->used || c->time + UDP_TIMEOUT_53 < now)
+            q = c;
+    }
+    if (q == NULL) {
+        log_android(ANDROID_LOG_WARN, "DNS mux full");
+        return 0;
+    }
+    int index = (int) (q - ctx->dns_mux);
+    ctx->dns_mux_next = (uint16_t) (index + 1);
+
+    // Spread queries over the sockets, opening them as needed
+    struct dns_upstream *u = &ctx->dns_upstream[index % DNS_MUX_SOCKETS];
+    if (!u->open) {
+        if (open_dns_upstream(args, u, redirect, epoll_fd))
+            return 0;
+        if (ctx->dns_upstream_count++ == 0)
+            memcpy(&ctx->dns_redirect, redirect, sizeof(struct allowed));
+    }
+
+    uint16_t id = (uint16_t) (index | ((rand() & (0xFFFF & ~DNS_MUX_MASK))));
+
+    uint8_t *buffer = get_packet_buffer(ctx);
+    memcpy(buffer, data, datalen);
+    ((struct dns_header *) buffer)->id = htons(id);
+    ssize_t sent = send(u->socket, buffer, datalen, MSG_NOSIGNAL);
+    put_packet_buffer(ctx, buffer);
+
+    if (sent != datalen) {
+        log_android(ANDROID_LOG_ERROR, "DNS mux send error %d: %s", errno, strerror(errno));
+        if (errno != EINTR && errno != EAGAIN) {
+            close_dns_upstream(ctx, u);
+        }
+        return 0;
+    }
+
+    q->used = 1;
+    q->id = id;
+    q->client_id = ((const struct dns_header *) data)->id;
+    q->time = now;
+    q->uid = uid;
+    memset(&q->udp, 0, sizeof(struct udp_session));
+    q->udp.version = (*pkt) >> 4;
+    if (q->udp.version == 4) {
+        const struct iphdr *ip4 = (const struct iphdr *) pkt;
+        q->udp.saddr.ip4 = (__be32) ip4->saddr;
+        q->udp.daddr.ip4 = (__be32) ip4->daddr;
+    } else {
+        const struct ip6_hdr *ip6 = (const struct ip6_hdr *) pkt;
+        memcpy(&q->udp.saddr.ip6, &ip6->ip6_src, 16);
+        memcpy(&q->udp.daddr.ip6, &ip6->ip6_dst, 16);
+    }
+    q->udp.source = udphdr->source;
+    q->udp.dest = udphdr->dest;
+    q->udp.uid = uid;
+
+    ctx->dns_mux_queries++;
+    log_android(ANDROID_LOG_DEBUG, "DNS mux query id %u socket %d uid %d",
+                id, u->socket, uid);
+
+    return 1;
+}
+
+int is_dns_upstream(const struct context *ctx, const void *ptr) {
+    return (ptr >= (const void *) &ctx->dns_upstream[0] &&
+            ptr < (const void *) &ctx->dns_upstream[DNS_MUX_SOCKETS]);
+}
+
+void check_dns_upstream(const struct arguments *args, const struct epoll_event *ev) {
+    struct context *ctx = args->ctx;
+    struct dns_upstream *u = (struct dns_upstream *) ev->data.ptr;
+
+    // Stale event of a socket closed earlier in the same epoll batch
+    if (!u->open)
+        return;
+
+    if (ev->events & EPOLLERR) {
+        int serr = 0;
+        socklen_t optlen = sizeof(int);
+        if (getsockopt(u->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen) == 0 && serr)
+            log_android(ANDROID_LOG_ERROR, "DNS mux SO_ERROR %d: %s", serr, strerror(serr));
+
+        // Queries sent over it are retried by their clients
+        close_dns_upstream(ctx, u);
+        return;
+    }
+
+    if (!(ev->events & EPOLLIN))
+        return;
+
+    uint8_t *buffer = get_packet_buffer(ctx);
+    for (int count = 0; count < UDP_YIELD && u->open && !ctx->stopping; count++) {
+        ssize_t bytes = recv(u->socket, buffer, UDP4_MAXMSG, 0);
+        if (bytes < 0) {
+            if (errno != EINTR && errno != EAGAIN) {
+                log_android(ANDROID_LOG_WARN, "DNS mux recv error %d: %s",
+                            errno, strerror(errno));
+                close_dns_upstream(ctx, u);
+            }
+            break;
+        }
+
+        if (bytes < sizeof(struct dns_header) || ctx->dns_mux == NULL)
+            continue;
+
+        struct dns_header *dns = (struct dns_header *) buffer;
+        uint16_t id = ntohs(dns->id);
+        struct dns_mux_query *q = &ctx->dns_mux[id & DNS_MUX_MASK];
+        if (!q->used || q->id != id) {
+            log_android(ANDROID_LOG_WARN, "DNS mux unknown id %u", id);
+            continue;
+        }
+        q->used = 0;
+        dns->id = q->client_id;
+
+        // Same processing as answers received on a session of their own
+        struct ng_session s;
+        memset(&s, 0, sizeof(struct ng_session));
+        s.protocol = IPPROTO_UDP;
+        s.socket = -1;
+        memcpy(&s.udp, &q->udp, sizeof(struct udp_session));
+
+        size_t datalen = (size_t) bytes;
+        parse_dns_response(args, &s, buffer, &datalen);
+        dns_cache_response(args, buffer, datalen);
+        write_udp(args, &q->udp, buffer, datalen);
+    }
+    put_packet_buffer(ctx, buffer);
+}
+
+// Sockets belong to the epoll set of one run, they are closed when it ends
+void clear_dns_mux(struct context *ctx) {
+    if (ctx->dns_upstream_count > 0 || ctx->dns_mux_queries > 0)
+        log_android(ANDROID_LOG_WARN, "DNS mux sockets %d queries %u",
+                    ctx->dns_upstream_count, ctx->dns_mux_queries);
+
+    for (int i = 0; i < DNS_MUX_SOCKETS; i++)
+        close_dns_upstream(ctx, &ctx->dns_upstream[i]);
+    ctx->dns_upstream_count = 0;
+    ctx->dns_mux_queries = 0;
+
+    if (ctx->dns_mux != NULL)
+        ng_free(ctx->dns_mux, __FILE__, __LINE__);
+    ctx->dns_mux = NULL;
+}
+
+#pragma clang diagnostic pop
@@ -0,0 +1,138 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Names queried for the addresses of recent A/AAAA answers, so that SOCKS5 connects
+// can ask the proxy for the name and let the Tor exit resolve it.
+// An address answered for two different names is ambiguous and connected by address.
+
+extern char socks5_addr[INET6_ADDRSTRLEN + 1];
+
+struct dns_name_entry {
+    uint8_t version;
+    uint8_t ambiguous;
+    union {
+        __be32 ip4;
+        struct in6_addr ip6;
+    } addr;
+    time_t expires;
+    char name[DNS_QNAME_MAX + 1];
+};
+
+static pthread_mutex_t dns_names_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct dns_name_entry *dns_names = NULL;
+static uint32_t dns_names_found = 0;
+static uint32_t dns_names_missed = 0;
+
+static struct dns_name_entry *find_dns_name(int version, const void *addr) {
+    uint32_t index = fnv1a32(FNV1A32_BASIS, addr, version == 4 ? 4 : 16);
+    for (int p = 0; p < DNS_NAME_PROBE; p++) {
+        struct dns_name_entry *entry = &dns_names[(index + p) & (DNS_NAME_MAX - 1)];
+        if (entry->version == version &&
+            memcmp(&entry->addr, addr, version == 4 ? 4 : 16) == 0)
+            return entry;
+    }
+    return NULL;
+}
+
+// Called for each A/AAAA answer while a SOCKS5 proxy is set, addr in network notation
+void remember_dns_name(const char *qname, int version, const void *addr, uint32_t ttl) {
+    if (!*socks5_addr || !*qname || strlen(qname) > DNS_QNAME_MAX)
+        return;
+
+    if (pthread_mutex_lock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (dns_names == NULL)
+        dns_names = ng_calloc(DNS_NAME_MAX, sizeof(struct dns_name_entry), "dns names");
+
+    if (dns_names != NULL) {
+        time_t now = time(NULL);
+        time_t expires = now + (ttl > HOST_TTL_MAX ? HOST_TTL_MAX : ttl) + HOST_TTL_GRACE;
+
+        struct dns_name_entry *entry = find_dns_name(version, addr);
+        if (entry == NULL) {
+            // The free, expired or first expiring slot
+            uint32_t index = fnv1a32(FNV1A32_BASIS, addr, version == 4 ? 4 : 16);
+            for (int p = 0; p < DNS_NAME_PROBE; p++) {
+                struct dns_name_entry *e = &dns_names[(index + p) & (DNS_NAME_MAX - 1)];
+                if (entry == NULL || e->expires < entry->expires)
+                    entry = e;
+            }
+            entry->version = (uint8_t) version;
+            memcpy(&entry->addr, addr, version == 4 ? 4 : 16);
+            entry->ambiguous = 0;
+            strcpy(entry->name, qname);
+        } else if (entry->expires <= now) {
+            entry->ambiguous = 0;
+            strcpy(entry->name, qname);
+        } else if (strcasecmp(entry->name, qname) != 0)
+            entry->ambiguous = 1;
+
+        if (expires > entry->expires)
+            entry->expires = expires;
+    }
+
+    if (pthread_mutex_unlock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Copies the name answered for the address, returns its length or 0 when unknown
+size_t get_dns_name(int version, const void *addr, char *name) {
+    size_t len = 0;
+
+    if (pthread_mutex_lock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct dns_name_entry *entry = (dns_names == NULL ? NULL : find_dns_name(version, addr));
+    if (entry != NULL && !entry->ambiguous && entry->expires > time(NULL)) {
+        strcpy(name, entry->name);
+        len = strlen(name);
+        dns_names_found++;
+    } else
+        dns_names_missed++;
+
+    if (pthread_mutex_unlock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return len;
+}
+
+void clear_dns_names() {
+    if (pthread_mutex_lock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (dns_names != NULL) {
+        log_android(ANDROID_LOG_WARN, "DNS names found %u missed %u",
+                    dns_names_found, dns_names_missed);
+        ng_free(dns_names, __FILE__, __LINE__);
+    }
+    dns_names = NULL;
+    dns_names_found = 0;
+    dns_names_missed = 0;
+
+    if (pthread_mutex_unlock(&dns_names_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+#pragma clang diagnostic pop
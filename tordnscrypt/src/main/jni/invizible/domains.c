@@ -0,0 +1,230 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+#include <sys/mman.h>
+
+// Blocked and allowed names compiled by DomainBlocklist.java into an open addressing
+// hash set of 64 bit FNV-1a hashes, mapped read only and shared by all workers.
+// A name is looked up whole for exact rules, then each parent for subdomain rules.
+// Allowed names win over blocked ones like in the dnscrypt-proxy whitelist.
+
+#define DOMAINS_MAGIC 0x42445A49 // "IZDB"
+#define DOMAINS_VERSION 1
+#define DOMAINS_HEADER 24 // bytes
+
+#define DOMAIN_BLOCK_EXACT 1
+#define DOMAIN_BLOCK_SUBDOMAINS 2
+#define DOMAIN_ALLOW_EXACT 4
+#define DOMAIN_ALLOW_SUBDOMAINS 8
+#define DOMAIN_FLAGS 0xF
+
+extern int own_uid;
+
+struct domain_list {
+    void *map;
+    size_t size;
+    const uint64_t *slots;
+    uint32_t mask;
+    uint32_t count;
+};
+
+static pthread_rwlock_t domains_lock = PTHREAD_RWLOCK_INITIALIZER;
+static struct domain_list *domains = NULL;
+static uint32_t domains_generation = 0;
+
+static uint64_t domain_hash(const char *name) {
+    // FNV-1a, lower case like the compiler
+    uint64_t hash = 14695981039346656037ULL;
+    for (const char *p = name; *p; p++) {
+        hash ^= (uint8_t) tolower(*p);
+        hash *= 1099511628211ULL;
+    }
+    hash &= ~((uint64_t) DOMAIN_FLAGS);
+    return (hash == 0 ? DOMAIN_FLAGS + 1 : hash);
+}
+
+static uint8_t get_domain_flags(const struct domain_list *list, const char *name) {
+    uint64_t hash = domain_hash(name);
+    uint32_t index = (uint32_t) (hash >> 32) & list->mask;
+    for (uint32_t probe = 0; probe <= list->mask; probe++) {
+        uint64_t slot = list->slots[(index + probe) & list->mask];
+        if (slot == 0)
+            return 0;
+        if ((slot & ~((uint64_t) DOMAIN_FLAGS)) == hash)
+            return (uint8_t) (slot & DOMAIN_FLAGS);
+    }
+    return 0;
+}
+
+static void free_domain_list(struct domain_list *list) {
+    if (list != NULL) {
+        munmap(list->map, list->size);
+        ng_free(list, __FILE__, __LINE__);
+    }
+}
+
+// Maps the compiled list at path, NULL unloads, returns the number of names or -1
+int load_domains(const char *path) {
+    struct domain_list *list = NULL;
+
+    if (path != NULL) {
+        int fd = open(path, O_RDONLY);
+        if (fd < 0) {
+            log_android(ANDROID_LOG_ERROR, "Domains open %s error %d: %s",
+                        path, errno, strerror(errno));
+            return -1;
+        }
+
+        struct stat st;
+        void *map = MAP_FAILED;
+        if (fstat(fd, &st) == 0 && st.st_size >= DOMAINS_HEADER)
+            map = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+        close(fd);
+
+        if (map == MAP_FAILED) {
+            log_android(ANDROID_LOG_ERROR, "Domains map %s error %d: %s",
+                        path, errno, strerror(errno));
+            return -1;
+        }
+
+        const uint32_t *header = (const uint32_t *) map;
+        uint32_t slots = header[2];
+        if (header[0] != DOMAINS_MAGIC || header[1] != DOMAINS_VERSION ||
+            slots == 0 || (slots & (slots - 1)) != 0 ||
+            DOMAINS_HEADER + (uint64_t) slots * sizeof(uint64_t) > (uint64_t) st.st_size) {
+            log_android(ANDROID_LOG_ERROR, "Domains %s invalid", path);
+            munmap(map, (size_t) st.st_size);
+            return -1;
+        }
+
+        list = ng_malloc(sizeof(struct domain_list), "domains");
+        list->map = map;
+        list->size = (size_t) st.st_size;
+        list->slots = (const uint64_t *) ((const uint8_t *) map + DOMAINS_HEADER);
+        list->mask = slots - 1;
+        list->count = header[3];
+    }
+
+    if (pthread_rwlock_wrlock(&domains_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_wrlock failed");
+    struct domain_list *old = domains;
+    domains = list;
+    __sync_add_and_fetch(&domains_generation, 1);
+    if (pthread_rwlock_unlock(&domains_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_unlock failed");
+
+    free_domain_list(old);
+
+    log_android(ANDROID_LOG_WARN, "Domains loaded %u", list == NULL ? 0 : list->count);
+    return (list == NULL ? 0 : (int) list->count);
+}
+
+// Changes whenever the blocklist or the clearnet hosts change, answers cached before are stale
+uint32_t get_domains_generation() {
+    return __sync_add_and_fetch(&domains_generation, 0);
+}
+
+void invalidate_dns_answers() {
+    __sync_add_and_fetch(&domains_generation, 1);
+}
+
+jboolean is_domain_blocked(const struct arguments *args, const char *name) {
+    uint8_t flags = 0;
+
+    if (pthread_rwlock_rdlock(&domains_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_rdlock failed");
+
+    if (domains != NULL && *name) {
+        flags = (uint8_t) (get_domain_flags(domains, name) &
+                           (DOMAIN_BLOCK_EXACT | DOMAIN_ALLOW_EXACT));
+        for (const char *p = strchr(name, '.'); p != NULL; p = strchr(p + 1, '.'))
+            if (*(p + 1))
+                flags |= get_domain_flags(domains, p + 1) &
+                         (DOMAIN_BLOCK_SUBDOMAINS | DOMAIN_ALLOW_SUBDOMAINS);
+    }
+
+    if (pthread_rwlock_unlock(&domains_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_rwlock_unlock failed");
+
+    return (jboolean) ((flags & (DOMAIN_BLOCK_EXACT | DOMAIN_BLOCK_SUBDOMAINS)) &&
+                       !(flags & (DOMAIN_ALLOW_EXACT | DOMAIN_ALLOW_SUBDOMAINS)));
+}
+
+// Answers a query for a blocked name with the configured rcode, returns 1 when answered
+int domain_block_query(const struct arguments *args,
+                       const uint8_t *pkt, const struct udphdr *udphdr,
+                       const uint8_t *data, size_t datalen, jint uid) {
+    if (uid == own_uid || datalen < sizeof(struct dns_header) + 1)
+        return 0;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (dns->qr != 0 || dns->opcode != 0 || ntohs(dns->q_count) != 1)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), qname);
+    if (off < 0 || off + 4 > datalen || !is_domain_blocked(args, qname))
+        return 0;
+    uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
+    off += 4;
+
+    // The question only, without the EDNS record
+    uint8_t *buffer = get_packet_buffer(args->ctx);
+    memcpy(buffer, data, (size_t) off);
+
+    struct dns_header *reply = (struct dns_header *) buffer;
+    reply->qr = 1;
+    reply->aa = 0;
+    reply->tc = 0;
+    reply->ra = 1;
+    reply->z = 0;
+    reply->ad = 0;
+    reply->rcode = (uint16_t) args->rcode;
+    reply->ans_count = 0;
+    reply->auth_count = 0;
+    reply->add_count = 0;
+
+    struct udp_session u;
+    get_query_session(pkt, udphdr, &u);
+    write_udp(args, &u, buffer, (size_t) off);
+
+    put_packet_buffer(args->ctx, buffer);
+
+    args->ctx->dns_blocked++;
+    log_android(ANDROID_LOG_DEBUG, "DNS blocked qname %s uid %d rcode %d",
+                qname, uid, args->rcode);
+
+    // Reported like a blocked answer of parse_dns_response, for the DNS log and the records
+    dns_resolved(args, qname, qname, "", "", 0, NULL, args->rcode);
+
+    char name[DNS_QNAME_MAX + 40 + 1];
+    sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, args->rcode);
+    log_packet(args, u.version, IPPROTO_UDP,
+               &u.saddr, ntohs(u.source), &u.daddr, ntohs(u.dest),
+               name, uid, 0);
+
+    return 1;
+}
+
+#pragma clang diagnostic pop
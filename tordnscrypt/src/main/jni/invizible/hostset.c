@@ -0,0 +1,272 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+extern int loglevel;
+
+// Addresses of the clearnet hosts, connected directly instead of through the SOCKS5 proxy.
+// Addresses of the listed names and their subdomains are taken from the DNS answers
+// the engine sees and kept for the answer TTL plus a grace period for clients caching longer.
+// Fixed addresses and networks of the clearnet list never expire.
+
+struct host_network {
+    uint8_t version;
+    uint8_t prefix;
+    union {
+        __be32 ip4;
+        struct in6_addr ip6;
+    } addr;
+};
+
+struct host_address {
+    uint8_t version;
+    union {
+        __be32 ip4;
+        struct in6_addr ip6;
+    } addr;
+    time_t expires;
+};
+
+static pthread_mutex_t hosts_lock = PTHREAD_MUTEX_INITIALIZER;
+static char **host_names = NULL; // sorted
+static int host_name_count = 0;
+static struct host_network *host_networks = NULL;
+static int host_network_count = 0;
+static struct host_address *host_addresses = NULL; // open addressing, bounded probing
+static uint32_t host_snooped = 0;
+
+static int compare_names(const void *a, const void *b) {
+    return strcmp(*(char *const *) a, *(char *const *) b);
+}
+
+static int is_host_name(const char *name) {
+    return bsearch(&name, host_names, (size_t) host_name_count,
+                   sizeof(char *), compare_names) != NULL;
+}
+
+// The name itself or one of its parents is listed
+static int is_host_listed(const char *qname) {
+    char name[DNS_QNAME_MAX + 1];
+    size_t len = strlen(qname);
+    if (len > DNS_QNAME_MAX)
+        return 0;
+    for (size_t i = 0; i <= len; i++)
+        name[i] = (char) tolower(qname[i]);
+
+    for (const char *p = name; p != NULL; p = strchr(p, '.')) {
+        if (*p == '.')
+            p++;
+        if (*p && is_host_name(p))
+            return 1;
+    }
+    return 0;
+}
+
+static uint32_t host_address_hash(int version, const void *addr) {
+    return fnv1a32(FNV1A32_BASIS, addr, version == 4 ? 4 : 16);
+}
+
+static int same_address(const struct host_address *entry, int version, const void *addr) {
+    return entry->version == version &&
+           memcmp(&entry->addr, addr, version == 4 ? 4 : 16) == 0;
+}
+
+static int in_network(const struct host_network *net, int version, const void *addr) {
+    if (net->version != version)
+        return 0;
+
+    const uint8_t *a = (const uint8_t *) addr;
+    const uint8_t *n = (const uint8_t *) &net->addr;
+    int bits = net->prefix;
+    for (int i = 0; bits > 0; i++, bits -= 8) {
+        uint8_t mask = (uint8_t) (bits >= 8 ? 0xFF : 0xFF << (8 - bits));
+        if ((a[i] & mask) != (n[i] & mask))
+            return 0;
+    }
+    return 1;
+}
+
+static void free_hosts() {
+    for (int i = 0; i < host_name_count; i++)
+        ng_free(host_names[i], __FILE__, __LINE__);
+    if (host_names != NULL)
+        ng_free(host_names, __FILE__, __LINE__);
+    if (host_networks != NULL)
+        ng_free(host_networks, __FILE__, __LINE__);
+    if (host_addresses != NULL)
+        ng_free(host_addresses, __FILE__, __LINE__);
+    host_names = NULL;
+    host_name_count = 0;
+    host_networks = NULL;
+    host_network_count = 0;
+    host_addresses = NULL;
+    host_snooped = 0;
+}
+
+// Replaces the lists, addresses learned for the previous names are dropped
+void set_hosts(const char **names, int name_count, const char **networks, int network_count) {
+    if (pthread_mutex_lock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    free_hosts();
+
+    if (name_count > 0) {
+        host_names = ng_malloc(name_count * sizeof(char *), "host names");
+        for (int i = 0; i < name_count; i++) {
+            size_t len = strlen(names[i]);
+            host_names[host_name_count] = ng_malloc(len + 1, "host name");
+            for (size_t c = 0; c <= len; c++)
+                host_names[host_name_count][c] = (char) tolower(names[i][c]);
+            host_name_count++;
+        }
+        qsort(host_names, (size_t) host_name_count, sizeof(char *), compare_names);
+
+        host_addresses = ng_calloc(HOST_ADDRESS_MAX, sizeof(struct host_address), "host addresses");
+    }
+
+    if (network_count > 0) {
+        host_networks = ng_malloc(network_count * sizeof(struct host_network), "host networks");
+        for (int i = 0; i < network_count; i++) {
+            char addr[INET6_ADDRSTRLEN + 1];
+            strncpy(addr, networks[i], INET6_ADDRSTRLEN);
+            addr[INET6_ADDRSTRLEN] = 0;
+
+            char *slash = strchr(addr, '/');
+            int prefix = -1;
+            if (slash != NULL) {
+                *slash = 0;
+                prefix = atoi(slash + 1);
+            }
+
+            struct host_network *net = &host_networks[host_network_count];
+            if (inet_pton(AF_INET, addr, &net->addr.ip4) == 1) {
+                net->version = 4;
+                net->prefix = (uint8_t) (prefix < 0 || prefix > 32 ? 32 : prefix);
+            } else if (inet_pton(AF_INET6, addr, &net->addr.ip6) == 1) {
+                net->version = 6;
+                net->prefix = (uint8_t) (prefix < 0 || prefix > 128 ? 128 : prefix);
+            } else {
+                log_android(ANDROID_LOG_WARN, "Hosts invalid address %s", networks[i]);
+                continue;
+            }
+            host_network_count++;
+        }
+    }
+
+    log_android(ANDROID_LOG_WARN, "Hosts names %d networks %d",
+                host_name_count, host_network_count);
+
+    if (pthread_mutex_unlock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    // Cached answers were not snooped for the new names
+    invalidate_dns_answers();
+}
+
+// Called for each A/AAAA answer, addr in network notation
+void snoop_host_address(const char *qname, int version, const void *addr, uint32_t ttl) {
+    if (host_name_count == 0)
+        return;
+
+    if (pthread_mutex_lock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (host_addresses != NULL && is_host_listed(qname)) {
+        time_t now = time(NULL);
+        time_t expires = now + (ttl > HOST_TTL_MAX ? HOST_TTL_MAX : ttl) + HOST_TTL_GRACE;
+
+        // Same address, else the free, expired or first expiring slot
+        uint32_t index = host_address_hash(version, addr);
+        struct host_address *slot = NULL;
+        struct host_address *victim = NULL;
+        for (int p = 0; p < HOST_ADDRESS_PROBE; p++) {
+            struct host_address *entry = &host_addresses[(index + p) & (HOST_ADDRESS_MAX - 1)];
+            if (entry->version != 0 && same_address(entry, version, addr)) {
+                slot = entry;
+                break;
+            }
+            if (victim == NULL || entry->expires < victim->expires)
+                victim = entry;
+        }
+
+        if (slot == NULL) {
+            slot = victim;
+            slot->version = (uint8_t) version;
+            memcpy(&slot->addr, addr, version == 4 ? 4 : 16);
+            slot->expires = 0;
+            host_snooped++;
+        }
+        if (expires > slot->expires)
+            slot->expires = expires;
+
+        if (loglevel <= ANDROID_LOG_DEBUG) {
+            char dest[INET6_ADDRSTRLEN + 1];
+            inet_ntop(version == 4 ? AF_INET : AF_INET6, addr, dest, sizeof(dest));
+            log_android(ANDROID_LOG_DEBUG, "Hosts %s address %s ttl %u", qname, dest, ttl);
+        }
+    }
+
+    if (pthread_mutex_unlock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Connections to these addresses bypass the SOCKS5 proxy
+int is_host_address(int version, const void *addr) {
+    if (host_name_count == 0 && host_network_count == 0)
+        return 0;
+
+    int found = 0;
+
+    if (pthread_mutex_lock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    for (int i = 0; i < host_network_count && !found; i++)
+        found = in_network(&host_networks[i], version, addr);
+
+    if (!found && host_addresses != NULL) {
+        time_t now = time(NULL);
+        uint32_t index = host_address_hash(version, addr);
+        for (int p = 0; p < HOST_ADDRESS_PROBE && !found; p++) {
+            struct host_address *entry = &host_addresses[(index + p) & (HOST_ADDRESS_MAX - 1)];
+            found = (entry->version != 0 && entry->expires > now &&
+                     same_address(entry, version, addr));
+        }
+    }
+
+    if (pthread_mutex_unlock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return found;
+}
+
+void clear_hosts() {
+    if (pthread_mutex_lock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    if (host_snooped)
+        log_android(ANDROID_LOG_WARN, "Hosts snooped addresses %u", host_snooped);
+    free_hosts();
+    if (pthread_mutex_unlock(&hosts_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+#pragma clang diagnostic pop
@@ -87,7 +87,7 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
             s->icmp.time = time(NULL);
 
             uint16_t blen = (uint16_t) (s->icmp.version == 4 ? ICMP4_MAXMSG : ICMP6_MAXMSG);
-            uint8_t *buffer = ng_malloc(blen, "icmp socket");
+            uint8_t *buffer = get_packet_buffer(args->ctx);
             ssize_t bytes = recv(s->socket, buffer, blen, 0);
             if (bytes < 0) {
                 // Socket error
@@ -140,7 +140,7 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                 if (write_icmp(args, &s->icmp, buffer, (size_t) bytes) < 0)
                     s->icmp.stop = 1;
             }
-            ng_free(buffer, __FILE__, __LINE__);
+            put_packet_buffer(args->ctx, buffer);
         }
     }
 }
@@ -174,15 +174,10 @@ jboolean handle_icmp(const struct arguments *args,
     }
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !((cur->protocol == IPPROTO_ICMP || cur->protocol == IPPROTO_ICMPV6) &&
-             !cur->icmp.stop && cur->icmp.version == version &&
-             (version == 4 ? cur->icmp.saddr.ip4 == ip4->saddr &&
-                             cur->icmp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->icmp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->icmp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, version, (uint8_t) (version == 4 ? IPPROTO_ICMP : IPPROTO_ICMPV6),
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src, 0,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst, 0);
 
     // Create new session if needed
     if (cur == NULL) {
@@ -207,7 +202,6 @@ jboolean handle_icmp(const struct arguments *args,
         s->icmp.id = icmp->icmp_id; // store original ID
 
         s->icmp.stop = 0;
-        s->next = NULL;
 
         // Open UDP socket
         s->socket = open_icmp_socket(args, &s->icmp);
@@ -225,8 +219,7 @@ jboolean handle_icmp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add icmp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->ctx, s);
 
         cur = s;
     }
@@ -304,7 +297,8 @@ int open_icmp_socket(const struct arguments *args, const struct icmp_session *cu
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen) {
     size_t len;
-    u_int8_t *buffer;
+    uint8_t header[TUN_HEADER_MAX];
+    uint8_t *buffer = header;
     struct icmp *icmp = (struct icmp *) data;
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -312,10 +306,7 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + datalen;
-        buffer = ng_malloc(len, "icmp write4");
         struct iphdr *ip4 = (struct iphdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr), data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -331,10 +322,7 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
     } else {
         len = sizeof(struct ip6_hdr) + datalen;
-        buffer = ng_malloc(len, "icmp write6");
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr), data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -360,9 +348,12 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                 args->tun, dest, source, datalen,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
-    ssize_t res = write(args->tun, buffer, len);
-
-    ng_free(buffer, __FILE__, __LINE__);
+    struct iovec iov[2];
+    iov[0].iov_base = buffer;
+    iov[0].iov_len = len - datalen;
+    iov[1].iov_base = (void *) data;
+    iov[1].iov_len = datalen;
+    ssize_t res = write_tun(args, iov, datalen ? 2 : 1, cur->uid);
 
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
@@ -36,18 +36,15 @@ int loglevel = ANDROID_LOG_WARN;
 
 extern int max_tun_msg;
 
-extern int uid_cache_size;
-extern struct uid_cache_entry *uid_cache;
 
 // JNI
 
-jclass clsPacket;
+JavaVM *jvm = NULL;
 jclass clsAllowed;
-jclass clsRR;
-jclass clsUsage;
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     log_android(ANDROID_LOG_INFO, "JNI load");
+    jvm = vm;
 
     JNIEnv *env;
     if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
@@ -55,22 +52,10 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
         return -1;
     }
 
-    const char *packet = "pan/alexander/tordnscrypt/vpn/Packet";
-    clsPacket = jniGlobalRef(env, jniFindClass(env, packet));
-    ng_add_alloc(clsPacket, "clsPacket");
-
     const char *allowed = "pan/alexander/tordnscrypt/vpn/Allowed";
     clsAllowed = jniGlobalRef(env, jniFindClass(env, allowed));
     ng_add_alloc(clsAllowed, "clsAllowed");
 
-    const char *rr = "pan/alexander/tordnscrypt/vpn/ResourceRecord";
-    clsRR = jniGlobalRef(env, jniFindClass(env, rr));
-    ng_add_alloc(clsRR, "clsRR");
-
-    const char *usage = "pan/alexander/tordnscrypt/vpn/Usage";
-    clsUsage = jniGlobalRef(env, jniFindClass(env, usage));
-    ng_add_alloc(clsUsage, "clsUsage");
-
     // Raise file number limit to maximum
     struct rlimit rlim;
     if (getrlimit(RLIMIT_NOFILE, &rlim))
@@ -94,36 +79,29 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
     if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK)
         log_android(ANDROID_LOG_INFO, "JNI load GetEnv failed");
     else {
-        (*env)->DeleteGlobalRef(env, clsPacket);
         (*env)->DeleteGlobalRef(env, clsAllowed);
-        (*env)->DeleteGlobalRef(env, clsRR);
-        (*env)->DeleteGlobalRef(env, clsUsage);
-        ng_delete_alloc(clsPacket, __FILE__, __LINE__);
         ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
-        ng_delete_alloc(clsRR, __FILE__, __LINE__);
-        ng_delete_alloc(clsUsage, __FILE__, __LINE__);
     }
 }
 
-// JNI ServiceSinkhole
+// Contexts
 
-JNIEXPORT jlong JNICALL
-Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1init(
-        JNIEnv *env, jobject instance, jint sdk) {
+// Sessions, caches and shared buffer of the tunnel thread or of one worker of the sharded mode
+struct context *create_context(int sdk) {
     struct context *ctx = ng_calloc(1, sizeof(struct context), "init");
+    if (ctx == NULL)
+        return NULL;
     ctx->sdk = sdk;
 
-    loglevel = ANDROID_LOG_WARN;
-
-    *socks5_addr = 0;
-    socks5_port = 0;
-    *socks5_username = 0;
-    *socks5_password = 0;
+    ctx->shared = ng_calloc(1, SHARED_SIZE, "shared");
+    ctx->shared_size = SHARED_SIZE;
 
-    own_uid = getuid();
+    init_packet_pool(ctx);
 
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->usage_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
 
     // Create signal pipe
     if (pipe(ctx->pipefds))
@@ -136,7 +114,45 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1init(
                             i, errno, strerror(errno));
         }
 
-    return (jlong) ctx;
+    return ctx;
+}
+
+void free_context(struct context *ctx) {
+    clear(ctx);
+    clear_verdicts(ctx);
+    clear_packet_pool(ctx);
+    clear_usage(ctx);
+
+    if (pthread_mutex_destroy(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+    if (pthread_mutex_destroy(&ctx->usage_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+
+    for (int i = 0; i < 2; i++)
+        if (close(ctx->pipefds[i]))
+            log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
+
+    if (ctx->shared != NULL)
+        ng_free(ctx->shared, __FILE__, __LINE__);
+
+    ng_free(ctx, __FILE__, __LINE__);
+}
+
+// JNI ServiceSinkhole
+
+JNIEXPORT jlong JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1init(
+        JNIEnv *env, jobject instance, jint sdk) {
+    loglevel = ANDROID_LOG_WARN;
+
+    *socks5_addr = 0;
+    socks5_port = 0;
+    *socks5_username = 0;
+    *socks5_password = 0;
+
+    own_uid = getuid();
+
+    return (jlong) create_context(sdk);
 }
 
 JNIEXPORT void JNICALL
@@ -154,10 +170,12 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1start(
 
 JNIEXPORT void JNICALL
 Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1run(
-        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode) {
+        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode,
+        jint workers) {
     struct context *ctx = (struct context *) context;
 
-    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d", tun, fwd53, loglevel);
+    log_android(ANDROID_LOG_WARN, "Running tun %d fwd53 %d level %d workers %d",
+                tun, fwd53, loglevel, workers);
 
     // Set blocking
     int flags = fcntl(tun, F_GETFL, 0);
@@ -173,7 +191,11 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1run(
     args->fwd53 = fwd53;
     args->rcode = rcode;
     args->ctx = ctx;
-    handle_events(args);
+    args->worker = NULL;
+    if (workers > 1)
+        run_workers(args, workers);
+    else
+        handle_events(args);
 }
 
 JNIEXPORT void JNICALL
@@ -192,6 +214,285 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
     clear(ctx);
+    clear_workers(ctx);
+}
+
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1invalidate_1verdicts(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    invalidate_verdicts(ctx);
+
+    // Workers are replaced under the lock only
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    for (int i = 0; i < ctx->worker_count; i++)
+        invalidate_verdicts(ctx->workers[i].ctx);
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+static void reload_context(struct context *ctx, int wakeup) {
+    invalidate_verdicts(ctx);
+    __sync_lock_test_and_set(&ctx->reload, 1);
+    if (wakeup && write(ctx->pipefds[1], "r", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+// Rules are swapped by Java, sessions are checked again without restarting the engine
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1reload(
+        JNIEnv *env, jobject instance, jlong context, jint loglevel_) {
+    struct context *ctx = (struct context *) context;
+
+    loglevel = loglevel_;
+    log_android(ANDROID_LOG_WARN, "Reloading level %d", loglevel);
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    reload_context(ctx, ctx->worker_count == 0);
+    for (int i = 0; i < ctx->worker_count; i++)
+        reload_context(ctx->workers[i].ctx, ctx->workers[i].running);
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Answers are kept with TTLs between ttl_min and ttl_max seconds, ttl_max 0 disables the cache
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1dns_1cache(
+        JNIEnv *env, jobject instance, jlong context, jint ttl_min, jint ttl_max) {
+    struct context *ctx = (struct context *) context;
+
+    log_android(ANDROID_LOG_WARN, "DNS cache ttl %d-%d", ttl_min, ttl_max);
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    ctx->dns_ttl_min = ttl_min;
+    ctx->dns_ttl_max = ttl_max;
+    for (int i = 0; i < ctx->worker_count; i++) {
+        ctx->workers[i].ctx->dns_ttl_min = ttl_min;
+        ctx->workers[i].ctx->dns_ttl_max = ttl_max;
+    }
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// DNS cache hits, misses, queries merged with one in flight and blocked queries, of all workers
+JNIEXPORT jlongArray JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1get_1dns_1stats(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    jlong stats[4];
+    stats[0] = ctx->dns_hits;
+    stats[1] = ctx->dns_misses;
+    stats[2] = ctx->dns_coalesced;
+    stats[3] = ctx->dns_blocked;
+    for (int i = 0; i < ctx->worker_count; i++) {
+        stats[0] += ctx->workers[i].ctx->dns_hits;
+        stats[1] += ctx->workers[i].ctx->dns_misses;
+        stats[2] += ctx->workers[i].ctx->dns_coalesced;
+        stats[3] += ctx->workers[i].ctx->dns_blocked;
+    }
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    jlongArray jstats = (*env)->NewLongArray(env, 4);
+    if (jstats != NULL)
+        (*env)->SetLongArrayRegion(env, jstats, 0, 4, stats);
+    return jstats;
+}
+
+static jlong get_address_long(const uint8_t *addr) {
+    jlong value = 0;
+    for (int i = 0; i < 8; i++)
+        value = (value << 8) | addr[i];
+    return value;
+}
+
+// Usage counted since the last call, USAGE_LONGS per uid and destination:
+// uid, version | protocol << 8 | proxied << 16 | dport << 32,
+// destination address as two big endian halves, sent, received, sessions
+JNIEXPORT jlongArray JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1get_1usage(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    int count = 1 + ctx->worker_count;
+    struct usage_entry *tables[1 + WORKER_MAX];
+    tables[0] = take_usage(ctx);
+    for (int i = 0; i < ctx->worker_count; i++)
+        tables[1 + i] = take_usage(ctx->workers[i].ctx);
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    int entries = 0;
+    for (int t = 0; t < count; t++)
+        if (tables[t] != NULL)
+            for (int i = 0; i < USAGE_MAX; i++)
+                if (tables[t][i].sent || tables[t][i].received || tables[t][i].sessions)
+                    entries++;
+
+    jlongArray jusage = (*env)->NewLongArray(env, entries * USAGE_LONGS);
+    jlong values[USAGE_LONGS];
+    int index = 0;
+    for (int t = 0; t < count; t++) {
+        if (tables[t] == NULL)
+            continue;
+        for (int i = 0; i < USAGE_MAX && jusage != NULL; i++) {
+            struct usage_entry *entry = &tables[t][i];
+            if (!entry->sent && !entry->received && !entry->sessions)
+                continue;
+
+            uint8_t addr[16];
+            memset(addr, 0, sizeof(addr));
+            memcpy(addr, &entry->daddr, entry->version == 6 ? 16 : 4);
+
+            values[0] = entry->uid;
+            values[1] = entry->version | (entry->protocol << 8) | (entry->proxied << 16) |
+                        ((jlong) entry->dport << 32);
+            values[2] = get_address_long(addr);
+            values[3] = get_address_long(addr + 8);
+            values[4] = (jlong) entry->sent;
+            values[5] = (jlong) entry->received;
+            values[6] = entry->sessions;
+            (*env)->SetLongArrayRegion(env, jusage, index, USAGE_LONGS, values);
+            index += USAGE_LONGS;
+        }
+        ng_free(tables[t], __FILE__, __LINE__);
+    }
+
+    return jusage;
+}
+
+// Maps the blocklist compiled by DomainBlocklist, null unloads it
+JNIEXPORT jint JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1domains(
+        JNIEnv *env, jobject instance, jstring path_) {
+    if (path_ == NULL)
+        return load_domains(NULL);
+
+    const char *path = (*env)->GetStringUTFChars(env, path_, 0);
+    ng_add_alloc(path, "path");
+
+    jint count = load_domains(path);
+
+    (*env)->ReleaseStringUTFChars(env, path_, path);
+    ng_delete_alloc(path, __FILE__, __LINE__);
+
+    return count;
+}
+
+// Copies of the strings, local references are released at once to stay below their limit
+static char **get_strings(JNIEnv *env, jobjectArray array, int count) {
+    char **strings = ng_malloc((count > 0 ? count : 1) * sizeof(char *), "strings");
+    for (int i = 0; i < count; i++) {
+        jstring jstring_ = (jstring) (*env)->GetObjectArrayElement(env, array, i);
+        const char *string = (*env)->GetStringUTFChars(env, jstring_, 0);
+        strings[i] = ng_malloc(strlen(string) + 1, "string");
+        strcpy(strings[i], string);
+        (*env)->ReleaseStringUTFChars(env, jstring_, string);
+        (*env)->DeleteLocalRef(env, jstring_);
+    }
+    return strings;
+}
+
+static void free_strings(char **strings, int count) {
+    for (int i = 0; i < count; i++)
+        ng_free(strings[i], __FILE__, __LINE__);
+    ng_free(strings, __FILE__, __LINE__);
+}
+
+// Clearnet host names, whose answered addresses bypass SOCKS5, and fixed addresses or networks
+JNIEXPORT void JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1hosts(
+        JNIEnv *env, jobject instance, jobjectArray names_, jobjectArray networks_) {
+    int name_count = (names_ == NULL ? 0 : (*env)->GetArrayLength(env, names_));
+    int network_count = (networks_ == NULL ? 0 : (*env)->GetArrayLength(env, networks_));
+
+    char **names = get_strings(env, names_, name_count);
+    char **networks = get_strings(env, networks_, network_count);
+
+    set_hosts((const char **) names, name_count, (const char **) networks, network_count);
+
+    free_strings(names, name_count);
+    free_strings(networks, network_count);
+}
+
+// Sessions of the running engine as SNAPSHOT_RECORD records into the direct buffer,
+// returns the number of sessions, which can be more than the buffer holds
+JNIEXPORT jint JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1get_1sessions(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer_) {
+    struct context *ctx = (struct context *) context;
+
+    uint8_t *buffer = (*env)->GetDirectBufferAddress(env, buffer_);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer_);
+    if (buffer == NULL || capacity < 0)
+        return -1;
+
+    return take_snapshot(ctx, buffer, (int) (capacity / SNAPSHOT_RECORD));
+}
+
+// Captures tun packets of the uids, or of all apps without uids, null path stops capturing
+JNIEXPORT jint JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1pcap(
+        JNIEnv *env, jobject instance, jstring path_, jint size, jint snaplen, jintArray uids_) {
+    if (path_ == NULL) {
+        stop_pcap();
+        return 0;
+    }
+
+    jint uids[PCAP_UIDS];
+    int uid_count = (uids_ == NULL ? 0 : (*env)->GetArrayLength(env, uids_));
+    if (uid_count > PCAP_UIDS)
+        uid_count = PCAP_UIDS;
+    if (uid_count > 0)
+        (*env)->GetIntArrayRegion(env, uids_, 0, uid_count, uids);
+
+    const char *path = (*env)->GetStringUTFChars(env, path_, 0);
+    ng_add_alloc(path, "path");
+
+    jint result = start_pcap(path, (size_t) size, snaplen, uids, uid_count);
+
+    (*env)->ReleaseStringUTFChars(env, path_, path);
+    ng_delete_alloc(path, __FILE__, __LINE__);
+
+    return result;
+}
+
+// Packets, dropped packets and active sessions of each worker
+JNIEXPORT jlongArray JNICALL
+Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1get_1worker_1stats(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    jlongArray jstats = (*env)->NewLongArray(env, ctx->worker_count * 3);
+    if (jstats != NULL)
+        for (int i = 0; i < ctx->worker_count; i++) {
+            struct worker *w = &ctx->workers[i];
+            jlong stats[3];
+            stats[0] = (jlong) w->packets;
+            stats[1] = (jlong) w->dropped;
+            stats[2] = get_sessions(w->ctx);
+            (*env)->SetLongArrayRegion(env, jstats, i * 3, 3, stats);
+        }
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return jstats;
 }
 
 JNIEXPORT jint JNICALL
@@ -232,21 +533,14 @@ Java_pan_alexander_tordnscrypt_vpn_service_ServiceVPN_jni_1done(
     struct context *ctx = (struct context *) context;
     log_android(ANDROID_LOG_INFO, "Done");
 
-    clear(ctx);
-
-    if (pthread_mutex_destroy(&ctx->lock))
-        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
-
-    for (int i = 0; i < 2; i++)
-        if (close(ctx->pipefds[i]))
-            log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
-
-    if (uid_cache != NULL)
-        ng_free(uid_cache, __FILE__, __LINE__);
-    uid_cache_size = 0;
-    uid_cache = NULL;
+    free_workers(ctx);
+    free_context(ctx);
 
-    ng_free(ctx, __FILE__, __LINE__);
+    clear_uid_cache();
+    load_domains(NULL);
+    clear_hosts();
+    clear_dns_names();
+    stop_pcap();
 }
 
 // JNI Util
@@ -408,51 +702,68 @@ int jniCheckException(JNIEnv *env) {
     return 0;
 }
 
-static jmethodID midLogPacket = NULL;
-
-void log_packet(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+static jmethodID midAttachSharedBuffer = NULL;
 
+// Each engine thread hands its own shared buffer to Java before any other upcall
+int attach_shared_buffer(const struct arguments *args) {
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/Packet;)V";
-    if (midLogPacket == NULL)
-        midLogPacket = jniGetMethodID(args->env, clsService, "logPacket", signature);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midLogPacket, jpacket);
-    jniCheckException(args->env);
+    const char *signature = "(Ljava/nio/ByteBuffer;)V";
+    if (midAttachSharedBuffer == NULL)
+        midAttachSharedBuffer = jniGetMethodID(args->env, clsService,
+                                               "attachSharedBuffer", signature);
+
+    jobject jbuffer = NULL;
+    if (args->ctx->shared != NULL)
+        jbuffer = (*args->env)->NewDirectByteBuffer(
+                args->env, args->ctx->shared, (jlong) args->ctx->shared_size);
+    ng_add_alloc(jbuffer, "jbuffer");
+
+    int error = (jbuffer == NULL || midAttachSharedBuffer == NULL);
+    if (!error) {
+        (*args->env)->CallVoidMethod(args->env, args->instance, midAttachSharedBuffer, jbuffer);
+        error = jniCheckException(args->env);
+    }
 
+    (*args->env)->DeleteLocalRef(args->env, jbuffer);
+    ng_delete_alloc(jbuffer, __FILE__, __LINE__);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
-    ng_delete_alloc(jpacket, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    return (error ? -1 : 0);
 }
 
-static jmethodID midDnsResolved = NULL;
-static jmethodID midInitRR = NULL;
-jfieldID fidQTime = NULL;
-jfieldID fidQName = NULL;
-jfieldID fidAName = NULL;
-jfieldID fidCName = NULL;
-jfieldID fidHInfo = NULL;
-jfieldID fidResource = NULL;
-jfieldID fidRcode = NULL;
+// Addresses and names cross to Java through the direct buffer of the calling thread,
+// Java decodes them only when they are logged or shown
 
-void dns_resolved(const struct arguments *args, const char *qname, const char *aname,
-        const char *cname, const char * hinfo, const char *resource, int rcode) {
+void share_addresses(const struct arguments *args, jint version,
+                     const void *saddr, const void *daddr) {
+    uint8_t *shared = args->ctx->shared;
+    size_t len = (size_t) (version == 4 ? 4 : 16);
+
+    memset(shared + SHARED_SADDR, 0, 16);
+    memset(shared + SHARED_DADDR, 0, 16);
+    if (saddr != NULL)
+        memcpy(shared + SHARED_SADDR, saddr, len);
+    if (daddr != NULL)
+        memcpy(shared + SHARED_DADDR, daddr, len);
+}
+
+static jint share_name(const struct arguments *args, size_t *off, const char *name) {
+    size_t len = strlen(name);
+    if (*off + len > args->ctx->shared_size)
+        len = args->ctx->shared_size - *off;
+    memcpy(args->ctx->shared + *off, name, len);
+    *off += len;
+    return (jint) len;
+}
+
+static jmethodID midLogPacket = NULL;
+
+void log_packet(const struct arguments *args, jint version, jint protocol,
+                const void *saddr, jint sport, const void *daddr, jint dport,
+                const char *data, jint uid, jboolean allowed) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -462,64 +773,19 @@ void dns_resolved(const struct arguments *args, const char *qname, const char *a
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/ResourceRecord;)V";
-    if (midDnsResolved == NULL)
-        midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
+    const char *signature = "(IIIIIZI)V";
+    if (midLogPacket == NULL)
+        midLogPacket = jniGetMethodID(args->env, clsService, "logPacket", signature);
 
-    const char *rr = "pan/alexander/tordnscrypt/vpn/ResourceRecord";
-    if (midInitRR == NULL)
-        midInitRR = jniGetMethodID(args->env, clsRR, "<init>", "()V");
-
-    jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
-    ng_add_alloc(jrr, "jrr");
-
-    if (fidQTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidQTime = jniGetFieldID(args->env, clsRR, "Time", "J");
-        fidQName = jniGetFieldID(args->env, clsRR, "QName", string);
-        fidAName = jniGetFieldID(args->env, clsRR, "AName", string);
-        fidCName = jniGetFieldID(args->env, clsRR, "CName", string);
-        fidHInfo = jniGetFieldID(args->env, clsRR, "HInfo", string);
-        fidResource = jniGetFieldID(args->env, clsRR, "Resource", string);
-        fidRcode = jniGetFieldID(args->env, clsRR, "Rcode", "I");
-    }
+    share_addresses(args, version, saddr, daddr);
+    size_t off = SHARED_NAMES;
+    jint datalen = share_name(args, &off, data);
 
-    jlong jtime = time(NULL) * 1000LL;
-    jstring jqname = (*args->env)->NewStringUTF(args->env, qname);
-    jstring janame = (*args->env)->NewStringUTF(args->env, aname);
-    jstring jcname = (*args->env)->NewStringUTF(args->env, cname);
-    jstring jhinfo = (*args->env)->NewStringUTF(args->env, hinfo);
-    jstring jresource = (*args->env)->NewStringUTF(args->env, resource);
-    ng_add_alloc(jqname, "jqname");
-    ng_add_alloc(janame, "janame");
-    ng_add_alloc(jcname, "jcname");
-    ng_add_alloc(jhinfo, "jhinfo");
-    ng_add_alloc(jresource, "jresource");
-
-    (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
-    (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
-    (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
-    (*args->env)->SetObjectField(args->env, jrr, fidCName, jcname);
-    (*args->env)->SetObjectField(args->env, jrr, fidHInfo, jhinfo);
-    (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
-    (*args->env)->SetIntField(args->env, jrr, fidRcode, rcode);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
+    (*args->env)->CallVoidMethod(args->env, args->instance, midLogPacket,
+                                 version, protocol, sport, dport, uid, allowed, datalen);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jresource);
-    (*args->env)->DeleteLocalRef(args->env, janame);
-    (*args->env)->DeleteLocalRef(args->env, jqname);
-    (*args->env)->DeleteLocalRef(args->env, jcname);
-    (*args->env)->DeleteLocalRef(args->env, jhinfo);
-    (*args->env)->DeleteLocalRef(args->env, jrr);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jresource, __FILE__, __LINE__);
-    ng_delete_alloc(janame, __FILE__, __LINE__);
-    ng_delete_alloc(jqname, __FILE__, __LINE__);
-    ng_delete_alloc(jcname, __FILE__, __LINE__);
-    ng_delete_alloc(jhinfo, __FILE__, __LINE__);
-    ng_delete_alloc(jrr, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
 #ifdef PROFILE_JNI
@@ -531,9 +797,11 @@ void dns_resolved(const struct arguments *args, const char *qname, const char *a
 #endif
 }
 
-static jmethodID midIsDomainBlocked = NULL;
+static jmethodID midDnsResolved = NULL;
 
-jboolean is_domain_blocked(const struct arguments *args, const char *name) {
+void dns_resolved(const struct arguments *args, const char *qname, const char *aname,
+                  const char *cname, const char *hinfo,
+                  jint version, const void *resource, int rcode) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -543,20 +811,26 @@ jboolean is_domain_blocked(const struct arguments *args, const char *name) {
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Ljava/lang/String;)Z";
-    if (midIsDomainBlocked == NULL)
-        midIsDomainBlocked = jniGetMethodID(args->env, clsService, "isDomainBlocked", signature);
+    const char *signature = "(JIIIIII)V";
+    if (midDnsResolved == NULL)
+        midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
+
+    // Resource address shares the source address slot
+    share_addresses(args, version, resource, NULL);
+    size_t off = SHARED_NAMES;
+    jint qnamelen = share_name(args, &off, qname);
+    jint anamelen = share_name(args, &off, aname);
+    jint cnamelen = share_name(args, &off, cname);
+    jint hinfolen = share_name(args, &off, hinfo);
 
-    jstring jname = (*args->env)->NewStringUTF(args->env, name);
-    ng_add_alloc(jname, "jname");
+    jlong jtime = time(NULL) * 1000LL;
 
-    jboolean jallowed = (*args->env)->CallBooleanMethod(
-            args->env, args->instance, midIsDomainBlocked, jname);
+    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved,
+                                 jtime, rcode, (resource == NULL ? 0 : version),
+                                 qnamelen, anamelen, cnamelen, hinfolen);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jname);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jname, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
 #ifdef PROFILE_JNI
@@ -564,18 +838,16 @@ jboolean is_domain_blocked(const struct arguments *args, const char *name) {
     mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
                 (end.tv_usec - start.tv_usec) / 1000.0;
     if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_domain_blocked %f", mselapsed);
+        log_android(ANDROID_LOG_WARN, "dns_resolved %f", mselapsed);
 #endif
-
-    return jallowed;
 }
 
 static jmethodID midGetUidQ = NULL;
 
 jint get_uid_q(const struct arguments *args,
                jint version, jint protocol,
-               const char *source, jint sport,
-               const char *dest, jint dport) {
+               const void *saddr, jint sport,
+               const void *daddr, jint dport) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -585,25 +857,18 @@ jint get_uid_q(const struct arguments *args,
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(IILjava/lang/String;ILjava/lang/String;I)I";
+    const char *signature = "(IIII)I";
     if (midGetUidQ == NULL)
         midGetUidQ = jniGetMethodID(args->env, clsService, "getUidQ", signature);
 
-    jstring jsource = (*args->env)->NewStringUTF(args->env, source);
-    jstring jdest = (*args->env)->NewStringUTF(args->env, dest);
-    ng_add_alloc(jsource, "jsource");
-    ng_add_alloc(jdest, "jdest");
+    share_addresses(args, version, saddr, daddr);
 
     jint juid = (*args->env)->CallIntMethod(
             args->env, args->instance, midGetUidQ,
-            version, protocol, jsource, sport, jdest, dport);
+            version, protocol, sport, dport);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jdest);
-    (*args->env)->DeleteLocalRef(args->env, jsource);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdest, __FILE__, __LINE__);
-    ng_delete_alloc(jsource, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
 #ifdef PROFILE_JNI
@@ -620,24 +885,32 @@ jint get_uid_q(const struct arguments *args,
 static jmethodID midIsAddressAllowed = NULL;
 jfieldID fidRaddr = NULL;
 jfieldID fidRport = NULL;
-struct allowed allowed;
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
+struct allowed *is_address_allowed(const struct arguments *args,
+                                   jint version, jint protocol,
+                                   const void *saddr, jint sport,
+                                   const void *daddr, jint dport,
+                                   jint uid) {
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
     gettimeofday(&start, NULL);
 #endif
 
+    struct allowed *allowed = &args->ctx->allowed;
+
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/Packet;)Lpan/alexander/tordnscrypt/vpn/Allowed;";
+    const char *signature = "(IIIII)Lpan/alexander/tordnscrypt/vpn/Allowed;";
     if (midIsAddressAllowed == NULL)
         midIsAddressAllowed = jniGetMethodID(args->env, clsService, "isAddressAllowed", signature);
 
+    share_addresses(args, version, saddr, daddr);
+
     jobject jallowed = (*args->env)->CallObjectMethod(
-            args->env, args->instance, midIsAddressAllowed, jpacket);
+            args->env, args->instance, midIsAddressAllowed,
+            version, protocol, sport, dport, uid);
     ng_add_alloc(jallowed, "jallowed");
     jniCheckException(args->env);
 
@@ -651,25 +924,22 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
         jstring jraddr = (*args->env)->GetObjectField(args->env, jallowed, fidRaddr);
         ng_add_alloc(jraddr, "jraddr");
         if (jraddr == NULL)
-            *allowed.raddr = 0;
+            *allowed->raddr = 0;
         else {
             const char *raddr = (*args->env)->GetStringUTFChars(args->env, jraddr, NULL);
             ng_add_alloc(raddr, "raddr");
-            strcpy(allowed.raddr, raddr);
+            strcpy(allowed->raddr, raddr);
             (*args->env)->ReleaseStringUTFChars(args->env, jraddr, raddr);
             ng_delete_alloc(raddr, __FILE__, __LINE__);
         }
-        allowed.rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
+        allowed->rport = (uint16_t) (*args->env)->GetIntField(args->env, jallowed, fidRport);
 
         (*args->env)->DeleteLocalRef(args->env, jraddr);
         ng_delete_alloc(jraddr, __FILE__, __LINE__);
     }
 
-
-    (*args->env)->DeleteLocalRef(args->env, jpacket);
     (*args->env)->DeleteLocalRef(args->env, clsService);
     (*args->env)->DeleteLocalRef(args->env, jallowed);
-    ng_delete_alloc(jpacket, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
     ng_delete_alloc(jallowed, __FILE__, __LINE__);
 
@@ -681,189 +951,7 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
         log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
 #endif
 
-    return (jallowed == NULL ? NULL : &allowed);
-}
-
-jmethodID midInitPacket = NULL;
-
-jfieldID fidTime = NULL;
-jfieldID fidVersion = NULL;
-jfieldID fidProtocol = NULL;
-jfieldID fidFlags = NULL;
-jfieldID fidSaddr = NULL;
-jfieldID fidSport = NULL;
-jfieldID fidDaddr = NULL;
-jfieldID fidDport = NULL;
-jfieldID fidData = NULL;
-jfieldID fidUid = NULL;
-jfieldID fidAllowed = NULL;
-
-jobject create_packet(const struct arguments *args,
-                      jint version,
-                      jint protocol,
-                      const char *flags,
-                      const char *source,
-                      jint sport,
-                      const char *dest,
-                      jint dport,
-                      const char *data,
-                      jint uid,
-                      jboolean allowed) {
-    JNIEnv *env = args->env;
-
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    /*
-        jbyte b[] = {1,2,3};
-        jbyteArray ret = env->NewByteArray(3);
-        env->SetByteArrayRegion (ret, 0, 3, b);
-     */
-
-    const char *packet = "pan/alexander/tordnscrypt/vpn/Packet";
-    if (midInitPacket == NULL)
-        midInitPacket = jniGetMethodID(env, clsPacket, "<init>", "()V");
-    jobject jpacket = jniNewObject(env, clsPacket, midInitPacket, packet);
-    ng_add_alloc(jpacket, "jpacket");
-
-    if (fidTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidTime = jniGetFieldID(env, clsPacket, "time", "J");
-        fidVersion = jniGetFieldID(env, clsPacket, "version", "I");
-        fidProtocol = jniGetFieldID(env, clsPacket, "protocol", "I");
-        fidFlags = jniGetFieldID(env, clsPacket, "flags", string);
-        fidSaddr = jniGetFieldID(env, clsPacket, "saddr", string);
-        fidSport = jniGetFieldID(env, clsPacket, "sport", "I");
-        fidDaddr = jniGetFieldID(env, clsPacket, "daddr", string);
-        fidDport = jniGetFieldID(env, clsPacket, "dport", "I");
-        fidData = jniGetFieldID(env, clsPacket, "data", string);
-        fidUid = jniGetFieldID(env, clsPacket, "uid", "I");
-        fidAllowed = jniGetFieldID(env, clsPacket, "allowed", "Z");
-    }
-
-    struct timeval tv;
-    gettimeofday(&tv, NULL);
-    jlong t = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
-    jstring jflags = (*env)->NewStringUTF(env, flags);
-    jstring jsource = (*env)->NewStringUTF(env, source);
-    jstring jdest = (*env)->NewStringUTF(env, dest);
-    jstring jdata = (*env)->NewStringUTF(env, data);
-    ng_add_alloc(jflags, "jflags");
-    ng_add_alloc(jsource, "jsource");
-    ng_add_alloc(jdest, "jdest");
-    ng_add_alloc(jdata, "jdata");
-
-    (*env)->SetLongField(env, jpacket, fidTime, t);
-    (*env)->SetIntField(env, jpacket, fidVersion, version);
-    (*env)->SetIntField(env, jpacket, fidProtocol, protocol);
-    (*env)->SetObjectField(env, jpacket, fidFlags, jflags);
-    (*env)->SetObjectField(env, jpacket, fidSaddr, jsource);
-    (*env)->SetIntField(env, jpacket, fidSport, sport);
-    (*env)->SetObjectField(env, jpacket, fidDaddr, jdest);
-    (*env)->SetIntField(env, jpacket, fidDport, dport);
-    (*env)->SetObjectField(env, jpacket, fidData, jdata);
-    (*env)->SetIntField(env, jpacket, fidUid, uid);
-    (*env)->SetBooleanField(env, jpacket, fidAllowed, allowed);
-
-    (*env)->DeleteLocalRef(env, jdata);
-    (*env)->DeleteLocalRef(env, jdest);
-    (*env)->DeleteLocalRef(env, jsource);
-    (*env)->DeleteLocalRef(env, jflags);
-    ng_delete_alloc(jdata, __FILE__, __LINE__);
-    ng_delete_alloc(jdest, __FILE__, __LINE__);
-    ng_delete_alloc(jsource, __FILE__, __LINE__);
-    ng_delete_alloc(jflags, __FILE__, __LINE__);
-    // Caller needs to delete reference to packet
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "create_packet %f", mselapsed);
-#endif
-
-    return jpacket;
-}
-
-jmethodID midAccountUsage = NULL;
-jmethodID midInitUsage = NULL;
-jfieldID fidUsageTime = NULL;
-jfieldID fidUsageVersion = NULL;
-jfieldID fidUsageProtocol = NULL;
-jfieldID fidUsageDAddr = NULL;
-jfieldID fidUsageDPort = NULL;
-jfieldID fidUsageUid = NULL;
-jfieldID fidUsageSent = NULL;
-jfieldID fidUsageReceived = NULL;
-
-void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
-
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Lpan/alexander/tordnscrypt/vpn/Usage;)V";
-    if (midAccountUsage == NULL)
-        midAccountUsage = jniGetMethodID(args->env, clsService, "accountUsage", signature);
-
-    const char *usage = "pan/alexander/tordnscrypt/vpn/Usage";
-    if (midInitUsage == NULL)
-        midInitUsage = jniGetMethodID(args->env, clsUsage, "<init>", "()V");
-
-    jobject jusage = jniNewObject(args->env, clsUsage, midInitUsage, usage);
-    ng_add_alloc(jusage, "jusage");
-
-    if (fidUsageTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidUsageTime = jniGetFieldID(args->env, clsUsage, "Time", "J");
-        fidUsageVersion = jniGetFieldID(args->env, clsUsage, "Version", "I");
-        fidUsageProtocol = jniGetFieldID(args->env, clsUsage, "Protocol", "I");
-        fidUsageDAddr = jniGetFieldID(args->env, clsUsage, "DAddr", string);
-        fidUsageDPort = jniGetFieldID(args->env, clsUsage, "DPort", "I");
-        fidUsageUid = jniGetFieldID(args->env, clsUsage, "Uid", "I");
-        fidUsageSent = jniGetFieldID(args->env, clsUsage, "Sent", "J");
-        fidUsageReceived = jniGetFieldID(args->env, clsUsage, "Received", "J");
-    }
-
-    jlong jtime = time(NULL) * 1000LL;
-    jstring jdaddr = (*args->env)->NewStringUTF(args->env, daddr);
-    ng_add_alloc(jdaddr, "jdaddr");
-
-    (*args->env)->SetLongField(args->env, jusage, fidUsageTime, jtime);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageVersion, version);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageProtocol, protocol);
-    (*args->env)->SetObjectField(args->env, jusage, fidUsageDAddr, jdaddr);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageDPort, dport);
-    (*args->env)->SetIntField(args->env, jusage, fidUsageUid, uid);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageSent, sent);
-    (*args->env)->SetLongField(args->env, jusage, fidUsageReceived, received);
-
-    (*args->env)->CallVoidMethod(args->env, args->instance, midAccountUsage, jusage);
-    jniCheckException(args->env);
-
-    (*args->env)->DeleteLocalRef(args->env, jdaddr);
-    (*args->env)->DeleteLocalRef(args->env, jusage);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jdaddr, __FILE__, __LINE__);
-    ng_delete_alloc(jusage, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    return (jallowed == NULL ? NULL : allowed);
 }
 
 struct alloc_record {
@@ -19,6 +19,7 @@
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <stddef.h>
 #include <string.h>
 #include <ctype.h>
 #include <time.h>
@@ -32,6 +33,7 @@
 #include <sys/types.h>
 #include <sys/ioctl.h>
 #include <sys/socket.h>
+#include <sys/uio.h>
 #include <sys/epoll.h>
 #include <dlfcn.h>
 #include <sys/stat.h>
@@ -56,12 +58,19 @@
 // #define PROFILE_JNI 5
 // #define PROFILE_MEMORY
 
+#define FNV1A32_BASIS 2166136261U // see fnv1a32
+
 #define EPOLL_TIMEOUT 3600 // seconds
 #define EPOLL_EVENTS 20
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
 #define TUN_YIELD 10 // packets
 
+#define PACKET_BUFFER_SIZE 65536 // bytes, fits any IP packet
+#define PACKET_POOL_SIZE 8 // buffers kept for reuse
+#define PACKET_POOL_INIT 2 // buffers allocated up front
+#define TUN_HEADER_MAX (40 + 20 + 8) // bytes, IPv6 + TCP + SYN options
+
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
 #define UDP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
@@ -83,9 +92,61 @@
 #define SESSION_LIMIT 40 // percent
 #define SESSION_MAX (1024 * SESSION_LIMIT / 100) // number
 
+#define SESSION_TABLE_MIN 256 // slots, power of two
+#define SESSION_ICMP 0
+#define SESSION_UDP 1
+#define SESSION_TCP 2
+#define SESSION_LISTS 3
+
+#define TIMER_BITS 6
+#define TIMER_SLOTS (1 << TIMER_BITS) // per level
+#define TIMER_LEVELS 3 // slots of 1 second, 64 seconds and 68 minutes
+#define TIMER_DUE (TIMER_LEVELS * TIMER_SLOTS) // list of passed deadlines
+#define TIMER_RESCALE 10 // percent
+
 #define SEND_BUF_DEFAULT 163840 // bytes
 
 #define UID_MAX_AGE 30000 // milliseconds
+#define UID_CACHE_BUCKETS 256 // power of two
+#define UID_CACHE_MAX 4096 // sockets
+
+#define SHARED_SADDR 0 // 16 bytes, network notation
+#define SHARED_DADDR 16 // 16 bytes, network notation
+#define SHARED_NAMES 32 // UTF-8 names back to back
+#define SHARED_SIZE (SHARED_NAMES + 4 * (DNS_QNAME_MAX + 1)) // bytes
+
+#define VERDICT_CACHE_SIZE 1024 // entries, power of two
+#define VERDICT_MAX_AGE 60000 // milliseconds
+
+#define DNS_CACHE_SIZE 256 // entries, power of two
+#define DNS_CACHE_MSG_MAX 1232 // bytes, larger answers are not kept
+#define DNS_PENDING_TIMEOUT 5 // seconds
+#define DNS_WAITERS_MAX 8 // queries waiting for one in flight
+
+#define DNS_MUX_SOCKETS 4 // upstream sockets to the DNS forwarder
+#define DNS_MUX_QUERIES 256 // queries in flight, power of two
+
+#define HOST_ADDRESS_MAX 1024 // learned clearnet addresses, power of two
+#define HOST_ADDRESS_PROBE 8 // slots
+#define HOST_TTL_MAX 86400 // seconds
+#define HOST_TTL_GRACE 300 // seconds, clients may cache answers longer than their TTL
+
+#define DNS_NAME_MAX 1024 // addresses with the name they were answered for, power of two
+#define DNS_NAME_PROBE 4 // slots
+
+#define USAGE_MAX 1024 // uids and destinations per context between takes, power of two
+#define USAGE_PROBE 8 // slots
+#define USAGE_FLUSH 10 // seconds, counting interval of open sessions
+#define USAGE_LONGS 7 // per entry returned by jni_get_usage
+
+#define SNAPSHOT_RECORD 48 // bytes per session returned by jni_get_sessions
+#define SNAPSHOT_TIMEOUT 1 // seconds
+#define SNAPSHOT_DIRECT 0
+#define SNAPSHOT_SOCKS5 1
+#define SNAPSHOT_FORWARDED 2
+
+#define WORKER_MAX 8 // threads
+#define WORKER_QUEUE 64 // packets per worker, power of two
 
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
@@ -93,12 +154,106 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
+struct allowed {
+    char raddr[INET6_ADDRSTRLEN + 1];
+    uint16_t rport; // host notation
+};
+
+struct usage_entry {
+    jint uid;
+    uint8_t version; // 0 for the uid without destination
+    uint8_t protocol;
+    uint8_t proxied; // through SOCKS5
+    uint16_t dport; // host notation
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } daddr;
+    uint64_t sent;
+    uint64_t received;
+    uint32_t sessions;
+};
+
+struct snapshot_request {
+    pthread_mutex_t lock;
+    pthread_cond_t cond;
+    uint8_t *buffer;
+    int capacity; // records
+    int count; // records written
+    int total; // sessions
+    int pending; // contexts to answer
+};
+
+struct dns_upstream {
+    int socket;
+    uint8_t open;
+    struct epoll_event ev;
+};
+
 struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
+    int reload; // rules changed, sessions to be checked again by the engine thread
     int sdk;
-    struct ng_session *ng_session;
+    struct ng_session *ng_session[SESSION_LISTS]; // per protocol lists
+    int active_sessions[SESSION_LISTS];
+    struct ng_session **session_table; // open addressing, linear probing
+    uint32_t session_table_size;
+    uint32_t session_table_count;
+    struct ng_session *dirty; // touched since the last loop pass
+    struct ng_session *timer[TIMER_DUE + 1]; // session deadlines wheel
+    time_t timer_now; // next second to expire
+    uint32_t verdict_generation;
+    struct verdict_entry *verdict_cache;
+    uint32_t verdict_hits;
+    uint32_t verdict_misses;
+    uint8_t *shared;
+    size_t shared_size;
+    uint8_t *packet_pool[PACKET_POOL_SIZE];
+    int packet_pool_count;
+    struct dns_cache_entry *dns_cache;
+    int dns_ttl_min; // seconds
+    int dns_ttl_max; // seconds, 0 disables the cache
+    uint32_t dns_hits;
+    uint32_t dns_misses;
+    uint32_t dns_coalesced;
+    uint32_t dns_blocked;
+    uint32_t dns_domains_generation; // of the blocklist the cached answers were checked against
+    struct dns_upstream dns_upstream[DNS_MUX_SOCKETS];
+    int dns_upstream_count; // open
+    struct allowed dns_redirect; // forwarder of the open sockets
+    struct dns_mux_query *dns_mux; // indexed by the low bits of the upstream id
+    uint16_t dns_mux_next;
+    uint32_t dns_mux_queries;
+    struct allowed allowed; // last is_address_allowed result
+    struct worker *workers; // shards of the sharded mode
+    int worker_count;
+    pthread_mutex_t usage_lock;
+    struct usage_entry *usage; // since the last take
+    uint32_t usage_dropped;
+    struct snapshot_request *snapshot; // posted by jni_get_sessions
+};
+
+struct worker {
+    int index;
+    int count; // all workers
+    struct context *ctx; // own sessions, epoll set, timers, caches and shared buffer
+    pthread_t thread;
+    int running;
+    int exited; // set by the worker thread, the reader fails the tunnel then
+    int stopfd; // pipe of the reader context, wakes it on exit
+    int wakefds[2]; // queued packets signal
+    jobject instance; // global reference
+    int tun;
+    jboolean fwd53;
+    jint rcode;
+    uint8_t *queue; // WORKER_QUEUE slots of get_mtu() bytes
+    uint16_t queue_length[WORKER_QUEUE];
+    uint32_t head; // next slot to fill, written by the reader only
+    uint32_t tail; // next slot to handle, written by the worker only
+    uint64_t packets;
+    uint64_t dropped;
 };
 
 struct arguments {
@@ -108,11 +263,27 @@ struct arguments {
     jboolean fwd53;
     jint rcode;
     struct context *ctx;
+    struct worker *worker; // NULL when reading the tun directly
 };
 
-struct allowed {
-    char raddr[INET6_ADDRSTRLEN + 1];
-    uint16_t rport; // host notation
+struct verdict_key {
+    jint uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport; // host notation
+    union {
+        __be32 ip4; // network notation
+        struct in6_addr ip6;
+    } daddr;
+};
+
+struct verdict_entry {
+    struct verdict_key key;
+    uint32_t generation;
+    long long time;
+    uint8_t valid;
+    uint8_t allowed;
+    struct allowed redirect;
 };
 
 struct segment {
@@ -155,8 +326,12 @@ struct udp_session {
     int version;
     uint16_t mss;
 
-    uint64_t sent;
+    uint64_t sent; // since last counted
     uint64_t received;
+    uint64_t usage_sent; // counted
+    uint64_t usage_received;
+    time_t usage_time; // last counted
+    uint8_t usage_counted;
 
     union {
         __be32 ip4; // network notation
@@ -171,6 +346,7 @@ struct udp_session {
     __be16 dest; // network notation
 
     uint8_t state;
+    uint8_t redirected;
 };
 
 struct tcp_session {
@@ -192,8 +368,12 @@ struct tcp_session {
     uint32_t acked; // host notation
     long long last_keep_alive;
 
-    uint64_t sent;
+    uint64_t sent; // since last counted
     uint64_t received;
+    uint64_t usage_sent; // counted
+    uint64_t usage_received;
+    time_t usage_time; // last counted
+    uint8_t usage_counted;
 
     union {
         __be32 ip4; // network notation
@@ -209,6 +389,8 @@ struct tcp_session {
 
     uint8_t state;
     uint8_t socks5;
+    uint8_t proxied; // through SOCKS5
+    uint8_t redirected;
     struct segment *forward;
 };
 
@@ -221,7 +403,17 @@ struct ng_session {
     };
     jint socket;
     struct epoll_event ev;
+    uint32_t hash;
+    uint8_t active; // counted in active_sessions
+    uint8_t dirty;
     struct ng_session *next;
+    struct ng_session *prev;
+    struct ng_session *dirty_next;
+    struct ng_session *dirty_prev;
+    time_t expires;
+    int16_t timer_slot; // -1 when not scheduled
+    struct ng_session *timer_next;
+    struct ng_session *timer_prev;
 };
 
 struct uid_cache_entry {
@@ -233,6 +425,7 @@ struct uid_cache_entry {
     uint16_t dport;
     jint uid;
     long time;
+    struct uid_cache_entry *next; // bucket chain or free list
 };
 
 // IPv6
@@ -254,6 +447,19 @@ typedef int32_t gint32_t;
 
 #define LINKTYPE_RAW 101
 
+typedef struct pcaprec_hdr_s {
+    guint32_t ts_sec;
+    guint32_t ts_usec;
+    guint32_t incl_len;
+    guint32_t orig_len;
+} __packed pcaprec_hdr_s;
+
+#define PCAP_RING_MAGIC 0x43505A49 // IZPC
+#define PCAP_RING_VERSION 1
+#define PCAP_RING_HEADER 64 // bytes
+#define PCAP_SLOTS_MIN 64
+#define PCAP_UIDS 16
+
 // DNS
 
 #define DNS_QCLASS_IN 1
@@ -261,6 +467,7 @@ typedef int32_t gint32_t;
 #define DNS_QTYPE_AAAA 28 // IPv6
 #define DNS_QTYPE_CNAME 5 //CNAME
 #define DNS_QTYPE_HINFO 13//HINFO
+#define DNS_QTYPE_OPT 41 // EDNS
 
 #define DNS_QNAME_MAX 255
 #define DNS_TTL (10 * 60) // seconds
@@ -298,6 +505,33 @@ struct dns_header {
     uint16_t add_count; // number of resource entries
 } __packed;
 
+struct dns_waiter {
+    struct udp_session udp; // addresses and ports of the query
+    uint16_t id; // network notation
+};
+
+struct dns_cache_entry {
+    char qname[DNS_QNAME_MAX + 1]; // lower case
+    uint16_t qtype;
+    uint8_t flags; // query flags the answer depends on
+    uint8_t state;
+    time_t time; // queried or answered
+    time_t expires;
+    uint8_t *response;
+    uint16_t length;
+    struct dns_waiter *waiters;
+    int waiter_count;
+};
+
+struct dns_mux_query {
+    uint8_t used;
+    uint16_t id; // upstream, host notation
+    uint16_t client_id; // network notation
+    time_t time;
+    jint uid;
+    struct udp_session udp; // originating flow
+};
+
 typedef struct dns_rr {
     __be16 qname_ptr;
     __be16 qtype;
@@ -347,6 +581,39 @@ void check_allowed(const struct arguments *args);
 
 void clear(struct context *ctx);
 
+struct context *create_context(int sdk);
+
+void free_context(struct context *ctx);
+
+int attach_shared_buffer(const struct arguments *args);
+
+struct ng_session *find_session(struct context *ctx,
+                                int version, uint8_t protocol,
+                                const void *saddr, __be16 source,
+                                const void *daddr, __be16 dest);
+
+void add_session(struct context *ctx, struct ng_session *s);
+
+void remove_session(struct context *ctx, struct ng_session *s);
+
+void touch_session(struct context *ctx, struct ng_session *s);
+
+void update_session(struct context *ctx, struct ng_session *s);
+
+int get_sessions(const struct context *ctx);
+
+time_t get_session_deadline(const struct ng_session *s, int sessions, int maxsessions);
+
+void schedule_session(struct context *ctx, struct ng_session *s, time_t expires);
+
+void unschedule_session(struct context *ctx, struct ng_session *s);
+
+struct ng_session *expire_sessions(struct context *ctx, time_t now);
+
+int get_timer_timeout(const struct context *ctx);
+
+void clear_timers(struct context *ctx);
+
 int check_icmp_session(const struct arguments *args,
                        struct ng_session *s,
                        int sessions, int maxsessions);
@@ -369,12 +636,33 @@ int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions);
 
 uint16_t get_mtu();
 
+void init_packet_pool(struct context *ctx);
+
+uint8_t *get_packet_buffer(struct context *ctx);
+
+void put_packet_buffer(struct context *ctx, uint8_t *buffer);
+
+void clear_packet_pool(struct context *ctx);
+
+ssize_t write_tun(const struct arguments *args, const struct iovec *iov, int iovcnt, jint uid);
+
 uint16_t get_default_mss(int version);
 
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions);
+              int maxsessions);
+
+void check_worker(const struct arguments *args,
+                  const struct epoll_event *ev,
+                  const int epoll_fd,
+                  int maxsessions);
+
+void run_workers(struct arguments *args, int count);
+
+void clear_workers(struct context *ctx);
+
+void free_workers(struct context *ctx);
 
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
@@ -385,6 +673,54 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
 void parse_dns_response(const struct arguments *args, const struct ng_session *session,
                         const uint8_t *data, size_t *datalen);
 
+int dns_cache_query(const struct arguments *args,
+                    const uint8_t *pkt, const struct udphdr *udphdr,
+                    const uint8_t *data, size_t datalen);
+
+void dns_cache_response(const struct arguments *args, const uint8_t *data, size_t datalen);
+
+void flush_dns_cache(struct context *ctx);
+
+void get_query_session(const uint8_t *pkt, const struct udphdr *udphdr,
+                       struct udp_session *u);
+
+int load_domains(const char *path);
+
+uint32_t get_domains_generation();
+
+void invalidate_dns_answers();
+
+int domain_block_query(const struct arguments *args,
+                       const uint8_t *pkt, const struct udphdr *udphdr,
+                       const uint8_t *data, size_t datalen, jint uid);
+
+void set_hosts(const char **names, int name_count, const char **networks, int network_count);
+
+void snoop_host_address(const char *qname, int version, const void *addr, uint32_t ttl);
+
+int is_host_address(int version, const void *addr);
+
+void clear_hosts();
+
+void remember_dns_name(const char *qname, int version, const void *addr, uint32_t ttl);
+
+size_t get_dns_name(int version, const void *addr, char *name);
+
+void clear_dns_names();
+
+int dns_mux_query(const struct arguments *args,
+                  const uint8_t *pkt, const struct udphdr *udphdr,
+                  const uint8_t *data, size_t datalen,
+                  jint uid, const struct allowed *redirect, int epoll_fd);
+
+int is_dns_upstream(const struct context *ctx, const void *ptr);
+
+void check_dns_upstream(const struct arguments *args, const struct epoll_event *ev);
+
+void clear_dns_mux(struct context *ctx);
+
+void clear_dns_cache(struct context *ctx);
+
 uint32_t get_send_window(const struct tcp_session *cur);
 
 uint32_t get_receive_buffer(const struct ng_session *cur);
@@ -402,7 +738,7 @@ int is_upper_layer(int protocol);
 void handle_ip(const struct arguments *args,
                const uint8_t *buffer, size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions);
+               int maxsessions);
 
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
@@ -480,11 +816,7 @@ jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
              const void *daddr, const uint16_t dport);
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now);
+void clear_uid_cache();
 
 int protect_socket(const struct arguments *args, int socket);
 
@@ -506,37 +838,72 @@ int sdk_int(JNIEnv *env);
 
 void log_android(int prio, const char *fmt, ...);
 
-void log_packet(const struct arguments *args, jobject jpacket);
+void share_addresses(const struct arguments *args, jint version,
+                     const void *saddr, const void *daddr);
+
+void log_packet(const struct arguments *args, jint version, jint protocol,
+                const void *saddr, jint sport, const void *daddr, jint dport,
+                const char *data, jint uid, jboolean allowed);
 
 void dns_resolved(const struct arguments *args, const char *qname, const char *aname,
-        const char *cname, const char *hinfo, const char *resource, int rcode);
+                  const char *cname, const char *hinfo,
+                  jint version, const void *resource, int rcode);
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
 jint get_uid_q(const struct arguments *args,
                jint version,
                jint protocol,
-               const char *source,
+               const void *saddr,
                jint sport,
-               const char *dest,
+               const void *daddr,
                jint dport);
 
-struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
-
-jobject create_packet(const struct arguments *args,
-                      jint version,
-                      jint protocol,
-                      const char *flags,
-                      const char *source,
-                      jint sport,
-                      const char *dest,
-                      jint dport,
-                      const char *data,
-                      jint uid,
-                      jboolean allowed);
+struct allowed *is_address_allowed(const struct arguments *args,
+                                   jint version,
+                                   jint protocol,
+                                   const void *saddr,
+                                   jint sport,
+                                   const void *daddr,
+                                   jint dport,
+                                   jint uid);
 
 void account_usage(const struct arguments *args, jint version, jint protocol,
-                   const char *daddr, jint dport, jint uid, jlong sent, jlong received);
+                   const void *daddr, jint dport, jint uid, jlong sent, jlong received,
+                   int opened, int proxied);
+
+struct usage_entry *take_usage(struct context *ctx);
+
+void flush_usage(const struct arguments *args);
+
+int start_pcap(const char *path, size_t size, int snaplen, const jint *uids, int uid_count);
+
+void stop_pcap();
+
+int is_pcap_enabled();
+
+int is_pcap_filtered();
+
+void write_pcap(const struct iovec *iov, int iovcnt, jint uid, int outgoing);
+
+void clear_usage(struct context *ctx);
+
+void answer_snapshot(struct context *ctx);
+
+int take_snapshot(struct context *ctx, uint8_t *buffer, int capacity);
+
+struct allowed *is_flow_allowed(const struct arguments *args,
+                                jint version,
+                                jint protocol,
+                                const void *saddr,
+                                jint sport,
+                                const void *daddr,
+                                jint dport,
+                                jint uid);
+
+void invalidate_verdicts(struct context *ctx);
+
+void clear_verdicts(struct context *ctx);
 
 int compare_u32(uint32_t seq1, uint32_t seq2);
 
@@ -548,6 +915,8 @@ int is_readable(int fd);
 
 int is_writable(int fd);
 
+uint32_t fnv1a32(uint32_t hash, const void *data, size_t len);
+
 long long get_ms();
 
 void ng_add_alloc(const char *ptr, const char *tag);
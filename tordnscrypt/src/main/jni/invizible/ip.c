@@ -38,10 +38,47 @@ uint16_t get_default_mss(int version) {
         return (uint16_t) (get_mtu() - sizeof(struct ip6_hdr) - sizeof(struct tcphdr));
 }
 
+// Packet buffers are only used by the events thread and go back to the pool after each packet
+
+void init_packet_pool(struct context *ctx) {
+    while (ctx->packet_pool_count < PACKET_POOL_INIT)
+        ctx->packet_pool[ctx->packet_pool_count++] = ng_malloc(PACKET_BUFFER_SIZE, "packet pool");
+}
+
+uint8_t *get_packet_buffer(struct context *ctx) {
+    if (ctx->packet_pool_count > 0)
+        return ctx->packet_pool[--ctx->packet_pool_count];
+    return ng_malloc(PACKET_BUFFER_SIZE, "packet");
+}
+
+void put_packet_buffer(struct context *ctx, uint8_t *buffer) {
+    if (ctx->packet_pool_count < PACKET_POOL_SIZE)
+        ctx->packet_pool[ctx->packet_pool_count++] = buffer;
+    else
+        ng_free(buffer, __FILE__, __LINE__);
+}
+
+void clear_packet_pool(struct context *ctx) {
+    while (ctx->packet_pool_count > 0)
+        ng_free(ctx->packet_pool[--ctx->packet_pool_count], __FILE__, __LINE__);
+}
+
+// The tun device takes exactly one packet per write,
+// headers and payload are gathered from separate buffers instead of being copied together
+ssize_t write_tun(const struct arguments *args, const struct iovec *iov, int iovcnt, jint uid) {
+    ssize_t res;
+    do
+        res = writev(args->tun, iov, iovcnt);
+    while (res < 0 && errno == EINTR);
+    if (res > 0)
+        write_pcap(iov, iovcnt, uid, 1);
+    return res;
+}
+
 int check_tun(const struct arguments *args,
               const struct epoll_event *ev,
               const int epoll_fd,
-              int sessions, int maxsessions) {
+              int maxsessions) {
     // Check tun error
     if (ev->events & EPOLLERR) {
         log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
@@ -56,44 +93,49 @@ int check_tun(const struct arguments *args,
     }
 
     // Check tun read
+    int result = 0;
     if (ev->events & EPOLLIN) {
-        uint8_t *buffer = ng_malloc(get_mtu(), "tun read");
-        ssize_t length = read(args->tun, buffer, get_mtu());
-        if (length < 0) {
-            ng_free(buffer, __FILE__, __LINE__);
-
-            log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
-                        args->tun, errno, strerror(errno));
-            if (errno == EINTR || errno == EAGAIN)
-                // Retry later
-                return 0;
-            else {
-                report_exit(args, "tun %d read error %d: %s",
-                            args->tun, errno, strerror(errno));
-                return -1;
-            }
-        } else if (length > 0) {
+        uint8_t *buffer = get_packet_buffer(args->ctx);
 
-            if (length > max_tun_msg) {
-                max_tun_msg = length;
-                log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
-            }
+        // Drain up to TUN_YIELD packets, epoll already reported the first one
+        int count = 0;
+        while (count < TUN_YIELD && !args->ctx->stopping &&
+               (count == 0 || is_readable(args->tun))) {
+            count++;
 
-            // Handle IP from tun
-            handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
+            ssize_t length = read(args->tun, buffer, get_mtu());
+            if (length < 0) {
+                log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                            args->tun, errno, strerror(errno));
+                if (errno != EINTR && errno != EAGAIN) {
+                    report_exit(args, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    result = -1;
+                }
+                // Retry later
+                break;
+            } else if (length > 0) {
 
-            ng_free(buffer, __FILE__, __LINE__);
-        } else {
-            // tun eof
-            ng_free(buffer, __FILE__, __LINE__);
+                if (length > max_tun_msg) {
+                    max_tun_msg = length;
+                    log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                }
 
-            log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
-            report_exit(args, "tun %d empty read", args->tun);
-            return -1;
+                // Handle IP from tun
+                handle_ip(args, buffer, (size_t) length, epoll_fd, maxsessions);
+            } else {
+                // tun eof
+                log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                report_exit(args, "tun %d empty read", args->tun);
+                result = -1;
+                break;
+            }
         }
+
+        put_packet_buffer(args->ctx, buffer);
     }
 
-    return 0;
+    return result;
 }
 
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
@@ -120,7 +162,7 @@ int is_upper_layer(int protocol) {
 void handle_ip(const struct arguments *args,
                const uint8_t *pkt, const size_t length,
                const int epoll_fd,
-               int sessions, int maxsessions) {
+               int maxsessions) {
     uint8_t protocol;
     void *saddr;
     void *daddr;
@@ -271,6 +313,7 @@ void handle_ip(const struct arguments *args,
     flags[flen] = 0;
 
     // Limit number of sessions
+    int sessions = get_sessions(args->ctx);
     if (sessions >= maxsessions) {
         if ((protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6) ||
             (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
@@ -302,7 +345,7 @@ void handle_ip(const struct arguments *args,
             }
 
         } else {
-            uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+            uid = get_uid_q(args, version, protocol, saddr, sport, daddr, dport);
         }
     }
 
@@ -310,6 +353,22 @@ void handle_ip(const struct arguments *args,
                 "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d",
                 version, source, sport, dest, dport, protocol, flags, uid);
 
+    if (is_pcap_enabled()) {
+        // Packets of established flows have the uid of their session
+        jint puid = uid;
+        if (puid < 0 && is_pcap_filtered() &&
+            (protocol == IPPROTO_UDP || protocol == IPPROTO_TCP)) {
+            struct ng_session *s = find_session(args->ctx, version, protocol,
+                                                saddr, htons(sport), daddr, htons(dport));
+            if (s != NULL)
+                puid = (protocol == IPPROTO_UDP ? s->udp.uid : s->tcp.uid);
+        }
+        struct iovec iov;
+        iov.iov_base = (void *) pkt;
+        iov.iov_len = length;
+        write_pcap(&iov, 1, puid, 0);
+    }
+
     // Check if allowed
     int allowed = 0;
     struct allowed *redirect = NULL;
@@ -318,9 +377,7 @@ void handle_ip(const struct arguments *args,
     else if (protocol == IPPROTO_TCP && (!syn || (uid == 0 && dport == 53)))
         allowed = 1; // assume existing session
     else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
-        redirect = is_address_allowed(args, objPacket);
+        redirect = is_flow_allowed(args, version, protocol, saddr, sport, daddr, dport, uid);
         allowed = (redirect != NULL);
         if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
             redirect = NULL;
@@ -343,88 +400,208 @@ void handle_ip(const struct arguments *args,
     }
 }
 
-jint get_uid(const int version, const int protocol,
-             const void *saddr, const uint16_t sport,
-             const void *daddr, const uint16_t dport) {
-    jint uid = -1;
+// Sockets read from /proc/net are kept in a hash table on version, protocol and local port.
+// Every line read is cached, so sockets opened meanwhile are found without reading again.
+// The cache is shared by the workers of the sharded mode.
+static pthread_mutex_t uid_lock = PTHREAD_MUTEX_INITIALIZER;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
+static int uid_cache_size = 0; // entries of the pool
+static struct uid_cache_entry *uid_cache = NULL;
+static struct uid_cache_entry *uid_buckets[UID_CACHE_BUCKETS];
+static struct uid_cache_entry *uid_free = NULL;
 
-    struct timeval time;
-    gettimeofday(&time, NULL);
-    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
+static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
-    // Check IPv6 table first
-    if (version == 4) {
-        int8_t saddr128[16];
-        memset(saddr128, 0, 10);
-        saddr128[10] = (uint8_t) 0xFF;
-        saddr128[11] = (uint8_t) 0xFF;
-        memcpy(saddr128 + 12, saddr, 4);
+static uint32_t get_uid_bucket(int version, int protocol, uint16_t sport) {
+    uint32_t hash = ((uint32_t) sport * 31U + (uint32_t) protocol) * 31U + (uint32_t) version;
+    return (hash ^ (hash >> 8)) & (UID_CACHE_BUCKETS - 1);
+}
 
-        int8_t daddr128[16];
-        memset(daddr128, 0, 10);
-        daddr128[10] = (uint8_t) 0xFF;
-        daddr128[11] = (uint8_t) 0xFF;
-        memcpy(daddr128 + 12, daddr, 4);
+static int init_uid_cache() {
+    if (uid_cache != NULL)
+        return 0;
 
-        uid = get_uid_sub(6, protocol, saddr128, sport, daddr128, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
-                    version, protocol, source, sport, dest, dport, uid);
+    uid_cache = ng_malloc(UID_CACHE_MAX * sizeof(struct uid_cache_entry), "uid_cache init");
+    if (uid_cache == NULL)
+        return -1;
+    uid_cache_size = UID_CACHE_MAX;
+
+    memset(uid_buckets, 0, sizeof(uid_buckets));
+    uid_free = NULL;
+    for (int i = uid_cache_size - 1; i >= 0; i--) {
+        uid_cache[i].next = uid_free;
+        uid_free = &uid_cache[i];
     }
+    return 0;
+}
 
-    if (uid == -1) {
-        uid = get_uid_sub(version, protocol, saddr, sport, daddr, dport, source, dest, now);
-        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
-                    version, protocol, source, sport, dest, dport, uid);
+// Moves aged entries to the free list
+static void reclaim_uid_cache(long now) {
+    int reclaimed = 0;
+    for (int b = 0; b < UID_CACHE_BUCKETS; b++) {
+        struct uid_cache_entry **e = &uid_buckets[b];
+        while (*e != NULL) {
+            if (now - (*e)->time > UID_MAX_AGE) {
+                struct uid_cache_entry *aged = *e;
+                *e = aged->next;
+                aged->next = uid_free;
+                uid_free = aged;
+                reclaimed++;
+            } else
+                e = &(*e)->next;
+        }
     }
+    log_android(ANDROID_LOG_DEBUG, "uid cache reclaimed %d", reclaimed);
+}
 
-    if (uid == -1)
-        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
-                    version, protocol, source, sport, dest, dport);
-    else if (uid >= 0)
-        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
-                    version, protocol, source, sport, dest, dport, uid);
+void clear_uid_cache() {
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    return uid;
+    if (uid_cache != NULL)
+        ng_free(uid_cache, __FILE__, __LINE__);
+    uid_cache_size = 0;
+    uid_cache = NULL;
+    uid_free = NULL;
+    memset(uid_buckets, 0, sizeof(uid_buckets));
+
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 }
 
-int uid_cache_size = 0;
-struct uid_cache_entry *uid_cache = NULL;
+static jint find_uid(const int version, const int protocol,
+                     const void *saddr, const uint16_t sport,
+                     const void *daddr, const uint16_t dport,
+                     long now) {
+    if (uid_cache == NULL)
+        return -1;
 
-jint get_uid_sub(const int version, const int protocol,
-                 const void *saddr, const uint16_t sport,
-                 const void *daddr, const uint16_t dport,
-                 const char *source, const char *dest,
-                 long now) {
-    // NETLINK is not available on Android due to SELinux policies :-(
-    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
-    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+    int ws = (version == 4 ? 1 : 4);
 
-    static uint8_t zero[16] = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    struct uid_cache_entry *e = uid_buckets[get_uid_bucket(version, protocol, sport)];
+    for (; e != NULL; e = e->next)
+        if (now - e->time <= UID_MAX_AGE &&
+            e->version == version &&
+            e->protocol == protocol &&
+            e->sport == sport &&
+            (e->dport == dport || e->dport == 0) &&
+            (memcmp(e->saddr, saddr, (size_t) (ws * 4)) == 0 ||
+             memcmp(e->saddr, zero, (size_t) (ws * 4)) == 0) &&
+            (memcmp(e->daddr, daddr, (size_t) (ws * 4)) == 0 ||
+             memcmp(e->daddr, zero, (size_t) (ws * 4)) == 0))
+            return e->uid;
+
+    return -1;
+}
 
+static void store_uid(const int version, const int protocol,
+                      const uint8_t *saddr, const uint16_t sport,
+                      const uint8_t *daddr, const uint16_t dport,
+                      jint uid, long now) {
     int ws = (version == 4 ? 1 : 4);
+    uint32_t b = get_uid_bucket(version, protocol, sport);
+
+    // Refresh the socket when it is known already
+    for (struct uid_cache_entry *e = uid_buckets[b]; e != NULL; e = e->next)
+        if (e->version == version &&
+            e->protocol == protocol &&
+            e->sport == sport &&
+            e->dport == dport &&
+            memcmp(e->saddr, saddr, (size_t) (ws * 4)) == 0 &&
+            memcmp(e->daddr, daddr, (size_t) (ws * 4)) == 0) {
+            e->uid = uid;
+            e->time = now;
+            return;
+        }
 
-    // Check cache
-    for (int i = 0; i < uid_cache_size; i++)
-        if (now - uid_cache[i].time <= UID_MAX_AGE &&
-            uid_cache[i].version == version &&
-            uid_cache[i].protocol == protocol &&
-            uid_cache[i].sport == sport &&
-            (uid_cache[i].dport == dport || uid_cache[i].dport == 0) &&
-            (memcmp(uid_cache[i].saddr, saddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].saddr, zero, (size_t) (ws * 4)) == 0) &&
-            (memcmp(uid_cache[i].daddr, daddr, (size_t) (ws * 4)) == 0 ||
-             memcmp(uid_cache[i].daddr, zero, (size_t) (ws * 4)) == 0)) {
-
-            log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
-                        version, protocol, source, sport, dest, dport, uid_cache[i].uid);
-
-            return uid_cache[i].uid;
+    if (uid_free == NULL)
+        reclaim_uid_cache(now);
+    if (uid_free == NULL)
+        return;
+
+    struct uid_cache_entry *e = uid_free;
+    uid_free = e->next;
+
+    e->version = (uint8_t) version;
+    e->protocol = (uint8_t) protocol;
+    memcpy(e->saddr, saddr, (size_t) (ws * 4));
+    e->sport = sport;
+    memcpy(e->daddr, daddr, (size_t) (ws * 4));
+    e->dport = dport;
+    e->uid = uid;
+    e->time = now;
+    e->next = uid_buckets[b];
+    uid_buckets[b] = e;
+}
+
+// Address words are printed as host order numbers
+static const char *parse_proc_endpoint(const char *p, int ws, uint8_t *addr, int *port) {
+    while (*p == ' ')
+        p++;
+
+    for (int w = 0; w < ws; w++) {
+        uint32_t word = 0;
+        for (int i = 0; i < 8; i++) {
+            uint8_t nible = char2nible(*p);
+            if (nible > 15)
+                return NULL;
+            word = (word << 4) | nible;
+            p++;
         }
+        memcpy(addr + w * 4, &word, 4);
+    }
+
+    if (*p != ':')
+        return NULL;
+    p++;
+
+    char *end;
+    *port = (int) strtol(p, &end, 16);
+    return (end == p ? NULL : end);
+}
+
+static const char *skip_proc_field(const char *p) {
+    while (*p == ' ')
+        p++;
+    while (*p != 0 && *p != ' ')
+        p++;
+    return p;
+}
+
+// sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+static int parse_proc_line(const char *line, int ws,
+                           uint8_t *saddr, int *sport, uint8_t *daddr, int *dport, jint *uid) {
+    const char *p = strchr(line, ':');
+    if (p == NULL)
+        return -1;
+
+    p = parse_proc_endpoint(p + 1, ws, saddr, sport);
+    if (p != NULL)
+        p = parse_proc_endpoint(p, ws, daddr, dport);
+    if (p == NULL)
+        return -1;
+
+    for (int f = 0; f < 4; f++)
+        p = skip_proc_field(p);
+
+    char *end;
+    long u = strtol(p, &end, 10);
+    if (end == p)
+        return -1;
+    *uid = (jint) u;
+
+    return 0;
+}
+
+static jint scan_uid_proc(const int version, const int protocol,
+                          const void *saddr, const uint16_t sport,
+                          const void *daddr, const uint16_t dport,
+                          long now) {
+    // NETLINK is not available on Android due to SELinux policies :-(
+    // http://stackoverflow.com/questions/27148536/netlink-implementation-for-the-android-ndk
+    // https://android.googlesource.com/platform/system/sepolicy/+/master/private/app.te (netlink_tcpdiag_socket)
+
+    int ws = (version == 4 ? 1 : 4);
 
     // Get proc file name
     char *fn = NULL;
@@ -439,6 +616,9 @@ jint get_uid_sub(const int version, const int protocol,
     else
         return -1;
 
+    if (init_uid_cache())
+        return -2;
+
     // Open proc file
     FILE *fd = fopen(fn, "re");
     if (fd == NULL) {
@@ -449,80 +629,114 @@ jint get_uid_sub(const int version, const int protocol,
     jint uid = -1;
 
     char line[250];
-    int fields;
 
-    char shex[16 * 2 + 1];
     uint8_t _saddr[16];
     int _sport;
-
-    char dhex[16 * 2 + 1];
     uint8_t _daddr[16];
     int _dport;
-
     jint _uid;
 
-    // Scan proc file
+    // Scan proc file, skipping the header
     int l = 0;
+    int lines = 0;
     *line = 0;
-    int c = 0;
-    const char *fmt = (version == 4
-                       ? "%*d: %8s:%X %8s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld"
-                       : "%*d: %32s:%X %32s:%X %*X %*lX:%*lX %*X:%*X %*X %d %*d %*ld");
     while (fgets(line, sizeof(line), fd) != NULL) {
         if (!l++)
             continue;
 
-        fields = sscanf(line, fmt, shex, &_sport, dhex, &_dport, &_uid);
-        if (fields == 5 && strlen(shex) == ws * 8 && strlen(dhex) == ws * 8) {
-            hex2bytes(shex, _saddr);
-            hex2bytes(dhex, _daddr);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _saddr)[w] = htonl(((uint32_t *) _saddr)[w]);
-
-            for (int w = 0; w < ws; w++)
-                ((uint32_t *) _daddr)[w] = htonl(((uint32_t *) _daddr)[w]);
-
-            if (_sport == sport &&
-                (_dport == dport || _dport == 0) &&
-                (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
-                (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
-                 memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
-                uid = _uid;
-
-            for (; c < uid_cache_size; c++)
-                if (now - uid_cache[c].time > UID_MAX_AGE)
-                    break;
-
-            if (c >= uid_cache_size) {
-                if (uid_cache_size == 0)
-                    uid_cache = ng_malloc(sizeof(struct uid_cache_entry), "uid_cache init");
-                else
-                    uid_cache = ng_realloc(uid_cache,
-                                           sizeof(struct uid_cache_entry) *
-                                           (uid_cache_size + 1), "uid_cache extend");
-                c = uid_cache_size;
-                uid_cache_size++;
-            }
-
-            uid_cache[c].version = (uint8_t) version;
-            uid_cache[c].protocol = (uint8_t) protocol;
-            memcpy(uid_cache[c].saddr, _saddr, (size_t) (ws * 4));
-            uid_cache[c].sport = (uint16_t) _sport;
-            memcpy(uid_cache[c].daddr, _daddr, (size_t) (ws * 4));
-            uid_cache[c].dport = (uint16_t) _dport;
-            uid_cache[c].uid = _uid;
-            uid_cache[c].time = now;
-        } else {
-            log_android(ANDROID_LOG_ERROR, "Invalid field #%d: %s", fields, line);
-            return -2;
+        if (parse_proc_line(line, ws, _saddr, &_sport, _daddr, &_dport, &_uid)) {
+            log_android(ANDROID_LOG_ERROR, "Invalid line %s", line);
+            uid = -2;
+            break;
         }
+
+        if (_sport == sport &&
+            (_dport == dport || _dport == 0) &&
+            (memcmp(_saddr, saddr, (size_t) (ws * 4)) == 0 ||
+             memcmp(_saddr, zero, (size_t) (ws * 4)) == 0) &&
+            (memcmp(_daddr, daddr, (size_t) (ws * 4)) == 0 ||
+             memcmp(_daddr, zero, (size_t) (ws * 4)) == 0))
+            uid = _uid;
+
+        store_uid(version, protocol, _saddr, (uint16_t) _sport, _daddr, (uint16_t) _dport,
+                  _uid, now);
+        lines++;
     }
 
     if (fclose(fd))
         log_android(ANDROID_LOG_ERROR, "fclose %s error %d: %s", fn, errno, strerror(errno));
 
+    log_android(ANDROID_LOG_DEBUG, "uid scanned %s lines %d", fn, lines);
+
+    return uid;
+}
+
+jint get_uid(const int version, const int protocol,
+             const void *saddr, const uint16_t sport,
+             const void *daddr, const uint16_t dport) {
+    jint uid = -1;
+
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
+    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
+
+    struct timeval time;
+    gettimeofday(&time, NULL);
+    long now = (time.tv_sec * 1000) + (time.tv_usec / 1000);
+
+    // IPv4 sockets can be listed in the IPv6 tables as mapped addresses
+    uint8_t saddr128[16];
+    uint8_t daddr128[16];
+    if (version == 4) {
+        memset(saddr128, 0, 10);
+        saddr128[10] = (uint8_t) 0xFF;
+        saddr128[11] = (uint8_t) 0xFF;
+        memcpy(saddr128 + 12, saddr, 4);
+
+        memset(daddr128, 0, 10);
+        daddr128[10] = (uint8_t) 0xFF;
+        daddr128[11] = (uint8_t) 0xFF;
+        memcpy(daddr128 + 12, daddr, 4);
+    }
+
+    if (pthread_mutex_lock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    // Check both cached tables before reading any
+    if (version == 4)
+        uid = find_uid(6, protocol, saddr128, sport, daddr128, dport, now);
+    if (uid == -1)
+        uid = find_uid(version, protocol, saddr, sport, daddr, dport, now);
+
+    if (uid != -1)
+        log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
+                    version, protocol, source, sport, dest, dport, uid);
+    else {
+        // Check IPv6 table first
+        if (version == 4) {
+            uid = scan_uid_proc(6, protocol, saddr128, sport, daddr128, dport, now);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d as inet6",
+                        version, protocol, source, sport, dest, dport, uid);
+        }
+
+        if (uid == -1) {
+            uid = scan_uid_proc(version, protocol, saddr, sport, daddr, dport, now);
+            log_android(ANDROID_LOG_DEBUG, "uid v%d p%d %s/%u > %s/%u => %d fallback",
+                        version, protocol, source, sport, dest, dport, uid);
+        }
+    }
+
+    if (pthread_mutex_unlock(&uid_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (uid == -1)
+        log_android(ANDROID_LOG_WARN, "uid v%d p%d %s/%u > %s/%u => not found",
+                    version, protocol, source, sport, dest, dport);
+    else if (uid >= 0)
+        log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
+                    version, protocol, source, sport, dest, dport, uid);
+
     return uid;
 }
 
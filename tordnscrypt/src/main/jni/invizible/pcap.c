@@ -0,0 +1,207 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+#include <sys/mman.h>
+#include <sys/time.h>
+#include <sched.h>
+
+// Packets read from and written to the tun are copied into a ring of fixed size slots
+// in a memory mapped file, PacketCapture turns the ring into a pcap file.
+// Writers of any engine thread claim slots with an atomic counter and do not allocate or lock.
+// A slot is valid when its sequence is the claimed counter value plus one.
+
+struct pcap_ring_header {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t slot_size; // bytes
+    uint32_t slots;
+    uint32_t snaplen; // bytes
+    uint32_t linktype;
+    uint64_t next; // slots claimed
+    uint8_t reserved[PCAP_RING_HEADER - 32];
+};
+
+struct pcap_slot {
+    uint64_t seq; // 0 while written
+    pcaprec_hdr_s rec;
+    jint uid;
+    uint32_t outgoing; // written to the tun
+    uint8_t data[];
+};
+
+struct pcap_ring {
+    struct pcap_ring_header *header;
+    size_t size;
+    uint32_t slot_size;
+    uint32_t slots;
+    uint32_t snaplen;
+};
+
+static struct pcap_ring ring_storage;
+static struct pcap_ring *volatile pcap_ring = NULL;
+static int pcap_writers = 0;
+
+// Set while no ring is published
+static jint pcap_uids[PCAP_UIDS];
+static int pcap_uid_count = 0;
+
+static void unpublish_pcap() {
+    struct pcap_ring *ring = pcap_ring;
+    pcap_ring = NULL;
+    __sync_synchronize();
+    if (ring == NULL)
+        return;
+
+    // Writers seeing the ring have to finish with it before unmapping
+    while (__sync_add_and_fetch(&pcap_writers, 0) > 0)
+        sched_yield();
+
+    uint64_t packets = ring->header->next;
+    munmap(ring->header, ring->size);
+    log_android(ANDROID_LOG_WARN, "Capture stopped after %llu packets",
+                (unsigned long long) packets);
+}
+
+// Captures to a new ring at path, at most size bytes, packets cut at snaplen,
+// only packets of the uids when any are given
+int start_pcap(const char *path, size_t size, int snaplen, const jint *uids, int uid_count) {
+    unpublish_pcap();
+
+    if (snaplen <= 0 || snaplen > get_mtu())
+        snaplen = get_mtu();
+    uint32_t slot_size = (uint32_t) ((sizeof(struct pcap_slot) + snaplen + 7) & ~7);
+    if (size < PCAP_RING_HEADER + PCAP_SLOTS_MIN * slot_size)
+        size = PCAP_RING_HEADER + PCAP_SLOTS_MIN * slot_size;
+    uint32_t slots = (uint32_t) ((size - PCAP_RING_HEADER) / slot_size);
+    size = PCAP_RING_HEADER + (size_t) slots * slot_size;
+
+    int fd = open(path, O_RDWR | O_CREAT | O_TRUNC, 0600);
+    if (fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "Capture open %s error %d: %s",
+                    path, errno, strerror(errno));
+        return -1;
+    }
+
+    void *map = MAP_FAILED;
+    if (ftruncate(fd, (off_t) size) == 0)
+        map = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    close(fd);
+
+    if (map == MAP_FAILED) {
+        log_android(ANDROID_LOG_ERROR, "Capture map %s error %d: %s",
+                    path, errno, strerror(errno));
+        return -1;
+    }
+
+    struct pcap_ring_header *header = (struct pcap_ring_header *) map;
+    header->magic = PCAP_RING_MAGIC;
+    header->version = PCAP_RING_VERSION;
+    header->slot_size = slot_size;
+    header->slots = slots;
+    header->snaplen = (uint32_t) snaplen;
+    header->linktype = LINKTYPE_RAW;
+    header->next = 0;
+
+    pcap_uid_count = (uid_count > PCAP_UIDS ? PCAP_UIDS : uid_count);
+    for (int i = 0; i < pcap_uid_count; i++)
+        pcap_uids[i] = uids[i];
+
+    ring_storage.header = header;
+    ring_storage.size = size;
+    ring_storage.slot_size = slot_size;
+    ring_storage.slots = slots;
+    ring_storage.snaplen = (uint32_t) snaplen;
+    __sync_synchronize();
+    pcap_ring = &ring_storage;
+
+    log_android(ANDROID_LOG_WARN, "Capture to %s slots %u snaplen %d uids %d",
+                path, slots, snaplen, pcap_uid_count);
+    return 0;
+}
+
+void stop_pcap() {
+    unpublish_pcap();
+}
+
+int is_pcap_enabled() {
+    return (pcap_ring != NULL);
+}
+
+// Packets of established flows need their session to be matched against the uids
+int is_pcap_filtered() {
+    return (pcap_ring != NULL && pcap_uid_count > 0);
+}
+
+void write_pcap(const struct iovec *iov, int iovcnt, jint uid, int outgoing) {
+    if (pcap_ring == NULL)
+        return;
+
+    __sync_add_and_fetch(&pcap_writers, 1);
+    struct pcap_ring *ring = pcap_ring;
+    if (ring != NULL) {
+        int wanted = (pcap_uid_count == 0);
+        for (int i = 0; i < pcap_uid_count && !wanted; i++)
+            if (pcap_uids[i] == uid)
+                wanted = 1;
+
+        if (wanted) {
+            uint64_t seq = __sync_fetch_and_add(&ring->header->next, 1);
+            struct pcap_slot *slot = (struct pcap_slot *) ((uint8_t *) ring->header +
+                                                           PCAP_RING_HEADER +
+                                                           (size_t) (seq % ring->slots) *
+                                                           ring->slot_size);
+            slot->seq = 0;
+            __sync_synchronize();
+
+            struct timeval tv;
+            gettimeofday(&tv, NULL);
+
+            size_t len = 0;
+            size_t copied = 0;
+            for (int i = 0; i < iovcnt; i++) {
+                len += iov[i].iov_len;
+                if (copied < ring->snaplen) {
+                    size_t part = iov[i].iov_len;
+                    if (part > ring->snaplen - copied)
+                        part = ring->snaplen - copied;
+                    memcpy(slot->data + copied, iov[i].iov_base, part);
+                    copied += part;
+                }
+            }
+
+            slot->rec.ts_sec = (guint32_t) tv.tv_sec;
+            slot->rec.ts_usec = (guint32_t) tv.tv_usec;
+            slot->rec.incl_len = (guint32_t) copied;
+            slot->rec.orig_len = (guint32_t) len;
+            slot->uid = uid;
+            slot->outgoing = (uint32_t) outgoing;
+
+            __sync_synchronize();
+            slot->seq = seq + 1;
+        }
+    }
+    __sync_sub_and_fetch(&pcap_writers, 1);
+}
+
+#pragma clang diagnostic pop
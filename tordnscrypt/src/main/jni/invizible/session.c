@@ -22,18 +22,313 @@
 #include "invizible.h"
 
 void clear(struct context *ctx) {
-    struct ng_session *s = ctx->ng_session;
-    while (s != NULL) {
-        if (s->socket >= 0 && close(s->socket))
-            log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
-                        s->socket, errno, strerror(errno));
-        if (s->protocol == IPPROTO_TCP)
-            clear_tcp_data(&s->tcp);
-        struct ng_session *p = s;
-        s = s->next;
-        ng_free(p, __FILE__, __LINE__);
+    for (int l = 0; l < SESSION_LISTS; l++) {
+        struct ng_session *s = ctx->ng_session[l];
+        while (s != NULL) {
+            if (s->socket >= 0 && close(s->socket))
+                log_android(ANDROID_LOG_ERROR, "close %d error %d: %s",
+                            s->socket, errno, strerror(errno));
+            if (s->protocol == IPPROTO_TCP)
+                clear_tcp_data(&s->tcp);
+            struct ng_session *p = s;
+            s = s->next;
+            ng_free(p, __FILE__, __LINE__);
+        }
+        ctx->ng_session[l] = NULL;
+        ctx->active_sessions[l] = 0;
+    }
+
+    if (ctx->session_table != NULL)
+        ng_free(ctx->session_table, __FILE__, __LINE__);
+    ctx->session_table = NULL;
+    ctx->session_table_size = 0;
+    ctx->session_table_count = 0;
+    ctx->dirty = NULL;
+    clear_timers(ctx);
+    clear_dns_cache(ctx);
+    clear_dns_mux(ctx);
+}
+
+// Sessions are indexed on version, protocol, addresses and ports (zero for ICMP)
+// in an open addressing table, and kept in a doubly linked list per protocol.
+// Active session counters are adjusted when a session is added, removed or updated.
+
+static int get_session_list(uint8_t protocol) {
+    if (protocol == IPPROTO_TCP)
+        return SESSION_TCP;
+    else if (protocol == IPPROTO_UDP)
+        return SESSION_UDP;
+    else
+        return SESSION_ICMP;
+}
+
+static int is_session_active(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return !s->icmp.stop;
+    else if (s->protocol == IPPROTO_UDP)
+        return s->udp.state == UDP_ACTIVE;
+    else if (s->protocol == IPPROTO_TCP)
+        return s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE;
+    return 0;
+}
+
+static uint32_t get_session_hash(int version, uint8_t protocol,
+                                 const void *saddr, __be16 source,
+                                 const void *daddr, __be16 dest) {
+    size_t alen = (version == 4 ? 4 : 16);
+    uint32_t hash = FNV1A32_BASIS;
+    hash = fnv1a32(hash, &protocol, sizeof(protocol));
+    hash = fnv1a32(hash, &source, sizeof(source));
+    hash = fnv1a32(hash, &dest, sizeof(dest));
+    hash = fnv1a32(hash, saddr, alen);
+    hash = fnv1a32(hash, daddr, alen);
+    return hash;
+}
+
+static int session_matches(const struct ng_session *s,
+                           int version, uint8_t protocol,
+                           const void *saddr, __be16 source,
+                           const void *daddr, __be16 dest) {
+    if (s->protocol != protocol)
+        return 0;
+
+    size_t alen = (version == 4 ? 4 : 16);
+    if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6)
+        // Stopped sessions linger until they expire, a new session replaces them
+        return (!s->icmp.stop && s->icmp.version == version &&
+                memcmp(&s->icmp.saddr, saddr, alen) == 0 &&
+                memcmp(&s->icmp.daddr, daddr, alen) == 0);
+    else if (protocol == IPPROTO_UDP)
+        return (s->udp.version == version &&
+                s->udp.source == source && s->udp.dest == dest &&
+                memcmp(&s->udp.saddr, saddr, alen) == 0 &&
+                memcmp(&s->udp.daddr, daddr, alen) == 0);
+    else if (protocol == IPPROTO_TCP)
+        return (s->tcp.version == version &&
+                s->tcp.source == source && s->tcp.dest == dest &&
+                memcmp(&s->tcp.saddr, saddr, alen) == 0 &&
+                memcmp(&s->tcp.daddr, daddr, alen) == 0);
+    return 0;
+}
+
+static uint32_t hash_session(const struct ng_session *s) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+        return get_session_hash(s->icmp.version, s->protocol,
+                                &s->icmp.saddr, 0, &s->icmp.daddr, 0);
+    else if (s->protocol == IPPROTO_UDP)
+        return get_session_hash(s->udp.version, s->protocol,
+                                &s->udp.saddr, s->udp.source, &s->udp.daddr, s->udp.dest);
+    else
+        return get_session_hash(s->tcp.version, s->protocol,
+                                &s->tcp.saddr, s->tcp.source, &s->tcp.daddr, s->tcp.dest);
+}
+
+static void insert_session_slot(struct ng_session **table, uint32_t size, struct ng_session *s) {
+    uint32_t mask = size - 1;
+    uint32_t i = s->hash & mask;
+    while (table[i] != NULL)
+        i = (i + 1) & mask;
+    table[i] = s;
+}
+
+static int grow_session_table(struct context *ctx) {
+    uint32_t size = (ctx->session_table_size == 0
+                     ? SESSION_TABLE_MIN : ctx->session_table_size * 2);
+    struct ng_session **table = ng_calloc(size, sizeof(struct ng_session *), "session table");
+    if (table == NULL) {
+        log_android(ANDROID_LOG_ERROR, "Session table size %u alloc failed", size);
+        return -1;
+    }
+
+    for (uint32_t i = 0; i < ctx->session_table_size; i++)
+        if (ctx->session_table[i] != NULL)
+            insert_session_slot(table, size, ctx->session_table[i]);
+
+    if (ctx->session_table != NULL)
+        ng_free(ctx->session_table, __FILE__, __LINE__);
+    ctx->session_table = table;
+    ctx->session_table_size = size;
+
+    log_android(ANDROID_LOG_WARN, "Session table size %u sessions %u",
+                size, ctx->session_table_count);
+    return 0;
+}
+
+struct ng_session *find_session(struct context *ctx,
+                                int version, uint8_t protocol,
+                                const void *saddr, __be16 source,
+                                const void *daddr, __be16 dest) {
+    if (ctx->session_table == NULL)
+        return NULL;
+
+    uint32_t mask = ctx->session_table_size - 1;
+    uint32_t i = get_session_hash(version, protocol, saddr, source, daddr, dest) & mask;
+    struct ng_session *s;
+    while ((s = ctx->session_table[i]) != NULL) {
+        if (session_matches(s, version, protocol, saddr, source, daddr, dest)) {
+            touch_session(ctx, s);
+            return s;
+        }
+        i = (i + 1) & mask;
+    }
+    return NULL;
+}
+
+void add_session(struct context *ctx, struct ng_session *s) {
+    s->hash = hash_session(s);
+    s->active = (uint8_t) is_session_active(s);
+    s->dirty = 0;
+    s->dirty_next = NULL;
+    s->dirty_prev = NULL;
+    s->expires = 0;
+    s->timer_slot = -1;
+    s->timer_next = NULL;
+    s->timer_prev = NULL;
+
+    // Keep the load factor at most one half
+    if ((ctx->session_table_count + 1) * 2 > ctx->session_table_size)
+        grow_session_table(ctx);
+
+    if ((ctx->session_table_count + 1) < ctx->session_table_size) {
+        insert_session_slot(ctx->session_table, ctx->session_table_size, s);
+        ctx->session_table_count++;
+    } else
+        log_android(ANDROID_LOG_ERROR, "Session table full %u", ctx->session_table_count);
+
+    int l = get_session_list(s->protocol);
+    s->prev = NULL;
+    s->next = ctx->ng_session[l];
+    if (s->next != NULL)
+        s->next->prev = s;
+    ctx->ng_session[l] = s;
+
+    if (s->active)
+        ctx->active_sessions[l]++;
+
+    touch_session(ctx, s);
+}
+
+void remove_session(struct context *ctx, struct ng_session *s) {
+    // Backward shift deletion keeps probe sequences intact without tombstones
+    if (ctx->session_table != NULL) {
+        uint32_t mask = ctx->session_table_size - 1;
+        uint32_t i = s->hash & mask;
+        while (ctx->session_table[i] != NULL && ctx->session_table[i] != s)
+            i = (i + 1) & mask;
+
+        if (ctx->session_table[i] == s) {
+            ctx->session_table[i] = NULL;
+            ctx->session_table_count--;
+
+            uint32_t j = i;
+            while (1) {
+                j = (j + 1) & mask;
+                struct ng_session *m = ctx->session_table[j];
+                if (m == NULL)
+                    break;
+                uint32_t k = m->hash & mask;
+                if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                    ctx->session_table[i] = m;
+                    ctx->session_table[j] = NULL;
+                    i = j;
+                }
+            }
+        }
+    }
+
+    int l = get_session_list(s->protocol);
+    if (s->prev == NULL)
+        ctx->ng_session[l] = s->next;
+    else
+        s->prev->next = s->next;
+    if (s->next != NULL)
+        s->next->prev = s->prev;
+    s->next = NULL;
+    s->prev = NULL;
+
+    if (s->dirty) {
+        if (s->dirty_prev == NULL)
+            ctx->dirty = s->dirty_next;
+        else
+            s->dirty_prev->dirty_next = s->dirty_next;
+        if (s->dirty_next != NULL)
+            s->dirty_next->dirty_prev = s->dirty_prev;
+        s->dirty = 0;
+    }
+
+    if (s->active) {
+        ctx->active_sessions[l]--;
+        s->active = 0;
+    }
+
+    unschedule_session(ctx, s);
+}
+
+void touch_session(struct context *ctx, struct ng_session *s) {
+    if (s->dirty)
+        return;
+    s->dirty = 1;
+    s->dirty_prev = NULL;
+    s->dirty_next = ctx->dirty;
+    if (s->dirty_next != NULL)
+        s->dirty_next->dirty_prev = s;
+    ctx->dirty = s;
+}
+
+void update_session(struct context *ctx, struct ng_session *s) {
+    uint8_t active = (uint8_t) is_session_active(s);
+    if (active != s->active) {
+        s->active = active;
+        ctx->active_sessions[get_session_list(s->protocol)] += (active ? 1 : -1);
     }
-    ctx->ng_session = NULL;
+}
+
+int get_sessions(const struct context *ctx) {
+    int sessions = 0;
+    for (int l = 0; l < SESSION_LISTS; l++)
+        sessions += ctx->active_sessions[l];
+    return sessions;
+}
+
+// Time from which check_*_session has something to do for the session
+time_t get_session_deadline(const struct ng_session *s, int sessions, int maxsessions) {
+    if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+        if (s->icmp.stop)
+            return 0;
+        return s->icmp.time + get_icmp_timeout(&s->icmp, sessions, maxsessions) + 1;
+
+    } else if (s->protocol == IPPROTO_UDP) {
+        if (s->udp.state == UDP_ACTIVE) {
+            time_t deadline = s->udp.time + get_udp_timeout(&s->udp, sessions, maxsessions) + 1;
+            if ((s->udp.sent || s->udp.received) && s->udp.usage_time + USAGE_FLUSH < deadline)
+                return s->udp.usage_time + USAGE_FLUSH;
+            return deadline;
+        }
+        else if (s->udp.state == UDP_FINISHING ||
+                 (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)))
+            return 0;
+        return s->udp.time + UDP_KEEP_TIMEOUT + 1;
+
+    } else if (s->protocol == IPPROTO_TCP) {
+        if (s->tcp.state == TCP_CLOSING ||
+            (s->tcp.state == TCP_CLOSE && (s->tcp.sent || s->tcp.received)))
+            return 0;
+        else if (s->tcp.state == TCP_CLOSE)
+            return s->tcp.time + TCP_KEEP_TIMEOUT + 1;
+        time_t deadline = s->tcp.time + get_tcp_timeout(&s->tcp, sessions, maxsessions) + 1;
+        if ((s->tcp.sent || s->tcp.received) && s->tcp.usage_time + USAGE_FLUSH < deadline)
+            return s->tcp.usage_time + USAGE_FLUSH;
+        return deadline;
+    }
+
+    return 0;
+}
+
+static void free_session(struct context *ctx, struct ng_session *s) {
+    remove_session(ctx, s);
+    if (s->protocol == IPPROTO_TCP)
+        clear_tcp_data(&s->tcp);
+    ng_free(s, __FILE__, __LINE__);
 }
 
 void *handle_events(void *a) {
@@ -53,6 +348,16 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
+    // Workers share the limit
+    if (args->worker != NULL)
+        maxsessions = maxsessions / args->worker->count;
+
+    if (attach_shared_buffer(args)) {
+        log_android(ANDROID_LOG_ERROR, "Attach shared buffer failed");
+        report_exit(args, "Attach shared buffer failed");
+        args->ctx->stopping = 1;
+    }
+
     // Terminate existing sessions not allowed anymore
     check_allowed(args);
 
@@ -75,112 +380,130 @@ void *handle_events(void *a) {
         args->ctx->stopping = 1;
     }
 
-    // Monitor tun events
+    // Monitor tun events, workers get packets queued by the reader instead
     struct epoll_event ev_tun;
     memset(&ev_tun, 0, sizeof(struct epoll_event));
     ev_tun.events = EPOLLIN | EPOLLERR;
     ev_tun.data.ptr = NULL;
-    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
+    int upstream = (args->worker == NULL ? args->tun : args->worker->wakefds[0]);
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, upstream, &ev_tun)) {
         log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
         report_exit(args, "epoll add tun error %d: %s", errno, strerror(errno));
         args->ctx->stopping = 1;
     }
 
     // Loop
-    long long last_check = 0;
+    int scale = 100;
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
+        // Rules were swapped while running, terminate sessions not allowed anymore in one batch
+        if (__sync_lock_test_and_set(&args->ctx->reload, 0)) {
+            log_android(ANDROID_LOG_WARN, "Reload sessions %d", get_sessions(args->ctx));
+            check_allowed(args);
+            flush_dns_cache(args->ctx);
+        }
+
+        if (args->ctx->snapshot != NULL)
+            answer_snapshot(args->ctx);
+
         int recheck = 0;
-        int timeout = EPOLL_TIMEOUT;
+        int sessions = get_sessions(args->ctx);
 
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
+        // Update sessions touched since the last pass only
+        struct ng_session *s = args->ctx->dirty;
+        args->ctx->dirty = NULL;
+        struct ng_session *monitor = NULL;
         while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
+            struct ng_session *n = s->dirty_next;
+            s->dirty = 0;
+            s->dirty_next = NULL;
+            s->dirty_prev = NULL;
+            update_session(args->ctx, s);
+            if (s->protocol == IPPROTO_TCP && s->socket >= 0) {
+                s->dirty_next = monitor;
+                monitor = s;
             }
-            s = s->next;
+
+            // New sessions and state changes can bring the deadline forward,
+            // activity only moves it back and is picked up when the timer fires
+            time_t deadline = get_session_deadline(s, sessions, maxsessions);
+            if (s->timer_slot < 0 || deadline < s->expires)
+                schedule_session(args->ctx, s, deadline);
+
+            s = n;
         }
-        int sessions = isessions + usessions + tsessions;
-
-        // Check sessions
-        long long ms = get_ms();
-        if (ms - last_check > EPOLL_MIN_CHECK) {
-            last_check = ms;
-
-            time_t now = time(NULL);
-            struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
-            while (s != NULL) {
-                int del = 0;
-                if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                    del = check_icmp_session(args, s, sessions, maxsessions);
-                    if (!s->icmp.stop && !del) {
-                        int stimeout = s->icmp.time +
-                                       get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_UDP) {
-                    del = check_udp_session(args, s, sessions, maxsessions);
-                    if (s->udp.state == UDP_ACTIVE && !del) {
-                        int stimeout = s->udp.time +
-                                       get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                } else if (s->protocol == IPPROTO_TCP) {
-                    del = check_tcp_session(args, s, sessions, maxsessions);
-                    if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
-                        int stimeout = s->tcp.time +
-                                       get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
-                        if (stimeout > 0 && stimeout < timeout)
-                            timeout = stimeout;
-                    }
-                }
 
-                if (del) {
-                    if (sl == NULL)
-                        args->ctx->ng_session = s->next;
-                    else
-                        sl->next = s->next;
+        // Sessions waiting for buffer space or window are monitored again on the next pass
+        while (monitor != NULL) {
+            struct ng_session *n = monitor->dirty_next;
+            monitor->dirty_next = NULL;
+            if (monitor_tcp_session(args, monitor, epoll_fd)) {
+                recheck = 1;
+                touch_session(args->ctx, monitor);
+            }
+            update_session(args->ctx, monitor);
+            monitor = n;
+        }
 
-                    struct ng_session *c = s;
-                    s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
-                        clear_tcp_data(&c->tcp);
-                    ng_free(c, __FILE__, __LINE__);
-                } else {
-                    sl = s;
-                    s = s->next;
+        int isessions = args->ctx->active_sessions[SESSION_ICMP];
+        int usessions = args->ctx->active_sessions[SESSION_UDP];
+        int tsessions = args->ctx->active_sessions[SESSION_TCP];
+        sessions = isessions + usessions + tsessions;
+
+        // Timeouts shrink with the number of sessions, reschedule when they shrank noticeably
+        int current = 100 - sessions * 100 / maxsessions;
+        if (current <= scale - TIMER_RESCALE) {
+            log_android(ANDROID_LOG_WARN, "Timer rescale %d > %d sessions %d",
+                        scale, current, sessions);
+            for (int l = 0; l < SESSION_LISTS; l++)
+                for (s = args->ctx->ng_session[l]; s != NULL; s = s->next) {
+                    time_t deadline = get_session_deadline(s, sessions, maxsessions);
+                    if (deadline < s->expires)
+                        schedule_session(args->ctx, s, deadline);
                 }
+            scale = current;
+        } else if (current > scale)
+            scale = current;
+
+        // Check sessions with passed deadlines
+        time_t now = time(NULL);
+        s = expire_sessions(args->ctx, now);
+        while (s != NULL) {
+            struct ng_session *n = s->timer_next;
+            s->timer_next = NULL;
+
+            int del = 0;
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6)
+                del = check_icmp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_UDP)
+                del = check_udp_session(args, s, sessions, maxsessions);
+            else if (s->protocol == IPPROTO_TCP)
+                del = check_tcp_session(args, s, sessions, maxsessions);
+
+            if (del)
+                free_session(args->ctx, s);
+            else {
+                update_session(args->ctx, s);
+                time_t deadline = get_session_deadline(s, sessions, maxsessions);
+                schedule_session(args->ctx, s, deadline > now ? deadline : now + 1);
             }
-        } else {
-            recheck = 1;
-            log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
+            s = n;
         }
 
+        int timeout = get_timer_timeout(args->ctx);
+        if (timeout < 0)
+            timeout = EPOLL_TIMEOUT * 1000;
+        if (recheck && timeout > EPOLL_MIN_CHECK)
+            timeout = EPOLL_MIN_CHECK;
+
         log_android(ANDROID_LOG_DEBUG,
                     "sessions ICMP %d UDP %d TCP %d max %d/%d timeout %d recheck %d",
                     isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
 
         // Poll
         struct epoll_event ev[EPOLL_EVENTS];
-        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS,
-                               recheck ? EPOLL_MIN_CHECK : timeout * 1000);
+        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS, timeout);
 
         if (ready < 0) {
             if (errno == EINTR) {
@@ -224,13 +547,14 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
-                    int count = 0;
-                    while (count < TUN_YIELD && !error && !args->ctx->stopping &&
-                           is_readable(args->tun)) {
-                        count++;
-                        if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
-                            error = 1;
-                    }
+                    if (args->worker != NULL)
+                        check_worker(args, &ev[i], epoll_fd, maxsessions);
+                    else if (check_tun(args, &ev[i], epoll_fd, maxsessions) < 0)
+                        error = 1;
+
+                } else if (is_dns_upstream(args->ctx, ev[i].data.ptr)) {
+                    // Check DNS forwarder
+                    check_dns_upstream(args, &ev[i]);
 
                 } else {
                     // Check downstream
@@ -245,6 +569,7 @@ void *handle_events(void *a) {
                                 ((struct ng_session *) ev[i].data.ptr)->socket);
 
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
+                    touch_session(args->ctx, session);
                     if (session->protocol == IPPROTO_ICMP ||
                         session->protocol == IPPROTO_ICMPV6)
                         check_icmp_socket(args, &ev[i]);
@@ -272,6 +597,13 @@ void *handle_events(void *a) {
         }
     }
 
+    // Traffic of open sessions since their last count would be lost with them
+    flush_usage(args);
+
+    // A snapshot posted while stopping is answered with the last sessions
+    answer_snapshot(args->ctx);
+    clear_dns_mux(args->ctx);
+
     // Close epoll file
     if (epoll_fd >= 0 && close(epoll_fd))
         log_android(ANDROID_LOG_ERROR,
@@ -285,88 +617,55 @@ void *handle_events(void *a) {
 }
 
 void check_allowed(const struct arguments *args) {
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-
-    struct ng_session *l = NULL;
-    struct ng_session *s = args->ctx->ng_session;
-    while (s != NULL) {
-        if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop) {
-                if (s->icmp.version == 4) {
-                    inet_ntop(AF_INET, &s->icmp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->icmp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
-                }
-
-                jobject objPacket = create_packet(
-                        args, s->icmp.version, IPPROTO_ICMP, "",
-                        source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    s->icmp.stop = 1;
-                    log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
-                                s->socket, s->icmp.uid);
+    for (int l = 0; l < SESSION_LISTS; l++) {
+        struct ng_session *s = args->ctx->ng_session[l];
+        while (s != NULL) {
+            struct ng_session *n = s->next;
+            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
+                if (!s->icmp.stop) {
+                    if (is_flow_allowed(args, s->icmp.version, IPPROTO_ICMP,
+                                        &s->icmp.saddr, 0, &s->icmp.daddr, 0,
+                                        s->icmp.uid) == NULL) {
+                        s->icmp.stop = 1;
+                        log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
+                                    s->socket, s->icmp.uid);
+                    }
                 }
-            }
 
-        } else if (s->protocol == IPPROTO_UDP) {
-            if (s->udp.state == UDP_ACTIVE) {
-                if (s->udp.version == 4) {
-                    inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-                }
+            } else if (s->protocol == IPPROTO_UDP) {
+                if (s->udp.state == UDP_ACTIVE) {
+                    if (is_flow_allowed(args, s->udp.version, IPPROTO_UDP,
+                                        &s->udp.saddr, ntohs(s->udp.source),
+                                        &s->udp.daddr, ntohs(s->udp.dest), s->udp.uid) == NULL) {
+                        s->udp.state = UDP_FINISHING;
+                        log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
+                                    s->socket, s->udp.uid);
+                    }
+                } else if (s->udp.state == UDP_BLOCKED) {
+                    log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
 
-                jobject objPacket = create_packet(
-                        args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    s->udp.state = UDP_FINISHING;
-                    log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
-                                s->socket, s->udp.uid);
+                    free_session(args->ctx, s);
+                    s = n;
+                    continue;
                 }
-            } else if (s->udp.state == UDP_BLOCKED) {
-                log_android(ANDROID_LOG_WARN, "UDP remove blocked session uid %d", s->udp.uid);
-
-                if (l == NULL)
-                    args->ctx->ng_session = s->next;
-                else
-                    l->next = s->next;
-
-                struct ng_session *c = s;
-                s = s->next;
-                ng_free(c, __FILE__, __LINE__);
-                continue;
-            }
 
-        } else if (s->protocol == IPPROTO_TCP) {
-            if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE) {
-                if (s->tcp.version == 4) {
-                    inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
+            } else if (s->protocol == IPPROTO_TCP) {
+                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE) {
+                    if (is_flow_allowed(args, s->tcp.version, IPPROTO_TCP,
+                                        &s->tcp.saddr, ntohs(s->tcp.source),
+                                        &s->tcp.daddr, ntohs(s->tcp.dest), s->tcp.uid) == NULL) {
+                        write_rst(args, &s->tcp);
+                        log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
+                                    s->socket, s->tcp.uid);
+                    }
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    write_rst(args, &s->tcp);
-                    log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
-                                s->socket, s->tcp.uid);
-                }
             }
 
+            // Counters and deadlines are updated on the next loop pass
+            touch_session(args->ctx, s);
+            s = n;
         }
-
-        l = s;
-        s = s->next;
     }
 }
 
@@ -103,13 +103,22 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
         s->tcp.state = TCP_CLOSE;
     }
 
-    if ((s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE) &&
-        (s->tcp.sent || s->tcp.received)) {
-        account_usage(args, s->tcp.version, IPPROTO_TCP,
-                      dest, ntohs(s->tcp.dest), s->tcp.uid, s->tcp.sent, s->tcp.received);
-        s->tcp.sent = 0;
-        s->tcp.received = 0;
-    }
+    // Count closed sessions and open ones every USAGE_FLUSH seconds
+    if (s->tcp.sent || s->tcp.received) {
+        if (s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE ||
+            s->tcp.usage_time + USAGE_FLUSH <= now) {
+            account_usage(args, s->tcp.version, IPPROTO_TCP,
+                          &s->tcp.daddr, ntohs(s->tcp.dest), s->tcp.uid,
+                          s->tcp.sent, s->tcp.received, !s->tcp.usage_counted, s->tcp.proxied);
+            s->tcp.usage_sent += s->tcp.sent;
+            s->tcp.usage_received += s->tcp.received;
+            s->tcp.sent = 0;
+            s->tcp.received = 0;
+            s->tcp.usage_time = now;
+            s->tcp.usage_counted = 1;
+        }
+    } else
+        s->tcp.usage_time = now;
 
     // Cleanup lingering sessions
     if (s->tcp.state == TCP_CLOSE && s->tcp.time + TCP_KEEP_TIMEOUT < now)
@@ -316,20 +325,22 @@ void check_tcp_socket(const struct arguments *args,
                     // https://tools.ietf.org/html/rfc1928
                     // https://tools.ietf.org/html/rfc1929
                     // https://en.wikipedia.org/wiki/SOCKS#SOCKS5
-                    //bypass i2p, dns addresses and own uid from socks proxy
+                    //bypass i2p, dns addresses, clearnet hosts and own uid from socks proxy
                     char *i2paddr = "10.191.0.1";
                     if (*socks5_addr && socks5_port
                     && (strcmp(dest, i2paddr) != 0)
                     && (ntohs(s->tcp.dest) != 53)
-                    && own_uid != s->tcp.uid) {
+                    && own_uid != s->tcp.uid
+                    && !is_host_address(s->tcp.version, &s->tcp.daddr)) {
                         s->tcp.socks5 = SOCKS5_HELLO;
+                        s->tcp.proxied = 1;
                     } else {
                         s->tcp.socks5 = SOCKS5_CONNECTED;
                     }
                 }
             } else {
                 if (ev->events & EPOLLIN) {
-                    uint8_t buffer[32];
+                    uint8_t buffer[6 + 1 + DNS_QNAME_MAX]; // reply bound to a name
                     ssize_t bytes = recv(s->socket, buffer, sizeof(buffer), 0);
                     if (bytes < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 error %d: %s",
@@ -367,8 +378,10 @@ void check_tcp_socket(const struct arguments *args,
                             }
 
                         } else if (s->tcp.socks5 == SOCKS5_CONNECT &&
-                                   bytes == 6 + (s->tcp.version == 4 ? 4 : 16) &&
-                                   buffer[0] == 5) {
+                                   bytes >= 5 && buffer[0] == 5 &&
+                                   bytes == 6 + (buffer[3] == 1 ? 4 :
+                                                 buffer[3] == 4 ? 16 : 1 + buffer[4])) {
+                            // The bound address type need not be the one requested
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECTED;
                                 log_android(ANDROID_LOG_INFO, "%s SOCKS5 connected", session);
@@ -438,21 +451,34 @@ void check_tcp_socket(const struct arguments *args,
                 }
 
             } else if (s->tcp.socks5 == SOCKS5_CONNECT) {
-                uint8_t buffer[22];
+                // The name the app resolved when known, the exit resolves it again
+                char name[DNS_QNAME_MAX + 1];
+                size_t namelen = get_dns_name(s->tcp.version, &s->tcp.daddr, name);
+
+                uint8_t buffer[4 + 1 + DNS_QNAME_MAX + 2];
                 *(buffer + 0) = 5; // version
                 *(buffer + 1) = 1; // TCP/IP stream connection
                 *(buffer + 2) = 0; // reserved
-                *(buffer + 3) = (uint8_t) (s->tcp.version == 4 ? 1 : 4);
-                if (s->tcp.version == 4) {
+                size_t len;
+                if (namelen > 0) {
+                    *(buffer + 3) = 3; // domain name
+                    *(buffer + 4) = (uint8_t) namelen;
+                    memcpy(buffer + 5, name, namelen);
+                    *((__be16 *) (buffer + 5 + namelen)) = s->tcp.dest;
+                    len = 5 + namelen + 2;
+                    log_android(ANDROID_LOG_INFO, "%s SOCKS5 connect name %s", session, name);
+                } else if (s->tcp.version == 4) {
+                    *(buffer + 3) = 1;
                     memcpy(buffer + 4, &s->tcp.daddr.ip4, 4);
                     *((__be16 *) (buffer + 4 + 4)) = s->tcp.dest;
+                    len = 10;
                 } else {
+                    *(buffer + 3) = 4;
                     memcpy(buffer + 4, &s->tcp.daddr.ip6, 16);
                     *((__be16 *) (buffer + 4 + 16)) = s->tcp.dest;
+                    len = 22;
                 }
 
-                size_t len = (s->tcp.version == 4 ? 10 : 22);
-
                 char *h = hex(buffer, len);
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 connect: %s",
                             session, h);
@@ -567,7 +593,7 @@ void check_tcp_socket(const struct arguments *args,
 
                     uint32_t buffer_size = (send_window > s->tcp.mss
                                             ? s->tcp.mss : send_window);
-                    uint8_t *buffer = ng_malloc(buffer_size, "tcp socket");
+                    uint8_t *buffer = get_packet_buffer(args->ctx);
                     ssize_t bytes = recv(s->socket, buffer, (size_t) buffer_size, 0);
                     if (bytes < 0) {
                         // Socket error
@@ -619,7 +645,7 @@ void check_tcp_socket(const struct arguments *args,
                             s->tcp.unconfirmed++;
                         }
                     }
-                    ng_free(buffer, __FILE__, __LINE__);
+                    put_packet_buffer(args->ctx, buffer);
                 }
             }
         }
@@ -646,16 +672,12 @@ jboolean handle_tcp(const struct arguments *args,
     const uint16_t datalen = (const uint16_t) (length - (data - pkt));
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_TCP &&
-             cur->tcp.version == version &&
-             cur->tcp.source == tcphdr->source && cur->tcp.dest == tcphdr->dest &&
-             (version == 4 ? cur->tcp.saddr.ip4 == ip4->saddr &&
-                             cur->tcp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->tcp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, version, IPPROTO_TCP,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            tcphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            tcphdr->dest);
 
     // Prepare logging
     char source[INET6_ADDRSTRLEN + 1];
@@ -752,6 +774,10 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.last_keep_alive = 0;
             s->tcp.sent = 0;
             s->tcp.received = 0;
+            s->tcp.usage_sent = 0;
+            s->tcp.usage_received = 0;
+            s->tcp.usage_time = s->tcp.time;
+            s->tcp.usage_counted = 0;
 
             if (version == 4) {
                 s->tcp.saddr.ip4 = (__be32) ip4->saddr;
@@ -765,8 +791,9 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.dest = tcphdr->dest;
             s->tcp.state = TCP_LISTEN;
             s->tcp.socks5 = SOCKS5_NONE;
+            s->tcp.proxied = 0;
+            s->tcp.redirected = (uint8_t) (redirect != NULL);
             s->tcp.forward = NULL;
-            s->next = NULL;
 
             if (datalen) {
                 log_android(ANDROID_LOG_INFO, "%s SYN data", packet);
@@ -801,8 +828,7 @@ jboolean handle_tcp(const struct arguments *args,
                 log_android(ANDROID_LOG_ERROR, "epoll add tcp error %d: %s",
                             errno, strerror(errno));
 
-            s->next = args->ctx->ng_session;
-            args->ctx->ng_session = s;
+            add_session(args->ctx, s);
 
             if (!allowed) {
                 log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
@@ -1196,7 +1222,8 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst) {
     size_t len;
-    u_int8_t *buffer;
+    uint8_t header[TUN_HEADER_MAX];
+    uint8_t *buffer = header;
     struct tcphdr *tcp;
     uint16_t csum;
     char source[INET6_ADDRSTRLEN + 1];
@@ -1207,12 +1234,9 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     uint8_t *options;
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write4");
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen, data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -1238,12 +1262,9 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write 6");
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen, data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -1320,7 +1341,12 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
+    struct iovec iov[2];
+    iov[0].iov_base = buffer;
+    iov[0].iov_len = len - datalen;
+    iov[1].iov_base = (void *) data;
+    iov[1].iov_len = datalen;
+    ssize_t res = write_tun(args, iov, datalen ? 2 : 1, cur->uid);
 
     if (res < 0) {
         log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
@@ -1333,8 +1359,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     }
 
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
         return -1;
@@ -0,0 +1,169 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Hierarchical timer wheel of session deadlines with one second resolution.
+// Level 0 slots hold single seconds, higher level slots are cascaded down
+// when the lower level wraps. Deadlines already passed go to the due list.
+
+#define TIMER_MASK (TIMER_SLOTS - 1)
+#define TIMER_SPAN ((time_t) 1 << (TIMER_BITS * TIMER_LEVELS)) // seconds
+
+static void link_slot(struct context *ctx, struct ng_session *s, int slot) {
+    s->timer_slot = (int16_t) slot;
+    s->timer_prev = NULL;
+    s->timer_next = ctx->timer[slot];
+    if (s->timer_next != NULL)
+        s->timer_next->timer_prev = s;
+    ctx->timer[slot] = s;
+}
+
+static int get_timer_slot(const struct context *ctx, time_t expires) {
+    if (expires < ctx->timer_now)
+        return TIMER_DUE;
+
+    time_t delta = expires - ctx->timer_now;
+    for (int level = 0; level < TIMER_LEVELS; level++)
+        if (delta < ((time_t) 1 << (TIMER_BITS * (level + 1))))
+            return level * TIMER_SLOTS + (int) ((expires >> (TIMER_BITS * level)) & TIMER_MASK);
+
+    // Beyond the wheel, will be checked and rescheduled when the top level comes round
+    return (TIMER_LEVELS - 1) * TIMER_SLOTS +
+           (int) (((ctx->timer_now + TIMER_SPAN - 1) >> (TIMER_BITS * (TIMER_LEVELS - 1))) &
+                  TIMER_MASK);
+}
+
+void schedule_session(struct context *ctx, struct ng_session *s, time_t expires) {
+    unschedule_session(ctx, s);
+
+    if (ctx->timer_now == 0)
+        ctx->timer_now = time(NULL);
+
+    s->expires = expires;
+    link_slot(ctx, s, get_timer_slot(ctx, expires));
+}
+
+void unschedule_session(struct context *ctx, struct ng_session *s) {
+    if (s->timer_slot < 0)
+        return;
+
+    if (s->timer_prev == NULL)
+        ctx->timer[s->timer_slot] = s->timer_next;
+    else
+        s->timer_prev->timer_next = s->timer_next;
+    if (s->timer_next != NULL)
+        s->timer_next->timer_prev = s->timer_prev;
+
+    s->timer_slot = -1;
+    s->timer_next = NULL;
+    s->timer_prev = NULL;
+}
+
+static void cascade(struct context *ctx, int slot) {
+    struct ng_session *s = ctx->timer[slot];
+    ctx->timer[slot] = NULL;
+    while (s != NULL) {
+        struct ng_session *n = s->timer_next;
+        link_slot(ctx, s, get_timer_slot(ctx, s->expires));
+        s = n;
+    }
+}
+
+static struct ng_session *take_slot(struct context *ctx, int slot, struct ng_session *expired) {
+    struct ng_session *s = ctx->timer[slot];
+    ctx->timer[slot] = NULL;
+    while (s != NULL) {
+        struct ng_session *n = s->timer_next;
+        s->timer_slot = -1;
+        s->timer_prev = NULL;
+        s->timer_next = expired;
+        expired = s;
+        s = n;
+    }
+    return expired;
+}
+
+// Returns the sessions with passed deadlines chained on timer_next, they are no longer scheduled
+struct ng_session *expire_sessions(struct context *ctx, time_t now) {
+    struct ng_session *expired = take_slot(ctx, TIMER_DUE, NULL);
+    if (ctx->timer_now == 0)
+        return expired;
+
+    // Wall clock changed, let every session be checked against the new time
+    if (now < ctx->timer_now - 1 || now - ctx->timer_now >= TIMER_SPAN) {
+        log_android(ANDROID_LOG_WARN, "Timer clock changed %ld > %ld",
+                    (long) ctx->timer_now, (long) now);
+        for (int slot = 0; slot < TIMER_DUE; slot++)
+            expired = take_slot(ctx, slot, expired);
+        ctx->timer_now = now + 1;
+        return expired;
+    }
+
+    while (ctx->timer_now <= now) {
+        time_t t = ctx->timer_now;
+        for (int level = TIMER_LEVELS - 1; level > 0; level--)
+            if ((t & (((time_t) 1 << (TIMER_BITS * level)) - 1)) == 0)
+                cascade(ctx, level * TIMER_SLOTS + (int) ((t >> (TIMER_BITS * level)) & TIMER_MASK));
+
+        expired = take_slot(ctx, (int) (t & TIMER_MASK), expired);
+        ctx->timer_now++;
+    }
+
+    return expired;
+}
+
+// Milliseconds until the next deadline, -1 when nothing is scheduled
+int get_timer_timeout(const struct context *ctx) {
+    if (ctx->timer[TIMER_DUE] != NULL)
+        return 0;
+
+    time_t next = 0;
+
+    // Nearest second in the first level
+    for (time_t t = ctx->timer_now; t < ctx->timer_now + TIMER_SLOTS && !next; t++)
+        if (ctx->timer[t & TIMER_MASK] != NULL)
+            next = t;
+
+    // Otherwise the nearest cascade of a higher level
+    for (int level = 1; level < TIMER_LEVELS && !next; level++) {
+        int shift = TIMER_BITS * level;
+        time_t base = ctx->timer_now >> shift;
+        for (time_t b = base + 1; b <= base + TIMER_SLOTS && !next; b++)
+            if (ctx->timer[level * TIMER_SLOTS + (int) (b & TIMER_MASK)] != NULL)
+                next = b << shift;
+    }
+
+    if (!next)
+        return -1;
+
+    struct timespec ts;
+    clock_gettime(CLOCK_REALTIME, &ts);
+    long long ms = (next - ts.tv_sec) * 1000LL - ts.tv_nsec / 1000000;
+    if (ms < 0)
+        return 0;
+    if (ms > EPOLL_TIMEOUT * 1000LL)
+        return EPOLL_TIMEOUT * 1000;
+    return (int) ms;
+}
+
+void clear_timers(struct context *ctx) {
+    memset(ctx->timer, 0, sizeof(ctx->timer));
+    ctx->timer_now = 0;
+}
@@ -71,12 +71,21 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
         s->udp.state = UDP_CLOSED;
     }
 
-    if (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)) {
-        account_usage(args, s->udp.version, IPPROTO_UDP,
-                      dest, ntohs(s->udp.dest), s->udp.uid, s->udp.sent, s->udp.received);
-        s->udp.sent = 0;
-        s->udp.received = 0;
-    }
+    // Count closed sessions and open ones every USAGE_FLUSH seconds
+    if (s->udp.sent || s->udp.received) {
+        if (s->udp.state == UDP_CLOSED || s->udp.usage_time + USAGE_FLUSH <= now) {
+            account_usage(args, s->udp.version, IPPROTO_UDP,
+                          &s->udp.daddr, ntohs(s->udp.dest), s->udp.uid,
+                          s->udp.sent, s->udp.received, !s->udp.usage_counted, 0);
+            s->udp.usage_sent += s->udp.sent;
+            s->udp.usage_received += s->udp.received;
+            s->udp.sent = 0;
+            s->udp.received = 0;
+            s->udp.usage_time = now;
+            s->udp.usage_counted = 1;
+        }
+    } else
+        s->udp.usage_time = now;
 
     // Cleanup lingering sessions
     if ((s->udp.state == UDP_CLOSED || s->udp.state == UDP_BLOCKED) &&
@@ -108,7 +117,7 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
         if (ev->events & EPOLLIN) {
             s->udp.time = time(NULL);
 
-            uint8_t *buffer = ng_malloc(s->udp.mss, "udp recv");
+            uint8_t *buffer = get_packet_buffer(args->ctx);
             ssize_t bytes = recv(s->socket, buffer, s->udp.mss, 0);
             if (bytes < 0) {
                 // Socket error
@@ -134,8 +143,10 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                 s->udp.received += bytes;
 
                 // Process DNS response
-                if (ntohs(s->udp.dest) == 53)
+                if (ntohs(s->udp.dest) == 53) {
                     parse_dns_response(args, s, buffer, (size_t *) &bytes);
+                    dns_cache_response(args, buffer, (size_t) bytes);
+                }
 
                 // Forward to tun
                 if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
@@ -146,7 +157,7 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                         s->udp.state = UDP_FINISHING;
                 }
             }
-            ng_free(buffer, __FILE__, __LINE__);
+            put_packet_buffer(args->ctx, buffer);
         }
     }
 }
@@ -162,16 +173,12 @@ int has_udp_session(const struct arguments *args, const uint8_t *pkt, const uint
         return 1;
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, version, IPPROTO_UDP,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->dest);
 
     return (cur != NULL);
 }
@@ -220,8 +227,7 @@ void block_udp(const struct arguments *args,
     s->udp.state = UDP_BLOCKED;
     s->socket = -1;
 
-    s->next = args->ctx->ng_session;
-    args->ctx->ng_session = s;
+    add_session(args->ctx, s);
 }
 
 jboolean handle_udp(const struct arguments *args,
@@ -238,16 +244,12 @@ jboolean handle_udp(const struct arguments *args,
     const size_t datalen = length - (data - pkt);
 
     // Search session
-    struct ng_session *cur = args->ctx->ng_session;
-    while (cur != NULL &&
-           !(cur->protocol == IPPROTO_UDP &&
-             cur->udp.version == version &&
-             cur->udp.source == udphdr->source && cur->udp.dest == udphdr->dest &&
-             (version == 4 ? cur->udp.saddr.ip4 == ip4->saddr &&
-                             cur->udp.daddr.ip4 == ip4->daddr
-                           : memcmp(&cur->udp.saddr.ip6, &ip6->ip6_src, 16) == 0 &&
-                             memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
-        cur = cur->next;
+    struct ng_session *cur = find_session(
+            args->ctx, version, IPPROTO_UDP,
+            version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src,
+            udphdr->source,
+            version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst,
+            udphdr->dest);
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -265,6 +267,14 @@ jboolean handle_udp(const struct arguments *args,
         return 0;
     }
 
+    // Answer queries for blocked names and repeated DNS queries from the cache
+    // or let them wait for one in flight, send the others to the forwarder over the shared sockets
+    if (cur == NULL && ntohs(udphdr->dest) == 53 &&
+        (domain_block_query(args, pkt, udphdr, data, datalen, uid) ||
+         dns_cache_query(args, pkt, udphdr, data, datalen) ||
+         dns_mux_query(args, pkt, udphdr, data, datalen, uid, redirect, epoll_fd)))
+        return 1;
+
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
@@ -287,6 +297,11 @@ jboolean handle_udp(const struct arguments *args,
 
         s->udp.sent = 0;
         s->udp.received = 0;
+        s->udp.usage_sent = 0;
+        s->udp.usage_received = 0;
+        s->udp.usage_time = s->udp.time;
+        s->udp.usage_counted = 0;
+        s->udp.redirected = (uint8_t) (redirect != NULL);
 
         if (version == 4) {
             s->udp.saddr.ip4 = (__be32) ip4->saddr;
@@ -299,7 +314,6 @@ jboolean handle_udp(const struct arguments *args,
         s->udp.source = udphdr->source;
         s->udp.dest = udphdr->dest;
         s->udp.state = UDP_ACTIVE;
-        s->next = NULL;
 
         // Open UDP socket
         s->socket = open_udp_socket(args, &s->udp, redirect);
@@ -317,8 +331,7 @@ jboolean handle_udp(const struct arguments *args,
         if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, s->socket, &s->ev))
             log_android(ANDROID_LOG_ERROR, "epoll add udp error %d: %s", errno, strerror(errno));
 
-        s->next = args->ctx->ng_session;
-        args->ctx->ng_session = s;
+        add_session(args->ctx, s);
 
         cur = s;
     }
@@ -445,7 +458,8 @@ int open_udp_socket(const struct arguments *args,
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen) {
     size_t len;
-    u_int8_t *buffer;
+    uint8_t header[TUN_HEADER_MAX];
+    uint8_t *buffer = header;
     struct udphdr *udp;
     uint16_t csum;
     char source[INET6_ADDRSTRLEN + 1];
@@ -454,11 +468,8 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     // Build packet
     if (cur->version == 4) {
         len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -484,11 +495,8 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
         len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -536,15 +544,18 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
                 args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
 
-    ssize_t res = write(args->tun, buffer, len);
+    struct iovec iov[2];
+    iov[0].iov_base = buffer;
+    iov[0].iov_len = len - datalen;
+    iov[1].iov_base = (void *) data;
+    iov[1].iov_len = datalen;
+    ssize_t res = write_tun(args, iov, datalen ? 2 : 1, cur->uid);
 
     if (res < 0) {
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
     }
 
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
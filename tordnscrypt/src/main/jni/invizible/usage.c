@@ -0,0 +1,149 @@
+#pragma clang diagnostic push
+#pragma ide diagnostic ignored "hicpp-signed-bitwise"
+#pragma ide diagnostic ignored "cppcoreguidelines-avoid-magic-numbers"
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Bytes and sessions per uid and destination, counted by the engine thread of each context
+// when sessions close or every USAGE_FLUSH seconds while they are open.
+// Java takes the tables at intervals with jni_get_usage, each take starts an empty table.
+// Destinations not fitting the table are counted for their uid only.
+
+#define USAGE_KEY offsetof(struct usage_entry, sent) // bytes
+
+static uint32_t usage_hash(const struct usage_entry *key) {
+    return fnv1a32(FNV1A32_BASIS, key, USAGE_KEY);
+}
+
+static struct usage_entry *get_usage_entry(struct usage_entry *table,
+                                           const struct usage_entry *key) {
+    uint32_t index = usage_hash(key);
+    for (int p = 0; p < USAGE_PROBE; p++) {
+        struct usage_entry *entry = &table[(index + p) & (USAGE_MAX - 1)];
+        if (entry->version == 0 && entry->uid == 0 && entry->sessions == 0 &&
+            entry->sent == 0 && entry->received == 0) {
+            memcpy(entry, key, USAGE_KEY);
+            return entry;
+        }
+        if (memcmp(entry, key, USAGE_KEY) == 0)
+            return entry;
+    }
+    return NULL;
+}
+
+void account_usage(const struct arguments *args, jint version, jint protocol,
+                   const void *daddr, jint dport, jint uid, jlong sent, jlong received,
+                   int opened, int proxied) {
+    struct context *ctx = args->ctx;
+
+    // Padding is part of the key
+    struct usage_entry key;
+    memset(&key, 0, sizeof(struct usage_entry));
+    key.uid = uid;
+    key.version = (uint8_t) version;
+    key.protocol = (uint8_t) protocol;
+    key.proxied = (uint8_t) proxied;
+    key.dport = (uint16_t) dport;
+    memcpy(&key.daddr, daddr, version == 4 ? 4 : 16);
+
+    if (pthread_mutex_lock(&ctx->usage_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (ctx->usage == NULL)
+        ctx->usage = ng_calloc(USAGE_MAX, sizeof(struct usage_entry), "usage");
+
+    struct usage_entry *entry = NULL;
+    if (ctx->usage != NULL) {
+        entry = get_usage_entry(ctx->usage, &key);
+        if (entry == NULL) {
+            // Version 0 is the uid without destination
+            key.version = 0;
+            key.dport = 0;
+            memset(&key.daddr, 0, sizeof(key.daddr));
+            entry = get_usage_entry(ctx->usage, &key);
+        }
+    }
+
+    if (entry != NULL) {
+        entry->sent += sent;
+        entry->received += received;
+        if (opened)
+            entry->sessions++;
+    } else
+        ctx->usage_dropped++;
+
+    if (pthread_mutex_unlock(&ctx->usage_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+// Returns the table counted since the last take, to be freed by the caller
+struct usage_entry *take_usage(struct context *ctx) {
+    if (pthread_mutex_lock(&ctx->usage_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct usage_entry *usage = ctx->usage;
+    ctx->usage = NULL;
+    if (ctx->usage_dropped) {
+        log_android(ANDROID_LOG_WARN, "Usage dropped %u", ctx->usage_dropped);
+        ctx->usage_dropped = 0;
+    }
+
+    if (pthread_mutex_unlock(&ctx->usage_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    return usage;
+}
+
+// Counts what open sessions sent and received since their last count,
+// called when the engine stops so that Java takes it with the last jni_get_usage
+void flush_usage(const struct arguments *args) {
+    for (struct ng_session *s = args->ctx->ng_session[SESSION_UDP]; s != NULL; s = s->next)
+        if (s->udp.sent || s->udp.received) {
+            account_usage(args, s->udp.version, IPPROTO_UDP,
+                          &s->udp.daddr, ntohs(s->udp.dest), s->udp.uid,
+                          s->udp.sent, s->udp.received, !s->udp.usage_counted, 0);
+            s->udp.usage_sent += s->udp.sent;
+            s->udp.usage_received += s->udp.received;
+            s->udp.sent = 0;
+            s->udp.received = 0;
+            s->udp.usage_counted = 1;
+        }
+
+    for (struct ng_session *s = args->ctx->ng_session[SESSION_TCP]; s != NULL; s = s->next)
+        if (s->tcp.sent || s->tcp.received) {
+            account_usage(args, s->tcp.version, IPPROTO_TCP,
+                          &s->tcp.daddr, ntohs(s->tcp.dest), s->tcp.uid,
+                          s->tcp.sent, s->tcp.received, !s->tcp.usage_counted, s->tcp.proxied);
+            s->tcp.usage_sent += s->tcp.sent;
+            s->tcp.usage_received += s->tcp.received;
+            s->tcp.sent = 0;
+            s->tcp.received = 0;
+            s->tcp.usage_counted = 1;
+        }
+}
+
+void clear_usage(struct context *ctx) {
+    struct usage_entry *usage = take_usage(ctx);
+    if (usage != NULL)
+        ng_free(usage, __FILE__, __LINE__);
+}
+
+#pragma clang diagnostic pop
@@ -179,6 +179,16 @@ int is_writable(int fd) {
     return is_event(fd, POLLOUT);
 }
 
+// FNV-1a, a key of several fields is hashed by chaining them from FNV1A32_BASIS
+uint32_t fnv1a32(uint32_t hash, const void *data, size_t len) {
+    const uint8_t *p = (const uint8_t *) data;
+    for (size_t i = 0; i < len; i++) {
+        hash ^= p[i];
+        hash *= 16777619U;
+    }
+    return hash;
+}
+
 long long get_ms() {
     struct timespec ts;
     clock_gettime(CLOCK_MONOTONIC, &ts);
@@ -0,0 +1,106 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Direct mapped cache of isAddressAllowed results keyed on uid, protocol, daddr and dport.
+// Entries are valid only for the rules generation they were stored with,
+// Java bumps the generation each time the rules are prepared.
+
+static uint32_t verdict_hash(const struct verdict_key *key) {
+    return fnv1a32(FNV1A32_BASIS, key, sizeof(struct verdict_key));
+}
+
+void invalidate_verdicts(struct context *ctx) {
+    uint32_t generation = __sync_add_and_fetch(&ctx->verdict_generation, 1);
+    log_android(ANDROID_LOG_DEBUG, "Verdict cache generation %u", generation);
+}
+
+void clear_verdicts(struct context *ctx) {
+    if (ctx->verdict_cache != NULL) {
+        log_android(ANDROID_LOG_WARN, "Verdict cache hits %u misses %u",
+                    ctx->verdict_hits, ctx->verdict_misses);
+        ng_free(ctx->verdict_cache, __FILE__, __LINE__);
+    }
+    ctx->verdict_cache = NULL;
+    ctx->verdict_hits = 0;
+    ctx->verdict_misses = 0;
+}
+
+struct allowed *is_flow_allowed(const struct arguments *args,
+                                jint version,
+                                jint protocol,
+                                const void *saddr,
+                                jint sport,
+                                const void *daddr,
+                                jint dport,
+                                jint uid) {
+    struct context *ctx = args->ctx;
+
+    if (ctx->verdict_cache == NULL)
+        ctx->verdict_cache = ng_calloc(VERDICT_CACHE_SIZE, sizeof(struct verdict_entry),
+                                       "verdict");
+
+    // Unrecognised uids (tethering, lookup failures) depend on more than the flow key
+    if (uid < 0 || ctx->verdict_cache == NULL)
+        return is_address_allowed(args, version, protocol, saddr, sport, daddr, dport, uid);
+
+    struct verdict_key key;
+    memset(&key, 0, sizeof(struct verdict_key));
+    key.uid = uid;
+    key.version = (uint8_t) version;
+    key.protocol = (uint8_t) protocol;
+    key.dport = (uint16_t) dport;
+    memcpy(&key.daddr, daddr, version == 4 ? 4 : 16);
+
+    struct verdict_entry *entry =
+            &ctx->verdict_cache[verdict_hash(&key) & (VERDICT_CACHE_SIZE - 1)];
+
+    // Read generation before the upcall, so rules changed meanwhile will not be cached as current
+    uint32_t generation = __sync_add_and_fetch(&ctx->verdict_generation, 0);
+    long long now = get_ms();
+
+    if (entry->valid &&
+        entry->generation == generation &&
+        now - entry->time < VERDICT_MAX_AGE &&
+        memcmp(&entry->key, &key, sizeof(struct verdict_key)) == 0) {
+        ctx->verdict_hits++;
+        log_android(ANDROID_LOG_DEBUG, "Verdict cached v%d p%d dport %d uid %d allowed %d",
+                    version, protocol, dport, uid, entry->allowed);
+        return (entry->allowed ? &entry->redirect : NULL);
+    }
+
+    ctx->verdict_misses++;
+
+    struct allowed *redirect = is_address_allowed(
+            args, version, protocol, saddr, sport, daddr, dport, uid);
+
+    entry->key = key;
+    entry->generation = generation;
+    entry->time = now;
+    entry->allowed = (uint8_t) (redirect != NULL);
+    if (redirect == NULL) {
+        *entry->redirect.raddr = 0;
+        entry->redirect.rport = 0;
+    } else
+        memcpy(&entry->redirect, redirect, sizeof(struct allowed));
+    entry->valid = 1;
+
+    return (entry->allowed ? &entry->redirect : NULL);
+}
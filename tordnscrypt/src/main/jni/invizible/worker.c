@@ -0,0 +1,480 @@
+/*
+    This file is part of InviZible Pro.
+
+    InviZible Pro is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    InviZible Pro is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with InviZible Pro.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2019-2020 by Garmatin Oleksandr invizible.soft@gmail.com
+*/
+
+#include "invizible.h"
+
+// Sharded mode: the thread running jni_run only reads the tun and queues each packet
+// to the worker owning its flow. Every worker runs handle_events on a context of its own,
+// so sessions, epoll set, timers and caches are never shared between threads.
+// Workers write replies to the tun directly, the tun takes one packet per write.
+
+extern JavaVM *jvm;
+extern int max_tun_msg;
+
+// Flows are assigned on version, protocol, addresses and ports (addresses only for ICMP)
+static int get_flow_worker(const uint8_t *pkt, size_t length, int count) {
+    uint8_t version = (*pkt) >> 4;
+    uint8_t protocol;
+    const void *addresses;
+    size_t alen;
+    size_t hlen;
+
+    if (version == 4 && length >= sizeof(struct iphdr)) {
+        const struct iphdr *ip4hdr = (const struct iphdr *) pkt;
+        protocol = ip4hdr->protocol;
+        addresses = &ip4hdr->saddr; // followed by daddr
+        alen = 2 * 4;
+        hlen = (size_t) ip4hdr->ihl * 4;
+    } else if (version == 6 && length >= sizeof(struct ip6_hdr)) {
+        const struct ip6_hdr *ip6hdr = (const struct ip6_hdr *) pkt;
+        protocol = ip6hdr->ip6_nxt;
+        addresses = &ip6hdr->ip6_src; // followed by ip6_dst
+        alen = 2 * 16;
+        hlen = sizeof(struct ip6_hdr);
+    } else
+        return 0;
+
+    uint32_t hash = FNV1A32_BASIS;
+    hash = fnv1a32(hash, &version, sizeof(version));
+    hash = fnv1a32(hash, &protocol, sizeof(protocol));
+    hash = fnv1a32(hash, addresses, alen);
+    if ((protocol == IPPROTO_TCP || protocol == IPPROTO_UDP) && length >= hlen + 4)
+        hash = fnv1a32(hash, pkt + hlen, 4); // source and destination port
+
+    return (int) (hash % (uint32_t) count);
+}
+
+// Packets hashed to an exited worker would never be handled
+static void set_worker_exited(struct worker *w) {
+    __sync_lock_test_and_set(&w->exited, 1);
+    if (write(w->stopfd, "x", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Worker %d write pipe error %d: %s",
+                    w->index, errno, strerror(errno));
+}
+
+static int is_worker_exited(struct worker *w) {
+    return __sync_add_and_fetch(&w->exited, 0);
+}
+
+static void *run_worker(void *data) {
+    struct worker *w = (struct worker *) data;
+    log_android(ANDROID_LOG_WARN, "Worker %d/%d start", w->index, w->count);
+
+    JNIEnv *env = NULL;
+    if ((*jvm)->AttachCurrentThread(jvm, &env, NULL) != JNI_OK) {
+        log_android(ANDROID_LOG_ERROR, "Worker %d attach thread failed", w->index);
+        set_worker_exited(w);
+        return NULL;
+    }
+
+    struct arguments *args = ng_malloc(sizeof(struct arguments), "arguments");
+    args->env = env;
+    args->instance = w->instance;
+    args->tun = w->tun;
+    args->fwd53 = w->fwd53;
+    args->rcode = w->rcode;
+    args->ctx = w->ctx;
+    args->worker = w;
+    handle_events(args);
+
+    if ((*jvm)->DetachCurrentThread(jvm) != JNI_OK)
+        log_android(ANDROID_LOG_ERROR, "Worker %d detach thread failed", w->index);
+
+    log_android(ANDROID_LOG_WARN, "Worker %d/%d exit", w->index, w->count);
+    set_worker_exited(w);
+    return NULL;
+}
+
+static int create_workers(struct context *ctx, int count) {
+    struct worker *workers = ng_calloc((size_t) count, sizeof(struct worker), "workers");
+    if (workers == NULL)
+        return -1;
+
+    int error = 0;
+    for (int i = 0; i < count; i++) {
+        struct worker *w = &workers[i];
+        w->index = i;
+        w->count = count;
+        w->wakefds[0] = -1;
+        w->wakefds[1] = -1;
+        w->stopfd = ctx->pipefds[1];
+
+        w->ctx = create_context(ctx->sdk);
+        w->queue = ng_malloc((size_t) WORKER_QUEUE * get_mtu(), "worker queue");
+        if (w->ctx == NULL || w->queue == NULL) {
+            log_android(ANDROID_LOG_ERROR, "Worker %d alloc failed", i);
+            error = 1;
+        }
+
+        if (pipe(w->wakefds)) {
+            log_android(ANDROID_LOG_ERROR, "Worker %d pipe error %d: %s",
+                        i, errno, strerror(errno));
+            w->wakefds[0] = -1;
+            w->wakefds[1] = -1;
+            error = 1;
+        } else
+            for (int p = 0; p < 2; p++) {
+                int flags = fcntl(w->wakefds[p], F_GETFL, 0);
+                if (flags < 0 || fcntl(w->wakefds[p], F_SETFL, flags | O_NONBLOCK) < 0)
+                    log_android(ANDROID_LOG_ERROR, "fcntl wakefds[%d] O_NONBLOCK error %d: %s",
+                                p, errno, strerror(errno));
+            }
+    }
+
+    // Publish under the lock for jni_invalidate_verdicts and the statistics
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    ctx->workers = workers;
+    ctx->worker_count = count;
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (error) {
+        free_workers(ctx);
+        return -1;
+    }
+
+    log_android(ANDROID_LOG_WARN, "Created workers %d", count);
+    return 0;
+}
+
+static int start_workers(const struct arguments *args, int count) {
+    struct context *ctx = args->ctx;
+
+    // Workers and their sessions are kept as long as the count does not change
+    if (ctx->workers != NULL && ctx->worker_count != count)
+        free_workers(ctx);
+    if (ctx->workers == NULL && create_workers(ctx, count))
+        return -1;
+
+    for (int i = 0; i < ctx->worker_count; i++) {
+        struct worker *w = &ctx->workers[i];
+        w->head = 0;
+        w->tail = 0;
+        w->tun = args->tun;
+        w->fwd53 = args->fwd53;
+        w->rcode = args->rcode;
+        w->ctx->dns_ttl_min = ctx->dns_ttl_min;
+        w->ctx->dns_ttl_max = ctx->dns_ttl_max;
+        w->ctx->stopping = 0;
+        w->exited = 0;
+        w->instance = jniGlobalRef(args->env, args->instance);
+        ng_add_alloc(w->instance, "worker instance");
+
+        int err = pthread_create(&w->thread, NULL, run_worker, w);
+        w->running = (err == 0);
+        if (err) {
+            log_android(ANDROID_LOG_ERROR, "Worker %d pthread_create error %d: %s",
+                        i, err, strerror(err));
+            w->exited = 1;
+        }
+    }
+
+    return 0;
+}
+
+static void stop_workers(const struct arguments *args) {
+    struct context *ctx = args->ctx;
+
+    for (int i = 0; i < ctx->worker_count; i++) {
+        struct worker *w = &ctx->workers[i];
+        if (w->running) {
+            w->ctx->stopping = 1;
+            if (write(w->ctx->pipefds[1], "w", 1) < 0)
+                log_android(ANDROID_LOG_WARN, "Worker %d write pipe error %d: %s",
+                            i, errno, strerror(errno));
+        }
+    }
+
+    for (int i = 0; i < ctx->worker_count; i++) {
+        struct worker *w = &ctx->workers[i];
+        if (w->running) {
+            int err = pthread_join(w->thread, NULL);
+            if (err)
+                log_android(ANDROID_LOG_ERROR, "Worker %d pthread_join error %d: %s",
+                            i, err, strerror(err));
+            w->running = 0;
+        }
+
+        if (w->instance != NULL) {
+            (*args->env)->DeleteGlobalRef(args->env, w->instance);
+            ng_delete_alloc(w->instance, __FILE__, __LINE__);
+            w->instance = NULL;
+        }
+
+        log_android(ANDROID_LOG_WARN, "Worker %d packets %llu dropped %llu sessions %d",
+                    i, w->packets, w->dropped, get_sessions(w->ctx));
+    }
+}
+
+void clear_workers(struct context *ctx) {
+    for (int i = 0; i < ctx->worker_count; i++)
+        clear(ctx->workers[i].ctx);
+}
+
+// Workers must not be running
+void free_workers(struct context *ctx) {
+    if (ctx->workers == NULL)
+        return;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+    struct worker *workers = ctx->workers;
+    int count = ctx->worker_count;
+    ctx->workers = NULL;
+    ctx->worker_count = 0;
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    for (int i = 0; i < count; i++) {
+        struct worker *w = &workers[i];
+        if (w->ctx != NULL)
+            free_context(w->ctx);
+        if (w->queue != NULL)
+            ng_free(w->queue, __FILE__, __LINE__);
+        for (int p = 0; p < 2; p++)
+            if (w->wakefds[p] >= 0 && close(w->wakefds[p]))
+                log_android(ANDROID_LOG_ERROR, "Close wakefds[%d] error %d: %s",
+                            p, errno, strerror(errno));
+    }
+
+    ng_free(workers, __FILE__, __LINE__);
+    log_android(ANDROID_LOG_WARN, "Freed workers %d", count);
+}
+
+// Called by handle_events of a worker when the reader signalled queued packets
+void check_worker(const struct arguments *args,
+                  const struct epoll_event *ev,
+                  const int epoll_fd,
+                  int maxsessions) {
+    struct worker *w = args->worker;
+
+    // Consume signals first, packets queued from now on will signal again
+    uint8_t signals[WORKER_QUEUE];
+    while (read(w->wakefds[0], signals, sizeof(signals)) > 0);
+
+    uint32_t head = __sync_add_and_fetch(&w->head, 0);
+    while (w->tail != head && !args->ctx->stopping) {
+        uint32_t slot = w->tail & (WORKER_QUEUE - 1);
+        handle_ip(args, w->queue + slot * get_mtu(), w->queue_length[slot],
+                  epoll_fd, maxsessions);
+
+        // Hands the slot back to the reader
+        __sync_add_and_fetch(&w->tail, 1);
+    }
+}
+
+static int dispatch_tun(const struct arguments *args, const struct epoll_event *ev,
+                        uint8_t *buffer) {
+    struct context *ctx = args->ctx;
+
+    // Check tun error
+    if (ev->events & EPOLLERR) {
+        log_android(ANDROID_LOG_ERROR, "tun %d exception", args->tun);
+        if (fcntl(args->tun, F_GETFL) < 0) {
+            log_android(ANDROID_LOG_ERROR, "fcntl tun %d F_GETFL error %d: %s",
+                        args->tun, errno, strerror(errno));
+            report_exit(args, "fcntl tun %d F_GETFL error %d: %s",
+                        args->tun, errno, strerror(errno));
+        } else
+            report_exit(args, "tun %d exception", args->tun);
+        return -1;
+    }
+
+    // Check tun read
+    int result = 0;
+    if (ev->events & EPOLLIN) {
+        int queued[WORKER_MAX];
+        memset(queued, 0, sizeof(queued));
+
+        int count = 0;
+        while (count < TUN_YIELD && !ctx->stopping &&
+               (count == 0 || is_readable(args->tun))) {
+            count++;
+
+            ssize_t length = read(args->tun, buffer, get_mtu());
+            if (length < 0) {
+                log_android(ANDROID_LOG_ERROR, "tun %d read error %d: %s",
+                            args->tun, errno, strerror(errno));
+                if (errno != EINTR && errno != EAGAIN) {
+                    report_exit(args, "tun %d read error %d: %s",
+                                args->tun, errno, strerror(errno));
+                    result = -1;
+                }
+                // Retry later
+                break;
+            } else if (length > 0) {
+
+                if (length > max_tun_msg) {
+                    max_tun_msg = length;
+                    log_android(ANDROID_LOG_WARN, "Maximum tun msg length %d", max_tun_msg);
+                }
+
+                struct worker *w = &ctx->workers[get_flow_worker(
+                        buffer, (size_t) length, ctx->worker_count)];
+                w->packets++;
+
+                if (is_worker_exited(w)) {
+                    w->dropped++;
+                    log_android(ANDROID_LOG_ERROR, "Worker %d exited, stopping tun %d",
+                                w->index, args->tun);
+                    report_exit(args, "Worker %d exited", w->index);
+                    result = -1;
+                    break;
+                }
+
+                // Drop rather than wait for a busy worker, TCP will retransmit
+                if (w->head - __sync_add_and_fetch(&w->tail, 0) >= WORKER_QUEUE) {
+                    w->dropped++;
+                    log_android(ANDROID_LOG_DEBUG, "Worker %d queue full", w->index);
+                } else {
+                    uint32_t slot = w->head & (WORKER_QUEUE - 1);
+                    memcpy(w->queue + slot * get_mtu(), buffer, (size_t) length);
+                    w->queue_length[slot] = (uint16_t) length;
+
+                    // Publishes the slot to the worker
+                    __sync_add_and_fetch(&w->head, 1);
+                    queued[w->index] = 1;
+                }
+            } else {
+                // tun eof
+                log_android(ANDROID_LOG_ERROR, "tun %d empty read", args->tun);
+                report_exit(args, "tun %d empty read", args->tun);
+                result = -1;
+                break;
+            }
+        }
+
+        // One signal per worker per drain
+        for (int i = 0; i < ctx->worker_count; i++)
+            if (queued[i] && write(ctx->workers[i].wakefds[1], "w", 1) < 0 && errno != EAGAIN)
+                log_android(ANDROID_LOG_WARN, "Worker %d signal error %d: %s",
+                            i, errno, strerror(errno));
+    }
+
+    return result;
+}
+
+void run_workers(struct arguments *args, int count) {
+    if (count > WORKER_MAX)
+        count = WORKER_MAX;
+    log_android(ANDROID_LOG_WARN, "Start workers %d tun=%d", count, args->tun);
+
+    if (start_workers(args, count)) {
+        log_android(ANDROID_LOG_ERROR, "Start workers %d failed", count);
+        report_exit(args, "Start workers %d failed", count);
+        ng_free(args, __FILE__, __LINE__);
+        return;
+    }
+
+    // Open epoll file
+    int epoll_fd = epoll_create(1);
+    if (epoll_fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "epoll create error %d: %s", errno, strerror(errno));
+        report_exit(args, "epoll create error %d: %s", errno, strerror(errno));
+        args->ctx->stopping = 1;
+    }
+
+    // Monitor stop events
+    struct epoll_event ev_pipe;
+    memset(&ev_pipe, 0, sizeof(struct epoll_event));
+    ev_pipe.events = EPOLLIN | EPOLLERR;
+    ev_pipe.data.ptr = &ev_pipe;
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->ctx->pipefds[0], &ev_pipe)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add pipe error %d: %s", errno, strerror(errno));
+        report_exit(args, "epoll add pipe error %d: %s", errno, strerror(errno));
+        args->ctx->stopping = 1;
+    }
+
+    // Monitor tun events
+    struct epoll_event ev_tun;
+    memset(&ev_tun, 0, sizeof(struct epoll_event));
+    ev_tun.events = EPOLLIN | EPOLLERR;
+    ev_tun.data.ptr = NULL;
+    if (epoll_ctl(epoll_fd, EPOLL_CTL_ADD, args->tun, &ev_tun)) {
+        log_android(ANDROID_LOG_ERROR, "epoll add tun error %d: %s", errno, strerror(errno));
+        report_exit(args, "epoll add tun error %d: %s", errno, strerror(errno));
+        args->ctx->stopping = 1;
+    }
+
+    uint8_t *buffer = get_packet_buffer(args->ctx);
+
+    // Loop
+    while (!args->ctx->stopping) {
+        // A worker exits only on an error of its own, its flows cannot move to another worker
+        int exited = -1;
+        for (int i = 0; i < args->ctx->worker_count && exited < 0; i++)
+            if (is_worker_exited(&args->ctx->workers[i]))
+                exited = i;
+        if (exited >= 0) {
+            log_android(ANDROID_LOG_ERROR, "Worker %d exited, stopping tun %d", exited, args->tun);
+            report_exit(args, "Worker %d exited", exited);
+            break;
+        }
+
+        struct epoll_event ev[2];
+        int ready = epoll_wait(epoll_fd, ev, 2, EPOLL_TIMEOUT * 1000);
+
+        if (ready < 0) {
+            if (errno == EINTR) {
+                log_android(ANDROID_LOG_DEBUG, "epoll interrupted tun %d", args->tun);
+                continue;
+            } else {
+                log_android(ANDROID_LOG_ERROR,
+                            "epoll tun %d error %d: %s",
+                            args->tun, errno, strerror(errno));
+                report_exit(args, "epoll tun %d error %d: %s",
+                            args->tun, errno, strerror(errno));
+                break;
+            }
+        }
+
+        int error = 0;
+        for (int i = 0; i < ready; i++) {
+            if (ev[i].data.ptr == &ev_pipe) {
+                // Check pipe
+                uint8_t signal[1];
+                if (read(args->ctx->pipefds[0], signal, 1) < 0)
+                    log_android(ANDROID_LOG_WARN, "Read pipe error %d: %s",
+                                errno, strerror(errno));
+                else
+                    log_android(ANDROID_LOG_WARN, "Read pipe");
+
+            } else if (dispatch_tun(args, &ev[i], buffer) < 0)
+                error = 1;
+        }
+
+        if (error)
+            break;
+    }
+
+    put_packet_buffer(args->ctx, buffer);
+
+    // Close epoll file
+    if (epoll_fd >= 0 && close(epoll_fd))
+        log_android(ANDROID_LOG_ERROR,
+                    "epoll close error %d: %s", errno, strerror(errno));
+
+    stop_workers(args);
+
+    log_android(ANDROID_LOG_WARN, "Stopped workers %d tun=%d", count, args->tun);
+
+    // Cleanup
+    ng_free(args, __FILE__, __LINE__);
+}